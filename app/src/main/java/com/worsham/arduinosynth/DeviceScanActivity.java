@@ -26,31 +26,49 @@ import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.worsham.arduinosynth.bluetooth.AdvertisementParser;
+import com.worsham.arduinosynth.bluetooth.BluetoothLeUart;
 import com.worsham.arduinosynth.bluetooth.BluetoothUtil;
+import com.worsham.arduinosynth.bluetooth.DeviceRegistry;
+import com.worsham.arduinosynth.bluetooth.LastDevice;
+import com.worsham.arduinosynth.bluetooth.UartService;
+import com.worsham.arduinosynth.bluetooth.UartTransport;
+import com.worsham.arduinosynth.protocol.SynthMessage;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
- * Activity for scanning and displaying available Bluetooth LE devices.
+ * Activity for scanning and displaying available Bluetooth LE devices. At launch the last board
+ * connected to is connected to directly while the scan runs, and the synth screen opens as soon
+ * as that connection is up. Tapping a board plays it; long pressing boards selects several to
+ * play together.
  */
 public class DeviceScanActivity extends ListActivity
 {
@@ -60,11 +78,110 @@ public class DeviceScanActivity extends ListActivity
     private boolean mScanning;
     private Handler mHandler;
 
+    // When the app was launched, passed to the synth screen to time the cold start.
+    private long mStartNanos;
+
+    // The service owning the connection, and the direct connection to the last board made
+    // while scanning, tried once per launch.
+    private UartService mUartService;
+    private BluetoothLeUart mFastConnect;
+    private boolean mFastConnectTried;
+
+    // The boards selected to play together, by address with their names, in selection order.
+    private final LinkedHashMap<String, String> mSelected = new LinkedHashMap<>();
+    private static final int MENU_PLAY_SELECTED = 1;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mUartService = ((UartService.LocalBinder) binder).getService();
+            fastConnect();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mUartService = null;
+            mFastConnect = null;
+        }
+    };
+
+    // Opens the synth screen once the direct connection to the last board is up.
+    private final UartTransport.Listener mFastConnectListener = new UartTransport.Listener() {
+        @Override
+        public void onConnected(final UartTransport transport) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mFastConnect != null && mFastConnect == transport)
+                        openSynth(mFastConnect.getAddress(), mFastConnect.getName());
+                }
+            });
+        }
+
+        @Override
+        public void onDisconnected(UartTransport transport) {
+        }
+
+        @Override
+        public void onReceive(UartTransport transport, byte[] data, int offset, int length) {
+        }
+
+        @Override
+        public void onMessage(UartTransport transport, SynthMessage message) {
+        }
+
+        @Override
+        public void onMtuChanged(UartTransport transport, int mtu) {
+        }
+    };
+
     private static final int REQUEST_ENABLE_BT = 1;
 
     // Stops scanning after 10 seconds.
     private static final long SCAN_PERIOD = 10000;
 
+    // How long the controller may hold scan results to deliver them in batches, when it can.
+    private static final long SCAN_REPORT_DELAY = 100;
+
+    // Devices not seen for 5 seconds are dropped from the list, checked every second.
+    private static final long DEVICE_TTL = 5000;
+    private static final long EVICT_INTERVAL = 1000;
+
+    // Drops stale devices from the list while scanning.
+    private final Runnable evictStaleDevices = new Runnable() {
+        @Override
+        public void run() {
+            if (mLeDeviceListAdapter != null)
+                mLeDeviceListAdapter.evictStale(SystemClock.elapsedRealtimeNanos());
+            mHandler.postDelayed(this, EVICT_INTERVAL);
+        }
+    };
+
+    // Scan results waiting for the next frame, filled on the binder thread and swapped out on
+    // the UI thread, guarded by mPendingLock.
+    private final Object mPendingLock = new Object();
+    private ArrayList<ScanResult> mPendingResults = new ArrayList<>();
+    private ArrayList<ScanResult> mApplyingResults = new ArrayList<>();
+    private boolean mFrameRequested;
+    private Choreographer mChoreographer;
+
+    // Applies the scan results which arrived since the last frame, at most once per frame.
+    private final Choreographer.FrameCallback applyScanResults = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            ArrayList<ScanResult> results;
+            synchronized (mPendingLock) {
+                results = mPendingResults;
+                mPendingResults = mApplyingResults;
+                mApplyingResults = results;
+                mFrameRequested = false;
+            }
+            if (mLeDeviceListAdapter != null)
+                mLeDeviceListAdapter.applyResults(results);
+            results.clear();
+        }
+    };
+
     /**
      * Called when the activity is first opened. Setup the bluetooth
      * scanning activity.
@@ -78,6 +195,84 @@ public class DeviceScanActivity extends ListActivity
         requestPermissions(new String[]{Manifest.permission.ACCESS_COARSE_LOCATION}, 1);
 
         mHandler = new Handler();
+        mChoreographer = Choreographer.getInstance();
+        if (savedInstanceState == null)
+            mStartNanos = System.nanoTime();
+        else
+            mFastConnectTried = true;
+        bindService(new Intent(this, UartService.class), mServiceConnection, BIND_AUTO_CREATE);
+
+        getListView().setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+            @Override
+            public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+                toggleSelected(position);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Show the action playing the selected boards once there are any.
+     * @param menu the options menu
+     * @return true to show the menu
+     */
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu)
+    {
+        if (!mSelected.isEmpty()) {
+            menu.add(Menu.NONE, MENU_PLAY_SELECTED, Menu.NONE,
+                    getString(R.string.menu_play_selected, mSelected.size()))
+                    .setShowAsAction(MenuItem.SHOW_AS_ACTION_ALWAYS);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item)
+    {
+        if (item.getItemId() != MENU_PLAY_SELECTED)
+            return super.onOptionsItemSelected(item);
+        String[] addresses = mSelected.keySet().toArray(new String[mSelected.size()]);
+        String[] names = mSelected.values().toArray(new String[mSelected.size()]);
+        mSelected.clear();
+        invalidateOptionsMenu();
+        openSynth(addresses, names);
+        return true;
+    }
+
+    /**
+     * Add a board to the selection to play together, or take it out again.
+     * @param position the position of the board in the list
+     */
+    private void toggleSelected(int position)
+    {
+        BluetoothDevice device = mLeDeviceListAdapter.getDevice(position).device;
+        if (device == null)
+            return;
+        String address = device.getAddress();
+        if (mSelected.containsKey(address)) {
+            mSelected.remove(address);
+        } else if (mSelected.size() >= UartService.MAX_CONNECTIONS) {
+            Toast.makeText(this, getString(R.string.too_many_boards, UartService.MAX_CONNECTIONS),
+                    Toast.LENGTH_SHORT).show();
+            return;
+        } else {
+            mSelected.put(address, device.getName());
+        }
+        mLeDeviceListAdapter.notifyDataSetChanged();
+        invalidateOptionsMenu();
+    }
+
+    /**
+     * Called when the activity is destroyed, lets go of the service.
+     */
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        releaseFastConnect(false);
+        unbindService(mServiceConnection);
+        mUartService = null;
     }
 
     /**
@@ -92,6 +287,7 @@ public class DeviceScanActivity extends ListActivity
 
         if (requestCode == 1 && permissions.length == grantResults.length) {
             initBluetooth();
+            fastConnect();
             scanBluetooth();
         } else {
             Toast.makeText(this, R.string.no_permissions, Toast.LENGTH_LONG);
@@ -123,6 +319,40 @@ public class DeviceScanActivity extends ListActivity
         }
     }
 
+    /**
+     * Connect straight to the last board connected to, in parallel with the scan, so a
+     * returning user need not wait for the scan and pick the board again.
+     */
+    private void fastConnect()
+    {
+        if (mFastConnectTried || mUartService == null || mBluetoothAdapter == null
+                || !mBluetoothAdapter.isEnabled())
+            return;
+        LastDevice last = mUartService.getLastDevice();
+        if (last == null)
+            return;
+        mFastConnectTried = true;
+        mFastConnect = mUartService.acquire(last.getAddress(), mStartNanos);
+        mFastConnect.registerListener(mFastConnectListener);
+        if (mFastConnect.isConnected())
+            openSynth(last.getAddress(), last.getName());
+    }
+
+    /**
+     * Hand the direct connection to the last board back to the service, the synth screen
+     * reattaches to it within the grace period.
+     * @param immediately true to disconnect now if nobody else holds the connection
+     */
+    private void releaseFastConnect(boolean immediately)
+    {
+        if (mFastConnect == null)
+            return;
+        mFastConnect.unregisterListener(mFastConnectListener);
+        if (mUartService != null)
+            mUartService.release(mFastConnect, immediately);
+        mFastConnect = null;
+    }
+
     /**
      * Scan for bluetooth devices.
      */
@@ -179,7 +409,13 @@ public class DeviceScanActivity extends ListActivity
     protected void onPause()
     {
         super.onPause();
+        releaseFastConnect(false);
         scanLeDevice(false);
+        mChoreographer.removeFrameCallback(applyScanResults);
+        synchronized (mPendingLock) {
+            mPendingResults.clear();
+            mFrameRequested = false;
+        }
         if (mLeDeviceListAdapter != null)
             mLeDeviceListAdapter.clear();
     }
@@ -195,15 +431,44 @@ public class DeviceScanActivity extends ListActivity
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id)
     {
+        // while boards are being selected a tap adds to the selection too
+        if (!mSelected.isEmpty()) {
+            toggleSelected(position);
+            return;
+        }
         // extract the selected bluetooth device
         final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position).device;
         if (device == null)
             return;
+        openSynth(device.getAddress(), device.getName());
+    }
 
-        // request a new activity with this bluetooth device
+    /**
+     * Open the synth screen for a board.
+     * @param address the address of the board
+     * @param name the name of the board, may be null
+     */
+    private void openSynth(String address, String name)
+    {
+        openSynth(new String[] {address}, new String[] {name});
+    }
+
+    /**
+     * Open the synth screen playing several boards at once.
+     * @param addresses the addresses of the boards
+     * @param names the names of the boards, entries may be null
+     */
+    private void openSynth(String[] addresses, String[] names)
+    {
+        // request a new activity with these bluetooth devices
         final Intent intent = new Intent(this, SynthActivity.class);
-        intent.putExtra(SynthActivity.EXTRAS_DEVICE_NAME, device.getName());
-        intent.putExtra(SynthActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
+        intent.putExtra(SynthActivity.EXTRAS_DEVICE_NAME, names[0]);
+        intent.putExtra(SynthActivity.EXTRAS_DEVICE_ADDRESS, addresses[0]);
+        intent.putExtra(SynthActivity.EXTRAS_DEVICE_NAMES, names);
+        intent.putExtra(SynthActivity.EXTRAS_DEVICE_ADDRESSES, addresses);
+        // only the first board opened after launch times the cold start
+        intent.putExtra(SynthActivity.EXTRAS_START_NANOS, mStartNanos);
+        mStartNanos = 0;
         if (mScanning)
         {
             mBluetoothAdapter.getBluetoothLeScanner().stopScan(leScanCallback);
@@ -228,6 +493,7 @@ public class DeviceScanActivity extends ListActivity
                 public void run() {
                     mScanning = false;
                     mBluetoothAdapter.getBluetoothLeScanner().stopScan(leScanCallback);
+                    mHandler.removeCallbacks(evictStaleDevices);
                     invalidateOptionsMenu();
                 }
             }, SCAN_PERIOD);
@@ -237,12 +503,18 @@ public class DeviceScanActivity extends ListActivity
                     .build();
             List<ScanFilter> filters = new ArrayList<>();
             filters.add(filter);
-            ScanSettings settings = (new ScanSettings.Builder())
-                    .build();
-            mBluetoothAdapter.getBluetoothLeScanner().startScan(filters, settings, leScanCallback);
+            ScanSettings.Builder settings = new ScanSettings.Builder();
+            // Let the controller batch results when it can, so the CPU is woken less often.
+            if (mBluetoothAdapter.isOffloadedScanBatchingSupported())
+                settings.setReportDelay(SCAN_REPORT_DELAY);
+            mBluetoothAdapter.getBluetoothLeScanner().startScan(filters, settings.build(), leScanCallback);
+            // Devices are only evicted while scanning, once it stops nothing would be seen again.
+            mHandler.removeCallbacks(evictStaleDevices);
+            mHandler.postDelayed(evictStaleDevices, EVICT_INTERVAL);
         } else {
             mScanning = false;
             mBluetoothAdapter.getBluetoothLeScanner().stopScan(leScanCallback);
+            mHandler.removeCallbacks(evictStaleDevices);
         }
         invalidateOptionsMenu();
     }
@@ -250,57 +522,71 @@ public class DeviceScanActivity extends ListActivity
     // Adapter for holding devices found through scanning.
     private class LeDeviceListAdapter extends BaseAdapter
     {
-        private ArrayList<BluetoothDeviceHolder> mLeDevices;
-        private Map<String, ViewHolder> viewMap;
+        private DeviceRegistry<BluetoothDeviceHolder> mLeDevices;
+        // the view showing each device, by address, so updates can skip rebinding the list
+        private Map<Long, ViewHolder> viewMap;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter()
         {
             super();
-            mLeDevices = new ArrayList<>();
+            mLeDevices = new DeviceRegistry<>();
             viewMap = new HashMap<>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDeviceHolder device)
-        {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
-            }
+        public BluetoothDeviceHolder getDevice(int position) {
+            return mLeDevices.get(position);
         }
 
         /**
-         * Return true if the given address is already in the list.
-         * @param address the address of the device to search for
-         * @return true if it is in the list, false otherwise
+         * Apply a frame's worth of scan results. Devices which keep their place are updated in
+         * their views, the list is only rebound when devices were added or changed rank.
+         * @param results the scan results, oldest first
          */
-        public boolean hasDevice(String address)
+        public void applyResults(List<ScanResult> results)
         {
-            for(BluetoothDeviceHolder holder : mLeDevices)
-            {
-                if (address.equals(holder.device.getAddress()))
-                    return true;
+            boolean moved = false;
+            for (int i = 0; i < results.size(); i++) {
+                ScanResult result = results.get(i);
+                // parse the address once, then a single hash lookup finds the device
+                long address = DeviceRegistry.parseAddress(result.getDevice().getAddress());
+                int oldPosition = mLeDevices.indexOf(address);
+                BluetoothDeviceHolder holder = oldPosition < 0
+                        ? new BluetoothDeviceHolder() : mLeDevices.get(oldPosition);
+                holder.device = result.getDevice();
+                holder.scanRecord = result.getScanRecord();
+                int position = mLeDevices.update(address, holder, result.getRssi(),
+                        result.getTimestampNanos());
+                holder.rssi = Math.round(mLeDevices.getRssi(position));
+
+                if (position != oldPosition) {
+                    moved = true;
+                } else {
+                    ViewHolder viewHolder = viewMap.get(address);
+                    if (viewHolder != null)
+                        bindView(viewHolder, holder);
+                }
             }
-            return false;
+            if (moved)
+                notifyDataSetChanged();
         }
 
         /**
-         * Return the device holder of the given address.
-         * @param address the address of the holder to retrieve
-         * @return the device holder for this device address
+         * Drop the devices which have not been seen within the time to live.
+         * @param nowNanos the current SystemClock.elapsedRealtimeNanos()
          */
-        public BluetoothDeviceHolder getDeviceHolder(String address)
+        public void evictStale(long nowNanos)
         {
-            for(BluetoothDeviceHolder holder : mLeDevices)
-            {
-                if (address.equals(holder.device.getAddress()))
-                    return holder;
+            if (mLeDevices.evict(nowNanos, DEVICE_TTL * 1000000L) == 0)
+                return;
+            // forget the views of evicted devices so the map stays bounded by the rows shown
+            Iterator<Map.Entry<Long, ViewHolder>> views = viewMap.entrySet().iterator();
+            while (views.hasNext()) {
+                if (mLeDevices.indexOf(views.next().getKey()) < 0)
+                    views.remove();
             }
-            return null;
-        }
-
-        public BluetoothDeviceHolder getDevice(int position) {
-            return mLeDevices.get(position);
+            notifyDataSetChanged();
         }
 
         public void clear()
@@ -333,22 +619,35 @@ public class DeviceScanActivity extends ListActivity
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
+                // the recycled view no longer shows the device it was bound to
+                if (viewMap.get(viewHolder.address) == viewHolder)
+                    viewMap.remove(viewHolder.address);
             }
-            BluetoothDevice device = mLeDevices.get(i).device;
-            ScanRecord scanRecord = mLeDevices.get(i).scanRecord;
-            final String deviceName = scanRecord.getDeviceName();
-            if (deviceName != null && deviceName.length() > 0)
-                viewHolder.deviceName.setText(deviceName);
-            else
-                viewHolder.deviceName.setText(R.string.unknown_device);
-            viewHolder.deviceAddress.setText(device.getAddress());
-
-            viewMap.put(device.getAddress(), viewHolder);
+            viewHolder.address = mLeDevices.getAddress(i);
+            bindView(viewHolder, mLeDevices.get(i));
+            viewMap.put(viewHolder.address, viewHolder);
 
             return view;
         }
+
+        // Show the device in the view.
+        private void bindView(ViewHolder viewHolder, BluetoothDeviceHolder holder) {
+            String deviceName = holder.scanRecord.getDeviceName();
+            if (deviceName == null || deviceName.length() == 0)
+                deviceName = getString(R.string.unknown_device);
+            // boards selected to play together are ticked
+            if (mSelected.containsKey(holder.device.getAddress()))
+                deviceName = "\u2713 " + deviceName;
+            viewHolder.deviceName.setText(deviceName);
+            viewHolder.deviceAddress.setText(getString(R.string.device_address_rssi,
+                    holder.device.getAddress(), holder.rssi));
+        }
     }
 
+    // The UART service UUID as the bit pair advertisements are matched against.
+    private static final long UART_MSB = BluetoothUtil.UART_UUID.getMostSignificantBits();
+    private static final long UART_LSB = BluetoothUtil.UART_UUID.getLeastSignificantBits();
+
     // Device scan callback.
     private ScanCallback leScanCallback = new ScanCallback() {
         @Override
@@ -371,37 +670,33 @@ public class DeviceScanActivity extends ListActivity
             super.onScanFailed(errorCode);
         }
 
+        // Queue the result for the next frame, requesting one if none is pending.
         private void registerFoundDevice(final ScanResult result)
         {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    BluetoothDeviceHolder holder;
-                    boolean newDevice = false;
-                    if (mLeDeviceListAdapter.hasDevice(result.getDevice().getAddress())) {
-                        holder = mLeDeviceListAdapter.getDeviceHolder(result.getDevice().getAddress());
-                    }
-                    else {
-                        newDevice = true;
-                        holder = new BluetoothDeviceHolder();
-                    }
-
-                    holder.device = result.getDevice();
-                    holder.scanRecord = result.getScanRecord();
-                    if (newDevice)
-                        mLeDeviceListAdapter.addDevice(holder);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
+            // Some controllers ignore 128-bit service filters, so check the advertisement too.
+            ScanRecord record = result.getScanRecord();
+            if (record == null || !AdvertisementParser.hasService(record.getBytes(), UART_MSB, UART_LSB))
+                return;
+
+            synchronized (mPendingLock) {
+                mPendingResults.add(result);
+                if (mFrameRequested)
+                    return;
+                mFrameRequested = true;
+            }
+            // the choreographer may be posted to from any thread
+            mChoreographer.postFrameCallback(applyScanResults);
         }
     };
 
     static class ViewHolder {
+        long address;
         TextView deviceName;
         TextView deviceAddress;
     }
     static class BluetoothDeviceHolder {
         BluetoothDevice device;
         ScanRecord scanRecord;
+        int rssi;
     }
 }
\ No newline at end of file
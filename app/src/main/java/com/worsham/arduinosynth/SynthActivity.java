@@ -1,19 +1,43 @@
 package com.worsham.arduinosynth;
 
 import android.app.Activity;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.Button;
 import android.widget.Spinner;
 import android.widget.TextView;
 
 import com.worsham.arduinosynth.bluetooth.BluetoothLeUart;
+import com.worsham.arduinosynth.bluetooth.ProtocolNegotiator;
+import com.worsham.arduinosynth.bluetooth.SharedTransport;
+import com.worsham.arduinosynth.bluetooth.TransportGroup;
+import com.worsham.arduinosynth.bluetooth.UartService;
+import com.worsham.arduinosynth.bluetooth.UartTransport;
+import com.worsham.arduinosynth.bluetooth.UartWrite;
+import com.worsham.arduinosynth.keyboard.KeyTracker;
+import com.worsham.arduinosynth.keyboard.KeyboardView;
+import com.worsham.arduinosynth.midi.MidiFileReader;
+import com.worsham.arduinosynth.midi.MidiPlayer;
+import com.worsham.arduinosynth.protocol.NoteEncoder;
+import com.worsham.arduinosynth.protocol.SynthMessage;
+
+import java.io.FileInputStream;
+import java.io.IOException;
 
 /**
  * Android activity to send Bluetooth UART synthesizer packets
- * to a Bluetooth Arduino Synthesizer.
+ * to one or more Bluetooth Arduino Synthesizers. Several boards either all play every note
+ * or split the keyboard between them; a MIDI file plays on the first board.
  */
 public class SynthActivity extends Activity implements AdapterView.OnItemSelectedListener
 {
@@ -22,13 +46,161 @@ public class SynthActivity extends Activity implements AdapterView.OnItemSelecte
     // keys for passing data into the activity
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
+    // every board to play, when there are several, the first is the one above
+    public static final String EXTRAS_DEVICE_NAMES = "DEVICE_NAMES";
+    public static final String EXTRAS_DEVICE_ADDRESSES = "DEVICE_ADDRESSES";
+    // System.nanoTime() the app was launched, to time the cold start
+    public static final String EXTRAS_START_NANOS = "START_NANOS";
+
+    // the selected bluetooth devices passed into this activity
+    private String[] deviceNames;
+    private String[] deviceAddresses;
+
+    // how often the debug latency overlay is refreshed
+    private static final long OVERLAY_REFRESH_MILLIS = 500;
+
+    // request code for picking a MIDI file to play
+    private static final int REQUEST_MIDI_FILE = 1;
+
+    // the bluetooth connection to each BT device, held from onResume to onPause, null between
+    private BluetoothLeUart[] uarts;
+
+    // plays each note on the boards routed to it, each over its own connection
+    private final TransportGroup boards = new TransportGroup(new ProtocolNegotiator.Callback()
+    {
+        @Override
+        public void onProtocolNegotiated(final UartTransport transport, final int version)
+        {
+            Log.i(TAG, "Synth speaks protocol version " + version);
+            runOnUiThread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    // MIDI files play on the first board
+                    if (midiPlayer != null && uarts != null && transport == uarts[0])
+                        midiPlayer.setProtocolVersion(version);
+                }
+            });
+        }
+    });
+
+    // true to split the keyboard between the boards rather than layer them
+    private boolean split;
+
+    // the service owning the connection, null until it is bound
+    private UartService uartService;
+    private boolean resumed;
+    private long resumeNanos;
+
+    // when the app was launched, 0 once the first note could be played
+    private long startNanos;
+    private long coldStartMillis = -1;
+
+    // acquires the connection once the service is bound, if the activity is already resumed
+    private final ServiceConnection serviceConnection = new ServiceConnection()
+    {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder)
+        {
+            uartService = ((UartService.LocalBinder) binder).getService();
+            if (resumed)
+                attach();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name)
+        {
+            uartService = null;
+            uarts = null;
+            boards.clear();
+        }
+    };
+
+    // debug overlay showing the note latency percentiles, null in release builds
+    private TextView latencyOverlay;
+    private final Handler overlayHandler = new Handler();
+    private final Runnable overlayRefresh = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (uarts != null)
+            {
+                SharedTransport<BluetoothLeUart> connection = uartService == null
+                        ? null : uartService.getConnection(deviceAddresses[0]);
+                latencyOverlay.setText(uarts[0].getLatencyMonitor().getSummary()
+                        + "\n" + boards.getSummary()
+                        + (connection == null ? "" : "\n" + connection.getSummary())
+                        + "\n" + uarts[0].getGattQueue().getSummary()
+                        + "\n" + uarts[0].getConnectionProfile().getSummary()
+                        + (coldStartMillis < 0 ? "" : "\ncold start " + coldStartMillis + " ms"));
+            }
+            overlayHandler.postDelayed(this, OVERLAY_REFRESH_MILLIS);
+        }
+    };
+
+    // MIDI file playback, the file is held open while it plays
+    private Uri midiUri;
+    private ParcelFileDescriptor midiFile;
+    private MidiPlayer midiPlayer;
+
+    // tells the activity each time the connection comes up, including after a reconnect
+    private final UartTransport.Listener linkListener = new UartTransport.Listener()
+    {
+        @Override
+        public void onConnected(final UartTransport transport)
+        {
+            runOnUiThread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    onLinkReady(transport);
+                }
+            });
+        }
 
-    // the selected bluetooth device passed into this activity
-    private String deviceName;
-    private String deviceAddress;
+        @Override
+        public void onDisconnected(UartTransport transport)
+        {
+        }
 
-    // the bluetooth connections to the BT device
-    private BluetoothLeUart uart;
+        @Override
+        public void onReceive(UartTransport transport, byte[] data, int offset, int length)
+        {
+        }
+
+        @Override
+        public void onMessage(UartTransport transport, SynthMessage message)
+        {
+        }
+
+        @Override
+        public void onMtuChanged(UartTransport transport, int mtu)
+        {
+        }
+    };
+
+    // semitones above C of each key, C to high C
+    private static final int[] KEY_SEMITONES = {0, 2, 4, 5, 7, 9, 11, 12};
+
+    // the octave selected in the spinner
+    private int octave;
+
+    // the MIDI note each key is playing, so it can be released
+    private final int[] heldNotes = new int[KeyboardView.KEY_COUNT];
+
+    // reports packets which never made it to the BT device so dropped notes are visible
+    private final UartWrite.Callback writeCallback = new UartWrite.Callback()
+    {
+        @Override
+        public void onWriteComplete(UartWrite write, int status)
+        {
+            if (status != UartWrite.STATUS_SUCCESS)
+                Log.w(TAG, "Packet not delivered to synth, status " + status);
+        }
+    };
 
     /**
      * Called when the activity is initiated. Will consume the bluetooth device info that is
@@ -43,11 +215,30 @@ public class SynthActivity extends Activity implements AdapterView.OnItemSelecte
 
         // get access to the bluetooth device passed into the activity
         final Intent intent = getIntent();
-        deviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
-        deviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
+        deviceAddresses = intent.getStringArrayExtra(EXTRAS_DEVICE_ADDRESSES);
+        deviceNames = intent.getStringArrayExtra(EXTRAS_DEVICE_NAMES);
+        if (deviceAddresses == null)
+        {
+            deviceAddresses = new String[] {intent.getStringExtra(EXTRAS_DEVICE_ADDRESS)};
+            deviceNames = new String[] {intent.getStringExtra(EXTRAS_DEVICE_NAME)};
+        }
+        if (savedInstanceState == null)
+            startNanos = intent.getLongExtra(EXTRAS_START_NANOS, 0);
+        boards.setWriteCallback(writeCallback);
+
+        // put the names of the devices into activity
+        StringBuilder names = new StringBuilder();
+        for (String name : deviceNames)
+        {
+            if (names.length() > 0)
+                names.append(", ");
+            names.append(name);
+        }
+        ((TextView) findViewById(R.id.device_name_view)).setText(names);
 
-        // put the name of the device into activity
-        ((TextView) findViewById(R.id.device_name_view)).setText(deviceName);
+        // several boards can be layered or split, a single board plays every note
+        if (deviceAddresses.length > 1)
+            findViewById(R.id.routing).setVisibility(View.VISIBLE);
 
         // load the available octaves into the device
         Spinner spinner = (Spinner) findViewById(R.id.octave_spinner);
@@ -57,18 +248,52 @@ public class SynthActivity extends Activity implements AdapterView.OnItemSelecte
         spinner.setAdapter(adapter);
         spinner.setSelection(4);
         spinner.setOnItemSelectedListener(this);
+
+        // notes start as a key is touched and stop as it is let go
+        ((KeyboardView) findViewById(R.id.keyboard)).setListener(new KeyTracker.Listener()
+        {
+            @Override
+            public void onKeyDown(int key, long eventNanos)
+            {
+                playTone(key, eventNanos);
+            }
+
+            @Override
+            public void onKeyUp(int key, long eventNanos)
+            {
+                releaseTone(key, eventNanos);
+            }
+        });
+
+        if (BuildConfig.DEBUG)
+        {
+            latencyOverlay = (TextView) findViewById(R.id.latency_overlay);
+            latencyOverlay.setVisibility(View.VISIBLE);
+        }
     }
 
     /**
-     * Called when the activity is left but not closed.
+     * Called when the activity becomes visible, binds the service owning the connection.
+     */
+    @Override
+    protected void onStart()
+    {
+        super.onStart();
+        bindService(new Intent(this, UartService.class), serviceConnection, BIND_AUTO_CREATE);
+    }
+
+    /**
+     * Called when the activity is left but not closed. The connection is kept by the service
+     * for a grace period, unless the activity is finishing and the board is no longer wanted.
      */
     @Override
     protected void onPause()
     {
         super.onPause();
-        if (uart != null)
-            uart.disconnect();
-        uart = null;
+        resumed = false;
+        overlayHandler.removeCallbacks(overlayRefresh);
+        stopMidi();
+        detach();
     }
 
     /**
@@ -78,27 +303,205 @@ public class SynthActivity extends Activity implements AdapterView.OnItemSelecte
     protected void onResume()
     {
         super.onResume();
+        resumed = true;
+        resumeNanos = System.nanoTime();
+
+        // reattach to the connection, or wait for the service to be bound
+        if (uartService != null)
+            attach();
 
-        // connect to the bluetooth service
-        if (uart == null)
-            uart = new BluetoothLeUart(getApplicationContext(), deviceAddress);
+        if (latencyOverlay != null)
+            overlayHandler.post(overlayRefresh);
     }
 
     /**
-     * Called when the activity is destroyed.
+     * Called when the activity is no longer visible.
      */
     @Override
-    protected void onDestroy()
+    protected void onStop()
     {
-        super.onDestroy();
+        super.onStop();
+        unbindService(serviceConnection);
+        uartService = null;
+    }
 
-        if (uart != null)
-            uart.disconnect();
-        uart = null;
+    /**
+     * Acquire the connection to each board from the service, live ones are ready straight away.
+     */
+    private void attach()
+    {
+        if (uarts != null)
+            return;
+        uarts = new BluetoothLeUart[deviceAddresses.length];
+        for (int i = 0; i < uarts.length; i++)
+        {
+            uarts[i] = uartService.acquire(deviceAddresses[i], resumeNanos);
+            uarts[i].registerListener(linkListener);
+            boards.add(uarts[i]);
+        }
+        route();
+        // a reattached link came up before the listener was registered
+        for (BluetoothLeUart uart : uarts)
+        {
+            if (uart.isConnected())
+                onLinkReady(uart);
+        }
     }
 
     /**
-     * When an item in the octave spinner is selected, set the octave on the BT device.
+     * Called on the UI thread once a board's connection is ready to play, when attaching to a
+     * live one or when it comes up.
+     * @param transport the connection which is ready
+     */
+    private void onLinkReady(UartTransport transport)
+    {
+        if (uarts == null)
+            return;
+        if (startNanos != 0)
+        {
+            coldStartMillis = (System.nanoTime() - startNanos) / 1000000;
+            startNanos = 0;
+            Log.i(TAG, "Cold start to first playable note took " + coldStartMillis + " ms");
+        }
+        // the board may have reset while its link was down, send it the octave and held notes
+        boards.resync(transport);
+        if (transport == uarts[0])
+            startMidi();
+    }
+
+    /**
+     * Hand the connections back to the service.
+     */
+    private void detach()
+    {
+        if (uarts == null)
+            return;
+        boards.clear();
+        for (BluetoothLeUart uart : uarts)
+        {
+            uart.unregisterListener(linkListener);
+            if (uartService != null)
+                uartService.release(uart, isFinishing());
+        }
+        uarts = null;
+    }
+
+    /**
+     * Route the keys to the boards, splitting the keys of the selected octave between them or
+     * layering them.
+     */
+    private void route()
+    {
+        int lowNote = 12 * (octave + 1);
+        if (split)
+            boards.split(lowNote, lowNote + KEY_SEMITONES[KEY_SEMITONES.length - 1]);
+        else
+            boards.layer();
+    }
+
+    /**
+     * Switch between layering the boards and splitting the keyboard between them.
+     * @param view the clicked button
+     */
+    public void toggleRouting(View view)
+    {
+        split = !split;
+        ((Button) view).setText(split ? R.string.layer_boards : R.string.split_boards);
+        route();
+    }
+
+    /**
+     * Called when the MIDI file picker returns. Playback starts once onResume has reattached to
+     * the connection, or once it comes up if it had to reconnect.
+     * @param requestCode the request the result is for
+     * @param resultCode whether a file was picked
+     * @param data the picked file
+     */
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data)
+    {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_MIDI_FILE && resultCode == RESULT_OK && data != null)
+            midiUri = data.getData();
+    }
+
+    /**
+     * Pick a MIDI file to stream to the BT device, or stop the one playing.
+     * @param view the clicked button
+     */
+    public void chooseMidiFile(View view)
+    {
+        if (midiPlayer != null && midiPlayer.isPlaying())
+        {
+            stopMidi();
+            return;
+        }
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("audio/midi");
+        startActivityForResult(intent, REQUEST_MIDI_FILE);
+    }
+
+    /**
+     * Start streaming the picked MIDI file. Only the file and track headers are read here, the
+     * player reads the rest as it plays.
+     */
+    private void startMidi()
+    {
+        Uri uri = midiUri;
+        midiUri = null;
+        if (uri == null || uarts == null)
+            return;
+        stopMidi();
+        try
+        {
+            midiFile = getContentResolver().openFileDescriptor(uri, "r");
+            FileInputStream stream = new FileInputStream(midiFile.getFileDescriptor());
+            midiPlayer = new MidiPlayer(uarts[0], new MidiFileReader(stream.getChannel()));
+            midiPlayer.setProtocolVersion(boards.getVersion(0));
+            midiPlayer.setOctave(octave);
+            midiPlayer.start();
+            ((Button) findViewById(R.id.play_midi)).setText(R.string.stop_midi);
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not play MIDI file " + uri, e);
+            stopMidi();
+        }
+    }
+
+    /**
+     * Stop any MIDI file playing and close it.
+     */
+    private void stopMidi()
+    {
+        if (midiPlayer != null)
+        {
+            midiPlayer.stop();
+            // the file moved the first board's octave behind the group's back
+            if (uarts != null && uarts[0].isConnected())
+                boards.resync(uarts[0]);
+        }
+        midiPlayer = null;
+        if (midiFile != null)
+        {
+            try
+            {
+                midiFile.close();
+            }
+            catch (IOException e)
+            {
+                Log.w(TAG, "Could not close MIDI file", e);
+            }
+        }
+        midiFile = null;
+        ((Button) findViewById(R.id.play_midi)).setText(R.string.play_midi);
+    }
+
+    /**
+     * When an item in the octave spinner is selected, set the octave on the BT device. Also
+     * called for the initial selection and for reselections, the boards are only sent an
+     * octave they are not already in.
      * @param parent
      * @param view
      * @param pos
@@ -110,6 +513,7 @@ public class SynthActivity extends Activity implements AdapterView.OnItemSelecte
         // parent.getItemAtPosition(pos)
         String octaveStr = (String) parent.getItemAtPosition(pos);
         byte newOctave = Byte.parseByte(octaveStr);
+        octave = newOctave;
         transmitOctave(newOctave);
     }
 
@@ -122,97 +526,51 @@ public class SynthActivity extends Activity implements AdapterView.OnItemSelecte
     }
 
     /**
-     * Called to the playtone of the associated button that has been clicked.
-     * @param view the clicked view item
+     * Called when a key of the on screen keyboard is touched.
+     * @param key the key, 0 for middle C up to 7 for high C
+     * @param eventNanos the time of the touch event, for latency tracking
      */
-    public void playTone(View view)
+    private void playTone(int key, long eventNanos)
     {
-        int id = view.getId();
-        byte note = getNoteNumber(id);
-        transmitTone(note);
+        // the note is remembered so it is released even if the octave changes while held
+        heldNotes[key] = 12 * (octave + 1) + KEY_SEMITONES[key];
+        transmitTone(true, heldNotes[key], eventNanos);
     }
 
     /**
-     * Transmit the given note in a byte message to the BT device
-     * @param note the note to send
+     * Called when the last finger leaves a key of the on screen keyboard.
+     * @param key the key, 0 for middle C up to 7 for high C
+     * @param eventNanos the time of the touch event, for latency tracking
      */
-    private void transmitTone(byte note)
+    private void releaseTone(int key, long eventNanos)
     {
-        // encode the packet with the note
-        byte[] buffer = new byte[4];
-        buffer[0] = '!';
-        buffer[1] = 'N';
-        buffer[2] = note;
-
-        // the last byte in the packet is the checksum
-        computeChecksum(buffer, 3);
-
-        // send the packet to the UART connection
-        uart.send(buffer);
+        transmitTone(false, heldNotes[key], eventNanos);
     }
 
     /**
-     * Transmit the specified octave in a byte message to the BT device.
-     * @param octave the new octave of the synth
+     * Transmit a note on or off in a byte message to the BT devices it is routed to
+     * @param on true to start the note, false to release it
+     * @param midiNote the MIDI note number
+     * @param inputNanos when the input event for the note happened, for latency tracking
      */
-    private void transmitOctave(byte octave)
+    private void transmitTone(boolean on, int midiNote, long inputNanos)
     {
-        // encode the packet with the octave
-        byte[] buffer = new byte[4];
-        buffer[0] = '!';
-        buffer[1] = 'O';
-        buffer[2] = octave;
-
-        // the last byte in the packet is the checksum
-        computeChecksum(buffer, 3);
-
-        // send the packet to the UART connection
-        uart.send(buffer);
+        // encode the note for the protocol each board speaks and queue it on its UART
+        // connection, this never blocks the UI thread
+        if (on)
+            boards.noteOn(midiNote, NoteEncoder.DEFAULT_VELOCITY, inputNanos);
+        else
+            boards.noteOff(midiNote, inputNanos);
     }
 
     /**
-     * Compute the checksum of the buffer up to the specified position
-     * and then put the checksum in the checksum position.
-     * @param buffer the buffer to compute
-     * @param checksumPosition the position of the checksum in the buffer
-     */
-    private void computeChecksum(byte[] buffer, int checksumPosition)
-    {
-        // the last byte in the packet is the checksum
-        byte xsum = 0;
-        for(int i = 0; i < checksumPosition; i++)
-            xsum += buffer[i];
-        xsum = (byte) ~xsum;
-        buffer[checksumPosition] = xsum;
-    }
-
-    /**
-     * Get the synth service note number of the provided view ID that has been clicked.
-     * @param viewId the item that has been clicked.
-     * @return the note number to send to the device
+     * Transmit the specified octave in a byte message to the BT devices.
+     * @param octave the new octave of the synth
      */
-    private byte getNoteNumber(int viewId)
+    private void transmitOctave(byte octave)
     {
-        switch (viewId)
-        {
-            case R.id.middle_c_tone:
-                return 1;
-            case R.id.d_tone:
-                return 2;
-            case R.id.e_tone:
-                return 3;
-            case R.id.f_tone:
-                return 4;
-            case R.id.g_tone:
-                return 5;
-            case R.id.a_tone:
-                return 6;
-            case R.id.b_tone:
-                return 7;
-            case R.id.high_c_tone:
-                return 8;
-            default:
-                return 0;
-        }
+        // encode the packet with the octave and queue it on each UART connection
+        boards.setOctave(octave);
+        route();
     }
 }
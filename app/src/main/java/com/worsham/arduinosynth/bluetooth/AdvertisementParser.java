@@ -0,0 +1,154 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import java.util.UUID;
+
+/**
+ * Allocation free parser of BLE advertisement data, for filtering scan results by service where
+ * the controller's UUID filters cannot be trusted. The AD structures are walked in place and
+ * service UUIDs are handled as most and least significant bit pairs, so checking a result for a
+ * service is a pair of long comparisons per advertised UUID. Lengths are read unsigned and a
+ * structure which runs past the end of the data is ignored, so malformed advertisements never
+ * throw. 16 and 32 bit UUIDs are expanded onto the Bluetooth base UUID.
+ */
+public final class AdvertisementParser
+{
+    // AD types holding service UUIDs.
+    public static final int TYPE_UUID16_PARTIAL = 0x02;
+    public static final int TYPE_UUID16_COMPLETE = 0x03;
+    public static final int TYPE_UUID32_PARTIAL = 0x04;
+    public static final int TYPE_UUID32_COMPLETE = 0x05;
+    public static final int TYPE_UUID128_PARTIAL = 0x06;
+    public static final int TYPE_UUID128_COMPLETE = 0x07;
+
+    // Least significant bits of the Bluetooth base UUID 00000000-0000-1000-8000-00805F9B34FB,
+    // shared by every 16 and 32 bit UUID.
+    public static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+
+    // UUIDs handed out by toUuid without allocating.
+    private static final UUID[] INTERNED = {
+            BluetoothUtil.UART_UUID, BluetoothUtil.TX_UUID, BluetoothUtil.RX_UUID,
+            BluetoothUtil.CLIENT_UUID, BluetoothUtil.DIS_UUID, BluetoothUtil.DIS_MANUF_UUID,
+            BluetoothUtil.DIS_MODEL_UUID, BluetoothUtil.DIS_HWREV_UUID, BluetoothUtil.DIS_SWREV_UUID
+    };
+
+    private AdvertisementParser() {
+    }
+
+    /**
+     * Parse the service UUIDs of an advertisement.
+     * @param data the advertisement data
+     * @param offset the first byte of the AD structures
+     * @param length the number of bytes of AD structures
+     * @param uuids receives the UUIDs as pairs of most then least significant bits
+     * @return the number of UUIDs stored, at most uuids.length / 2
+     */
+    public static int parseUuids(byte[] data, int offset, int length, long[] uuids) {
+        return walk(data, offset, length, uuids, 0, 0);
+    }
+
+    /**
+     * Check an advertisement for a service UUID.
+     * @param data the advertisement data, may be null
+     * @param msb the most significant bits of the service UUID
+     * @param lsb the least significant bits of the service UUID
+     * @return true if the service is advertised
+     */
+    public static boolean hasService(byte[] data, long msb, long lsb) {
+        return data != null && walk(data, 0, data.length, null, msb, lsb) > 0;
+    }
+
+    // Check an advertisement for a service UUID.
+    public static boolean hasService(byte[] data, UUID service) {
+        return hasService(data, service.getMostSignificantBits(), service.getLeastSignificantBits());
+    }
+
+    /**
+     * Return the UUID for a pair of bits, the shared instance for the UART and device
+     * information UUIDs, a new one otherwise.
+     * @param msb the most significant bits
+     * @param lsb the least significant bits
+     * @return the UUID
+     */
+    public static UUID toUuid(long msb, long lsb) {
+        for (UUID uuid : INTERNED) {
+            if (uuid.getLeastSignificantBits() == lsb && uuid.getMostSignificantBits() == msb) {
+                return uuid;
+            }
+        }
+        return new UUID(msb, lsb);
+    }
+
+    // Walk the AD structures, storing each UUID into uuids or, when it is null, stopping at the
+    // first one matching msb and lsb. Return the number stored or 1 for a match.
+    private static int walk(byte[] data, int offset, int length, long[] uuids, long msb, long lsb) {
+        int end = Math.min(offset + length, data.length);
+        int count = 0;
+        int capacity = uuids == null ? 0 : uuids.length / 2;
+        while (offset < end) {
+            int len = data[offset] & 0xFF;
+            if (len == 0) {
+                break;
+            }
+            int next = offset + 1 + len;
+            if (next > end) {
+                break;
+            }
+            int type = data[offset + 1] & 0xFF;
+            int size = uuidSize(type);
+            for (int i = offset + 2; size > 0 && i + size <= next; i += size) {
+                long uuidMsb;
+                long uuidLsb;
+                if (size == 16) {
+                    uuidLsb = readLong(data, i);
+                    uuidMsb = readLong(data, i + 8);
+                } else {
+                    long shortUuid = size == 2 ? readShort(data, i) : readInt(data, i);
+                    uuidMsb = (shortUuid << 32) | BASE_UUID_MSB;
+                    uuidLsb = BASE_UUID_LSB;
+                }
+                if (uuids == null) {
+                    if (uuidLsb == lsb && uuidMsb == msb) {
+                        return 1;
+                    }
+                } else if (count < capacity) {
+                    uuids[2 * count] = uuidMsb;
+                    uuids[2 * count + 1] = uuidLsb;
+                    count++;
+                }
+            }
+            offset = next;
+        }
+        return count;
+    }
+
+    // Return the size of the UUIDs an AD type holds, 0 if it holds none.
+    private static int uuidSize(int type) {
+        switch (type) {
+            case TYPE_UUID16_PARTIAL:
+            case TYPE_UUID16_COMPLETE:
+                return 2;
+            case TYPE_UUID32_PARTIAL:
+            case TYPE_UUID32_COMPLETE:
+                return 4;
+            case TYPE_UUID128_PARTIAL:
+            case TYPE_UUID128_COMPLETE:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    // Little endian reads, as every multi-byte AD field is.
+    private static long readShort(byte[] data, int i) {
+        return (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8;
+    }
+
+    private static long readInt(byte[] data, int i) {
+        return readShort(data, i) | readShort(data, i + 2) << 16;
+    }
+
+    private static long readLong(byte[] data, int i) {
+        return readInt(data, i) | readInt(data, i + 4) << 32;
+    }
+}
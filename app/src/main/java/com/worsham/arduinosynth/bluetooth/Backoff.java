@@ -0,0 +1,63 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter between reconnection attempts. Each attempt doubles the
+ * ceiling on the delay, up to a maximum, and the delay is drawn at random from the upper half
+ * of the ceiling, so retries back off quickly from a board which is gone yet never line up
+ * with the board's own advertising interval or another phone retrying. Not thread safe.
+ */
+public class Backoff
+{
+    // Delay ceilings used for reconnecting to a dropped board.
+    public static final long DEFAULT_BASE_MILLIS = 500;
+    public static final long DEFAULT_MAX_MILLIS = 16000;
+
+    private final long baseMillis;
+    private final long maxMillis;
+    private final Random random;
+    private int attempts;
+
+    // Create a backoff with the default delays.
+    public Backoff() {
+        this(DEFAULT_BASE_MILLIS, DEFAULT_MAX_MILLIS, new Random());
+    }
+
+    /**
+     * Create a backoff.
+     * @param baseMillis the delay ceiling of the first attempt
+     * @param maxMillis the largest delay ceiling
+     * @param random the source of jitter
+     */
+    public Backoff(long baseMillis, long maxMillis, Random random) {
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        this.random = random;
+    }
+
+    /**
+     * Count an attempt and return how long to wait before making it.
+     * @return the delay in milliseconds, between half the attempt's ceiling and the ceiling
+     */
+    public long nextDelayMillis() {
+        long ceiling = baseMillis;
+        for (int i = 0; i < attempts && ceiling < maxMillis; i++) {
+            ceiling *= 2;
+        }
+        ceiling = Math.min(ceiling, maxMillis);
+        attempts++;
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half));
+    }
+
+    // Return the number of attempts since the last reset.
+    public int getAttempts() {
+        return attempts;
+    }
+
+    // Start again from the base delay, e.g. once a connection succeeds.
+    public void reset() {
+        attempts = 0;
+    }
+}
@@ -9,47 +9,105 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import com.worsham.arduinosynth.metrics.LatencyMonitor;
+import com.worsham.arduinosynth.protocol.PacketDecoder;
+import com.worsham.arduinosynth.protocol.SynthMessage;
+
 import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Queue;
-import java.util.UUID;
-import java.util.WeakHashMap;
 import java.lang.String;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.UUID;
+import java.util.concurrent.Executor;
 
 /**
  * UART specific Bluetooth Gatt callback to send and read custom data over Bluetooth.
  */
-public class BluetoothLeUart extends BluetoothGattCallback
+public class BluetoothLeUart extends BluetoothGattCallback implements UartTransport, UartWriteQueue.Sink
 {
     private static final String TAG = BluetoothLeUart.class.getName();
 
+    // ATT MTU limits, a write carries the MTU less the 3 byte ATT header.
+    public static final int DEFAULT_MTU = 23;
+    public static final int MAX_MTU = 517;
+    private static final int ATT_HEADER_SIZE = 3;
+
+    // How long after the connection is up a cached Device Information is read again.
+    public static final long DEVICE_INFO_REVALIDATE_MILLIS = 5000;
+
+    // Frames queued for the GATT operation queue in FAST mode, which still issues one at a time.
+    public static final int FAST_CREDIT_WINDOW = 4;
+
+    // How notes are written to the TX characteristic for a session.
+    public enum WriteMode {
+        // Acknowledged writes, one per connection event round trip.
+        RELIABLE,
+        // Write without response, throttled by a credit window of buffered frames.
+        FAST
+    }
+
+    // Event types posted to callbacks and listeners.
+    private static final int EVENT_CONNECTED = 0;
+    private static final int EVENT_CONNECT_FAILED = 1;
+    private static final int EVENT_DISCONNECTED = 2;
+    private static final int EVENT_RECEIVE = 3;
+    private static final int EVENT_MTU_CHANGED = 4;
+    private static final int EVENT_DEVICE_INFO = 5;
+
     // Internal UART state.
     private Context context;
-    private WeakHashMap<Callback, Object> callbacks;
+    private final ListenerArray<Callback> callbacks;
+    private final ListenerArray<UartTransport.Listener> listeners;
+    private volatile Executor deliveryExecutor; // Callbacks run on the GATT thread when null
     private BluetoothAdapter adapter;
     private BluetoothDevice device;
-    private BluetoothGatt gatt;
-    private BluetoothGattCharacteristic tx;
-    private BluetoothGattCharacteristic rx;
+    // Written on the GATT and main threads, read on the writer thread, so read each once.
+    private volatile BluetoothGatt gatt;
+    private volatile BluetoothGattCharacteristic tx;
+    private volatile BluetoothGattCharacteristic rx;
     private boolean connectFirst;
-    private boolean writeInProgress; // Flag to indicate a write is currently in progress
+    private volatile int mtu;
+    private WriteMode writeMode;
+    private boolean setupStarted; // Set once the post-discovery setup has run for this connection
+
+    // Outbound writes, issued one at a time from the writer thread.
+    private UartWriteQueue writeQueue;
+
+    // Every GATT operation, issued one at a time with note writes ahead of the rest.
+    private GattOperationQueue gattQueue;
+    private final NoteWrite[] noteWrites; // Free note write operations, guarded by itself
+    private int freeNoteWrites;
+
+    // Inbound packets, decoded once on the notification thread for every client.
+    private PacketDecoder decoder;
+    private long receivedNanos; // Arrival time of the notification being decoded
 
     // Device Information state.
     private BluetoothGattCharacteristic disManuf;
     private BluetoothGattCharacteristic disModel;
     private BluetoothGattCharacteristic disHWRev;
     private BluetoothGattCharacteristic disSWRev;
-    private boolean disAvailable;
+    private volatile DeviceInfo deviceInfo; // Read from the board, or cached from an earlier connection
+    private volatile String deviceInfoText; // Built from deviceInfo when first asked for
+    private int disReadsLeft; // Device information reads not yet completed for this connection
+    private boolean disReadFailed;
+    private Scheduler scheduler;
+
+    // Raises the connection priority while notes are being sent.
+    private final ConnectionProfile connectionProfile;
+    private final PriorityRequest priorityRequest;
 
-    // Queues for characteristic read (synchronous)
-    private Queue<BluetoothGattCharacteristic> readQueue;
+    // Reads a cached Device Information again once the connection has settled.
+    private final Runnable deviceInfoRevalidator = new Runnable() {
+        @Override
+        public void run() {
+            readDeviceInfo();
+        }
+    };
 
     // Interface for a BluetoothLeUart client to be notified of UART actions.
     public interface Callback {
@@ -57,19 +115,67 @@ public class BluetoothLeUart extends BluetoothGattCallback
         public void onConnectFailed(BluetoothLeUart uart);
         public void onDisconnected(BluetoothLeUart uart);
         public void onReceive(BluetoothLeUart uart, BluetoothGattCharacteristic rx);
+        // The message is only valid for the duration of the call.
+        public void onMessage(BluetoothLeUart uart, SynthMessage message);
         public void onDeviceFound(BluetoothDevice device);
         public void onDeviceInfoAvailable();
+        public void onMtuChanged(BluetoothLeUart uart, int mtu);
     }
 
     /**
-     * Create a new BluetoothLE UART callback.
+     * Create a new BluetoothLE UART callback using acknowledged writes.
      * @param address the address of the bluetooth device
      */
     public BluetoothLeUart(Context context, String address) {
+        this(context, address, WriteMode.RELIABLE);
+    }
+
+    /**
+     * Create a new BluetoothLE UART callback.
+     * @param address the address of the bluetooth device
+     * @param writeMode how notes are written for this session
+     */
+    public BluetoothLeUart(Context context, String address, WriteMode writeMode) {
+        this(context, BluetoothAdapter.getDefaultAdapter(), address, writeMode);
+    }
+
+    /**
+     * Create a new BluetoothLE UART callback on the given adapter.
+     * @param adapter the adapter to connect through
+     * @param address the address of the bluetooth device
+     * @param writeMode how notes are written for this session
+     */
+    public BluetoothLeUart(Context context, BluetoothAdapter adapter, String address, WriteMode writeMode) {
         super();
         this.context = context;
-        this.callbacks = new WeakHashMap<>();
-        this.adapter = BluetoothAdapter.getDefaultAdapter();
+        this.callbacks = new ListenerArray<>(new Callback[0]);
+        this.listeners = new ListenerArray<>(new UartTransport.Listener[0]);
+        this.writeQueue = new UartWriteQueue(this, UartWriteQueue.DEFAULT_CAPACITY,
+                UartWriteQueue.DEFAULT_TIMEOUT_MILLIS);
+        this.scheduler = new HandlerScheduler(Looper.getMainLooper());
+        this.gattQueue = new GattOperationQueue(scheduler);
+        this.priorityRequest = new PriorityRequest();
+        this.connectionProfile = new ConnectionProfile(new ConnectionProfile.Requester() {
+            @Override
+            public boolean requestPriority(int priority) {
+                return isConnected() && priorityRequest.post(priority);
+            }
+        }, scheduler);
+        this.noteWrites = new NoteWrite[UartWriteQueue.MAX_CREDIT_WINDOW + 1];
+        for (int i = 0; i < noteWrites.length; i++)
+            this.noteWrites[i] = new NoteWrite();
+        this.freeNoteWrites = noteWrites.length;
+        this.decoder = new PacketDecoder(new PacketDecoder.Listener() {
+            @Override
+            public void onMessage(SynthMessage message) {
+                notifyOnMessage(message);
+            }
+        });
+        this.mtu = DEFAULT_MTU;
+        this.writeMode = writeMode;
+        this.writeQueue.setCreditWindow(writeMode == WriteMode.FAST ? FAST_CREDIT_WINDOW : 1);
+        this.setupStarted = false;
+        this.adapter = adapter;
         this.device = adapter.getRemoteDevice(address);
         this.gatt = this.device.connectGatt(context, false, this);
         this.tx = null;
@@ -78,10 +184,8 @@ public class BluetoothLeUart extends BluetoothGattCallback
         this.disModel = null;
         this.disHWRev = null;
         this.disSWRev = null;
-        this.disAvailable = false;
+        this.deviceInfo = DeviceInfo.load(context, address);
         this.connectFirst = false;
-        this.writeInProgress = false;
-        this.readQueue = new ConcurrentLinkedQueue<>();
     }
 
     // Return instance of BluetoothGatt.
@@ -89,51 +193,443 @@ public class BluetoothLeUart extends BluetoothGattCallback
         return gatt;
     }
 
+    // Return the address of the bluetooth device.
+    public String getAddress() {
+        return device.getAddress();
+    }
+
+    // Return the name of the bluetooth device, null if it is not known.
+    public String getName() {
+        return device.getName();
+    }
+
+    /**
+     * Return the handles of the UART and device information characteristics found by service
+     * discovery, to tell whether the board's GATT layout changed between connections.
+     * @return the TX, RX, manufacturer, model, hardware and software revision handles, -1 for
+     *         one the board lacks, or null before discovery
+     */
+    public int[] getGattHandles() {
+        BluetoothGattCharacteristic tx = this.tx;
+        BluetoothGattCharacteristic rx = this.rx;
+        if (tx == null || rx == null) {
+            return null;
+        }
+        return new int[] {
+                tx.getInstanceId(), rx.getInstanceId(), handleOf(disManuf), handleOf(disModel),
+                handleOf(disHWRev), handleOf(disSWRev)
+        };
+    }
+
+    private static int handleOf(BluetoothGattCharacteristic characteristic) {
+        return characteristic == null ? -1 : characteristic.getInstanceId();
+    }
+
+    private static BluetoothGattCharacteristic characteristicOf(BluetoothGattService service, UUID uuid) {
+        return service == null ? null : service.getCharacteristic(uuid);
+    }
+
     // Return true if connected to UART device, false otherwise.
+    @Override
     public boolean isConnected() {
         return (tx != null && rx != null);
     }
 
     public String getDeviceInfo() {
-        if (tx == null || !disAvailable ) {
+        DeviceInfo info = deviceInfo;
+        if (tx == null || info == null) {
             // Do nothing if there is no connection.
             return "";
         }
-        StringBuilder sb = new StringBuilder();
-        sb.append("Manufacturer : " + disManuf.getStringValue(0) + "\n");
-        sb.append("Model        : " + disModel.getStringValue(0) + "\n");
-        sb.append("Firmware     : " + disSWRev.getStringValue(0) + "\n");
-        return sb.toString();
-    };
+        String text = deviceInfoText;
+        if (text == null) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Manufacturer : ").append(info.getManufacturer()).append('\n');
+            sb.append("Model        : ").append(info.getModel()).append('\n');
+            sb.append("Firmware     : ").append(info.getSoftwareRevision()).append('\n');
+            sb.append("MTU          : ").append(mtu).append('\n');
+            text = sb.toString();
+            deviceInfoText = text;
+        }
+        return text;
+    }
 
-    public boolean deviceInfoAvailable() { return disAvailable; }
+    public boolean deviceInfoAvailable() { return deviceInfo != null; }
 
-    // Send data to connected UART device.
-    public void send(byte[] data) {
+    // Return the negotiated ATT MTU, DEFAULT_MTU until the exchange completes.
+    @Override
+    public int getMtu() {
+        return mtu;
+    }
+
+    // Return the largest number of bytes which fit in a single write.
+    @Override
+    public int getMaxPayloadSize() {
+        return mtu - ATT_HEADER_SIZE;
+    }
+
+    // Return the number of writes waiting to be sent, including the one in flight.
+    @Override
+    public int getPendingWrites() {
+        return writeQueue.size();
+    }
+
+    // Return the write mode of this session.
+    public WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    // Return the outbound write queue, for throughput statistics.
+    public UartWriteQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    // Return the GATT operation queue, for its queue wait statistics.
+    public GattOperationQueue getGattQueue() {
+        return gattQueue;
+    }
+
+    // Return the connection priority profile, to tune it and for its time and ack statistics.
+    public ConnectionProfile getConnectionProfile() {
+        return connectionProfile;
+    }
+
+    // Return the per stage latency of notes sent over this connection.
+    @Override
+    public LatencyMonitor getLatencyMonitor() {
+        return writeQueue.getLatencyMonitor();
+    }
+
+    // Return the decoder of inbound packets, for its statistics.
+    public PacketDecoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * Register a listener told when sends back up faster than the link drains them, so callers
+     * can thin out what they send. Called on the writer thread.
+     * @param listener the listener, null to remove
+     */
+    public void setBackpressureListener(UartWriteQueue.BackpressureListener listener) {
+        writeQueue.setBackpressureListener(listener);
+    }
+
+    // Return true if sends are currently backing up.
+    public boolean isStalled() {
+        return writeQueue.isStalled();
+    }
+
+    /**
+     * Set how long an isolated packet may wait for more packets to share its write while the
+     * link is idle. Packets queued behind an in-flight write are always coalesced.
+     * @param micros the flush deadline in microseconds, zero to send isolated packets immediately
+     */
+    public void setBatchFlushDelay(long micros) {
+        writeQueue.setFlushDelay(micros);
+    }
+
+    // Send data to connected UART device. Returns immediately, the write completes asynchronously.
+    public UartWrite send(byte[] data) {
+        return send(data, null);
+    }
+
+    /**
+     * Queue data to be sent to the connected UART device. Never blocks the calling thread.
+     * @param data the data to send
+     * @param callback notified once the device acknowledges the write, may be null
+     * @return the pending write, which can be waited on or polled for its status
+     */
+    @Override
+    public UartWrite send(byte[] data, UartWrite.Callback callback) {
         if (tx == null || data == null || data.length == 0) {
             // Do nothing if there is no connection or message to send.
             Log.w("Bluetooth UART", "Could not send data - no connection or no data!");
-            return;
+            return UartWrite.failed(data, UartWrite.STATUS_DISCONNECTED, callback);
+        }
+
+        UartWrite write = writeQueue.enqueue(data, callback);
+        if (write.getStatus() == UartWrite.STATUS_QUEUE_FULL) {
+            Log.w(TAG, "Could not send data - write queue is full!");
         }
+        connectionProfile.onActivity(System.nanoTime());
+        return write;
+    }
+
+    /**
+     * Queue a copy of a packet to be sent without allocating, for the per-note path.
+     * @param data the buffer holding the packet, free to reuse once this returns
+     * @param offset the offset of the packet in the buffer
+     * @param length the length of the packet
+     * @param callback notified once the write completes, the write must not be kept after it returns
+     * @return true if the packet was queued, false if there is no connection or the queue is full
+     */
+    @Override
+    public boolean send(byte[] data, int offset, int length, UartWrite.Callback callback) {
+        return send(data, offset, length, 0, callback);
+    }
 
-        // Update TX characteristic value.  Note the setValue overload that takes a byte array must be used.
-        tx.setValue(data);
-        writeInProgress = true; // Set the write in progress flag
-        gatt.writeCharacteristic(tx);
-        // ToDo: Update to include a timeout in case this goes into the weeds
-        while (writeInProgress); // Wait for the flag to clear in onCharacteristicWrite
+    /**
+     * Queue a copy of a packet to be sent without allocating, timing it from its input event.
+     * @param data the buffer holding the packet, free to reuse once this returns
+     * @param offset the offset of the packet in the buffer
+     * @param length the length of the packet
+     * @param inputNanos the System.nanoTime() of the input event which produced the packet
+     * @param callback notified once the write completes, the write must not be kept after it returns
+     * @return true if the packet was queued, false if there is no connection or the queue is full
+     */
+    @Override
+    public boolean send(byte[] data, int offset, int length, long inputNanos, UartWrite.Callback callback) {
+        if (tx == null || length == 0) {
+            Log.w("Bluetooth UART", "Could not send data - no connection or no data!");
+            return false;
+        }
+        boolean queued = writeQueue.enqueue(data, offset, length, inputNanos, callback);
+        if (!queued) {
+            Log.w(TAG, "Could not send data - write queue is full!");
+        }
+        // After the note is queued, the priority request itself is posted off this thread.
+        connectionProfile.onActivity(System.nanoTime());
+        return queued;
     }
 
     // Send data to connected UART device.
-    public void send(String data) {
-        if (data != null && !data.isEmpty()) {
-            send(data.getBytes(Charset.forName("UTF-8")));
+    public UartWrite send(String data) {
+        if (data == null || data.isEmpty()) {
+            return UartWrite.failed(null, UartWrite.STATUS_WRITE_FAILED, null);
+        }
+        return send(data.getBytes(Charset.forName("UTF-8")));
+    }
+
+    // Queue a write of the TX characteristic ahead of any other GATT operation, called from the
+    // write queue's writer thread.
+    @Override
+    public boolean write(byte[] data, long sequence) {
+        if (gatt == null || tx == null) {
+            return false;
+        }
+        NoteWrite op;
+        synchronized (noteWrites) {
+            if (freeNoteWrites == 0) {
+                // Only possible if acks fell behind the credit window, the writer retries shortly.
+                return false;
+            }
+            op = noteWrites[--freeNoteWrites];
+        }
+        op.setData(data, sequence);
+        gattQueue.submit(op);
+        return true;
+    }
+
+    // A pooled write of a note frame to the TX characteristic.
+    private class NoteWrite extends GattOperationQueue.Operation {
+        private byte[] value = new byte[0];
+        private long sequence;
+        private long issuedNanos;
+
+        NoteWrite() {
+            super(GattOperationQueue.CLASS_WRITE, GattOperationQueue.CALLBACK_CHARACTERISTIC_WRITE);
+        }
+
+        // Copy the frame, reusing the value array while frames keep the same size.
+        void setData(byte[] data, long sequence) {
+            this.sequence = sequence;
+            if (value.length != data.length) {
+                value = new byte[data.length];
+            }
+            System.arraycopy(data, 0, value, 0, data.length);
+        }
+
+        @Override
+        protected boolean issue() {
+            BluetoothGatt gatt = BluetoothLeUart.this.gatt;
+            BluetoothGattCharacteristic tx = BluetoothLeUart.this.tx;
+            if (gatt == null || tx == null) {
+                return false;
+            }
+            // Update TX characteristic value.  Note the setValue overload that takes a byte array must be used.
+            tx.setValue(value);
+            issuedNanos = System.nanoTime();
+            return gatt.writeCharacteristic(tx);
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                connectionProfile.onWriteAcknowledged(System.nanoTime() - issuedNanos);
+            }
+            synchronized (noteWrites) {
+                noteWrites[freeNoteWrites++] = this;
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "Characteristic write failed with status " + status);
+            }
+            // Return a credit to the writer thread so it can issue the next queued write. In FAST
+            // mode this only means the stack has buffered the frame. A note can wait behind a
+            // slow setup operation past the write queue's own timeout, the sequence number keeps
+            // its late acknowledgement from being credited to the frame behind it.
+            writeQueue.onWriteComplete(sequence, status);
+        }
+    }
+
+    // Ask the stack for a connection priority. Posted to the main thread and queued behind any
+    // note writes, so the note which raised the priority is never held up by the request.
+    // Only one is queued at a time, a newer priority replaces the one waiting.
+    private class PriorityRequest extends GattOperationQueue.Operation {
+        private int priority; // Guarded by this, as is the rest
+        private int issuedPriority = -1;
+        private boolean pending;
+
+        private final Runnable submitter = new Runnable() {
+            @Override
+            public void run() {
+                gattQueue.submit(PriorityRequest.this);
+            }
+        };
+
+        PriorityRequest() {
+            super(GattOperationQueue.CLASS_SETUP, GattOperationQueue.CALLBACK_NONE);
+        }
+
+        // Queue a request for the priority, or update the one already queued.
+        boolean post(int priority) {
+            synchronized (this) {
+                this.priority = priority;
+                if (pending) {
+                    return true;
+                }
+                pending = true;
+            }
+            scheduler.schedule(submitter, 0);
+            return true;
+        }
+
+        @Override
+        protected boolean issue() {
+            BluetoothGatt gatt = BluetoothLeUart.this.gatt;
+            int priority;
+            synchronized (this) {
+                priority = this.priority;
+                issuedPriority = priority;
+            }
+            return gatt != null && gatt.requestConnectionPriority(priority);
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            int issued;
+            boolean again;
+            synchronized (this) {
+                issued = issuedPriority;
+                issuedPriority = -1;
+                // A newer priority was posted while this one was being issued.
+                again = status != GattOperationQueue.STATUS_DISCONNECTED && priority != issued;
+                pending = again;
+            }
+            if (status != GattOperationQueue.STATUS_SUCCESS
+                    && status != GattOperationQueue.STATUS_DISCONNECTED) {
+                Log.w(TAG, "Connection priority " + issued + " refused");
+                connectionProfile.onRequestFailed(issued);
+            }
+            if (again) {
+                scheduler.schedule(submitter, 0);
+            }
         }
     }
 
-    // Register the specified callback to receive UART callbacks.
+    // Request the largest MTU both sides support, setup continues once it is settled.
+    private class MtuRequest extends GattOperationQueue.Operation {
+        MtuRequest() {
+            super(GattOperationQueue.CLASS_SETUP, GattOperationQueue.CALLBACK_MTU_CHANGED);
+        }
+
+        @Override
+        protected boolean issue() {
+            BluetoothGatt gatt = BluetoothLeUart.this.gatt;
+            return gatt != null && gatt.requestMtu(MAX_MTU);
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            if (status == GattOperationQueue.STATUS_DISCONNECTED) {
+                return;
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "MTU exchange failed with status " + status + ", staying at " + mtu);
+            }
+            setupConnection();
+        }
+    }
+
+    // Enable notifications of the RX characteristic, the connection is ready once it succeeds.
+    private class NotificationEnable extends GattOperationQueue.Operation {
+        private final BluetoothGattDescriptor descriptor;
+
+        NotificationEnable(BluetoothGattDescriptor descriptor) {
+            super(GattOperationQueue.CLASS_SETUP, GattOperationQueue.CALLBACK_DESCRIPTOR_WRITE);
+            this.descriptor = descriptor;
+        }
+
+        @Override
+        protected boolean issue() {
+            BluetoothGatt gatt = BluetoothLeUart.this.gatt;
+            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+            return gatt != null && gatt.writeDescriptor(descriptor);
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            if (status == GattOperationQueue.STATUS_DISCONNECTED) {
+                return;
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.e(TAG, "Could not write to notification descriptor, status " + status);
+                connectFailure();
+                return;
+            }
+            // Notify of connection completion.
+            notifyOnConnected(BluetoothLeUart.this);
+            if (deviceInfo != null) {
+                // Report the cached information now and check it once notes have had the link.
+                notifyOnDeviceInfoAvailable();
+                scheduler.schedule(deviceInfoRevalidator, DEVICE_INFO_REVALIDATE_MILLIS);
+            }
+        }
+    }
+
+    // Read one device information characteristic in the background.
+    private class DeviceInfoRead extends GattOperationQueue.Operation {
+        private final BluetoothGattCharacteristic characteristic;
+
+        DeviceInfoRead(BluetoothGattCharacteristic characteristic) {
+            super(GattOperationQueue.CLASS_READ, GattOperationQueue.CALLBACK_CHARACTERISTIC_READ);
+            this.characteristic = characteristic;
+        }
+
+        @Override
+        protected boolean issue() {
+            BluetoothGatt gatt = BluetoothLeUart.this.gatt;
+            return gatt != null && gatt.readCharacteristic(characteristic);
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            if (status == GattOperationQueue.STATUS_DISCONNECTED) {
+                return;
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "Failed reading characteristic " + characteristic.getUuid() + ", status " + status);
+                disReadFailed = true;
+            }
+            if (--disReadsLeft == 0 && !disReadFailed) {
+                onDeviceInfoRead();
+            }
+        }
+    }
+
+    // Register the specified callback to receive UART callbacks.  Callbacks are held strongly
+    // and must be unregistered when their owner goes away.
     public void registerCallback(Callback callback) {
-        callbacks.put(callback, null);
+        callbacks.add(callback);
     }
 
     // Unregister the specified callback.
@@ -141,14 +637,75 @@ public class BluetoothLeUart extends BluetoothGattCallback
         callbacks.remove(callback);
     }
 
-    // Disconnect to a device if currently connected.
+    /**
+     * Deliver callbacks and listener events on the given executor instead of the GATT thread, so
+     * a slow client never delays the next GATT callback.  The executor must run events one at a
+     * time in order, e.g. a single thread executor.  Received messages and data are delivered
+     * on it too.
+     * @param executor the executor, or null to deliver on the GATT thread
+     */
+    public void setDeliveryExecutor(Executor executor) {
+        this.deliveryExecutor = executor;
+    }
+
+    // Deliver callbacks and listener events on the given looper's thread, e.g. the main looper.
+    public void setDeliveryLooper(Looper looper) {
+        final Handler handler = new Handler(looper);
+        setDeliveryExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        });
+    }
+
+    // Register the specified transport listener to receive link events.
+    @Override
+    public void registerListener(UartTransport.Listener listener) {
+        listeners.add(listener);
+    }
+
+    // Unregister the specified transport listener.
+    @Override
+    public void unregisterListener(UartTransport.Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // Disconnect to a device if currently connected, and close the GATT client. The stack only
+    // has a handful of client interfaces, each one must be released.
+    @Override
     public void disconnect() {
+        BluetoothGatt gatt = this.gatt;
+        boolean wasConnected = isConnected();
         if (gatt != null) {
             gatt.disconnect();
+            gatt.close();
         }
-        gatt = null;
+        this.gatt = null;
         tx = null;
         rx = null;
+        writeQueue.shutdown();
+        scheduler.cancel(deviceInfoRevalidator);
+        gattQueue.clear();
+        connectionProfile.onDisconnected();
+        // A closed client gets no more callbacks, report the disconnection here instead.
+        if (wasConnected) {
+            notifyOnDisconnected(this);
+        }
+    }
+
+    // Reconnect a dropped link with a new direct connection. BluetoothGatt.connect would wait
+    // for the board in the background, which can take far longer.
+    @Override
+    public boolean reconnect() {
+        BluetoothGatt gatt = this.gatt;
+        if (gatt == null) {
+            // Closed by disconnect.
+            return false;
+        }
+        gatt.close();
+        this.gatt = device.connectGatt(context, false, this);
+        return this.gatt != null;
     }
 
     // Handlers for BluetoothGatt and LeScan events.
@@ -183,6 +740,10 @@ public class BluetoothLeUart extends BluetoothGattCallback
             // Disconnected, notify callbacks of disconnection.
             rx = null;
             tx = null;
+            writeQueue.clear(UartWrite.STATUS_DISCONNECTED);
+            scheduler.cancel(deviceInfoRevalidator);
+            gattQueue.clear();
+            connectionProfile.onDisconnected();
             notifyOnDisconnected(this);
         }
     }
@@ -200,27 +761,70 @@ public class BluetoothLeUart extends BluetoothGattCallback
             return;
         }
 
-        // Save reference to each UART characteristic.
-        tx = gatt.getService(BluetoothUtil.UART_UUID).getCharacteristic(BluetoothUtil.TX_UUID);
-        rx = gatt.getService(BluetoothUtil.UART_UUID).getCharacteristic(BluetoothUtil.RX_UUID);
+        // Save reference to each UART characteristic, TX once its write type is set. A device
+        // without them is not a board, drop the link rather than leave it half set up.
+        BluetoothGattService uart = gatt.getService(BluetoothUtil.UART_UUID);
+        BluetoothGattCharacteristic tx = characteristicOf(uart, BluetoothUtil.TX_UUID);
+        BluetoothGattCharacteristic rx = characteristicOf(uart, BluetoothUtil.RX_UUID);
+        if (tx == null || rx == null) {
+            Log.e(TAG, "UART service or characteristics not found.");
+            gatt.disconnect();
+            connectFailure();
+            return;
+        }
+        applyWriteMode(tx);
+        this.tx = tx;
+        this.rx = rx;
+
+        // Save reference to each DIS characteristic, null for any the board lacks.
+        BluetoothGattService dis = gatt.getService(BluetoothUtil.DIS_UUID);
+        disManuf = characteristicOf(dis, BluetoothUtil.DIS_MANUF_UUID);
+        disModel = characteristicOf(dis, BluetoothUtil.DIS_MODEL_UUID);
+        disHWRev = characteristicOf(dis, BluetoothUtil.DIS_HWREV_UUID);
+        disSWRev = characteristicOf(dis, BluetoothUtil.DIS_SWREV_UUID);
+
+        // Negotiate the largest MTU both sides support before the rest of the setup, which
+        // continues once the exchange completes.
+        setupStarted = false;
+        gattQueue.submit(new MtuRequest());
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        super.onMtuChanged(gatt, mtu, status);
 
-        // Save reference to each DIS characteristic.
-        disManuf = gatt.getService(BluetoothUtil.DIS_UUID).getCharacteristic(BluetoothUtil.DIS_MANUF_UUID);
-        disModel = gatt.getService(BluetoothUtil.DIS_UUID).getCharacteristic(BluetoothUtil.DIS_MODEL_UUID);
-        disHWRev = gatt.getService(BluetoothUtil.DIS_UUID).getCharacteristic(BluetoothUtil.DIS_HWREV_UUID);
-        disSWRev = gatt.getService(BluetoothUtil.DIS_UUID).getCharacteristic(BluetoothUtil.DIS_SWREV_UUID);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            Log.i(TAG, "MTU negotiated: " + mtu);
+            this.mtu = mtu;
+            deviceInfoText = null;
+            // Size outbound frames to the negotiated payload.
+            writeQueue.setMaxFrameSize(getMaxPayloadSize());
+            notifyOnMtuChanged(this, mtu);
+        }
+        gattQueue.complete(GattOperationQueue.CALLBACK_MTU_CHANGED, status);
+    }
 
-        // Add device information characteristics to the read queue
-        // These need to be queued because we have to wait for the response to the first
-        // read request before a second one can be processed (which makes you wonder why they
-        // implemented this with async logic to begin with???)
-        readQueue.offer(disManuf);
-        readQueue.offer(disModel);
-        readQueue.offer(disHWRev);
-        readQueue.offer(disSWRev);
+    // Set the TX write type for the session's write mode, falling back if the board lacks it.
+    private void applyWriteMode(BluetoothGattCharacteristic tx) {
+        if (writeMode == WriteMode.FAST
+                && (tx.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0) {
+            Log.w(TAG, "TX does not support write without response, using reliable writes.");
+            writeMode = WriteMode.RELIABLE;
+            writeQueue.setCreditWindow(1);
+        }
+        tx.setWriteType(writeMode == WriteMode.FAST
+                ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    }
 
-        // Request a dummy read to get the device information queue going
-        gatt.readCharacteristic(disManuf);
+    // Enable RX notifications and start the device information reads once the MTU is settled.
+    private void setupConnection() {
+        BluetoothGatt gatt = this.gatt;
+        BluetoothGattCharacteristic rx = this.rx;
+        if (setupStarted || gatt == null || rx == null) {
+            return;
+        }
+        setupStarted = true;
 
         // Setup notifications on RX characteristic changes (i.e. data received).
         // First call setCharacteristicNotification to enable notification.
@@ -230,7 +834,8 @@ public class BluetoothLeUart extends BluetoothGattCallback
             connectFailure();
             return;
         }
-        // Next update the RX characteristic's client descriptor to enable notifications.
+        // Next update the RX characteristic's client descriptor to enable notifications, the
+        // connection is reported once the board accepts it.
         BluetoothGattDescriptor desc = rx.getDescriptor(BluetoothUtil.CLIENT_UUID);
         if (desc == null) {
             Log.e(TAG, "Could not enable notifications");
@@ -238,17 +843,54 @@ public class BluetoothLeUart extends BluetoothGattCallback
             connectFailure();
             return;
         }
-        desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        if (!gatt.writeDescriptor(desc)) {
-            Log.e(TAG, "FAILS HERE - Could not write to notification descriptor");
-            // TODO why does this not work?
-            // Stop if the client descriptor could not be written.
-            //connectFailure();
-            //return;
+        gattQueue.submit(new NotificationEnable(desc));
+
+        // Without a cached copy read the device information in the background now, behind the
+        // setup and any notes.
+        if (deviceInfo == null) {
+            readDeviceInfo();
+        }
+    }
+
+    // Queue reads of every device information characteristic.
+    private void readDeviceInfo() {
+        if (tx == null) {
+            return;
+        }
+        BluetoothGattCharacteristic[] characteristics = {disManuf, disModel, disHWRev, disSWRev};
+        disReadFailed = false;
+        disReadsLeft = 0;
+        for (BluetoothGattCharacteristic characteristic : characteristics) {
+            if (characteristic != null) {
+                disReadsLeft++;
+            }
+        }
+        if (disReadsLeft == 0) {
+            // The board has no device information to read.
+            return;
+        }
+        for (BluetoothGattCharacteristic characteristic : characteristics) {
+            if (characteristic != null) {
+                gattQueue.submit(new DeviceInfoRead(characteristic));
+            }
         }
+    }
 
-        // Notify of connection completion.
-        notifyOnConnected(this);
+    // Take the values just read, persisting them and telling clients if they changed.
+    private void onDeviceInfoRead() {
+        DeviceInfo info = new DeviceInfo(valueOf(disManuf), valueOf(disModel),
+                valueOf(disHWRev), valueOf(disSWRev));
+        if (info.equals(deviceInfo)) {
+            return;
+        }
+        deviceInfo = info;
+        deviceInfoText = null;
+        info.save(context, device.getAddress());
+        notifyOnDeviceInfoAvailable();
+    }
+
+    private static String valueOf(BluetoothGattCharacteristic characteristic) {
+        return characteristic == null ? null : characteristic.getStringValue(0);
     }
 
     @Override
@@ -260,82 +902,149 @@ public class BluetoothLeUart extends BluetoothGattCallback
     @Override
     public void onCharacteristicRead (BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicRead(gatt, characteristic, status);
-
-        if (status == BluetoothGatt.GATT_SUCCESS) {
-            //Log.w("DIS", characteristic.getStringValue(0));
-            // Check if there is anything left in the queue
-            BluetoothGattCharacteristic nextRequest = readQueue.poll();
-            if(nextRequest != null){
-                // Send a read request for the next item in the queue
-                gatt.readCharacteristic(nextRequest);
-            }
-            else {
-                // We've reached the end of the queue
-                disAvailable = true;
-                notifyOnDeviceInfoAvailable();
-            }
-        }
-        else {
-            //Log.w("DIS", "Failed reading characteristic " + characteristic.getUuid().toString());
-        }
+        gattQueue.complete(GattOperationQueue.CALLBACK_CHARACTERISTIC_READ, status);
     }
 
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicWrite(gatt, characteristic, status);
+        gattQueue.complete(GattOperationQueue.CALLBACK_CHARACTERISTIC_WRITE, status);
+    }
 
-        if (status == BluetoothGatt.GATT_SUCCESS) {
-            // Log.d(TAG,"Characteristic write successful");
-        }
-        writeInProgress = false;
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        super.onDescriptorWrite(gatt, descriptor, status);
+        gattQueue.complete(GattOperationQueue.CALLBACK_DESCRIPTOR_WRITE, status);
     }
 
-    // Private functions to simplify the notification of all callbacks of a certain event.
+    // Private functions to simplify the notification of all callbacks of a certain event.  Each
+    // event is delivered inline, or posted to the delivery executor when one is set.
     private void notifyOnConnected(BluetoothLeUart uart) {
-        for (Callback cb : callbacks.keySet()) {
-            if (cb != null) {
-                cb.onConnected(uart);
-            }
-        }
+        post(EVENT_CONNECTED, null, null, 0, 0);
     }
 
     private void notifyOnConnectFailed(BluetoothLeUart uart) {
-        for (Callback cb : callbacks.keySet()) {
-            if (cb != null) {
-                cb.onConnectFailed(uart);
-            }
-        }
+        post(EVENT_CONNECT_FAILED, null, null, 0, 0);
     }
 
     private void notifyOnDisconnected(BluetoothLeUart uart) {
-        for (Callback cb : callbacks.keySet()) {
-            if (cb != null) {
-                cb.onDisconnected(uart);
-            }
-        }
+        post(EVENT_DISCONNECTED, null, null, 0, 0);
     }
 
     private void notifyOnReceive(BluetoothLeUart uart, BluetoothGattCharacteristic rx) {
-        for (Callback cb : callbacks.keySet()) {
-            if (cb != null ) {
-                cb.onReceive(uart, rx);
-            }
+        // The stack hands each notification a new value array, so it can be delivered later.
+        post(EVENT_RECEIVE, rx, rx.getValue(), 0, System.nanoTime());
+    }
+
+    private void notifyOnMtuChanged(BluetoothLeUart uart, int mtu) {
+        post(EVENT_MTU_CHANGED, null, null, mtu, 0);
+    }
+
+    private void notifyOnDeviceInfoAvailable() {
+        post(EVENT_DEVICE_INFO, null, null, 0, 0);
+    }
+
+    // Deliver an event inline, or hand it to the delivery executor.
+    private void post(int type, BluetoothGattCharacteristic rx, byte[] value, int mtu, long nanos) {
+        Executor executor = deliveryExecutor;
+        if (executor == null) {
+            deliver(type, rx, value, mtu, nanos);
+        } else {
+            executor.execute(new Event(type, rx, value, mtu, nanos));
         }
     }
 
-    private void notifyOnDeviceFound(BluetoothDevice device) {
-        for (Callback cb : callbacks.keySet()) {
-            if (cb != null) {
-                cb.onDeviceFound(device);
-            }
+    // An event waiting to be delivered on the delivery executor.
+    private class Event implements Runnable {
+        private final int type;
+        private final BluetoothGattCharacteristic rx;
+        private final byte[] value;
+        private final int mtu;
+        private final long nanos;
+
+        Event(int type, BluetoothGattCharacteristic rx, byte[] value, int mtu, long nanos) {
+            this.type = type;
+            this.rx = rx;
+            this.value = value;
+            this.mtu = mtu;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public void run() {
+            deliver(type, rx, value, mtu, nanos);
         }
     }
 
-    private void notifyOnDeviceInfoAvailable() {
-        for (Callback cb : callbacks.keySet()) {
-            if (cb != null) {
-                cb.onDeviceInfoAvailable();
-            }
+    // Deliver an event to every registered callback and listener, nanos is when data arrived.
+    private void deliver(int type, BluetoothGattCharacteristic rx, byte[] value, int mtu, long nanos) {
+        Callback[] callbacks = this.callbacks.get();
+        UartTransport.Listener[] listeners = this.listeners.get();
+        switch (type) {
+            case EVENT_CONNECTED:
+                for (Callback cb : callbacks) {
+                    cb.onConnected(this);
+                }
+                for (UartTransport.Listener l : listeners) {
+                    l.onConnected(this);
+                }
+                break;
+            case EVENT_CONNECT_FAILED:
+                for (Callback cb : callbacks) {
+                    cb.onConnectFailed(this);
+                }
+                // A failed connection leaves a transport client disconnected.
+                for (UartTransport.Listener l : listeners) {
+                    l.onDisconnected(this);
+                }
+                break;
+            case EVENT_DISCONNECTED:
+                // Drop any partial packet, it will never be completed.
+                decoder.reset();
+                for (Callback cb : callbacks) {
+                    cb.onDisconnected(this);
+                }
+                for (UartTransport.Listener l : listeners) {
+                    l.onDisconnected(this);
+                }
+                break;
+            case EVENT_RECEIVE:
+                for (Callback cb : callbacks) {
+                    cb.onReceive(this, rx);
+                }
+                if (value == null) {
+                    break;
+                }
+                for (UartTransport.Listener l : listeners) {
+                    l.onReceive(this, value, 0, value.length);
+                }
+                // Decoded messages are delivered from here, on the same thread.
+                receivedNanos = nanos;
+                decoder.decode(value, 0, value.length);
+                break;
+            case EVENT_MTU_CHANGED:
+                for (Callback cb : callbacks) {
+                    cb.onMtuChanged(this, mtu);
+                }
+                for (UartTransport.Listener l : listeners) {
+                    l.onMtuChanged(this, mtu);
+                }
+                break;
+            case EVENT_DEVICE_INFO:
+                for (Callback cb : callbacks) {
+                    cb.onDeviceInfoAvailable();
+                }
+                break;
+        }
+    }
+
+    private void notifyOnMessage(SynthMessage message) {
+        writeQueue.getLatencyMonitor().onEcho(receivedNanos);
+        for (Callback cb : callbacks.get()) {
+            cb.onMessage(this, message);
+        }
+        for (UartTransport.Listener l : listeners.get()) {
+            l.onMessage(this, message);
         }
     }
 
@@ -343,59 +1052,10 @@ public class BluetoothLeUart extends BluetoothGattCallback
     private void connectFailure() {
         rx = null;
         tx = null;
+        writeQueue.clear(UartWrite.STATUS_DISCONNECTED);
+        scheduler.cancel(deviceInfoRevalidator);
+        gattQueue.clear();
+        connectionProfile.onDisconnected();
         notifyOnConnectFailed(this);
     }
-
-    // Filtering by custom UUID is broken in Android 4.3 and 4.4, see:
-    //   http://stackoverflow.com/questions/18019161/startlescan-with-128-bit-uuids-doesnt-work-on-native-android-ble-implementation?noredirect=1#comment27879874_18019161
-    // This is a workaround function from the SO thread to manually parse advertisement data.
-    private List<UUID> parseUUIDs(final byte[] advertisedData) {
-        List<UUID> uuids = new ArrayList<UUID>();
-
-        int offset = 0;
-        while (offset < (advertisedData.length - 2)) {
-            int len = advertisedData[offset++];
-            if (len == 0)
-                break;
-
-            int type = advertisedData[offset++];
-            switch (type) {
-                case 0x02: // Partial list of 16-bit UUIDs
-                case 0x03: // Complete list of 16-bit UUIDs
-                    while (len > 1) {
-                        int uuid16 = advertisedData[offset++];
-                        uuid16 += (advertisedData[offset++] << 8);
-                        len -= 2;
-                        uuids.add(UUID.fromString(String.format("%08x-0000-1000-8000-00805f9b34fb", uuid16)));
-                    }
-                    break;
-                case 0x06:// Partial list of 128-bit UUIDs
-                case 0x07:// Complete list of 128-bit UUIDs
-                    // Loop through the advertised 128-bit UUID's.
-                    while (len >= 16) {
-                        try {
-                            // Wrap the advertised bits and order them.
-                            ByteBuffer buffer = ByteBuffer.wrap(advertisedData, offset++, 16).order(ByteOrder.LITTLE_ENDIAN);
-                            long mostSignificantBit = buffer.getLong();
-                            long leastSignificantBit = buffer.getLong();
-                            uuids.add(new UUID(leastSignificantBit,
-                                    mostSignificantBit));
-                        } catch (IndexOutOfBoundsException e) {
-                            // Defensive programming.
-                            //Log.e(LOG_TAG, e.toString());
-                            continue;
-                        } finally {
-                            // Move the offset to read the next uuid.
-                            offset += 15;
-                            len -= 16;
-                        }
-                    }
-                    break;
-                default:
-                    offset += (len - 1);
-                    break;
-            }
-        }
-        return uuids;
-    }
 }
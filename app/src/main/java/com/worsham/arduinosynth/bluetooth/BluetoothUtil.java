@@ -1,5 +1,7 @@
 package com.worsham.arduinosynth.bluetooth;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -21,4 +23,19 @@ public class BluetoothUtil
     public static UUID DIS_MODEL_UUID = UUID.fromString("00002a24-0000-1000-8000-00805f9b34fb");
     public static UUID DIS_HWREV_UUID = UUID.fromString("00002a26-0000-1000-8000-00805f9b34fb");
     public static UUID DIS_SWREV_UUID = UUID.fromString("00002a28-0000-1000-8000-00805f9b34fb");
+
+    // Filtering by custom UUID is broken in Android 4.3 and 4.4, see:
+    //   http://stackoverflow.com/questions/18019161/startlescan-with-128-bit-uuids-doesnt-work-on-native-android-ble-implementation?noredirect=1#comment27879874_18019161
+    // Return the service UUIDs of the advertisement data. Allocates the list, filters should
+    // use AdvertisementParser.hasService instead.
+    public static List<UUID> parseUUIDs(final byte[] advertisedData) {
+        // every UUID takes at least two bytes
+        long[] bits = new long[advertisedData.length];
+        int count = AdvertisementParser.parseUuids(advertisedData, 0, advertisedData.length, bits);
+        List<UUID> uuids = new ArrayList<UUID>(count);
+        for (int i = 0; i < count; i++) {
+            uuids.add(AdvertisementParser.toUuid(bits[2 * i], bits[2 * i + 1]));
+        }
+        return uuids;
+    }
 }
@@ -0,0 +1,272 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import com.worsham.arduinosynth.metrics.Histogram;
+
+import java.util.Locale;
+
+/**
+ * Switches a link's connection priority with what is being played. The first note after an idle
+ * spell asks for the high priority, shortest connection interval, so notes wait the least for
+ * a connection event; once nothing has been sent for the idle timeout the link drops back to
+ * the idle priority to save battery. The time spent at each priority and the write
+ * acknowledgement round trip seen at each, which follows the connection interval, are recorded
+ * so the latency gained can be weighed against the radio time it costs.
+ */
+public class ConnectionProfile
+{
+    // Connection priorities, the values of BluetoothGatt's CONNECTION_PRIORITY_* constants.
+    public static final int PRIORITY_BALANCED = 0;
+    public static final int PRIORITY_HIGH = 1;
+    public static final int PRIORITY_LOW_POWER = 2;
+    private static final int PRIORITY_COUNT = 3;
+
+    private static final String[] PRIORITY_NAMES = {"balanced", "high", "low"};
+
+    // How long the link stays at high priority after the last note, by default.
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5000;
+
+    // Asks the stack for a connection priority. Called without the profile's lock held, it
+    // should hand the request off rather than make it on the calling thread.
+    public interface Requester {
+        // Return false if the request could not be made, e.g. with no connection. A request
+        // which fails later is reported through onRequestFailed.
+        public boolean requestPriority(int priority);
+    }
+
+    private final Requester requester;
+    private final Scheduler scheduler;
+
+    // Guarded by this.
+    private boolean enabled = true;
+    private long idleTimeoutNanos = DEFAULT_IDLE_TIMEOUT_MILLIS * 1000000L;
+    private int idlePriority = PRIORITY_BALANCED;
+    private int priority = PRIORITY_BALANCED; // Requested last, assumed granted unless it fails
+    private int previousPriority = PRIORITY_BALANCED;
+    private long prioritySinceNanos;
+    private long lastActivityNanos;
+    private boolean idleCheckScheduled;
+    private final long[] timeAtNanos = new long[PRIORITY_COUNT];
+    private long switches;
+
+    // Write acknowledgement round trip at each priority, in nanoseconds.
+    private final Histogram[] ackTime = new Histogram[PRIORITY_COUNT];
+
+    // Drops back to the idle priority once the link has been idle for the timeout.
+    private final Runnable idleCheck = new Runnable() {
+        @Override
+        public void run() {
+            onIdleCheck(System.nanoTime());
+        }
+    };
+
+    /**
+     * Create a profile for a link which starts at the balanced priority.
+     * @param requester asks the link's stack for a priority
+     * @param scheduler runs the idle timeout
+     */
+    public ConnectionProfile(Requester requester, Scheduler scheduler) {
+        this.requester = requester;
+        this.scheduler = scheduler;
+        this.prioritySinceNanos = System.nanoTime();
+        for (int i = 0; i < PRIORITY_COUNT; i++)
+            ackTime[i] = new Histogram();
+    }
+
+    /**
+     * Turn priority switching on or off. Turned off, the link goes back to the idle priority
+     * and stays there.
+     * @param enabled true to raise the priority while playing
+     */
+    public void setEnabled(boolean enabled) {
+        synchronized (this) {
+            this.enabled = enabled;
+            if (enabled) {
+                return;
+            }
+        }
+        goIdle(System.nanoTime());
+    }
+
+    /**
+     * Set how long the link keeps the high priority after the last note and what it drops to.
+     * @param timeoutMillis the idle timeout
+     * @param idlePriority PRIORITY_BALANCED, or PRIORITY_LOW_POWER to save the most battery at
+     *                     the cost of the first note after an idle spell
+     */
+    public synchronized void setIdle(long timeoutMillis, int idlePriority) {
+        this.idleTimeoutNanos = timeoutMillis * 1000000L;
+        this.idlePriority = idlePriority;
+    }
+
+    /**
+     * Called each time something is sent, raising the priority if the link was idle. Cheap
+     * enough to call for every note, call it once the note is queued.
+     * @param nowNanos the current System.nanoTime()
+     */
+    public void onActivity(long nowNanos) {
+        synchronized (this) {
+            lastActivityNanos = nowNanos;
+            if (!enabled) {
+                return;
+            }
+            if (!idleCheckScheduled) {
+                idleCheckScheduled = true;
+                scheduler.schedule(idleCheck, idleTimeoutNanos / 1000000L);
+            }
+            if (priority == PRIORITY_HIGH) {
+                return;
+            }
+            switchLocked(PRIORITY_HIGH, nowNanos);
+            switches++;
+        }
+        request(PRIORITY_HIGH);
+    }
+
+    /**
+     * Called when a priority request the requester accepted failed, the link stays at the
+     * priority it had.
+     * @param priority the priority which was requested
+     */
+    public void onRequestFailed(int priority) {
+        synchronized (this) {
+            if (priority != this.priority) {
+                // Superseded by a later request.
+                return;
+            }
+            switchLocked(previousPriority, System.nanoTime());
+            switches--;
+            if (this.priority == PRIORITY_HIGH) {
+                // Still high, try dropping again after another idle timeout.
+                if (!idleCheckScheduled) {
+                    idleCheckScheduled = true;
+                    scheduler.schedule(idleCheck, idleTimeoutNanos / 1000000L);
+                }
+                return;
+            }
+            if (!idleCheckScheduled) {
+                return;
+            }
+            idleCheckScheduled = false;
+        }
+        scheduler.cancel(idleCheck);
+    }
+
+    /**
+     * Record a write's acknowledgement against the priority the link is at.
+     * @param roundTripNanos the time from the write being issued to its acknowledgement
+     */
+    public void onWriteAcknowledged(long roundTripNanos) {
+        int current;
+        synchronized (this) {
+            current = priority;
+        }
+        ackTime[current].record(roundTripNanos);
+    }
+
+    // Forget the priority when the link drops, the stack starts each connection at balanced.
+    public void onDisconnected() {
+        scheduler.cancel(idleCheck);
+        synchronized (this) {
+            idleCheckScheduled = false;
+            switchLocked(PRIORITY_BALANCED, System.nanoTime());
+        }
+    }
+
+    // Return the priority last requested, unless the request failed.
+    public synchronized int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Return how long the link has spent at a priority, including the current spell.
+     * @param priority one of the PRIORITY_* constants
+     * @return the time in nanoseconds
+     */
+    public synchronized long getTimeAt(int priority) {
+        long time = timeAtNanos[priority];
+        if (priority == this.priority) {
+            time += System.nanoTime() - prioritySinceNanos;
+        }
+        return time;
+    }
+
+    /**
+     * Return the write acknowledgement round trips seen at a priority.
+     * @param priority one of the PRIORITY_* constants
+     * @return the histogram of nanoseconds
+     */
+    public Histogram getAckTime(int priority) {
+        return ackTime[priority];
+    }
+
+    // Return the number of priority changes requested and not refused.
+    public synchronized long getSwitches() {
+        return switches;
+    }
+
+    // Return the time at and ack round trip of each priority, for logs and debug overlays.
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        synchronized (this) {
+            summary.append(String.format(Locale.US, "priority %s  switches %d", PRIORITY_NAMES[priority], switches));
+        }
+        for (int p = 0; p < PRIORITY_COUNT; p++) {
+            Histogram ack = ackTime[p];
+            summary.append(String.format(Locale.US, "\n%-8s %7.1f s  ack p50 %6.2f  p99 %6.2f ms",
+                    PRIORITY_NAMES[p], getTimeAt(p) / 1e9,
+                    ack.getValueAtPercentile(50) / 1e6, ack.getValueAtPercentile(99) / 1e6));
+        }
+        return summary.toString();
+    }
+
+    // Drop to the idle priority if nothing was sent for the timeout, otherwise check again
+    // once the timeout after the last activity has passed.
+    void onIdleCheck(long nowNanos) {
+        synchronized (this) {
+            idleCheckScheduled = false;
+            if (priority != PRIORITY_HIGH) {
+                return;
+            }
+            long idleNanos = nowNanos - lastActivityNanos;
+            if (enabled && idleNanos < idleTimeoutNanos) {
+                idleCheckScheduled = true;
+                scheduler.schedule(idleCheck, Math.max(1, (idleTimeoutNanos - idleNanos) / 1000000L));
+                return;
+            }
+        }
+        goIdle(nowNanos);
+    }
+
+    private void goIdle(long nowNanos) {
+        scheduler.cancel(idleCheck);
+        int target;
+        synchronized (this) {
+            idleCheckScheduled = false;
+            target = idlePriority;
+            if (priority == target) {
+                return;
+            }
+            switchLocked(target, nowNanos);
+            switches++;
+        }
+        request(target);
+    }
+
+    // Ask for a priority already switched to, undoing the switch if the request is refused.
+    private void request(int priority) {
+        if (!requester.requestPriority(priority)) {
+            onRequestFailed(priority);
+        }
+    }
+
+    // Must hold this.
+    private void switchLocked(int priority, long nowNanos) {
+        if (priority == this.priority) {
+            return;
+        }
+        timeAtNanos[this.priority] += nowNanos - prioritySinceNanos;
+        prioritySinceNanos = nowNanos;
+        previousPriority = this.priority;
+        this.priority = priority;
+    }
+}
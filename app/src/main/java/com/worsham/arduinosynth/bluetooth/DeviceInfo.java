@@ -0,0 +1,110 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * The Device Information of a board, persisted by address so a reconnect can report it straight
+ * away instead of waiting for four reads, one round trip each. The cached values are read again
+ * in the background once the connection is up, and replaced if the board's firmware changed.
+ */
+public class DeviceInfo
+{
+    private static final String PREFERENCES = "device_info";
+
+    // Separates the fields of a persisted entry, it never appears in a DIS string.
+    private static final char SEPARATOR = '\u001f';
+    private static final int FIELDS = 4;
+
+    private final String manufacturer;
+    private final String model;
+    private final String hardwareRevision;
+    private final String softwareRevision;
+
+    public DeviceInfo(String manufacturer, String model, String hardwareRevision, String softwareRevision) {
+        this.manufacturer = manufacturer;
+        this.model = model;
+        this.hardwareRevision = hardwareRevision;
+        this.softwareRevision = softwareRevision;
+    }
+
+    /**
+     * Load the Device Information last read from a board.
+     * @param context the context owning the preferences
+     * @param address the address of the board
+     * @return the information, or null if the board has not been read yet
+     */
+    public static DeviceInfo load(Context context, String address) {
+        return decode(preferences(context).getString(address, null));
+    }
+
+    // Persist this as the board's information, without blocking the calling thread.
+    public void save(Context context, String address) {
+        preferences(context).edit().putString(address, encode(this)).apply();
+    }
+
+    public String getManufacturer() {
+        return manufacturer;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public String getHardwareRevision() {
+        return hardwareRevision;
+    }
+
+    public String getSoftwareRevision() {
+        return softwareRevision;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof DeviceInfo)) {
+            return false;
+        }
+        return encode(this).equals(encode((DeviceInfo) o));
+    }
+
+    @Override
+    public int hashCode() {
+        return encode(this).hashCode();
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    // An entry is stored as its fields joined by the separator, a missing field as empty.
+    static String encode(DeviceInfo info) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(orEmpty(info.manufacturer)).append(SEPARATOR);
+        sb.append(orEmpty(info.model)).append(SEPARATOR);
+        sb.append(orEmpty(info.hardwareRevision)).append(SEPARATOR);
+        sb.append(orEmpty(info.softwareRevision));
+        return sb.toString();
+    }
+
+    static DeviceInfo decode(String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] fields = new String[FIELDS];
+        int start = 0;
+        for (int i = 0; i < FIELDS; i++) {
+            int end = i == FIELDS - 1 ? value.length() : value.indexOf(SEPARATOR, start);
+            if (end < 0 || (i == FIELDS - 1 && value.indexOf(SEPARATOR, start) >= 0)) {
+                // Written by another version of the app, read the board again.
+                return null;
+            }
+            fields[i] = value.substring(start, end);
+            start = end + 1;
+        }
+        return new DeviceInfo(fields[0], fields[1], fields[2], fields[3]);
+    }
+
+    private static String orEmpty(String s) {
+        return s == null ? "" : s;
+    }
+}
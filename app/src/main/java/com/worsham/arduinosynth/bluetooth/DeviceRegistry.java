@@ -0,0 +1,251 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import java.util.Arrays;
+
+/**
+ * Devices found by a scan, keyed by MAC address and ranked by signal strength, strongest first.
+ * Addresses are parsed once into a 48 bit long and looked up in an open addressing hash table,
+ * so finding the entry for a scan result is O(1) and never compares strings or boxes a key.
+ * Each device keeps an exponentially smoothed RSSI and the time it was last seen. An update
+ * only moves its device past the neighbours it now outranks, so the list stays sorted without
+ * re-sorting it, and devices not seen within a time to live are evicted so long scans stay
+ * bounded. Not thread safe, use it from the UI thread.
+ */
+public class DeviceRegistry<T>
+{
+    // returned by parseAddress for a string which is not a MAC address
+    public static final long NO_ADDRESS = -1;
+
+    // weight of a new reading in the smoothed RSSI
+    public static final float RSSI_ALPHA = 0.25f;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Per device state, indexed by a device id which stays the same while it is registered.
+    private long[] addresses;
+    private Object[] devices;
+    private float[] rssi;
+    private long[] lastSeen;
+    private int[] positions;
+
+    // device ids in rank order, and the ids of evicted devices free for reuse
+    private int[] order;
+    private int size;
+    private int[] freeIds;
+    private int freeCount;
+
+    // hash table of device id + 1, 0 for an empty slot, at most half full
+    private int[] table;
+    private int mask;
+
+    public DeviceRegistry() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Parse a MAC address of the form "C4:7C:8D:6A:01:2F" into a long.
+     * @param address the address string, upper or lower case
+     * @return the address as a 48 bit number, or NO_ADDRESS if it is malformed
+     */
+    public static long parseAddress(String address) {
+        if (address == null || address.length() != 17) {
+            return NO_ADDRESS;
+        }
+        long value = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return NO_ADDRESS;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return NO_ADDRESS;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    // Return the number of devices.
+    public int size() {
+        return size;
+    }
+
+    // Return the device at a position in the list.
+    @SuppressWarnings("unchecked")
+    public T get(int position) {
+        return (T) devices[id(position)];
+    }
+
+    // Return the address of the device at a position in the list.
+    public long getAddress(int position) {
+        return addresses[id(position)];
+    }
+
+    // Return the smoothed RSSI in dBm of the device at a position in the list.
+    public float getRssi(int position) {
+        return rssi[id(position)];
+    }
+
+    // Return when the device at a position in the list was last seen.
+    public long getLastSeen(int position) {
+        return lastSeen[id(position)];
+    }
+
+    /**
+     * Find a device.
+     * @param address the address from parseAddress
+     * @return the position of the device, or -1 if it is not registered
+     */
+    public int indexOf(long address) {
+        int slot = find(address);
+        return table[slot] == 0 ? -1 : positions[table[slot] - 1];
+    }
+
+    /**
+     * Record a sighting of a device, adding it if it is new, and move it to its new rank.
+     * @param address the address from parseAddress
+     * @param device the device, replacing the one registered for the address
+     * @param rssi the RSSI of the sighting in dBm
+     * @param nowNanos the time of the sighting
+     * @return the position of the device after the update
+     */
+    public int update(long address, T device, int rssi, long nowNanos) {
+        int slot = find(address);
+        int id;
+        if (table[slot] != 0) {
+            id = table[slot] - 1;
+            this.rssi[id] += RSSI_ALPHA * (rssi - this.rssi[id]);
+        } else {
+            if (size == order.length) {
+                allocate(order.length * 2);
+                slot = find(address);
+            }
+            id = freeIds[--freeCount];
+            table[slot] = id + 1;
+            addresses[id] = address;
+            this.rssi[id] = rssi;
+            order[size] = id;
+            positions[id] = size++;
+        }
+        devices[id] = device;
+        lastSeen[id] = nowNanos;
+        return rerank(id);
+    }
+
+    /**
+     * Remove the devices which have not been seen for a while.
+     * @param nowNanos the current time
+     * @param ttlNanos how long a device is kept after it was last seen
+     * @return the number of devices removed
+     */
+    public int evict(long nowNanos, long ttlNanos) {
+        int kept = 0;
+        for (int position = 0; position < size; position++) {
+            int id = order[position];
+            if (nowNanos - lastSeen[id] > ttlNanos) {
+                remove(id);
+            } else {
+                order[kept] = id;
+                positions[id] = kept++;
+            }
+        }
+        int removed = size - kept;
+        size = kept;
+        return removed;
+    }
+
+    // Remove every device.
+    public void clear() {
+        Arrays.fill(table, 0);
+        Arrays.fill(devices, null);
+        size = 0;
+        freeCount = 0;
+        for (int id = order.length - 1; id >= 0; id--) {
+            freeIds[freeCount++] = id;
+        }
+    }
+
+    private int id(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + size);
+        }
+        return order[position];
+    }
+
+    // Move a device up or down past the neighbours its RSSI now beats or trails, ties keep
+    // their order. Return its new position.
+    private int rerank(int id) {
+        float value = rssi[id];
+        int position = positions[id];
+        while (position > 0 && rssi[order[position - 1]] < value) {
+            order[position] = order[position - 1];
+            positions[order[position]] = position;
+            position--;
+        }
+        while (position < size - 1 && rssi[order[position + 1]] > value) {
+            order[position] = order[position + 1];
+            positions[order[position]] = position;
+            position++;
+        }
+        order[position] = id;
+        positions[id] = position;
+        return position;
+    }
+
+    // Return the table slot holding the address, or the empty slot where it would go.
+    private int find(long address) {
+        int slot = hash(address);
+        while (table[slot] != 0 && addresses[table[slot] - 1] != address) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Take a device out of the hash table, shifting back the entries probed past it.
+    private void remove(int id) {
+        int slot = find(addresses[id]);
+        table[slot] = 0;
+        for (int next = (slot + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            int home = hash(addresses[table[next] - 1]);
+            // Move the entry into the hole unless its home lies between the hole and it.
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                table[slot] = table[next];
+                table[next] = 0;
+                slot = next;
+            }
+        }
+        devices[id] = null;
+        freeIds[freeCount++] = id;
+    }
+
+    // Size every array for the given number of devices, keeping those registered.
+    private void allocate(int capacity) {
+        int old = order == null ? 0 : order.length;
+        addresses = addresses == null ? new long[capacity] : Arrays.copyOf(addresses, capacity);
+        devices = devices == null ? new Object[capacity] : Arrays.copyOf(devices, capacity);
+        rssi = rssi == null ? new float[capacity] : Arrays.copyOf(rssi, capacity);
+        lastSeen = lastSeen == null ? new long[capacity] : Arrays.copyOf(lastSeen, capacity);
+        positions = positions == null ? new int[capacity] : Arrays.copyOf(positions, capacity);
+        order = order == null ? new int[capacity] : Arrays.copyOf(order, capacity);
+        freeIds = freeIds == null ? new int[capacity] : Arrays.copyOf(freeIds, capacity);
+        for (int id = capacity - 1; id >= old; id--) {
+            freeIds[freeCount++] = id;
+        }
+        table = new int[capacity * 2];
+        mask = table.length - 1;
+        for (int position = 0; position < size; position++) {
+            int id = order[position];
+            table[find(addresses[id])] = id + 1;
+        }
+    }
+
+    // Spread the address bits over the table, vendor prefixes make the high bits alike.
+    private int hash(long address) {
+        long h = address * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
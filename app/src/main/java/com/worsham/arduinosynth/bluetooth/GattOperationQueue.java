@@ -0,0 +1,349 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import com.worsham.arduinosynth.metrics.Histogram;
+
+import java.util.Locale;
+
+/**
+ * Serializes every operation issued to a GATT connection, which only carries one at a time.
+ * Queued operations are issued by class, note writes first, then connection setup such as the
+ * MTU exchange and descriptor writes, then background reads, so a note never waits behind more
+ * than the one operation already in flight. An operation the stack refuses is offered again
+ * shortly until its class's timeout runs out; one which gets no callback before the timeout is
+ * issued again up to its class's retry limit. Either way it is then completed with a local
+ * failure status so the queue moves on. How long each operation waited before it was first
+ * issued is recorded per class.
+ */
+public class GattOperationQueue
+{
+    // Operation classes, highest priority first.
+    public static final int CLASS_WRITE = 0;
+    public static final int CLASS_SETUP = 1;
+    public static final int CLASS_READ = 2;
+    public static final int CLASS_COUNT = 3;
+
+    private static final String[] CLASS_NAMES = {"write", "setup", "read"};
+
+    // The GATT callback which completes an operation.
+    public static final int CALLBACK_CHARACTERISTIC_WRITE = 0;
+    public static final int CALLBACK_CHARACTERISTIC_READ = 1;
+    public static final int CALLBACK_DESCRIPTOR_WRITE = 2;
+    public static final int CALLBACK_MTU_CHANGED = 3;
+    // The operation has no callback, e.g. a connection priority request, and completes with
+    // STATUS_SUCCESS as soon as the stack accepts it.
+    public static final int CALLBACK_NONE = 4;
+
+    // Local statuses an operation completes with when the GATT never reported one.
+    public static final int STATUS_SUCCESS = UartWrite.STATUS_SUCCESS;
+    public static final int STATUS_TIMEOUT = UartWrite.STATUS_TIMEOUT;
+    public static final int STATUS_REFUSED = UartWrite.STATUS_WRITE_FAILED;
+    public static final int STATUS_DISCONNECTED = UartWrite.STATUS_DISCONNECTED;
+
+    // How long to wait before offering a refused operation to the stack again.
+    public static final long REFUSED_RETRY_MILLIS = 5;
+
+    // Default timeouts and retries by class. A timed out note write is abandoned rather than
+    // retried, the write queue times it out itself and a late note is worse than a lost one.
+    private static final long[] DEFAULT_TIMEOUT_MILLIS = {UartWriteQueue.DEFAULT_TIMEOUT_MILLIS, 2000, 2000};
+    private static final int[] DEFAULT_RETRIES = {0, 2, 2};
+
+    /**
+     * An operation on the GATT connection. Instances may be reused once completed, e.g. pooled
+     * note writes.
+     */
+    public static abstract class Operation {
+        private final int opClass;
+        private final int callback;
+        private final Runnable watchdog;
+        private GattOperationQueue queue; // The queue the operation was last submitted to
+        private Operation next;
+        private long enqueuedNanos;
+        private long attemptNanos; // When the current attempt was first offered to the stack
+        private int timedOut;
+        private boolean issued; // Accepted by the stack and waiting for its callback
+
+        /**
+         * Create an operation.
+         * @param opClass one of the CLASS_* constants
+         * @param callback the CALLBACK_* constant of the GATT callback which completes it
+         */
+        protected Operation(int opClass, int callback) {
+            this.opClass = opClass;
+            this.callback = callback;
+            this.watchdog = new Runnable() {
+                @Override
+                public void run() {
+                    queue.onWatchdog(Operation.this);
+                }
+            };
+        }
+
+        public int getOpClass() {
+            return opClass;
+        }
+
+        // Start the operation, return false if the stack refused it.
+        protected abstract boolean issue();
+
+        /**
+         * Called once, without the queue's lock held, when the operation completes.
+         * @param status the GATT status, or one of the local STATUS_* failures
+         */
+        protected void onComplete(int status) {
+        }
+    }
+
+    private final Scheduler scheduler;
+    private final long[] timeoutMillis = DEFAULT_TIMEOUT_MILLIS.clone();
+    private final int[] retries = DEFAULT_RETRIES.clone();
+
+    // FIFO of queued operations per class, guarded by this.
+    private final Operation[] heads = new Operation[CLASS_COUNT];
+    private final Operation[] tails = new Operation[CLASS_COUNT];
+    private int queued;
+    private Operation inFlight;
+
+    // Statistics, the histograms are thread safe and the counters guarded by this.
+    private final Histogram[] waitTime = new Histogram[CLASS_COUNT];
+    private long timeouts;
+    private long retried;
+    private long refusals;
+
+    /**
+     * Create a queue.
+     * @param scheduler runs the timeouts and the retries of refused operations
+     */
+    public GattOperationQueue(Scheduler scheduler) {
+        this.scheduler = scheduler;
+        for (int i = 0; i < CLASS_COUNT; i++)
+            waitTime[i] = new Histogram();
+    }
+
+    /**
+     * Set how long an operation of a class waits for its callback and how often it is retried.
+     * @param opClass one of the CLASS_* constants
+     * @param timeoutMillis how long to wait for the operation's callback, or for the stack to
+     *                      accept a refused operation
+     * @param retries how many times a timed out operation is issued again
+     */
+    public synchronized void setPolicy(int opClass, long timeoutMillis, int retries) {
+        this.timeoutMillis[opClass] = timeoutMillis;
+        this.retries[opClass] = retries;
+    }
+
+    /**
+     * Queue an operation, issuing it straight away if the connection is idle.
+     * @param op the operation, which must not already be queued
+     */
+    public void submit(Operation op) {
+        synchronized (this) {
+            op.queue = this;
+            op.next = null;
+            op.timedOut = 0;
+            op.issued = false;
+            op.enqueuedNanos = System.nanoTime();
+            if (tails[op.opClass] == null) {
+                heads[op.opClass] = op;
+            } else {
+                tails[op.opClass].next = op;
+            }
+            tails[op.opClass] = op;
+            queued++;
+            if (inFlight != null) {
+                return;
+            }
+        }
+        pump();
+    }
+
+    /**
+     * Complete the operation in flight, called from the GATT callbacks. A callback which does
+     * not match the operation in flight, e.g. one arriving after its operation timed out, is
+     * ignored.
+     * @param callback the CALLBACK_* constant of the GATT callback
+     * @param status the GATT status
+     * @return true if an operation was completed
+     */
+    public boolean complete(int callback, int status) {
+        Operation op;
+        synchronized (this) {
+            op = inFlight;
+            if (op == null || !op.issued || op.callback != callback) {
+                return false;
+            }
+            inFlight = null;
+            scheduler.cancel(op.watchdog);
+        }
+        op.onComplete(status);
+        pump();
+        return true;
+    }
+
+    // Fail every queued and in-flight operation, used when the link drops.
+    public void clear() {
+        Operation dropped;
+        synchronized (this) {
+            if (inFlight != null) {
+                scheduler.cancel(inFlight.watchdog);
+                inFlight.next = null;
+            }
+            dropped = inFlight;
+            inFlight = null;
+            for (int c = 0; c < CLASS_COUNT; c++) {
+                Operation op = heads[c];
+                while (op != null) {
+                    Operation next = op.next;
+                    op.next = dropped;
+                    dropped = op;
+                    op = next;
+                }
+                heads[c] = null;
+                tails[c] = null;
+            }
+            queued = 0;
+        }
+        while (dropped != null) {
+            Operation next = dropped.next;
+            dropped.next = null;
+            dropped.onComplete(STATUS_DISCONNECTED);
+            dropped = next;
+        }
+    }
+
+    // Return the number of operations waiting, not counting the one in flight.
+    public synchronized int size() {
+        return queued;
+    }
+
+    // Return true if an operation is in flight.
+    public synchronized boolean isBusy() {
+        return inFlight != null;
+    }
+
+    /**
+     * Return how long operations of a class waited before they were first issued.
+     * @param opClass one of the CLASS_* constants
+     * @return the histogram of nanoseconds
+     */
+    public Histogram getWaitTime(int opClass) {
+        return waitTime[opClass];
+    }
+
+    // Return the number of operations which never got their callback, retried or not.
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    // Return the number of times a timed out operation was issued again.
+    public synchronized long getRetries() {
+        return retried;
+    }
+
+    // Return the number of times the stack refused to start an operation.
+    public synchronized long getRefusals() {
+        return refusals;
+    }
+
+    // Return the queue wait of every class with samples, for logs and debug overlays.
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (int c = 0; c < CLASS_COUNT; c++) {
+            Histogram wait = waitTime[c];
+            if (wait.getCount() == 0)
+                continue;
+            summary.append(String.format(Locale.US, "gatt %-5s p50 %6.2f  p99 %6.2f  max %6.2f ms\n",
+                    CLASS_NAMES[c], wait.getValueAtPercentile(50) / 1e6,
+                    wait.getValueAtPercentile(99) / 1e6, wait.getMax() / 1e6));
+        }
+        synchronized (this) {
+            summary.append(String.format(Locale.US, "gatt timeouts %d  retries %d  refused %d",
+                    timeouts, retried, refusals));
+        }
+        return summary.toString();
+    }
+
+    // Issue the next queued operation if the connection is idle.
+    private void pump() {
+        while (true) {
+            Operation op;
+            synchronized (this) {
+                if (inFlight != null || queued == 0) {
+                    return;
+                }
+                op = pollLocked();
+                inFlight = op;
+                op.attemptNanos = System.nanoTime();
+                waitTime[op.opClass].record(op.attemptNanos - op.enqueuedNanos);
+                if (!issueLocked(op)) {
+                    return;
+                }
+            }
+            op.onComplete(STATUS_SUCCESS);
+        }
+    }
+
+    // Offer the operation in flight to the stack and arm its watchdog, must hold this. Return
+    // true if it has no callback and the stack accepted it, it is then no longer in flight.
+    private boolean issueLocked(Operation op) {
+        op.issued = op.issue();
+        if (op.issued && op.callback == CALLBACK_NONE) {
+            inFlight = null;
+            return true;
+        }
+        if (op.issued) {
+            scheduler.schedule(op.watchdog, timeoutMillis[op.opClass]);
+        } else {
+            refusals++;
+            scheduler.schedule(op.watchdog, REFUSED_RETRY_MILLIS);
+        }
+        return false;
+    }
+
+    // The operation's callback never came, or the stack refused it and it is time to retry.
+    private void onWatchdog(Operation op) {
+        int status;
+        synchronized (this) {
+            if (op != inFlight) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (op.issued) {
+                timeouts++;
+                if (++op.timedOut <= retries[op.opClass]) {
+                    retried++;
+                    op.attemptNanos = now;
+                    issueLocked(op);
+                    return;
+                }
+                status = STATUS_TIMEOUT;
+            } else if (now - op.attemptNanos < timeoutMillis[op.opClass] * 1000000L) {
+                if (!issueLocked(op)) {
+                    return;
+                }
+                status = STATUS_SUCCESS;
+            } else {
+                status = STATUS_REFUSED;
+            }
+            inFlight = null;
+        }
+        op.onComplete(status);
+        pump();
+    }
+
+    // Take the oldest operation of the highest priority class, must hold this.
+    private Operation pollLocked() {
+        for (int c = 0; c < CLASS_COUNT; c++) {
+            Operation op = heads[c];
+            if (op != null) {
+                heads[c] = op.next;
+                if (heads[c] == null) {
+                    tails[c] = null;
+                }
+                op.next = null;
+                queued--;
+                return op;
+            }
+        }
+        return null;
+    }
+}
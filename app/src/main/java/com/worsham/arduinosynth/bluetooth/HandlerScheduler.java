@@ -0,0 +1,27 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Scheduler running tasks on a looper's thread.
+ */
+public class HandlerScheduler implements Scheduler
+{
+    private final Handler handler;
+
+    public HandlerScheduler(Looper looper) {
+        this.handler = new Handler(looper);
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        handler.removeCallbacks(task);
+        handler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+}
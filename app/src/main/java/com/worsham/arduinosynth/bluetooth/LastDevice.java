@@ -0,0 +1,113 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Arrays;
+
+/**
+ * The last board a connection was made to, persisted so the next launch can connect to it
+ * straight away instead of waiting for a scan and a choice from the list. The GATT handles
+ * service discovery found are kept with it, so a later connection can tell whether the board's
+ * layout is unchanged.
+ */
+public class LastDevice
+{
+    private static final String PREFERENCES = "last_device";
+    private static final String KEY_ADDRESS = "address";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_HANDLES = "handles";
+
+    private final String address;
+    private final String name;
+    private final int[] handles;
+
+    public LastDevice(String address, String name, int[] handles) {
+        this.address = address;
+        this.name = name;
+        this.handles = handles;
+    }
+
+    /**
+     * Load the last board connected to.
+     * @param context the context owning the preferences
+     * @return the board, or null if there has not been a connection yet
+     */
+    public static LastDevice load(Context context) {
+        SharedPreferences preferences = preferences(context);
+        String address = preferences.getString(KEY_ADDRESS, null);
+        if (address == null) {
+            return null;
+        }
+        return new LastDevice(address, preferences.getString(KEY_NAME, null),
+                parseHandles(preferences.getString(KEY_HANDLES, null)));
+    }
+
+    // Persist this board as the last one connected to, without blocking the calling thread.
+    public void save(Context context) {
+        preferences(context).edit()
+                .putString(KEY_ADDRESS, address)
+                .putString(KEY_NAME, name)
+                .putString(KEY_HANDLES, formatHandles(handles))
+                .apply();
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    // Return the name of the board, null if it was not known.
+    public String getName() {
+        return name;
+    }
+
+    // Return the GATT handles found by the last service discovery, null if there were none.
+    public int[] getHandles() {
+        return handles;
+    }
+
+    /**
+     * Check a service discovery against the one persisted for this board.
+     * @param handles the handles just discovered
+     * @return true if the board's GATT layout is unchanged
+     */
+    public boolean hasHandles(int[] handles) {
+        return this.handles != null && Arrays.equals(this.handles, handles);
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    // Handles are stored as a comma separated list.
+    static String formatHandles(int[] handles) {
+        if (handles == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < handles.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(handles[i]);
+        }
+        return sb.toString();
+    }
+
+    static int[] parseHandles(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        int[] handles = new int[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                handles[i] = Integer.parseInt(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            // Written by another version of the app, treat the layout as unknown.
+            return null;
+        }
+        return handles;
+    }
+}
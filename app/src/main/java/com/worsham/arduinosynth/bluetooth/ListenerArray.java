@@ -0,0 +1,60 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import java.util.Arrays;
+
+/**
+ * Copy-on-write array of listeners. Registering and unregistering copy the array under a lock,
+ * while event delivery iterates a snapshot from {@link #get()} without locking or allocating,
+ * so listeners may come and go from any thread while events are being delivered.
+ */
+final class ListenerArray<T>
+{
+    private final Object lock = new Object();
+    private volatile T[] items;
+
+    // Create an empty array, the empty typed array is used as the first snapshot.
+    ListenerArray(T[] empty) {
+        this.items = empty;
+    }
+
+    // Add the listener if it is not already registered, return true if it was added.
+    boolean add(T listener) {
+        synchronized (lock) {
+            T[] current = items;
+            for (T item : current) {
+                if (item == listener) {
+                    return false;
+                }
+            }
+            T[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = listener;
+            items = next;
+            return true;
+        }
+    }
+
+    // Remove the listener, return true if it was registered.
+    boolean remove(T listener) {
+        synchronized (lock) {
+            T[] current = items;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == listener) {
+                    T[] next = Arrays.copyOf(current, current.length - 1);
+                    System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                    items = next;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Return the current listeners, the array must not be modified.
+    T[] get() {
+        return items;
+    }
+
+    boolean isEmpty() {
+        return items.length == 0;
+    }
+}
@@ -0,0 +1,326 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import com.worsham.arduinosynth.metrics.LatencyMonitor;
+import com.worsham.arduinosynth.protocol.PacketDecoder;
+import com.worsham.arduinosynth.protocol.SynthMessage;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory UART transport simulating a BLE link with configurable latency, jitter, MTU and
+ * loss. Writes go through the same {@link UartWriteQueue} as the GATT transport; each frame is
+ * delivered to a {@link Board} and acknowledged after the simulated link delay, and anything
+ * the board sends back is received by the transport's listeners. Runs on a plain JVM.
+ */
+public class LoopbackTransport implements UartTransport, UartWriteQueue.Sink
+{
+    // Interface for the simulated far end of the link.
+    public interface Board {
+        // Called on the link thread for every frame which survives the link, in order.
+        public void onFrame(LoopbackTransport transport, byte[] frame);
+    }
+
+    // Board which echoes every frame straight back to the phone.
+    public static final Board ECHO = new Board() {
+        @Override
+        public void onFrame(LoopbackTransport transport, byte[] frame) {
+            transport.receive(frame, 0, frame.length);
+        }
+    };
+
+    private final UartWriteQueue writeQueue;
+    private final PacketDecoder decoder;
+    private long receivedNanos; // Arrival time of the data being decoded
+    private final ScheduledExecutorService link;
+    private final ListenerArray<UartTransport.Listener> listeners;
+    private final Random random;
+
+    // Link model, guarded by this.
+    private long latencyMicros;
+    private long jitterMicros;
+    private double lossRate;
+    private long lastDeliveryNanos;
+    private Board board;
+
+    private volatile int mtu;
+    private volatile boolean connected;
+    private volatile boolean closed; // Set by disconnect, the link cannot be reconnected
+
+    // Statistics, guarded by this.
+    private long framesDelivered;
+    private long framesLost;
+    private long bytesDelivered;
+
+    /**
+     * Create a loopback transport with an ideal link, acknowledged writes and a board which
+     * discards everything it is sent.
+     */
+    public LoopbackTransport() {
+        this(1);
+    }
+
+    /**
+     * Create a loopback transport.
+     * @param creditWindow how many frames may be in flight, 1 for acknowledged writes
+     */
+    public LoopbackTransport(int creditWindow) {
+        this(creditWindow, UartWriteQueue.DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Create a loopback transport.
+     * @param creditWindow how many frames may be in flight, 1 for acknowledged writes
+     * @param timeoutMillis how long a lost frame is waited for before its writes time out
+     */
+    public LoopbackTransport(int creditWindow, long timeoutMillis) {
+        this.writeQueue = new UartWriteQueue(this, UartWriteQueue.DEFAULT_CAPACITY, timeoutMillis);
+        this.writeQueue.setCreditWindow(creditWindow);
+        this.link = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "loopback-link");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.listeners = new ListenerArray<>(new UartTransport.Listener[0]);
+        this.decoder = new PacketDecoder(new PacketDecoder.Listener() {
+            @Override
+            public void onMessage(SynthMessage message) {
+                writeQueue.getLatencyMonitor().onEcho(receivedNanos);
+                for (UartTransport.Listener l : listeners.get()) {
+                    l.onMessage(LoopbackTransport.this, message);
+                }
+            }
+        });
+        this.random = new Random(0);
+        this.mtu = BluetoothLeUart.DEFAULT_MTU;
+        this.connected = false;
+    }
+
+    /**
+     * Set the one way delay of the link, each frame is delayed by the latency plus a uniformly
+     * random jitter. Frames are never reordered.
+     * @param latencyMicros the fixed delay in microseconds
+     * @param jitterMicros the maximum extra random delay in microseconds
+     */
+    public synchronized void setLatency(long latencyMicros, long jitterMicros) {
+        this.latencyMicros = latencyMicros;
+        this.jitterMicros = jitterMicros;
+    }
+
+    // Set the probability that a frame is lost on the link, it is then never acknowledged and
+    // times out once a later frame is acknowledged or its deadline passes.
+    public synchronized void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    // Seed the random source behind jitter and loss so runs are repeatable.
+    public synchronized void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    // Set the simulated far end of the link, null discards every frame.
+    public synchronized void setBoard(Board board) {
+        this.board = board;
+    }
+
+    // Return the outbound write queue, for throughput statistics.
+    public UartWriteQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    /**
+     * Bring the link up after one link delay, negotiating the given MTU.
+     * @param mtu the ATT MTU of the simulated link
+     */
+    public void connect(final int mtu) {
+        link.schedule(new Runnable() {
+            @Override
+            public void run() {
+                LoopbackTransport.this.mtu = mtu;
+                writeQueue.setMaxFrameSize(getMaxPayloadSize());
+                connected = true;
+                // Same order as the GATT transport, the MTU is settled before the link is ready.
+                for (UartTransport.Listener l : listeners.get()) {
+                    l.onMtuChanged(LoopbackTransport.this, mtu);
+                    l.onConnected(LoopbackTransport.this);
+                }
+            }
+        }, nextDelayNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Deliver data from the board to the transport's listeners, as a notification would. Like
+     * notifications, data must be received from one thread at a time, normally the link thread.
+     * @param data the data received
+     * @param offset the offset of the data
+     * @param length the length of the data
+     */
+    public void receive(byte[] data, int offset, int length) {
+        receivedNanos = System.nanoTime();
+        for (UartTransport.Listener l : listeners.get()) {
+            l.onReceive(this, data, offset, length);
+        }
+        decoder.decode(data, offset, length);
+    }
+
+    // Return the number of frames which made it across the link.
+    public synchronized long getFramesDelivered() {
+        return framesDelivered;
+    }
+
+    // Return the number of bytes which made it across the link.
+    public synchronized long getBytesDelivered() {
+        return bytesDelivered;
+    }
+
+    // Return the decoder of data received from the board, for its statistics.
+    public PacketDecoder getDecoder() {
+        return decoder;
+    }
+
+    // Return the number of frames the link dropped.
+    public synchronized long getFramesLost() {
+        return framesLost;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public int getMtu() {
+        return mtu;
+    }
+
+    @Override
+    public int getMaxPayloadSize() {
+        return mtu - 3;
+    }
+
+    @Override
+    public int getPendingWrites() {
+        return writeQueue.size();
+    }
+
+    @Override
+    public UartWrite send(byte[] data, UartWrite.Callback callback) {
+        if (!connected || data == null || data.length == 0) {
+            return UartWrite.failed(data, UartWrite.STATUS_DISCONNECTED, callback);
+        }
+        return writeQueue.enqueue(data, callback);
+    }
+
+    @Override
+    public boolean send(byte[] data, int offset, int length, UartWrite.Callback callback) {
+        return send(data, offset, length, 0, callback);
+    }
+
+    @Override
+    public boolean send(byte[] data, int offset, int length, long inputNanos, UartWrite.Callback callback) {
+        return connected && length > 0
+                && writeQueue.enqueue(data, offset, length, inputNanos, callback);
+    }
+
+    @Override
+    public LatencyMonitor getLatencyMonitor() {
+        return writeQueue.getLatencyMonitor();
+    }
+
+    @Override
+    public void registerListener(UartTransport.Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void unregisterListener(UartTransport.Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Drop the link as a board going out of range would, failing any queued writes. The link
+     * can be brought back up with reconnect.
+     */
+    public void drop() {
+        connected = false;
+        writeQueue.clear(UartWrite.STATUS_DISCONNECTED);
+        for (UartTransport.Listener l : listeners.get()) {
+            l.onDisconnected(this);
+        }
+    }
+
+    @Override
+    public boolean reconnect() {
+        if (closed) {
+            return false;
+        }
+        connect(mtu);
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        closed = true;
+        connected = false;
+        writeQueue.shutdown();
+        link.shutdownNow();
+        for (UartTransport.Listener l : listeners.get()) {
+            l.onDisconnected(this);
+        }
+    }
+
+    // Carry a frame across the simulated link, called from the writer thread.
+    @Override
+    public boolean write(byte[] data, final long sequence) {
+        if (!connected) {
+            return false;
+        }
+        final byte[] frame = data.clone();
+        final boolean lost;
+        long delay;
+        synchronized (this) {
+            lost = random.nextDouble() < lossRate;
+            delay = nextDelayNanos();
+        }
+        link.schedule(new Runnable() {
+            @Override
+            public void run() {
+                deliver(frame, sequence, lost);
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    // Hand a frame to the board and acknowledge it, unless the link lost it.
+    private void deliver(byte[] frame, long sequence, boolean lost) {
+        Board board;
+        synchronized (this) {
+            if (lost) {
+                framesLost++;
+                return;
+            }
+            framesDelivered++;
+            bytesDelivered += frame.length;
+            board = this.board;
+        }
+        if (board != null) {
+            board.onFrame(this, frame);
+        }
+        writeQueue.onWriteComplete(sequence, UartWrite.STATUS_SUCCESS);
+    }
+
+    // Return the delay until the next frame arrives, keeping frames in order.
+    private synchronized long nextDelayNanos() {
+        long jitter = jitterMicros > 0 ? (long) (random.nextDouble() * jitterMicros) : 0;
+        long now = System.nanoTime();
+        long arrival = Math.max(now + (latencyMicros + jitter) * 1000L, lastDeliveryNanos);
+        lastDeliveryNanos = arrival;
+        return arrival - now;
+    }
+}
@@ -0,0 +1,147 @@
+package com.worsham.arduinosynth.bluetooth;
+
+/**
+ * Packs queued UART writes back to back into a single characteristic write of up to the
+ * maximum frame size, so several synth packets share one connection event.
+ */
+public class PacketBatcher
+{
+    // Usable payload of a characteristic write with the default 23 byte ATT MTU.
+    public static final int DEFAULT_FRAME_SIZE = 20;
+
+    private int maxFrameSize;
+
+    // Writes packed into the current frame.
+    private final UartWrite[] writes;
+    private int writeCount;
+    private int length;
+
+    // Set when the frame carries one slice of a write larger than a frame.
+    private boolean slice;
+    private int sliceOffset;
+
+    // Reusable frame buffers indexed by frame length. The transport copies the value before
+    // writeCharacteristic returns, so one buffer per length is enough for each in-flight frame.
+    private byte[][] frames;
+
+    /**
+     * Create a batcher holding at most the given number of writes per frame.
+     * @param maxWrites the maximum number of writes packed into one frame
+     * @param maxFrameSize the maximum size of a frame in bytes
+     */
+    public PacketBatcher(int maxWrites, int maxFrameSize) {
+        this.writes = new UartWrite[maxWrites];
+        setMaxFrameSize(maxFrameSize);
+    }
+
+    // Change the maximum frame size, takes effect from the next frame.
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+        this.frames = new byte[maxFrameSize + 1][];
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    // Return true if no writes are packed into the current frame.
+    public boolean isEmpty() {
+        return writeCount == 0;
+    }
+
+    /**
+     * Add a write to the current frame. The first write is always accepted, even if it is
+     * larger than a frame, later writes only if they fit in the remaining space.
+     * @param write the write to pack
+     * @return true if the write was added, false if the frame is full
+     */
+    public boolean add(UartWrite write) {
+        if (writeCount > 0 && (writeCount == writes.length || length + write.length > maxFrameSize))
+            return false;
+        writes[writeCount++] = write;
+        length += write.length;
+        return true;
+    }
+
+    /**
+     * Start a frame carrying one slice of a write which is too large for a single frame.
+     * The frame must be empty.
+     * @param write the bulk write
+     * @param offset the offset of the slice in the write's data
+     * @param length the length of the slice
+     */
+    public void addSlice(UartWrite write, int offset, int length) {
+        writes[0] = write;
+        writeCount = 1;
+        this.length = length;
+        slice = true;
+        sliceOffset = offset;
+    }
+
+    // Return true if the current frame carries a slice of a bulk write.
+    public boolean isSlice() {
+        return slice;
+    }
+
+    // Return true if the current frame carries the last slice of a bulk write.
+    public boolean isFinalSlice() {
+        return slice && sliceOffset + length == writes[0].length;
+    }
+
+    // Return the number of writes which complete when this frame is acknowledged.
+    public int getCompletingWriteCount() {
+        return slice && !isFinalSlice() ? 0 : writeCount;
+    }
+
+    // Return the offset just past the slice in the current frame.
+    public int getSliceEnd() {
+        return sliceOffset + length;
+    }
+
+    // Return true if a write of the given size would fit in the current frame.
+    public boolean fits(int size) {
+        return writeCount == 0 || (writeCount < writes.length && length + size <= maxFrameSize);
+    }
+
+    // Return the number of writes in the current frame.
+    public int getWriteCount() {
+        return writeCount;
+    }
+
+    // Return the write at the given position in the current frame.
+    public UartWrite getWrite(int i) {
+        return writes[i];
+    }
+
+    // Return the bytes of the current frame, valid until the next call.
+    public byte[] frame() {
+        if (writeCount == 1 && !slice && writes[0].data.length == length)
+            return writes[0].data;
+        byte[] frame = frames[length];
+        if (frame == null) {
+            frame = new byte[length];
+            frames[length] = frame;
+        }
+        if (slice) {
+            System.arraycopy(writes[0].data, sliceOffset, frame, 0, length);
+            return frame;
+        }
+        int offset = 0;
+        for (int i = 0; i < writeCount; i++) {
+            UartWrite write = writes[i];
+            System.arraycopy(write.data, 0, frame, offset, write.length);
+            offset += write.length;
+        }
+        return frame;
+    }
+
+    // Start a new, empty frame.
+    public void reset() {
+        for (int i = 0; i < writeCount; i++)
+            writes[i] = null;
+        writeCount = 0;
+        length = 0;
+        slice = false;
+        sliceOffset = 0;
+    }
+}
@@ -0,0 +1,93 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import com.worsham.arduinosynth.protocol.PacketEncoder;
+import com.worsham.arduinosynth.protocol.SynthMessage;
+
+/**
+ * Negotiates the synth protocol version when a link comes up. A version packet carrying the
+ * newest version the phone speaks is sent on connect; boards with extended protocol support
+ * answer with the version both sides will use. Boards which predate the handshake ignore the
+ * unknown packet and never answer, so the link stays on the legacy protocol, which every
+ * board understands, until an answer arrives.
+ */
+public class ProtocolNegotiator implements UartTransport.Listener
+{
+    // Interface for a client to be told the negotiated version.
+    public interface Callback {
+        // Called on the transport's delivery thread when the board answers.
+        public void onProtocolNegotiated(UartTransport transport, int version);
+    }
+
+    private final int maxVersion;
+    private final Callback callback;
+    private final byte[] packet = new byte[PacketEncoder.PACKET_SIZE];
+    private volatile int version = PacketEncoder.VERSION_LEGACY;
+
+    /**
+     * Create a negotiator offering the newest protocol version.
+     * @param callback notified when the board answers, may be null
+     */
+    public ProtocolNegotiator(Callback callback) {
+        this(PacketEncoder.VERSION_LATEST, callback);
+    }
+
+    /**
+     * Create a negotiator.
+     * @param maxVersion the newest protocol version to offer
+     * @param callback notified when the board answers, may be null
+     */
+    public ProtocolNegotiator(int maxVersion, Callback callback) {
+        this.maxVersion = maxVersion;
+        this.callback = callback;
+    }
+
+    // Return the version agreed with the board, legacy until it answers.
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Offer the board our newest version, done automatically on connect for a registered
+     * negotiator.
+     * @param transport the link to the board
+     * @return true if the version packet was queued
+     */
+    public boolean negotiate(UartTransport transport) {
+        version = PacketEncoder.VERSION_LEGACY;
+        synchronized (packet) {
+            int length = PacketEncoder.encodeVersion(packet, 0, maxVersion);
+            return transport.send(packet, 0, length, null);
+        }
+    }
+
+    @Override
+    public void onConnected(UartTransport transport) {
+        negotiate(transport);
+    }
+
+    @Override
+    public void onDisconnected(UartTransport transport) {
+        version = PacketEncoder.VERSION_LEGACY;
+    }
+
+    @Override
+    public void onReceive(UartTransport transport, byte[] data, int offset, int length) {
+    }
+
+    @Override
+    public void onMessage(UartTransport transport, SynthMessage message) {
+        if (message.getType() != SynthMessage.Type.VERSION) {
+            return;
+        }
+        // Never go beyond what we offered, nor below what every board speaks.
+        int agreed = Math.max(PacketEncoder.VERSION_LEGACY, Math.min(maxVersion, message.getValue()));
+        version = agreed;
+        if (callback != null) {
+            callback.onProtocolNegotiated(transport, agreed);
+        }
+    }
+
+    @Override
+    public void onMtuChanged(UartTransport transport, int mtu) {
+    }
+}
@@ -0,0 +1,14 @@
+package com.worsham.arduinosynth.bluetooth;
+
+/**
+ * Runs delayed tasks for the connection classes, a {@link HandlerScheduler} on the phone and a
+ * manually stepped scheduler in tests. Tasks may be scheduled and cancelled from any thread.
+ */
+public interface Scheduler
+{
+    // Run the task once after the delay, replacing any pending run of the same task.
+    public void schedule(Runnable task, long delayMillis);
+
+    // Drop any pending run of the task.
+    public void cancel(Runnable task);
+}
@@ -0,0 +1,305 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import com.worsham.arduinosynth.metrics.Histogram;
+import com.worsham.arduinosynth.protocol.SynthMessage;
+
+import java.util.Locale;
+
+/**
+ * A link to a synth board shared by the screens which play it, so leaving and returning to a
+ * screen does not pay for a new connection, service discovery and device information reads.
+ * Holders acquire the link and release it when they go away; once the last holder releases it
+ * the link is kept for a grace period, and is only closed if nobody acquires it again before
+ * the period ends. A link which drops while it is held is reconnected with exponential backoff
+ * and jitter, keeping the same transport so holders need not acquire it again. How long each
+ * acquire waited for a ready link is recorded, zero when it reattached to a live one.
+ */
+public class SharedTransport<T extends UartTransport>
+{
+    // Opens a new link to a board.
+    public interface Factory<T> {
+        public T open(String address);
+    }
+
+    // Interface for the owner to be told the link was closed and nobody holds it.
+    public interface ClosedListener {
+        public void onClosed();
+    }
+
+    private final Factory<T> factory;
+    private final Scheduler scheduler;
+    private final long graceMillis;
+    private final Backoff backoff; // Guarded by this
+    private volatile ClosedListener closedListener;
+
+    // The shared link, guarded by this.
+    private T transport;
+    private String address;
+    private int holders;
+    private boolean linkDown; // Set while the link is down and no reconnect is under way
+
+    // Acquire time of a holder waiting for the link to come up, 0 if none is waiting.
+    private long waitingSinceNanos;
+
+    // Nanoseconds from acquire to a ready link.
+    private final Histogram readyTime = new Histogram();
+    private long warmAcquires;
+    private long coldAcquires;
+    private long reconnects;
+
+    // Closes the link once the grace period passes without a holder.
+    private final Runnable closer = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SharedTransport.this) {
+                if (holders > 0) {
+                    return;
+                }
+                closeLocked();
+            }
+            notifyClosed();
+        }
+    };
+
+    // Tries to bring a dropped link back up while it is held.
+    private final Runnable reconnector = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SharedTransport.this) {
+                if (transport != null && holders > 0 && linkDown) {
+                    reconnectLocked();
+                }
+            }
+        }
+    };
+
+    // Watches the shared link for it coming up or dropping.
+    private final UartTransport.Listener linkWatcher = new UartTransport.Listener() {
+        @Override
+        public void onConnected(UartTransport transport) {
+            onLinkUp(transport, System.nanoTime());
+        }
+
+        @Override
+        public void onDisconnected(UartTransport transport) {
+            onLinkDown(transport);
+        }
+
+        @Override
+        public void onReceive(UartTransport transport, byte[] data, int offset, int length) {
+        }
+
+        @Override
+        public void onMessage(UartTransport transport, SynthMessage message) {
+        }
+
+        @Override
+        public void onMtuChanged(UartTransport transport, int mtu) {
+        }
+    };
+
+    /**
+     * Create a shared link.
+     * @param factory opens the link when there is none to reattach to
+     * @param scheduler runs the close once the grace period has passed, and reconnects, on the
+     *                  thread acquire and release are called from
+     * @param graceMillis how long the link is kept after the last holder releases it
+     */
+    public SharedTransport(Factory<T> factory, Scheduler scheduler, long graceMillis) {
+        this(factory, scheduler, graceMillis, new Backoff());
+    }
+
+    /**
+     * Create a shared link.
+     * @param factory opens the link when there is none to reattach to
+     * @param scheduler runs the close once the grace period has passed, and reconnects
+     * @param graceMillis how long the link is kept after the last holder releases it
+     * @param backoff the delays between attempts to reconnect a dropped link
+     */
+    public SharedTransport(Factory<T> factory, Scheduler scheduler, long graceMillis, Backoff backoff) {
+        this.factory = factory;
+        this.scheduler = scheduler;
+        this.graceMillis = graceMillis;
+        this.backoff = backoff;
+    }
+
+    // Set the listener told when the link was closed, null to remove it.
+    public void setClosedListener(ClosedListener listener) {
+        this.closedListener = listener;
+    }
+
+    /**
+     * Acquire the link to a board, reattaching to the live one if it is to the same board. A
+     * dropped link to the same board is reconnected straight away, a link to another board is
+     * closed for every holder.
+     * @param address the address of the board
+     * @param requestNanos the System.nanoTime() the caller started waiting for the link
+     * @return the link, which may still be connecting
+     */
+    public synchronized T acquire(String address, long requestNanos) {
+        scheduler.cancel(closer);
+        if (transport != null && !address.equals(this.address)) {
+            closeLocked();
+        }
+        if (transport != null && linkDown) {
+            scheduler.cancel(reconnector);
+            if (!reconnectLocked()) {
+                closeLocked();
+            }
+        }
+        holders++;
+        if (transport == null) {
+            this.address = address;
+            linkDown = false;
+            transport = factory.open(address);
+            transport.registerListener(linkWatcher);
+        }
+        if (transport.isConnected()) {
+            waitingSinceNanos = 0;
+            readyTime.record(System.nanoTime() - requestNanos);
+            warmAcquires++;
+        } else {
+            waitingSinceNanos = requestNanos;
+        }
+        return transport;
+    }
+
+    /**
+     * Release a link acquired earlier.
+     * @param transport the link returned by acquire
+     * @param immediately true to close the link now if this was its last holder, rather than
+     *                    after the grace period, e.g. when the user is done with the board
+     */
+    public void release(T transport, boolean immediately) {
+        synchronized (this) {
+            if (transport != this.transport || holders == 0) {
+                return;
+            }
+            if (--holders > 0) {
+                return;
+            }
+            waitingSinceNanos = 0;
+            scheduler.cancel(reconnector);
+            if (!immediately) {
+                scheduler.schedule(closer, graceMillis);
+                return;
+            }
+            closeLocked();
+        }
+        notifyClosed();
+    }
+
+    // Close the link now whoever holds it, e.g. when the owner is destroyed.
+    public void close() {
+        scheduler.cancel(closer);
+        scheduler.cancel(reconnector);
+        synchronized (this) {
+            holders = 0;
+            closeLocked();
+        }
+    }
+
+    // Return the number of holders of the link.
+    public synchronized int getHolders() {
+        return holders;
+    }
+
+    // Return the shared link, null if there is none.
+    public synchronized T getTransport() {
+        return transport;
+    }
+
+    // Return the histogram of nanoseconds from acquire to a ready link.
+    public Histogram getReadyTime() {
+        return readyTime;
+    }
+
+    // Return the number of acquires which reattached to a ready link.
+    public synchronized long getWarmAcquires() {
+        return warmAcquires;
+    }
+
+    // Return the number of acquires which had to wait for the link to come up.
+    public synchronized long getColdAcquires() {
+        return coldAcquires;
+    }
+
+    // Return the number of attempts made to reconnect a dropped link.
+    public synchronized long getReconnects() {
+        return reconnects;
+    }
+
+    // Return a one line summary of the time to a ready link, for logs and debug overlays.
+    public String getSummary() {
+        long warm;
+        long cold;
+        long reconnects;
+        synchronized (this) {
+            warm = warmAcquires;
+            cold = coldAcquires;
+            reconnects = this.reconnects;
+        }
+        return String.format(Locale.US,
+                "ready    p50 %6.2f  p99 %6.2f  max %6.2f ms  warm %d/%d  reconnects %d",
+                readyTime.getValueAtPercentile(50) / 1e6, readyTime.getValueAtPercentile(99) / 1e6,
+                readyTime.getMax() / 1e6, warm, warm + cold, reconnects);
+    }
+
+    // Record the wait of a holder acquiring the link before it came up.
+    private synchronized void onLinkUp(UartTransport transport, long nowNanos) {
+        if (transport != this.transport) {
+            return;
+        }
+        linkDown = false;
+        backoff.reset();
+        if (waitingSinceNanos == 0) {
+            return;
+        }
+        readyTime.record(nowNanos - waitingSinceNanos);
+        waitingSinceNanos = 0;
+        coldAcquires++;
+    }
+
+    // Schedule the next reconnect of a held link which dropped or failed to come back.
+    private synchronized void onLinkDown(UartTransport transport) {
+        if (transport != this.transport) {
+            return;
+        }
+        linkDown = true;
+        if (holders > 0) {
+            scheduler.schedule(reconnector, backoff.nextDelayMillis());
+        }
+    }
+
+    // Start bringing the dropped link back up, return false if it cannot be reused.
+    private boolean reconnectLocked() {
+        linkDown = false;
+        reconnects++;
+        if (!transport.reconnect()) {
+            linkDown = true;
+            return false;
+        }
+        return true;
+    }
+
+    private void closeLocked() {
+        if (transport == null) {
+            return;
+        }
+        scheduler.cancel(reconnector);
+        transport.unregisterListener(linkWatcher);
+        transport.disconnect();
+        transport = null;
+        address = null;
+        linkDown = false;
+        backoff.reset();
+        waitingSinceNanos = 0;
+    }
+
+    private void notifyClosed() {
+        ClosedListener listener = closedListener;
+        if (listener != null) {
+            listener.onClosed();
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import com.worsham.arduinosynth.metrics.Histogram;
+import com.worsham.arduinosynth.metrics.LatencyMonitor;
+import com.worsham.arduinosynth.protocol.NoteEncoder;
+import com.worsham.arduinosynth.protocol.PacketEncoder;
+
+import java.util.Locale;
+
+/**
+ * Plays notes on several synth boards at once. Each board keeps its own link, write queue and
+ * writer thread, so a slow or stalled board never holds up the others; a note is encoded once
+ * per board, for the protocol version that board negotiated, and queued on every board whose
+ * note range holds it. Overlapping ranges layer the boards, disjoint ones split the keyboard
+ * between them. A note off goes to the boards which were sent its note on, whatever the
+ * ranges are by then. Never allocates while playing. Not thread safe, call it from one thread,
+ * e.g. the UI thread.
+ *
+ * The group mirrors each board's state, its octave and the notes it holds, so a command which
+ * would not change the board is never sent: an octave the board is already in, or a note off
+ * for a note it does not hold. When a link comes back the whole state is replayed to the board
+ * in as few writes as the link's payload allows.
+ */
+public class TransportGroup
+{
+    // The whole MIDI note range, every board plays every note.
+    public static final int LOWEST_NOTE = 0;
+    public static final int HIGHEST_NOTE = 127;
+
+    // A board in the group.
+    private static class Link {
+        final UartTransport transport;
+        final ProtocolNegotiator negotiator;
+        final NoteEncoder encoder = new NoteEncoder();
+        int lowNote = LOWEST_NOTE;
+        int highNote = HIGHEST_NOTE;
+        final long[] held = new long[2]; // Notes sent a note on and not yet a note off, as bits
+        long sent;
+        long dropped;
+
+        Link(UartTransport transport, ProtocolNegotiator negotiator) {
+            this.transport = transport;
+            this.negotiator = negotiator;
+        }
+
+        boolean isHeld(int note) {
+            return (held[note >> 6] & (1L << note)) != 0;
+        }
+
+        void setHeld(int note, boolean on) {
+            if (on) {
+                held[note >> 6] |= 1L << note;
+            } else {
+                held[note >> 6] &= ~(1L << note);
+            }
+        }
+    }
+
+    private final ProtocolNegotiator.Callback negotiated;
+    private Link[] links = new Link[0];
+    private final byte[] packet = new byte[NoteEncoder.MAX_NOTE_SIZE];
+    private UartWrite.Callback writeCallback;
+
+    // The octave the boards should be in, -1 until set.
+    private int octave = -1;
+
+    // A board's whole state, an octave packet then every note it holds, a batch of one each.
+    private final byte[] replay = new byte[PacketEncoder.PACKET_SIZE
+            + (HIGHEST_NOTE + 1) * NoteEncoder.MAX_NOTE_SIZE];
+
+    // Commands dropped because the board was already in that state, and state replays sent.
+    private long suppressed;
+    private long replays;
+
+    // Input event to the note queued on the last of its boards.
+    private final Histogram fanOutTime = new Histogram();
+
+    /**
+     * Create an empty group.
+     * @param negotiated told when each board answers the protocol negotiation, may be null
+     */
+    public TransportGroup(ProtocolNegotiator.Callback negotiated) {
+        this.negotiated = negotiated;
+    }
+
+    // Set the callback every note write is queued with, null for none.
+    public void setWriteCallback(UartWrite.Callback callback) {
+        this.writeCallback = callback;
+    }
+
+    /**
+     * Add a board, playing every note until routed otherwise. Its protocol version is negotiated
+     * each time its link comes up.
+     * @param transport the link to the board
+     * @return the board's index in the group
+     */
+    public int add(UartTransport transport) {
+        Link link = new Link(transport, new ProtocolNegotiator(negotiated));
+        Link[] grown = new Link[links.length + 1];
+        System.arraycopy(links, 0, grown, 0, links.length);
+        grown[links.length] = link;
+        links = grown;
+        transport.registerListener(link.negotiator);
+        // A live link came up before the negotiator was listening.
+        if (transport.isConnected()) {
+            link.negotiator.negotiate(transport);
+        }
+        return links.length - 1;
+    }
+
+    // Remove every board, the links themselves are left to their owner.
+    public void clear() {
+        for (Link link : links) {
+            link.transport.unregisterListener(link.negotiator);
+        }
+        links = new Link[0];
+    }
+
+    public int size() {
+        return links.length;
+    }
+
+    public UartTransport getTransport(int index) {
+        return links[index].transport;
+    }
+
+    // Return the protocol version a board agreed to, legacy until it answers.
+    public int getVersion(int index) {
+        return links[index].negotiator.getVersion();
+    }
+
+    /**
+     * Set the notes a board plays.
+     * @param index the board's index in the group
+     * @param lowNote the lowest MIDI note it plays
+     * @param highNote the highest MIDI note it plays, below lowNote for none
+     */
+    public void setRange(int index, int lowNote, int highNote) {
+        links[index].lowNote = lowNote;
+        links[index].highNote = highNote;
+    }
+
+    // Return the lowest MIDI note a board plays.
+    public int getLowNote(int index) {
+        return links[index].lowNote;
+    }
+
+    // Return the highest MIDI note a board plays.
+    public int getHighNote(int index) {
+        return links[index].highNote;
+    }
+
+    // Have every board play every note.
+    public void layer() {
+        for (Link link : links) {
+            link.lowNote = LOWEST_NOTE;
+            link.highNote = HIGHEST_NOTE;
+        }
+    }
+
+    /**
+     * Split a range of notes into one contiguous zone per board, lowest notes on the first
+     * board, as evenly as the range divides. Notes outside the range go to the nearest zone.
+     * @param lowNote the lowest note of the range
+     * @param highNote the highest note of the range
+     */
+    public void split(int lowNote, int highNote) {
+        int count = links.length;
+        int span = highNote - lowNote + 1;
+        for (int i = 0; i < count; i++) {
+            Link link = links[i];
+            link.lowNote = i == 0 ? LOWEST_NOTE : lowNote + span * i / count;
+            link.highNote = i == count - 1 ? HIGHEST_NOTE : lowNote + span * (i + 1) / count - 1;
+        }
+    }
+
+    /**
+     * Play a note on every board whose range holds it.
+     * @param note the MIDI note number
+     * @param velocity the velocity, 1 to 127
+     * @param inputNanos the System.nanoTime() of the input event which produced the note, 0 if
+     *                   untimed
+     * @return the number of boards the note was queued on
+     */
+    public int noteOn(int note, int velocity, long inputNanos) {
+        if (note < LOWEST_NOTE || note > HIGHEST_NOTE) {
+            return 0;
+        }
+        int queued = 0;
+        for (Link link : links) {
+            if (note < link.lowNote || note > link.highNote) {
+                continue;
+            }
+            link.encoder.setVersion(link.negotiator.getVersion());
+            if (send(link, link.encoder.encodeNoteOn(0, note, velocity, packet, 0), inputNanos)) {
+                link.setHeld(note, true);
+                queued++;
+            }
+        }
+        if (inputNanos != 0) {
+            fanOutTime.record(System.nanoTime() - inputNanos);
+        }
+        return queued;
+    }
+
+    /**
+     * Release a note on every board which was sent it.
+     * @param note the MIDI note number
+     * @param inputNanos the System.nanoTime() of the input event which released the note, 0 if
+     *                   untimed
+     * @return the number of boards the note off was queued on
+     */
+    public int noteOff(int note, long inputNanos) {
+        if (note < LOWEST_NOTE || note > HIGHEST_NOTE) {
+            return 0;
+        }
+        int queued = 0;
+        for (Link link : links) {
+            if (!link.isHeld(note)) {
+                continue;
+            }
+            link.setHeld(note, false);
+            link.encoder.setVersion(link.negotiator.getVersion());
+            // Legacy boards have no note off, the note plays until the next one.
+            if (send(link, link.encoder.encodeNoteOff(0, note, packet, 0), inputNanos)) {
+                queued++;
+            }
+        }
+        if (inputNanos != 0) {
+            fanOutTime.record(System.nanoTime() - inputNanos);
+        }
+        return queued;
+    }
+
+    /**
+     * Set the octave of every board, which legacy boards map their notes onto. Boards already
+     * in the octave are skipped, and boards whose link is down are sent it once it comes back.
+     * @param octave the octave
+     * @return the number of boards the octave was queued on
+     */
+    public int setOctave(int octave) {
+        this.octave = octave;
+        int queued = 0;
+        for (Link link : links) {
+            if (link.encoder.getOctave() == octave) {
+                suppressed++;
+                continue;
+            }
+            if (!link.transport.isConnected()) {
+                // Deferred, not a no-op, resync sends it once the link is back.
+                continue;
+            }
+            int length = PacketEncoder.encodeOctave(packet, 0, (byte) octave);
+            if (send(link, length, 0)) {
+                link.encoder.setOctave(octave);
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    // Return the octave the boards should be in, -1 until set.
+    public int getOctave() {
+        return octave;
+    }
+
+    /**
+     * Send a board its whole state, the octave and every note it holds, in a single write if
+     * it fits the link's payload, otherwise in one write per batch so no batch is split.
+     * Call it whenever the board's link comes up, since a board which lost its link may have
+     * reset, or when something outside the group has changed the board's state.
+     * @param transport the link to the board
+     * @return true if the state was queued, false if there was none or the link refused it
+     */
+    public boolean resync(UartTransport transport) {
+        Link link = find(transport);
+        if (link == null) {
+            return false;
+        }
+        // Nothing is known about the board until this arrives.
+        link.encoder.setOctave(-1);
+        int length = 0;
+        if (octave >= 0) {
+            length = PacketEncoder.encodeOctave(replay, 0, (byte) octave);
+            link.encoder.setOctave(octave);
+        }
+        link.encoder.setVersion(link.negotiator.getVersion());
+        // The octave packet shares the first write's payload with the first batch.
+        int capacity = Math.min(transport.getMaxPayloadSize(), replay.length);
+        int start = 0;
+        link.encoder.begin(replay, length, capacity - length);
+        for (int note = LOWEST_NOTE; note <= HIGHEST_NOTE; note++) {
+            if (!link.isHeld(note)) {
+                continue;
+            }
+            if (link.encoder.noteOn(0, note, NoteEncoder.DEFAULT_VELOCITY) < 0) {
+                // The write is full, send it and carry on in the next one.
+                length += link.encoder.finish();
+                if (!sendReplay(link, start, length - start)) {
+                    return false;
+                }
+                start = length;
+                link.encoder.begin(replay, length, Math.min(capacity, replay.length - length));
+                link.encoder.noteOn(0, note, NoteEncoder.DEFAULT_VELOCITY);
+            }
+        }
+        length += link.encoder.finish();
+        if (length == 0) {
+            return false;
+        }
+        if (length > start && !sendReplay(link, start, length - start)) {
+            return false;
+        }
+        replays++;
+        return true;
+    }
+
+    // Queue one write of a replay, forgetting the board's octave if the link refuses it.
+    private boolean sendReplay(Link link, int offset, int length) {
+        if (!link.transport.send(replay, offset, length, 0, writeCallback)) {
+            link.encoder.setOctave(-1);
+            link.dropped++;
+            return false;
+        }
+        link.sent++;
+        return true;
+    }
+
+    // Return the number of commands dropped because the board was already in that state.
+    public long getSuppressed() {
+        return suppressed;
+    }
+
+    // Return the number of state replays sent.
+    public long getReplays() {
+        return replays;
+    }
+
+    // Return the number of writes queued on a board.
+    public long getSent(int index) {
+        return links[index].sent;
+    }
+
+    // Return the number of writes a board refused, because its link was down or backed up.
+    public long getDropped(int index) {
+        return links[index].dropped;
+    }
+
+    // Return the histogram of nanoseconds from an input event to its note queued on every board.
+    public Histogram getFanOutTime() {
+        return fanOutTime;
+    }
+
+    /**
+     * Return the group's totals and each board's throughput and latency, for logs and debug
+     * overlays.
+     * @return one line for the group and one per board
+     */
+    public String getSummary() {
+        long sent = 0;
+        long dropped = 0;
+        StringBuilder boards = new StringBuilder();
+        for (int i = 0; i < links.length; i++) {
+            Link link = links[i];
+            sent += link.sent;
+            dropped += link.dropped;
+            Histogram total = link.transport.getLatencyMonitor().getHistogram(LatencyMonitor.STAGE_TOTAL);
+            boards.append(String.format(Locale.US,
+                    "\nboard %d  sent %d  dropped %d  queued %d  total p50 %6.2f  p99 %6.2f ms",
+                    i, link.sent, link.dropped, link.transport.getPendingWrites(),
+                    total.getValueAtPercentile(50) / 1e6, total.getValueAtPercentile(99) / 1e6));
+        }
+        return String.format(Locale.US,
+                "boards %d  sent %d  dropped %d  suppressed %d  replays %d  fan-out p50 %6.2f  p99 %6.2f ms",
+                links.length, sent, dropped, suppressed, replays, fanOutTime.getValueAtPercentile(50) / 1e6,
+                fanOutTime.getValueAtPercentile(99) / 1e6) + boards;
+    }
+
+    private Link find(UartTransport transport) {
+        for (Link link : links) {
+            if (link.transport == transport) {
+                return link;
+            }
+        }
+        return null;
+    }
+
+    // Queue the encoded packet on a board, counting it.
+    private boolean send(Link link, int length, long inputNanos) {
+        if (length == 0) {
+            return false;
+        }
+        if (inputNanos != 0) {
+            link.transport.getLatencyMonitor().record(LatencyMonitor.STAGE_ENCODE,
+                    System.nanoTime() - inputNanos);
+        }
+        if (!link.transport.send(packet, 0, length, inputNanos, writeCallback)) {
+            // A legacy note may have carried an octave change, the board's octave is unknown.
+            link.encoder.setOctave(-1);
+            link.dropped++;
+            return false;
+        }
+        link.sent++;
+        return true;
+    }
+}
@@ -0,0 +1,180 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import com.worsham.arduinosynth.protocol.SynthMessage;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bound service owning the UART connections to the synth boards, so they outlive the activities
+ * using them. Each board has a connection of its own, so several can be played at once. An
+ * activity acquires the connections when it resumes and releases them when it pauses;
+ * switching apps or rotating the screen then reattaches to the live, already discovered
+ * connections instead of connecting again. The service keeps itself started while it holds a
+ * connection, so it is not destroyed when the last activity unbinds during the grace period.
+ * A dropped connection is retried while it is held. Each board connected to is remembered as
+ * the last device, so the next launch can connect to it without a scan. Acquire and release
+ * must be called on the main thread.
+ */
+public class UartService extends Service
+{
+    private static final String TAG = UartService.class.getSimpleName();
+
+    // How long a connection is kept after the last activity releases it.
+    public static final long DISCONNECT_GRACE_MILLIS = 10000;
+
+    // Boards which may be connected at once, Android stacks commonly allow 7 GATT connections.
+    public static final int MAX_CONNECTIONS = 7;
+
+    // Binder handing bound activities the service itself, clients are always in this process.
+    public class LocalBinder extends Binder {
+        public UartService getService() {
+            return UartService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    // The shared connection to each board, by address, only used on the main thread.
+    private final Map<String, SharedTransport<BluetoothLeUart>> connections = new HashMap<>();
+    private HandlerScheduler scheduler;
+    private volatile LastDevice lastDevice;
+
+    // Remembers each board once its connection is ready.
+    private final UartTransport.Listener deviceRecorder = new UartTransport.Listener() {
+        @Override
+        public void onConnected(UartTransport transport) {
+            BluetoothLeUart uart = (BluetoothLeUart) transport;
+            int[] handles = uart.getGattHandles();
+            LastDevice last = lastDevice;
+            if (last != null && last.getAddress().equals(uart.getAddress())
+                    && !last.hasHandles(handles)) {
+                Log.i(TAG, "GATT layout of " + uart.getAddress() + " changed: "
+                        + Arrays.toString(last.getHandles()) + " -> " + Arrays.toString(handles));
+            }
+            last = new LastDevice(uart.getAddress(), uart.getName(), handles);
+            last.save(UartService.this);
+            lastDevice = last;
+        }
+
+        @Override
+        public void onDisconnected(UartTransport transport) {
+        }
+
+        @Override
+        public void onReceive(UartTransport transport, byte[] data, int offset, int length) {
+        }
+
+        @Override
+        public void onMessage(UartTransport transport, SynthMessage message) {
+        }
+
+        @Override
+        public void onMtuChanged(UartTransport transport, int mtu) {
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        lastDevice = LastDevice.load(this);
+        scheduler = new HandlerScheduler(Looper.getMainLooper());
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Nothing to resume after the process is killed, the next activity reconnects.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        for (SharedTransport<BluetoothLeUart> connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    /**
+     * Acquire the connection to a board, reattaching to the live one if there is one.
+     * @param address the address of the board
+     * @param requestNanos the System.nanoTime() the activity started waiting, e.g. in onResume
+     * @return the connection, which may still be connecting
+     */
+    public BluetoothLeUart acquire(String address, long requestNanos) {
+        // Stay alive on our own while the connection is held or in its grace period.
+        startService(new Intent(this, UartService.class));
+        SharedTransport<BluetoothLeUart> connection = connections.get(address);
+        if (connection == null) {
+            connection = open(address);
+            connections.put(address, connection);
+        }
+        return connection.acquire(address, requestNanos);
+    }
+
+    /**
+     * Release a connection acquired earlier.
+     * @param uart the connection returned by acquire
+     * @param immediately true to disconnect now if nobody else holds it, so the board
+     *                    advertises again, rather than after the grace period
+     */
+    public void release(BluetoothLeUart uart, boolean immediately) {
+        SharedTransport<BluetoothLeUart> connection = connections.get(uart.getAddress());
+        if (connection != null) {
+            connection.release(uart, immediately);
+        }
+    }
+
+    // Return the last board a connection was made to, null if there has been none.
+    public LastDevice getLastDevice() {
+        return lastDevice;
+    }
+
+    // Return the shared connection to a board, for its time to ready statistics, null if
+    // there is none.
+    public SharedTransport<BluetoothLeUart> getConnection(String address) {
+        return connections.get(address);
+    }
+
+    // Create the shared connection to a board, forgotten once it closes.
+    private SharedTransport<BluetoothLeUart> open(final String address) {
+        final SharedTransport<BluetoothLeUart> connection = new SharedTransport<>(
+                new SharedTransport.Factory<BluetoothLeUart>() {
+                    @Override
+                    public BluetoothLeUart open(String address) {
+                        Log.i(TAG, "Connecting to " + address);
+                        BluetoothLeUart uart = new BluetoothLeUart(getApplicationContext(), address);
+                        uart.registerListener(deviceRecorder);
+                        return uart;
+                    }
+                },
+                scheduler,
+                DISCONNECT_GRACE_MILLIS);
+        connection.setClosedListener(new SharedTransport.ClosedListener() {
+            @Override
+            public void onClosed() {
+                Log.i(TAG, "Connection to " + address + " closed, " + connection.getSummary());
+                if (connections.get(address) == connection) {
+                    connections.remove(address);
+                }
+                if (connections.isEmpty()) {
+                    stopSelf();
+                }
+            }
+        });
+        return connection;
+    }
+}
@@ -0,0 +1,80 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import com.worsham.arduinosynth.metrics.LatencyMonitor;
+import com.worsham.arduinosynth.protocol.SynthMessage;
+
+/**
+ * A byte stream link to a synth board. {@link BluetoothLeUart} carries it over the BLE UART
+ * service, {@link LoopbackTransport} simulates a link in memory so the layers above can be
+ * exercised without a phone or a board.
+ */
+public interface UartTransport
+{
+    // Interface for a transport client to be notified of link events.
+    public interface Listener {
+        public void onConnected(UartTransport transport);
+        public void onDisconnected(UartTransport transport);
+        // The data is only valid for the duration of the call.
+        public void onReceive(UartTransport transport, byte[] data, int offset, int length);
+        // A packet decoded from the received data, only valid for the duration of the call.
+        public void onMessage(UartTransport transport, SynthMessage message);
+        public void onMtuChanged(UartTransport transport, int mtu);
+    }
+
+    // Return true if the link is up and ready to send.
+    public boolean isConnected();
+
+    // Return the negotiated ATT MTU of the link.
+    public int getMtu();
+
+    // Return the largest number of bytes which fit in a single write.
+    public int getMaxPayloadSize();
+
+    // Return the number of writes waiting to be sent, including those in flight.
+    public int getPendingWrites();
+
+    /**
+     * Queue data to be sent. Never blocks the calling thread.
+     * @param data the data to send
+     * @param callback notified once the write completes, may be null
+     * @return the pending write
+     */
+    public UartWrite send(byte[] data, UartWrite.Callback callback);
+
+    /**
+     * Queue a copy of a packet to be sent without allocating.
+     * @param data the buffer holding the packet, free to reuse once this returns
+     * @param offset the offset of the packet in the buffer
+     * @param length the length of the packet
+     * @param callback notified once the write completes, the write must not be kept after it returns
+     * @return true if the packet was queued
+     */
+    public boolean send(byte[] data, int offset, int length, UartWrite.Callback callback);
+
+    /**
+     * Queue a copy of a packet to be sent without allocating, timing it from its input event.
+     * @param data the buffer holding the packet, free to reuse once this returns
+     * @param offset the offset of the packet in the buffer
+     * @param length the length of the packet
+     * @param inputNanos the System.nanoTime() of the input event which produced the packet
+     * @param callback notified once the write completes, the write must not be kept after it returns
+     * @return true if the packet was queued
+     */
+    public boolean send(byte[] data, int offset, int length, long inputNanos, UartWrite.Callback callback);
+
+    // Return the per stage latency of packets sent over the link.
+    public LatencyMonitor getLatencyMonitor();
+
+    // Register the specified listener to receive link events.
+    public void registerListener(Listener listener);
+
+    // Unregister the specified listener.
+    public void unregisterListener(Listener listener);
+
+    // Close the link, failing any writes still queued.
+    public void disconnect();
+
+    // Start bringing a dropped link back up, listeners are told once it is. Returns false if
+    // the link was closed by disconnect and cannot be reused.
+    public boolean reconnect();
+}
@@ -0,0 +1,154 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A single outbound UART write queued on a {@link UartWriteQueue}. The write completes with
+ * the GATT status of the characteristic write, or one of the local STATUS_* failure codes.
+ */
+public class UartWrite implements Future<Integer>
+{
+    // Completion status codes. Success matches BluetoothGatt.GATT_SUCCESS, local failures are negative
+    // so they can never collide with a status reported by the Bluetooth stack.
+    public static final int STATUS_SUCCESS = 0;
+    public static final int STATUS_QUEUE_FULL = -1;
+    public static final int STATUS_TIMEOUT = -2;
+    public static final int STATUS_WRITE_FAILED = -3;
+    public static final int STATUS_DISCONNECTED = -4;
+
+    private static final int STATUS_PENDING = Integer.MIN_VALUE;
+
+    // Interface for a client to be notified when a write has completed.
+    public interface Callback {
+        public void onWriteComplete(UartWrite write, int status);
+    }
+
+    byte[] data;
+    int length;
+    Callback callback;
+    final boolean pooled; // Pooled writes are recycled by their queue once complete
+    long inputNanos; // when the input event which produced the write happened, 0 if unknown
+    long enqueuedNanos;
+    long issuedNanos; // when the first frame carrying the write was accepted by the transport
+    int sent; // bytes of a bulk write already sent in earlier frames
+    private int status;
+
+    UartWrite(byte[] data, Callback callback) {
+        this.data = data;
+        this.length = data != null ? data.length : 0;
+        this.callback = callback;
+        this.pooled = false;
+        this.status = STATUS_PENDING;
+    }
+
+    // Create a reusable write with its own buffer of the given capacity.
+    UartWrite(int capacity) {
+        this.data = new byte[capacity];
+        this.pooled = true;
+        this.status = STATUS_PENDING;
+    }
+
+    // Reset a pooled write to carry a copy of the given data.
+    void reuse(byte[] src, int offset, int length, Callback callback) {
+        System.arraycopy(src, offset, data, 0, length);
+        this.length = length;
+        this.callback = callback;
+        this.sent = 0;
+        this.issuedNanos = 0;
+        synchronized (this) {
+            this.status = STATUS_PENDING;
+        }
+    }
+
+    /**
+     * Create a write which has already failed with the given status.
+     * @param data the data which could not be written
+     * @param status the failure status
+     * @param callback the callback to notify of the failure, may be null
+     * @return the completed write
+     */
+    static UartWrite failed(byte[] data, int status, Callback callback) {
+        UartWrite write = new UartWrite(data, callback);
+        write.complete(status);
+        return write;
+    }
+
+    // Return the data being written, only the first getLength() bytes are valid.
+    public byte[] getData() {
+        return data;
+    }
+
+    // Return the number of bytes being written.
+    public int getLength() {
+        return length;
+    }
+
+    // Return the completion status, only valid once the write is done.
+    public synchronized int getStatus() {
+        return status;
+    }
+
+    // Return true if the write completed and was acknowledged by the device.
+    public synchronized boolean isSuccess() {
+        return status == STATUS_SUCCESS;
+    }
+
+    /**
+     * Mark the write as complete and notify its callback. Only the first completion counts.
+     * @param status the status of the write
+     * @return true if this call completed the write
+     */
+    boolean complete(int status) {
+        synchronized (this) {
+            if (this.status != STATUS_PENDING)
+                return false;
+            this.status = status;
+            notifyAll();
+        }
+        if (callback != null) {
+            callback.onWriteComplete(this, status);
+        }
+        return true;
+    }
+
+    // Writes cannot be pulled back once queued, the ordering of notes matters.
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return status != STATUS_PENDING;
+    }
+
+    @Override
+    public synchronized Integer get() throws InterruptedException, ExecutionException {
+        while (status == STATUS_PENDING) {
+            wait();
+        }
+        return status;
+    }
+
+    @Override
+    public synchronized Integer get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while (status == STATUS_PENDING) {
+            if (remaining <= 0)
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return status;
+    }
+}
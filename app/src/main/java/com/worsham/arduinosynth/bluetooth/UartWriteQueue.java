@@ -0,0 +1,643 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import com.worsham.arduinosynth.metrics.LatencyMonitor;
+
+/**
+ * Bounded outbound queue for UART writes. A dedicated writer thread hands frames to the
+ * {@link Sink} and issues the next one as acknowledgements arrive through
+ * {@link #onWriteComplete(long, int)}, so callers never block waiting for the device.
+ * Writes queued while another write is in flight are packed together by a {@link PacketBatcher}
+ * into a single frame, and writes larger than a frame are sent as a run of full frames.
+ *
+ * The number of frames handed to the transport without an acknowledgement is limited by a
+ * credit window: one for acknowledged writes, more for write-without-response where the stack
+ * only reports that it has buffered the frame.
+ */
+public class UartWriteQueue
+{
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 500;
+
+    // Largest number of frames which may be outstanding at the transport at once.
+    public static final int MAX_CREDIT_WINDOW = 16;
+
+    // Size of the buffer in each pooled write, packets up to this size are sent without allocating.
+    public static final int POOLED_WRITE_SIZE = PacketBatcher.DEFAULT_FRAME_SIZE;
+
+    // How long to wait before offering a frame again after the transport reported it was busy.
+    private static final long BUSY_RETRY_NANOS = 1000000L;
+
+    // Interface for the transport which performs the actual write.
+    public interface Sink {
+        // Issue the write, return false if the transport is busy and the write could not be
+        // started. The data array is reused once this returns so it must be copied, not retained.
+        // The sequence number identifies the frame when its acknowledgement is reported.
+        public boolean write(byte[] data, long sequence);
+    }
+
+    // Interface for a client to be notified when the queue starts or stops backing up.
+    public interface BackpressureListener {
+        public void onBackpressure(UartWriteQueue queue, boolean stalled);
+    }
+
+    private final Object lock = new Object();
+    private final Sink sink;
+    private final long timeoutNanos;
+    private final Thread writer;
+
+    // Ring buffer of queued writes, guarded by lock.
+    private final UartWrite[] queue;
+    private int head;
+    private int count;
+    private int queuedBytes;
+
+    // Ring of frames handed to the transport, oldest first, followed by at most one frame the
+    // transport refused while busy. Guarded by lock.
+    private final PacketBatcher[] frames;
+    private final long[] deadlines;
+    private final int[] ackStatuses;
+    private final long[] sequences; // Sequence number of each frame in flight, consecutive
+    private long lastSequence;
+    private int frameHead;
+    private int framesInFlight;
+    private int acks;
+    private boolean framePending;
+    private long retryAt;
+    private int generation; // Bumped whenever the outstanding frames are dropped
+
+    private int creditWindow;
+    private long flushDelayNanos;
+    private boolean running;
+
+    // Backpressure state, the queue reports a stall when it fills past the high watermark and
+    // recovers once it drains below the low watermark.
+    private final int highWatermark;
+    private final int lowWatermark;
+    private boolean stalled;
+    private BackpressureListener backpressureListener;
+
+    // Per stage latency of completed writes.
+    private final LatencyMonitor latency;
+
+    // Statistics, guarded by lock.
+    private long framesWritten;
+    private long bytesWritten;
+    private long busyRetries;
+
+    // Writes of the last retired frame, only used by the writer thread.
+    private final UartWrite[] completed;
+
+    // Free list of reusable writes for enqueue(byte[], int, int, Callback), guarded by lock.
+    private final UartWrite[] pool;
+    private int pooledFree;
+
+    /**
+     * Create a new write queue and start its writer thread.
+     * @param sink the transport to issue writes to
+     * @param capacity the maximum number of queued writes
+     * @param timeoutMillis how long to wait for a write to be acknowledged
+     */
+    public UartWriteQueue(Sink sink, int capacity, long timeoutMillis) {
+        this.sink = sink;
+        this.timeoutNanos = timeoutMillis * 1000000L;
+        this.queue = new UartWrite[capacity];
+        this.head = 0;
+        this.count = 0;
+        this.queuedBytes = 0;
+        this.frames = new PacketBatcher[MAX_CREDIT_WINDOW + 1];
+        for (int i = 0; i < frames.length; i++)
+            this.frames[i] = new PacketBatcher(capacity, PacketBatcher.DEFAULT_FRAME_SIZE);
+        this.deadlines = new long[frames.length];
+        this.ackStatuses = new int[frames.length];
+        this.sequences = new long[frames.length];
+        this.completed = new UartWrite[capacity];
+        this.pool = new UartWrite[capacity];
+        for (int i = 0; i < capacity; i++)
+            this.pool[i] = new UartWrite(POOLED_WRITE_SIZE);
+        this.pooledFree = capacity;
+        this.creditWindow = 1;
+        this.flushDelayNanos = 0;
+        this.highWatermark = Math.max(1, capacity * 3 / 4);
+        this.lowWatermark = capacity / 4;
+        this.latency = new LatencyMonitor();
+        this.running = true;
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "uart-writer");
+        this.writer.setDaemon(true);
+        this.writer.setPriority(Thread.MAX_PRIORITY);
+        this.writer.start();
+    }
+
+    /**
+     * Set how long a partially filled frame may wait for more writes before it is sent while
+     * the link is idle. The default of zero sends isolated writes immediately; writes queued
+     * behind an in-flight frame are always packed together regardless of this setting.
+     * @param micros the flush deadline in microseconds
+     */
+    public void setFlushDelay(long micros) {
+        synchronized (lock) {
+            flushDelayNanos = micros * 1000L;
+            lock.notifyAll();
+        }
+    }
+
+    // Set the largest frame the transport accepts in a single write.
+    public void setMaxFrameSize(int size) {
+        synchronized (lock) {
+            for (PacketBatcher frame : frames)
+                frame.setMaxFrameSize(size);
+        }
+    }
+
+    /**
+     * Set how many frames may be handed to the transport before the oldest is acknowledged.
+     * @param credits the credit window, between 1 and MAX_CREDIT_WINDOW
+     */
+    public void setCreditWindow(int credits) {
+        synchronized (lock) {
+            creditWindow = Math.max(1, Math.min(credits, MAX_CREDIT_WINDOW));
+            lock.notifyAll();
+        }
+    }
+
+    // Register a listener to be told when the queue stalls and recovers, called on the writer thread.
+    public void setBackpressureListener(BackpressureListener listener) {
+        synchronized (lock) {
+            backpressureListener = listener;
+        }
+    }
+
+    // Return true if writes are backing up faster than the transport drains them.
+    public boolean isStalled() {
+        synchronized (lock) {
+            return stalled;
+        }
+    }
+
+    // Return the latency of writes through the queue, by stage.
+    public LatencyMonitor getLatencyMonitor() {
+        return latency;
+    }
+
+    // Return the number of frames handed to the transport.
+    public long getFramesWritten() {
+        synchronized (lock) {
+            return framesWritten;
+        }
+    }
+
+    // Return the number of bytes handed to the transport.
+    public long getBytesWritten() {
+        synchronized (lock) {
+            return bytesWritten;
+        }
+    }
+
+    // Return the number of times the transport refused a frame because it was busy.
+    public long getBusyRetries() {
+        synchronized (lock) {
+            return busyRetries;
+        }
+    }
+
+    /**
+     * Queue data to be written. Never blocks; if the queue is full the returned write
+     * is already complete with {@link UartWrite#STATUS_QUEUE_FULL}.
+     * @param data the data to write
+     * @param callback notified when the write completes, may be null
+     * @return the queued write
+     */
+    public UartWrite enqueue(byte[] data, UartWrite.Callback callback) {
+        UartWrite write = new UartWrite(data, callback);
+        int rejectStatus;
+        synchronized (lock) {
+            if (!running) {
+                rejectStatus = UartWrite.STATUS_DISCONNECTED;
+            }
+            else if (count == queue.length) {
+                rejectStatus = UartWrite.STATUS_QUEUE_FULL;
+            }
+            else {
+                write.enqueuedNanos = System.nanoTime();
+                latency.recordQueueDepth(count);
+                queue[(head + count) % queue.length] = write;
+                count++;
+                queuedBytes += data.length;
+                lock.notifyAll();
+                return write;
+            }
+        }
+        write.complete(rejectStatus);
+        return write;
+    }
+
+    /**
+     * Queue a copy of a packet using a pooled write, so steady state sending allocates nothing.
+     * The write handed to the callback is recycled once the callback returns and must not be kept.
+     * @param src the buffer holding the packet
+     * @param offset the offset of the packet in the buffer
+     * @param length the length of the packet
+     * @param callback notified when the write completes, may be null
+     * @return true if the packet was queued, false if the queue is full or shut down
+     */
+    public boolean enqueue(byte[] src, int offset, int length, UartWrite.Callback callback) {
+        return enqueue(src, offset, length, 0, callback);
+    }
+
+    /**
+     * Queue a copy of a packet using a pooled write, timing it from the input event which
+     * produced it.
+     * @param src the buffer holding the packet
+     * @param offset the offset of the packet in the buffer
+     * @param length the length of the packet
+     * @param inputNanos the System.nanoTime() of the input event, 0 if unknown
+     * @param callback notified when the write completes, may be null
+     * @return true if the packet was queued, false if the queue is full or shut down
+     */
+    public boolean enqueue(byte[] src, int offset, int length, long inputNanos,
+                           UartWrite.Callback callback) {
+        UartWrite write;
+        synchronized (lock) {
+            if (!running || count == queue.length)
+                return false;
+            // Pooled writes are never split into slices, their buffer is recycled with the
+            // first completion.
+            if (pooledFree > 0 && length <= POOLED_WRITE_SIZE
+                    && length <= frames[frameHead].getMaxFrameSize()) {
+                write = pool[--pooledFree];
+                pool[pooledFree] = null;
+                write.reuse(src, offset, length, callback);
+            }
+            else {
+                byte[] data = new byte[length];
+                System.arraycopy(src, offset, data, 0, length);
+                write = new UartWrite(data, callback);
+            }
+            write.inputNanos = inputNanos;
+            write.enqueuedNanos = System.nanoTime();
+            latency.recordQueueDepth(count);
+            queue[(head + count) % queue.length] = write;
+            count++;
+            queuedBytes += length;
+            lock.notifyAll();
+        }
+        if (inputNanos > 0)
+            latency.record(LatencyMonitor.STAGE_DISPATCH, write.enqueuedNanos - inputNanos);
+        return true;
+    }
+
+    /**
+     * Called when the oldest outstanding frame has been acknowledged, for transports which
+     * acknowledge every frame they accept, in order.
+     * @param status the GATT status of the write
+     */
+    public void onWriteComplete(int status) {
+        synchronized (lock) {
+            if (acks >= framesInFlight)
+                return;
+            ackStatuses[(frameHead + acks) % frames.length] = status;
+            acks++;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Called from the GATT callback when a frame has been acknowledged. An acknowledgement of a
+     * frame the queue has already timed out, or failed, is ignored rather than credited to the
+     * frame behind it. Frames issued before the acknowledged one which are still unanswered
+     * never will be, the transport completes writes in order, so they are timed out.
+     * @param sequence the sequence number the frame was written with
+     * @param status the GATT status of the write
+     */
+    public void onWriteComplete(long sequence, int status) {
+        synchronized (lock) {
+            if (framesInFlight == 0)
+                return;
+            long index = sequence - sequences[frameHead];
+            if (index < acks || index >= framesInFlight)
+                return;
+            while (acks < index)
+                ackStatuses[(frameHead + acks++) % frames.length] = UartWrite.STATUS_TIMEOUT;
+            ackStatuses[(frameHead + acks) % frames.length] = status;
+            acks++;
+            lock.notifyAll();
+        }
+    }
+
+    // Return the number of writes waiting to be sent, including those in flight.
+    public int size() {
+        synchronized (lock) {
+            int n = count;
+            int outstanding = framesInFlight + (framePending ? 1 : 0);
+            for (int i = 0; i < outstanding; i++)
+                n += frames[(frameHead + i) % frames.length].getCompletingWriteCount();
+            return n;
+        }
+    }
+
+    // Fail every queued and in-flight write with the given status, used when the link drops.
+    public void clear(int status) {
+        UartWrite[] dropped;
+        synchronized (lock) {
+            dropped = drain();
+        }
+        for (UartWrite write : dropped) {
+            finish(write, status);
+        }
+    }
+
+    // Stop the writer thread and fail any outstanding writes.
+    public void shutdown() {
+        UartWrite[] dropped;
+        synchronized (lock) {
+            running = false;
+            dropped = drain();
+            lock.notifyAll();
+        }
+        for (UartWrite write : dropped) {
+            finish(write, UartWrite.STATUS_DISCONNECTED);
+        }
+    }
+
+    // Complete a write and return it to the pool if it is a pooled write.
+    private void finish(UartWrite write, int status) {
+        if (status == UartWrite.STATUS_SUCCESS && write.issuedNanos > 0) {
+            long now = System.nanoTime();
+            latency.record(LatencyMonitor.STAGE_QUEUE, write.issuedNanos - write.enqueuedNanos);
+            latency.record(LatencyMonitor.STAGE_ACK, now - write.issuedNanos);
+            if (write.inputNanos > 0)
+                latency.record(LatencyMonitor.STAGE_TOTAL, now - write.inputNanos);
+        }
+        if (write.complete(status) && write.pooled) {
+            synchronized (lock) {
+                write.callback = null;
+                pool[pooledFree++] = write;
+            }
+        }
+    }
+
+    // Remove every outstanding write, must hold lock. A bulk write may be listed more than
+    // once, completing a write a second time has no effect.
+    private UartWrite[] drain() {
+        int outstanding = framesInFlight + (framePending ? 1 : 0);
+        int n = count;
+        for (int i = 0; i < outstanding; i++)
+            n += frames[(frameHead + i) % frames.length].getWriteCount();
+        UartWrite[] dropped = new UartWrite[n];
+        int d = 0;
+        for (int i = 0; i < outstanding; i++) {
+            PacketBatcher frame = frames[(frameHead + i) % frames.length];
+            for (int w = 0; w < frame.getWriteCount(); w++)
+                dropped[d++] = frame.getWrite(w);
+            frame.reset();
+        }
+        while (count > 0)
+            dropped[d++] = poll();
+        frameHead = 0;
+        framesInFlight = 0;
+        acks = 0;
+        framePending = false;
+        generation++;
+        return dropped;
+    }
+
+    // Take the next queued write, must hold lock.
+    private UartWrite poll() {
+        UartWrite write = queue[head];
+        queue[head] = null;
+        head = (head + 1) % queue.length;
+        count--;
+        queuedBytes -= write.length - write.sent;
+        return write;
+    }
+
+    // Move the writes completed by the given frame into completed and empty it, must hold lock.
+    private int collect(PacketBatcher frame, int status) {
+        int n = 0;
+        if (frame.isSlice() && !frame.isFinalSlice()) {
+            // A failed slice fails the whole bulk write, drop whatever is left of it.
+            if (status != UartWrite.STATUS_SUCCESS) {
+                UartWrite write = frame.getWrite(0);
+                if (count > 0 && queue[head] == write)
+                    poll();
+                completed[n++] = write;
+            }
+        }
+        else {
+            for (int i = 0; i < frame.getWriteCount(); i++)
+                completed[n++] = frame.getWrite(i);
+        }
+        frame.reset();
+        return n;
+    }
+
+    // Pack the next frame from the queue into the slot after the in-flight frames, must hold lock.
+    private void buildFrame() {
+        int slot = (frameHead + framesInFlight) % frames.length;
+        PacketBatcher frame = frames[slot];
+        UartWrite first = queue[head];
+        int remaining = first.length - first.sent;
+        if (first.sent > 0 || remaining > frame.getMaxFrameSize()) {
+            // Bulk write, send the next frame sized slice on its own. The write leaves the
+            // queue with its last slice.
+            int slice = Math.min(remaining, frame.getMaxFrameSize());
+            frame.addSlice(first, first.sent, slice);
+            if (slice == remaining)
+                poll();
+            else
+                queuedBytes -= slice;
+            first.sent += slice;
+        }
+        else {
+            while (count > 0 && frame.fits(queue[head].length))
+                frame.add(poll());
+        }
+        framePending = true;
+        retryAt = 0;
+        deadlines[slot] = System.nanoTime() + timeoutNanos;
+    }
+
+    // Record that the writes in a frame are about to be issued for the first time, must hold
+    // lock. Stamped before the transport is called, the acknowledgement can beat its return.
+    private long stampIssued(PacketBatcher frame) {
+        long now = System.nanoTime();
+        for (int i = 0; i < frame.getWriteCount(); i++) {
+            UartWrite write = frame.getWrite(i);
+            if (write.issuedNanos == 0)
+                write.issuedNanos = now;
+        }
+        return now;
+    }
+
+    // The transport accepted a frame, start waiting for echoes of the writes it first issued.
+    private void confirmIssued(PacketBatcher frame, long issuedNanos) {
+        for (int i = 0; i < frame.getWriteCount(); i++) {
+            if (frame.getWrite(i).issuedNanos == issuedNanos)
+                latency.onIssued(issuedNanos);
+        }
+    }
+
+    // The transport refused a frame, its writes are not issued until it is offered again.
+    private void unstampIssued(PacketBatcher frame, long issuedNanos) {
+        for (int i = 0; i < frame.getWriteCount(); i++) {
+            UartWrite write = frame.getWrite(i);
+            if (write.issuedNanos == issuedNanos)
+                write.issuedNanos = 0;
+        }
+    }
+
+    // Update the backpressure state from the queue depth, must hold lock.
+    private boolean updateStalled() {
+        if (!stalled && count >= highWatermark) {
+            stalled = true;
+            return true;
+        }
+        if (stalled && count <= lowWatermark) {
+            stalled = false;
+            return true;
+        }
+        return false;
+    }
+
+    // Writer thread: retire acknowledged or expired frames, then offer the next one while
+    // there are credits left.
+    private void writeLoop() {
+        while (true) {
+            int done = 0;
+            int doneStatus = UartWrite.STATUS_SUCCESS;
+            byte[] frame = null;
+            int frameSlot = 0;
+            long frameSequence = 0;
+            long frameIssuedNanos = 0;
+            int frameGeneration = 0;
+            BackpressureListener listener = null;
+            boolean nowStalled = false;
+
+            synchronized (lock) {
+                while (running) {
+                    long now = System.nanoTime();
+                    long wakeAt = 0;
+
+                    if (framesInFlight > 0) {
+                        if (acks > 0 || now >= deadlines[frameHead]) {
+                            // The device never answered a timed out frame, give up on it so the
+                            // queue does not stall behind it.
+                            doneStatus = acks > 0 ? ackStatuses[frameHead] : UartWrite.STATUS_TIMEOUT;
+                            if (acks > 0)
+                                acks--;
+                            done = collect(frames[frameHead], doneStatus);
+                            frameHead = (frameHead + 1) % frames.length;
+                            framesInFlight--;
+                            if (done > 0)
+                                break;
+                            continue;
+                        }
+                        wakeAt = deadlines[frameHead];
+                    }
+
+                    if (updateStalled() && backpressureListener != null) {
+                        listener = backpressureListener;
+                        nowStalled = stalled;
+                        break;
+                    }
+
+                    if (framesInFlight < creditWindow) {
+                        if (!framePending && count > 0) {
+                            // Hold back a lone partial frame on an idle link until the flush
+                            // deadline, unless enough is queued to fill a frame anyway.
+                            long flushAt = queue[head].enqueuedNanos + flushDelayNanos;
+                            if (framesInFlight == 0 && now < flushAt
+                                    && queuedBytes < frames[frameHead].getMaxFrameSize()) {
+                                wakeAt = wakeAt == 0 ? flushAt : Math.min(wakeAt, flushAt);
+                            }
+                            else {
+                                buildFrame();
+                            }
+                        }
+                        if (framePending) {
+                            int slot = (frameHead + framesInFlight) % frames.length;
+                            if (now >= deadlines[slot]) {
+                                // The transport stayed busy for the whole timeout.
+                                doneStatus = UartWrite.STATUS_WRITE_FAILED;
+                                done = collect(frames[slot], doneStatus);
+                                framePending = false;
+                                if (done > 0)
+                                    break;
+                                continue;
+                            }
+                            if (now >= retryAt) {
+                                // Count the frame as in flight before it is written, the
+                                // acknowledgement can arrive before write returns.
+                                frame = frames[slot].frame();
+                                frameSlot = slot;
+                                frameSequence = ++lastSequence;
+                                sequences[slot] = frameSequence;
+                                frameIssuedNanos = stampIssued(frames[slot]);
+                                framePending = false;
+                                framesInFlight++;
+                                frameGeneration = generation;
+                                break;
+                            }
+                            wakeAt = wakeAt == 0 ? retryAt : Math.min(wakeAt, retryAt);
+                        }
+                    }
+
+                    waitLocked(wakeAt == 0 ? 0 : Math.max(1, wakeAt - now));
+                }
+                if (!running && done == 0 && frame == null && listener == null)
+                    return;
+            }
+
+            for (int i = 0; i < done; i++) {
+                UartWrite write = completed[i];
+                completed[i] = null;
+                finish(write, doneStatus);
+            }
+
+            if (listener != null)
+                listener.onBackpressure(this, nowStalled);
+
+            if (frame != null) {
+                boolean accepted = sink.write(frame, frameSequence);
+                synchronized (lock) {
+                    if (frameGeneration == generation) {
+                        if (accepted) {
+                            framesWritten++;
+                            bytesWritten += frame.length;
+                            confirmIssued(frames[frameSlot], frameIssuedNanos);
+                        }
+                        else {
+                            // The transport is busy, keep the frame and offer it again shortly,
+                            // with the same sequence number so those in flight stay consecutive.
+                            lastSequence--;
+                            framesInFlight--;
+                            acks = Math.min(acks, framesInFlight);
+                            framePending = true;
+                            unstampIssued(frames[frameSlot], frameIssuedNanos);
+                            retryAt = System.nanoTime() + BUSY_RETRY_NANOS;
+                            busyRetries++;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Wait on the lock for up to the given time, zero waits until notified.
+    private void waitLocked(long nanos) {
+        try {
+            if (nanos > 0)
+                lock.wait(nanos / 1000000L, (int) (nanos % 1000000L));
+            else
+                lock.wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.worsham.arduinosynth.keyboard;
+
+/**
+ * Tracks which keys are held by which touch pointers and turns pointer events into key presses
+ * and releases. A key sounds from the first pointer landing on it until the last one leaves,
+ * and a pointer sliding from key to key releases the old key before pressing the new one.
+ * Kept free of the Android framework so it can be tested and benchmarked on a plain JVM.
+ * Not thread safe, feed it from the UI thread.
+ */
+public class KeyTracker
+{
+    // Interface for a client to be told of key presses and releases.
+    public interface Listener
+    {
+        // Called when a key is pressed, with the System.nanoTime() of the touch event.
+        public void onKeyDown(int key, long eventNanos);
+
+        // Called when the last pointer leaves a key.
+        public void onKeyUp(int key, long eventNanos);
+    }
+
+    // no key under the pointer
+    public static final int NO_KEY = -1;
+
+    // the most pointer ids tracked, Android reuses the lowest free id so this is never reached
+    public static final int MAX_POINTERS = 32;
+
+    private final Listener listener;
+    private final int[] pointerKeys;
+    private final int[] keyPointers;
+
+    /**
+     * Create a tracker.
+     * @param keyCount the number of keys
+     * @param listener told of key presses and releases
+     */
+    public KeyTracker(int keyCount, Listener listener)
+    {
+        this.listener = listener;
+        this.pointerKeys = new int[MAX_POINTERS];
+        this.keyPointers = new int[keyCount];
+        for (int i = 0; i < MAX_POINTERS; i++)
+            pointerKeys[i] = NO_KEY;
+    }
+
+    public int getKeyCount()
+    {
+        return keyPointers.length;
+    }
+
+    // Return true if any pointer is on the key.
+    public boolean isPressed(int key)
+    {
+        return keyPointers[key] > 0;
+    }
+
+    /**
+     * A pointer touched down.
+     * @param pointerId the id of the pointer
+     * @param key the key under it, or NO_KEY
+     * @param eventNanos the time of the touch event
+     */
+    public void down(int pointerId, int key, long eventNanos)
+    {
+        move(pointerId, key, eventNanos);
+    }
+
+    /**
+     * A pointer moved, pressing the key under it if that changed.
+     * @param pointerId the id of the pointer
+     * @param key the key now under it, or NO_KEY
+     * @param eventNanos the time of the touch event
+     */
+    public void move(int pointerId, int key, long eventNanos)
+    {
+        if (pointerId < 0 || pointerId >= MAX_POINTERS)
+            return;
+        if (key < 0 || key >= keyPointers.length)
+            key = NO_KEY;
+        int old = pointerKeys[pointerId];
+        if (old == key)
+            return;
+        pointerKeys[pointerId] = key;
+        if (old != NO_KEY && --keyPointers[old] == 0)
+            listener.onKeyUp(old, eventNanos);
+        if (key != NO_KEY && keyPointers[key]++ == 0)
+            listener.onKeyDown(key, eventNanos);
+    }
+
+    /**
+     * A pointer lifted.
+     * @param pointerId the id of the pointer
+     * @param eventNanos the time of the touch event
+     */
+    public void up(int pointerId, long eventNanos)
+    {
+        move(pointerId, NO_KEY, eventNanos);
+    }
+
+    /**
+     * The gesture was cancelled, release every key.
+     * @param eventNanos the time of the touch event
+     */
+    public void cancel(long eventNanos)
+    {
+        for (int i = 0; i < MAX_POINTERS; i++)
+            up(i, eventNanos);
+    }
+}
@@ -0,0 +1,154 @@
+package com.worsham.arduinosynth.keyboard;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+import com.worsham.arduinosynth.R;
+
+/**
+ * On screen keyboard of the eight synth keys, C to high C, stacked top to bottom. Touches are
+ * handled directly rather than through click detection, so a key sounds the moment a finger
+ * lands on it and is released when the finger lifts. Every pointer is tracked, so a chord
+ * played with several fingers registers as the touches arrive, and move events are requested
+ * unbuffered so sliding between keys is not held back to the next frame.
+ */
+public class KeyboardView extends View
+{
+    // the label of each key, top to bottom
+    private static final String[] LABELS = {"C", "D", "E", "F", "G", "A", "B", "C"};
+
+    // the number of keys on the keyboard
+    public static final int KEY_COUNT = LABELS.length;
+
+    private final KeyTracker tracker;
+    private KeyTracker.Listener listener;
+
+    private final Paint keyPaint;
+    private final Paint pressedPaint;
+    private final Paint borderPaint;
+    private final Paint labelPaint;
+
+    public KeyboardView(Context context)
+    {
+        this(context, null);
+    }
+
+    public KeyboardView(Context context, AttributeSet attrs)
+    {
+        super(context, attrs);
+        this.tracker = new KeyTracker(KEY_COUNT, new KeyTracker.Listener()
+        {
+            @Override
+            public void onKeyDown(int key, long eventNanos)
+            {
+                if (listener != null)
+                    listener.onKeyDown(key, eventNanos);
+                invalidate();
+            }
+
+            @Override
+            public void onKeyUp(int key, long eventNanos)
+            {
+                if (listener != null)
+                    listener.onKeyUp(key, eventNanos);
+                invalidate();
+            }
+        });
+
+        Resources res = context.getResources();
+        keyPaint = new Paint();
+        keyPaint.setColor(res.getColor(R.color.key, null));
+        pressedPaint = new Paint();
+        pressedPaint.setColor(res.getColor(R.color.key_pressed, null));
+        borderPaint = new Paint();
+        borderPaint.setColor(res.getColor(R.color.key_border, null));
+        borderPaint.setStyle(Paint.Style.STROKE);
+        labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        labelPaint.setColor(res.getColor(R.color.key_label, null));
+        labelPaint.setTextAlign(Paint.Align.CENTER);
+        labelPaint.setTextSize(res.getDimension(R.dimen.key_label_size));
+    }
+
+    /**
+     * Set the listener told of key presses and releases, keys are numbered from 0 at the top.
+     * Event times are System.nanoTime() values of the touch events themselves, so latency
+     * measured from them includes input dispatch.
+     * @param listener the listener, or null
+     */
+    public void setListener(KeyTracker.Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    // Return true if the key is held down.
+    public boolean isKeyPressed(int key)
+    {
+        return tracker.isPressed(key);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event)
+    {
+        // Event times are uptime millis, which shares the monotonic clock behind System.nanoTime().
+        long eventNanos = event.getEventTime() * 1000000L;
+        int index = event.getActionIndex();
+        switch (event.getActionMasked())
+        {
+            case MotionEvent.ACTION_DOWN:
+                requestUnbufferedDispatch(event);
+                tracker.down(event.getPointerId(index), keyAt(event.getX(index), event.getY(index)),
+                        eventNanos);
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:
+                tracker.down(event.getPointerId(index), keyAt(event.getX(index), event.getY(index)),
+                        eventNanos);
+                break;
+            case MotionEvent.ACTION_MOVE:
+                for (int i = 0; i < event.getPointerCount(); i++)
+                    tracker.move(event.getPointerId(i), keyAt(event.getX(i), event.getY(i)), eventNanos);
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+                tracker.up(event.getPointerId(index), eventNanos);
+                break;
+            case MotionEvent.ACTION_UP:
+                tracker.up(event.getPointerId(index), eventNanos);
+                // keys are played from the touches, the click only feeds accessibility
+                performClick();
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                tracker.cancel(eventNanos);
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas)
+    {
+        float width = getWidth();
+        float keyHeight = (float) getHeight() / KEY_COUNT;
+        float labelOffset = -(labelPaint.ascent() + labelPaint.descent()) / 2;
+        for (int key = 0; key < KEY_COUNT; key++)
+        {
+            float top = key * keyHeight;
+            canvas.drawRect(0, top, width, top + keyHeight, tracker.isPressed(key) ? pressedPaint : keyPaint);
+            canvas.drawRect(0, top, width - 1, top + keyHeight - 1, borderPaint);
+            canvas.drawText(LABELS[key], width / 2, top + keyHeight / 2 + labelOffset, labelPaint);
+        }
+    }
+
+    // Return the key under a point, or NO_KEY if it is off the keyboard.
+    private int keyAt(float x, float y)
+    {
+        if (x < 0 || x >= getWidth() || y < 0 || y >= getHeight())
+            return KeyTracker.NO_KEY;
+        return (int) (y * KEY_COUNT / getHeight());
+    }
+}
@@ -0,0 +1,117 @@
+package com.worsham.arduinosynth.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Fixed memory histogram of non-negative values with HDR-style log-linear buckets. Values below
+ * 64 are counted exactly, larger values fall into one of 32 linear buckets per power of two, so
+ * any value is reported to within about 3%. Recording never allocates; every method is
+ * synchronized so values can be recorded on one thread and read on another.
+ */
+public class Histogram
+{
+    // sub-buckets per power of two, as a power of two
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    // values up to 2^36 (about 68 seconds in nanoseconds) have their own bucket, larger ones
+    // are counted in the last
+    private static final int MAX_VALUE_BITS = 36;
+    private static final int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * Count a value, negative values are counted as zero.
+     * @param value the value to record
+     */
+    public synchronized void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        if (value < min)
+            min = value;
+        if (value > max)
+            max = value;
+    }
+
+    public synchronized long getCount()
+    {
+        return count;
+    }
+
+    // Return the smallest recorded value, zero if nothing has been recorded.
+    public synchronized long getMin()
+    {
+        return count == 0 ? 0 : min;
+    }
+
+    // Return the largest recorded value, exactly.
+    public synchronized long getMax()
+    {
+        return max;
+    }
+
+    public synchronized double getMean()
+    {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Return the value at the given percentile, as the highest value equivalent to the bucket
+     * it falls in, but never more than the largest recorded value.
+     * @param percentile the percentile, between 0 and 100
+     * @return the value, zero if nothing has been recorded
+     */
+    public synchronized long getValueAtPercentile(double percentile)
+    {
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * count);
+        rank = Math.max(rank, 1);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestEquivalentValue(i), max);
+        }
+        return max;
+    }
+
+    // Forget every recorded value.
+    public synchronized void reset()
+    {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    // Return the bucket a value is counted in.
+    static int indexOf(long value)
+    {
+        if (value < 2 * SUB_BUCKET_COUNT)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int index = (shift + 1) * SUB_BUCKET_COUNT + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return Math.min(index, BUCKET_COUNT - 1);
+    }
+
+    // Return the largest value counted in the given bucket.
+    static long highestEquivalentValue(int index)
+    {
+        if (index < 2 * SUB_BUCKET_COUNT)
+            return index;
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lowest = (long) (index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
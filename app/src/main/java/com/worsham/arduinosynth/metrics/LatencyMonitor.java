@@ -0,0 +1,164 @@
+package com.worsham.arduinosynth.metrics;
+
+import java.util.Locale;
+
+/**
+ * End-to-end latency of notes sent to the synth board, split into the stages a note passes
+ * through: the input event, encoding, the write queue, the characteristic write and its
+ * acknowledgement, and optionally the board echoing the packet back. Each stage feeds a
+ * {@link Histogram} of nanoseconds, so recording never allocates and the percentiles can be
+ * read at any time from another thread.
+ */
+public class LatencyMonitor
+{
+    // input event to packet encoded
+    public static final int STAGE_ENCODE = 0;
+    // input event to packet queued, the whole of the UI thread's handling
+    public static final int STAGE_DISPATCH = 1;
+    // packet queued to characteristic write issued
+    public static final int STAGE_QUEUE = 2;
+    // characteristic write issued to write acknowledged
+    public static final int STAGE_ACK = 3;
+    // characteristic write issued to the board's echo received
+    public static final int STAGE_ECHO = 4;
+    // input event to write acknowledged
+    public static final int STAGE_TOTAL = 5;
+
+    private static final String[] STAGE_NAMES = {
+            "encode", "dispatch", "queue", "ack", "echo", "total"
+    };
+
+    // how many issued writes are remembered while waiting for their echo
+    private static final int ECHO_WINDOW = 64;
+
+    private final Histogram[] stages;
+    private final Histogram queueDepth;
+
+    // issue times of writes waiting for an echo, oldest first, guarded by this
+    private final long[] awaitingEcho;
+    private int echoHead;
+    private int echoCount;
+    private volatile boolean echoTracking;
+
+    public LatencyMonitor()
+    {
+        stages = new Histogram[STAGE_NAMES.length];
+        for (int i = 0; i < stages.length; i++)
+            stages[i] = new Histogram();
+        queueDepth = new Histogram();
+        awaitingEcho = new long[ECHO_WINDOW];
+    }
+
+    /**
+     * Record the duration of a stage.
+     * @param stage one of the STAGE_* constants
+     * @param nanos the time spent in the stage in nanoseconds
+     */
+    public void record(int stage, long nanos)
+    {
+        stages[stage].record(nanos);
+    }
+
+    // Record the number of writes queued when a new one was added.
+    public void recordQueueDepth(int depth)
+    {
+        queueDepth.record(depth);
+    }
+
+    /**
+     * Match echoed packets with the writes which carried them. Only enable this for boards
+     * which echo every packet back in order, as each packet received is taken to be the echo
+     * of the oldest issued write.
+     * @param enabled true to measure echo latency
+     */
+    public void setEchoTracking(boolean enabled)
+    {
+        synchronized (this) {
+            echoCount = 0;
+        }
+        echoTracking = enabled;
+    }
+
+    // Note that a write was issued, so its echo can be matched.
+    public void onIssued(long issuedNanos)
+    {
+        if (!echoTracking)
+            return;
+        synchronized (this) {
+            if (echoCount == ECHO_WINDOW) {
+                // The board is not echoing everything, forget the oldest.
+                echoHead = (echoHead + 1) % ECHO_WINDOW;
+                echoCount--;
+            }
+            awaitingEcho[(echoHead + echoCount) % ECHO_WINDOW] = issuedNanos;
+            echoCount++;
+        }
+    }
+
+    // Note that a packet was received from the board, at the given time.
+    public void onEcho(long receivedNanos)
+    {
+        if (!echoTracking)
+            return;
+        long issuedNanos;
+        synchronized (this) {
+            if (echoCount == 0)
+                return;
+            issuedNanos = awaitingEcho[echoHead];
+            echoHead = (echoHead + 1) % ECHO_WINDOW;
+            echoCount--;
+        }
+        stages[STAGE_ECHO].record(receivedNanos - issuedNanos);
+    }
+
+    /**
+     * Return the histogram of a stage.
+     * @param stage one of the STAGE_* constants
+     * @return the stage's histogram of nanoseconds
+     */
+    public Histogram getHistogram(int stage)
+    {
+        return stages[stage];
+    }
+
+    // Return the histogram of queue depths seen by new writes.
+    public Histogram getQueueDepthHistogram()
+    {
+        return queueDepth;
+    }
+
+    // Forget everything recorded so far.
+    public void reset()
+    {
+        for (Histogram stage : stages)
+            stage.reset();
+        queueDepth.reset();
+    }
+
+    /**
+     * Return a readable summary of p50/p99/max in milliseconds for every stage with samples,
+     * followed by the queue depth percentiles. Meant for logs and debug overlays.
+     * @return the summary, one line per stage
+     */
+    public String getSummary()
+    {
+        StringBuilder summary = new StringBuilder();
+        for (int i = 0; i < stages.length; i++) {
+            Histogram stage = stages[i];
+            if (stage.getCount() == 0)
+                continue;
+            summary.append(String.format(Locale.US, "%-8s p50 %6.2f  p99 %6.2f  max %6.2f ms\n",
+                    STAGE_NAMES[i], millis(stage.getValueAtPercentile(50)),
+                    millis(stage.getValueAtPercentile(99)), millis(stage.getMax())));
+        }
+        summary.append(String.format(Locale.US, "%-8s p50 %3d  p99 %3d  max %3d",
+                "depth", queueDepth.getValueAtPercentile(50),
+                queueDepth.getValueAtPercentile(99), queueDepth.getMax()));
+        return summary.toString();
+    }
+
+    private static double millis(long nanos)
+    {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,187 @@
+package com.worsham.arduinosynth.midi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Streaming reader for Standard MIDI Files. Opening a file only reads its header and the
+ * headers of its track chunks; every track is then read lazily through its own small buffer
+ * and the tracks are merged by tick with a priority queue, so a file of any size starts
+ * playing at once in constant memory.
+ *
+ * Only the events the synth can use are reported: note on, note off, tempo changes and the
+ * end of the file. Not thread safe.
+ */
+public class MidiFileReader
+{
+    // the kinds of event reported by getType()
+    public static final int EVENT_NOTE_ON = 1;
+    public static final int EVENT_NOTE_OFF = 2;
+    public static final int EVENT_TEMPO = 3;
+    static final int EVENT_END_OF_TRACK = 4;
+
+    // the tempo of a file until it sets one, 120 BPM
+    public static final int DEFAULT_TEMPO = 500000;
+
+    private static final int MTHD = 0x4D546864;
+    private static final int MTRK = 0x4D54726B;
+
+    private final int format;
+    private final int division;
+    private final List<TrackReader> tracks;
+    private final PriorityQueue<TrackReader> pending;
+    private boolean started;
+
+    // the current event, copied from the track it came from
+    private long tick;
+    private int type;
+    private int channel;
+    private int data1;
+    private int data2;
+
+    /**
+     * Open a MIDI file, reading only the file and track chunk headers.
+     * @param channel the file, read with positional reads so it may be shared
+     * @throws IOException if the file cannot be read or is not a MIDI file
+     */
+    public MidiFileReader(FileChannel channel) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(14);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != MTHD || header.getInt(4) < 6)
+            throw new IOException("Not a Standard MIDI File");
+        format = header.getShort(8) & 0xFFFF;
+        int trackCount = header.getShort(10) & 0xFFFF;
+        division = header.getShort(12);
+        if (division == 0)
+            throw new IOException("MIDI file has no time division");
+
+        // Index the track chunks, skipping over their data and any unknown chunks.
+        tracks = new ArrayList<>(trackCount);
+        ByteBuffer chunk = ByteBuffer.allocate(8);
+        long position = 8 + header.getInt(4);
+        long size = channel.size();
+        while (tracks.size() < trackCount && position + 8 <= size) {
+            chunk.clear();
+            readFully(channel, chunk, position);
+            long length = chunk.getInt(4) & 0xFFFFFFFFL;
+            if (chunk.getInt(0) == MTRK)
+                tracks.add(new TrackReader(channel, position + 8,
+                        Math.min(length, size - position - 8), tracks.size()));
+            position += 8 + length;
+        }
+
+        pending = new PriorityQueue<>(Math.max(1, tracks.size()), new Comparator<TrackReader>()
+        {
+            @Override
+            public int compare(TrackReader a, TrackReader b)
+            {
+                if (a.tick != b.tick)
+                    return a.tick < b.tick ? -1 : 1;
+                return a.getIndex() - b.getIndex();
+            }
+        });
+    }
+
+    // Return the file format, 0 for a single track, 1 for simultaneous tracks.
+    public int getFormat()
+    {
+        return format;
+    }
+
+    public int getTrackCount()
+    {
+        return tracks.size();
+    }
+
+    /**
+     * Return the time division from the header. Positive values are ticks per quarter note,
+     * negative values are SMPTE timing with the frame rate in the high byte.
+     * @return the raw division
+     */
+    public int getDivision()
+    {
+        return division;
+    }
+
+    /**
+     * Advance to the next event of the file, in tick order across all tracks.
+     * @return false once every track has ended
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    public boolean next() throws IOException
+    {
+        if (!started) {
+            started = true;
+            for (TrackReader track : tracks) {
+                if (track.advance())
+                    pending.add(track);
+            }
+        }
+        while (true) {
+            TrackReader track = pending.poll();
+            if (track == null)
+                return false;
+            int trackType = track.type;
+            tick = track.tick;
+            type = trackType;
+            channel = track.channelNumber;
+            data1 = track.data1;
+            data2 = track.data2;
+            if (track.advance())
+                pending.add(track);
+            if (trackType != EVENT_END_OF_TRACK)
+                return true;
+        }
+    }
+
+    // Return the tick of the current event, from the start of the file.
+    public long getTick()
+    {
+        return tick;
+    }
+
+    // Return the type of the current event, one of the EVENT_* constants.
+    public int getType()
+    {
+        return type;
+    }
+
+    // Return the MIDI channel of the current note event, 0 to 15.
+    public int getChannel()
+    {
+        return channel;
+    }
+
+    // Return the MIDI note number of the current note event.
+    public int getNote()
+    {
+        return data1;
+    }
+
+    // Return the velocity of the current note event.
+    public int getVelocity()
+    {
+        return data2;
+    }
+
+    // Return the microseconds per quarter note set by the current tempo event.
+    public int getTempo()
+    {
+        return data1;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of MIDI file");
+        }
+    }
+}
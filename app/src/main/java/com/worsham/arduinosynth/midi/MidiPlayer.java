@@ -0,0 +1,434 @@
+package com.worsham.arduinosynth.midi;
+
+import android.util.Log;
+
+import com.worsham.arduinosynth.bluetooth.BluetoothLeUart;
+import com.worsham.arduinosynth.bluetooth.UartTransport;
+import com.worsham.arduinosynth.protocol.NoteEncoder;
+import com.worsham.arduinosynth.sequencer.Deadlines;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams a MIDI file to the synth board. A reader thread parses the file and encodes its
+ * notes into a ring of packets a short window ahead of the playhead, so file access and
+ * parsing never hold up a note. A high priority dispatch thread sends each packet when it is
+ * due against the monotonic clock, computed from the start of playback so that scheduling
+ * delays never accumulate.
+ *
+ * Notes which start together are sent in one write. Boards speaking the extended protocol
+ * get velocities and note offs, legacy boards only play notes so note offs are dropped. The
+ * percussion channel is always skipped. Notes an extended board is still holding when the file
+ * ends or playback is stopped are released, so none are left hanging.
+ */
+public class MidiPlayer
+{
+    private static final String TAG = MidiPlayer.class.getSimpleName();
+
+    // how far ahead of the playhead notes are read and encoded by default
+    public static final long DEFAULT_PREFETCH_MILLIS = 250;
+
+    // MIDI channel 10, reserved for percussion
+    public static final int PERCUSSION_CHANNEL = 9;
+
+    // the most writes buffered ahead of the playhead
+    private static final int RING_SIZE = 256;
+
+    // the most bytes in one write, sized to fit the payload of the default MTU
+    private static final int SLOT_SIZE = BluetoothLeUart.DEFAULT_MTU - 3;
+
+    // marks a note on in a slot's events, which otherwise hold the channel and note
+    private static final int EVENT_NOTE_ON = 1 << 11;
+
+    private final UartTransport transport;
+    private final MidiFileReader reader;
+    private final NoteEncoder encoder;
+    private final NoteEncoder releaser;
+    private final byte[] releasePacket;
+
+    // Ring of encoded writes waiting to be sent, oldest first, guarded by lock.
+    private final Object lock = new Object();
+    private final long[] due;
+    private final byte[] packets;
+    private final int[] lengths;
+    private final int[] notes;
+    private final int[] events; // SLOT_SIZE per slot, the note ons and offs of each write
+    private int head;
+    private int count;
+    private boolean endOfFile;
+    private long prefetchNanos;
+    private long startNanos;
+
+    // Notes sent to the board and not yet released, by channel and note, guarded by lock.
+    private final boolean[] sounding;
+
+    private volatile Thread readerThread;
+    private volatile Thread dispatchThread;
+
+    // Playback position of the reader thread, only used by it.
+    private long fileNanos;
+    private long lastTick;
+    private int tempo;
+
+    // The write being built for notes due at the same time, published once a later note is read.
+    private boolean pending;
+    private int pendingNotes;
+    private long pendingDue;
+
+    // Statistics, guarded by lock.
+    private long notesSent;
+    private long notesDropped;
+    private long notesOutOfRange;
+    private long underruns;
+
+    /**
+     * Create a player for a MIDI file which has not been read from yet.
+     * @param transport the link to the synth board
+     * @param reader the file to play
+     */
+    public MidiPlayer(UartTransport transport, MidiFileReader reader)
+    {
+        this.transport = transport;
+        this.reader = reader;
+        this.encoder = new NoteEncoder();
+        this.releaser = new NoteEncoder();
+        this.releasePacket = new byte[SLOT_SIZE];
+        this.due = new long[RING_SIZE];
+        this.packets = new byte[RING_SIZE * SLOT_SIZE];
+        this.lengths = new int[RING_SIZE];
+        this.notes = new int[RING_SIZE];
+        this.events = new int[RING_SIZE * SLOT_SIZE];
+        this.sounding = new boolean[16 * 128];
+        this.prefetchNanos = DEFAULT_PREFETCH_MILLIS * 1000000L;
+        this.tempo = MidiFileReader.DEFAULT_TEMPO;
+    }
+
+    // Tell the player which octave the board is in, so the first note can skip an octave packet.
+    public void setOctave(int octave)
+    {
+        synchronized (lock) {
+            encoder.setOctave(octave);
+        }
+    }
+
+    // Set the protocol version negotiated with the board, before playback starts.
+    public void setProtocolVersion(int version)
+    {
+        synchronized (lock) {
+            encoder.setVersion(version);
+            releaser.setVersion(version);
+        }
+    }
+
+    // Set how far ahead of the playhead notes are read and encoded.
+    public void setPrefetch(long millis)
+    {
+        synchronized (lock) {
+            prefetchNanos = millis * 1000000L;
+            lock.notifyAll();
+        }
+    }
+
+    // Start playing from the beginning of the file, it can only be played once.
+    public void start()
+    {
+        synchronized (lock) {
+            if (readerThread != null || endOfFile)
+                return;
+            startNanos = System.nanoTime();
+            readerThread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    read(Thread.currentThread());
+                }
+            }, "midi-reader");
+            dispatchThread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    dispatch(Thread.currentThread());
+                }
+            }, "midi-player");
+            readerThread.setDaemon(true);
+            dispatchThread.setDaemon(true);
+            dispatchThread.setPriority(Thread.MAX_PRIORITY);
+            readerThread.start();
+            dispatchThread.start();
+        }
+    }
+
+    // Stop playing and release any notes still sounding, returns without waiting for the
+    // player's threads to exit.
+    public void stop()
+    {
+        synchronized (lock) {
+            Thread dispatcher = dispatchThread;
+            readerThread = null;
+            dispatchThread = null;
+            endOfFile = true;
+            count = 0;
+            releaseLocked();
+            lock.notifyAll();
+            if (dispatcher != null)
+                LockSupport.unpark(dispatcher);
+        }
+    }
+
+    // Return true until the whole file has been sent or playback is stopped.
+    public boolean isPlaying()
+    {
+        synchronized (lock) {
+            return dispatchThread != null;
+        }
+    }
+
+    // Return the number of notes and note offs queued on the transport.
+    public long getNotesSent()
+    {
+        synchronized (lock) {
+            return notesSent;
+        }
+    }
+
+    // Return the number of notes and note offs the transport refused, because it was down or
+    // backed up.
+    public long getNotesDropped()
+    {
+        synchronized (lock) {
+            return notesDropped;
+        }
+    }
+
+    // Return the number of notes outside the octaves the synth can play.
+    public long getNotesOutOfRange()
+    {
+        synchronized (lock) {
+            return notesOutOfRange;
+        }
+    }
+
+    // Return how many notes were read after they were due, a sign the prefetch is too short.
+    public long getUnderruns()
+    {
+        synchronized (lock) {
+            return underruns;
+        }
+    }
+
+    // Reader thread: keep the ring filled with the notes due within the prefetch window.
+    private void read(Thread self)
+    {
+        try {
+            while (readerThread == self && reader.next()) {
+                int type = reader.getType();
+                advanceTo(reader.getTick());
+                if (type == MidiFileReader.EVENT_TEMPO) {
+                    tempo = reader.getTempo();
+                    continue;
+                }
+                boolean noteOff = type == MidiFileReader.EVENT_NOTE_OFF;
+                if (type != MidiFileReader.EVENT_NOTE_ON && !(noteOff && encoder.isExtended()))
+                    continue;
+                if (reader.getChannel() == PERCUSSION_CHANNEL)
+                    continue;
+
+                long noteDue = startNanos + fileNanos;
+                synchronized (lock) {
+                    if (pending && noteDue != pendingDue)
+                        publishLocked();
+                    int length = -1;
+                    while (length < 0) {
+                        if (!pending && !openLocked(noteDue, self))
+                            return;
+                        length = noteOff
+                                ? encoder.noteOff(reader.getChannel(), reader.getNote())
+                                : encoder.noteOn(reader.getChannel(), reader.getNote(),
+                                        reader.getVelocity());
+                        // A full write is sent as it is and the note starts the next one.
+                        if (length < 0)
+                            publishLocked();
+                    }
+                    if (length > 0) {
+                        int slot = (head + count) % RING_SIZE;
+                        int event = reader.getChannel() << 7 | reader.getNote();
+                        events[slot * SLOT_SIZE + pendingNotes] = noteOff ? event : event | EVENT_NOTE_ON;
+                        pendingNotes++;
+                    }
+                    else if (!noteOff)
+                        notesOutOfRange++;
+                }
+            }
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Could not read MIDI file", e);
+        }
+        finally {
+            synchronized (lock) {
+                if (readerThread == self) {
+                    if (pending)
+                        publishLocked();
+                    endOfFile = true;
+                }
+                lock.notifyAll();
+            }
+            LockSupport.unpark(dispatchThread);
+        }
+    }
+
+    // Wait until notes due at the given time are inside the prefetch window and the ring has
+    // room, then start a write for them. Return false if stopped.
+    private boolean openLocked(long noteDue, Thread self)
+    {
+        while (readerThread == self) {
+            long ahead = noteDue - System.nanoTime() - prefetchNanos;
+            if (count < RING_SIZE && ahead <= 0)
+                break;
+            waitLocked(count < RING_SIZE ? ahead : 0);
+        }
+        if (readerThread != self)
+            return false;
+        int slot = (head + count) % RING_SIZE;
+        encoder.begin(packets, slot * SLOT_SIZE, SLOT_SIZE);
+        pending = true;
+        pendingNotes = 0;
+        pendingDue = noteDue;
+        return true;
+    }
+
+    // Hand the write being built to the dispatcher, unless none of its notes could be played.
+    private void publishLocked()
+    {
+        pending = false;
+        int length = encoder.finish();
+        if (length == 0)
+            return;
+        int slot = (head + count) % RING_SIZE;
+        due[slot] = pendingDue;
+        lengths[slot] = length;
+        notes[slot] = pendingNotes;
+        count++;
+        if (pendingDue < System.nanoTime())
+            underruns++;
+        lock.notifyAll();
+        LockSupport.unpark(dispatchThread);
+    }
+
+    // Move the file position to the given tick at the current tempo, reader thread only.
+    private void advanceTo(long tick)
+    {
+        long ticks = tick - lastTick;
+        lastTick = tick;
+        int division = reader.getDivision();
+        if (division > 0) {
+            fileNanos += ticks * tempo * 1000L / division;
+        }
+        else {
+            // SMPTE timing, frames per second in the high byte and ticks per frame in the low.
+            int framesPerSecond = -(division >> 8);
+            int ticksPerFrame = division & 0xFF;
+            fileNanos += ticks * 1000000000L / ((long) framesPerSecond * ticksPerFrame);
+        }
+    }
+
+    // Dispatch thread: send each note as it falls due.
+    private void dispatch(final Thread self)
+    {
+        Deadlines.Running running = new Deadlines.Running() {
+            @Override
+            public boolean isRunning() {
+                return dispatchThread == self;
+            }
+        };
+        while (dispatchThread == self) {
+            long noteDue;
+            synchronized (lock) {
+                if (count == 0) {
+                    if (endOfFile)
+                        break;
+                    while (count == 0 && !endOfFile && dispatchThread == self)
+                        waitLocked(0);
+                    continue;
+                }
+                noteDue = due[head];
+            }
+            if (!Deadlines.waitUntil(noteDue, running))
+                break;
+
+            synchronized (lock) {
+                if (count == 0)
+                    continue;
+                int offset = head * SLOT_SIZE;
+                if (transport.send(packets, offset, lengths[head], noteDue, null)) {
+                    notesSent += notes[head];
+                    for (int i = offset; i < offset + notes[head]; i++)
+                        sounding[events[i] & ~EVENT_NOTE_ON] = (events[i] & EVENT_NOTE_ON) != 0;
+                }
+                else {
+                    notesDropped += notes[head];
+                }
+                head = (head + 1) % RING_SIZE;
+                count--;
+                lock.notifyAll();
+            }
+        }
+        synchronized (lock) {
+            releaseLocked();
+            if (dispatchThread == self) {
+                dispatchThread = null;
+                readerThread = null;
+            }
+        }
+    }
+
+    // Send a note off for every note still sounding, in as few writes as they fit.
+    private void releaseLocked()
+    {
+        int released = 0;
+        releaser.begin(releasePacket, 0, SLOT_SIZE);
+        for (int i = 0; i < sounding.length; i++) {
+            if (!sounding[i])
+                continue;
+            sounding[i] = false;
+            if (releaser.noteOff(i >> 7, i & 0x7F) < 0) {
+                sendReleaseLocked(released);
+                released = 0;
+                releaser.begin(releasePacket, 0, SLOT_SIZE);
+                releaser.noteOff(i >> 7, i & 0x7F);
+            }
+            released++;
+        }
+        sendReleaseLocked(released);
+    }
+
+    // Send the note offs built by releaseLocked, untimed as they follow no input.
+    private void sendReleaseLocked(int released)
+    {
+        int length = releaser.finish();
+        if (length == 0)
+            return;
+        if (transport.send(releasePacket, 0, length, 0, null))
+            notesSent += released;
+        else
+            notesDropped += released;
+    }
+
+    // Wait on the lock for up to the given time, zero waits until notified.
+    private void waitLocked(long nanos)
+    {
+        try {
+            if (nanos > 0)
+                lock.wait(nanos / 1000000L, (int) (nanos % 1000000L));
+            else
+                lock.wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            readerThread = null;
+            dispatchThread = null;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.worsham.arduinosynth.midi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the events of one MTrk chunk on demand through a small buffer, so only the part of the
+ * track around its read position is ever in memory. Events the player has no use for are
+ * skipped, their delta times still count towards the next event's tick.
+ */
+class TrackReader
+{
+    private static final int BUFFER_SIZE = 4096;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int index;
+    private long position; // file position of the first byte after the buffered bytes
+    private final long end;
+
+    private int runningStatus;
+
+    // the current event
+    long tick;
+    int type;
+    int channelNumber;
+    int data1;
+    int data2;
+
+    /**
+     * Create a reader for a track chunk.
+     * @param channel the file holding the track
+     * @param start the file position of the chunk's first event
+     * @param length the length of the chunk data
+     * @param index the position of the track in the file, orders simultaneous events
+     */
+    TrackReader(FileChannel channel, long start, long length, int index)
+    {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.buffer.limit(0);
+        this.position = start;
+        this.end = start + length;
+        this.index = index;
+    }
+
+    int getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * Read up to the next event of interest.
+     * @return false once the track has ended
+     */
+    boolean advance() throws IOException
+    {
+        if (type == MidiFileReader.EVENT_END_OF_TRACK)
+            return false;
+        while (true) {
+            if (!hasRemaining()) {
+                // Truncated track without an end of track event.
+                type = MidiFileReader.EVENT_END_OF_TRACK;
+                return true;
+            }
+            tick += readVariableLength();
+            int status = readByte();
+            if (status == 0xFF) {
+                int meta = readByte();
+                long length = readVariableLength();
+                if (meta == 0x2F) {
+                    type = MidiFileReader.EVENT_END_OF_TRACK;
+                    return true;
+                }
+                if (meta == 0x51 && length == 3) {
+                    type = MidiFileReader.EVENT_TEMPO;
+                    data1 = (readByte() << 16) | (readByte() << 8) | readByte();
+                    return true;
+                }
+                skip(length);
+                continue;
+            }
+            if (status == 0xF0 || status == 0xF7) {
+                skip(readVariableLength());
+                continue;
+            }
+
+            int first;
+            if (status < 0x80) {
+                // Running status, the byte is the first data byte of a repeated message.
+                if (runningStatus == 0)
+                    throw new IOException("Data byte without a status in track " + index);
+                first = status;
+                status = runningStatus;
+            }
+            else {
+                runningStatus = status;
+                first = readByte();
+            }
+            int command = status & 0xF0;
+            int second = command == 0xC0 || command == 0xD0 ? 0 : readByte();
+            if (command == 0x90 || command == 0x80) {
+                // A note on with no velocity is a note off.
+                type = command == 0x90 && second > 0
+                        ? MidiFileReader.EVENT_NOTE_ON : MidiFileReader.EVENT_NOTE_OFF;
+                channelNumber = status & 0x0F;
+                data1 = first;
+                data2 = second;
+                return true;
+            }
+        }
+    }
+
+    private boolean hasRemaining()
+    {
+        return buffer.hasRemaining() || position < end;
+    }
+
+    private int readByte() throws IOException
+    {
+        if (!buffer.hasRemaining())
+            fill();
+        return buffer.get() & 0xFF;
+    }
+
+    private long readVariableLength() throws IOException
+    {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = readByte();
+            value = (value << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Variable length quantity too long in track " + index);
+    }
+
+    private void skip(long length) throws IOException
+    {
+        long buffered = Math.min(length, buffer.remaining());
+        buffer.position(buffer.position() + (int) buffered);
+        position += length - buffered;
+        if (position > end)
+            throw new EOFException("Event runs past the end of track " + index);
+    }
+
+    // Read the next block of the track into the buffer.
+    private void fill() throws IOException
+    {
+        if (position >= end)
+            throw new EOFException("Unexpected end of track " + index);
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - position));
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0)
+                throw new EOFException("File ends inside track " + index);
+        }
+        position += buffer.limit();
+        buffer.flip();
+    }
+}
@@ -0,0 +1,145 @@
+package com.worsham.arduinosynth.protocol;
+
+/**
+ * Encodes frames of the extended synth protocol, spoken by boards which answer the version
+ * packet with {@link PacketEncoder#VERSION_EXTENDED} or later. A frame is
+ * '#' length events checksum, where the length counts the event bytes and the checksum is the
+ * inverted sum of everything before it, and carries any number of events which fit:
+ *
+ *   0x8n note velocity                  note off on channel n
+ *   0x9n note velocity                  note on on channel n
+ *   0xAn count velocity note...         chord of count notes on channel n
+ *
+ * Like MIDI running status, the status byte is left out when an event has the same status as
+ * the one before it in the frame, so a run of notes costs two bytes each. Data bytes are
+ * always below 0x80. Frames are built in place in a caller supplied buffer and never allocate.
+ * Not thread safe.
+ */
+public final class FrameEncoder
+{
+    // the start byte of every extended frame
+    public static final byte START = '#';
+
+    // the event status bytes, or'ed with the channel
+    public static final int STATUS_NOTE_OFF = 0x80;
+    public static final int STATUS_NOTE_ON = 0x90;
+    public static final int STATUS_CHORD = 0xA0;
+
+    // the start and length bytes in front of the events and the checksum after them
+    public static final int HEADER_SIZE = 2;
+    public static final int OVERHEAD = HEADER_SIZE + 1;
+
+    // the most event bytes one frame can carry
+    public static final int MAX_EVENT_BYTES = 0x7F;
+
+    // the most notes in one chord event
+    public static final int MAX_CHORD_NOTES = 0x7F;
+
+    // the frame being built
+    private byte[] dst;
+    private int start;
+    private int position;
+    private int limit;
+    private int runningStatus;
+
+    /**
+     * Start a new frame, any frame in progress is discarded.
+     * @param dst the buffer to build the frame in
+     * @param offset the position of the frame in the buffer
+     * @param capacity the most bytes the whole frame may take, including its overhead
+     */
+    public void begin(byte[] dst, int offset, int capacity)
+    {
+        this.dst = dst;
+        this.start = offset;
+        this.position = offset + HEADER_SIZE;
+        this.limit = offset + Math.min(capacity - 1, HEADER_SIZE + MAX_EVENT_BYTES);
+        this.runningStatus = -1;
+    }
+
+    /**
+     * Append a note on event.
+     * @param channel the channel, 0 to 15
+     * @param note the MIDI note number
+     * @param velocity the velocity, 1 to 127
+     * @return the number of bytes appended, 0 if the frame is full
+     */
+    public int noteOn(int channel, int note, int velocity)
+    {
+        return event(STATUS_NOTE_ON | channel, note, velocity);
+    }
+
+    /**
+     * Append a note off event.
+     * @param channel the channel, 0 to 15
+     * @param note the MIDI note number
+     * @param velocity the release velocity
+     * @return the number of bytes appended, 0 if the frame is full
+     */
+    public int noteOff(int channel, int note, int velocity)
+    {
+        return event(STATUS_NOTE_OFF | channel, note, velocity);
+    }
+
+    /**
+     * Append a chord event, the notes start together with one velocity.
+     * @param channel the channel, 0 to 15
+     * @param velocity the velocity, 1 to 127
+     * @param notes the buffer holding the MIDI note numbers
+     * @param offset the position of the first note in the buffer
+     * @param count the number of notes, 1 to MAX_CHORD_NOTES
+     * @return the number of bytes appended, 0 if the frame is full
+     */
+    public int chord(int channel, int velocity, int[] notes, int offset, int count)
+    {
+        int status = STATUS_CHORD | channel;
+        int length = (status == runningStatus ? 0 : 1) + 2 + count;
+        if (count < 1 || count > MAX_CHORD_NOTES || position + length > limit)
+            return 0;
+        if (status != runningStatus)
+            dst[position++] = (byte) status;
+        dst[position++] = (byte) count;
+        dst[position++] = (byte) (velocity & 0x7F);
+        for (int i = offset; i < offset + count; i++)
+            dst[position++] = (byte) (notes[i] & 0x7F);
+        runningStatus = status;
+        return length;
+    }
+
+    // Return true if no event has been appended since begin.
+    public boolean isEmpty()
+    {
+        return position == start + HEADER_SIZE;
+    }
+
+    /**
+     * Close the frame, writing its header and checksum.
+     * @return the number of bytes in the frame, 0 if it has no events and should not be sent
+     */
+    public int finish()
+    {
+        if (isEmpty())
+            return 0;
+        dst[start] = START;
+        dst[start + 1] = (byte) (position - start - HEADER_SIZE);
+        dst[position] = PacketEncoder.checksum(dst, start, position - start);
+        int length = position + 1 - start;
+        position = start + HEADER_SIZE;
+        runningStatus = -1;
+        return length;
+    }
+
+    // Append a two data byte event, leaving out the status byte under running status.
+    private int event(int status, int data1, int data2)
+    {
+        int length = status == runningStatus ? 2 : 3;
+        if (position + length > limit)
+            return 0;
+        if (status != runningStatus)
+            dst[position++] = (byte) status;
+        dst[position++] = (byte) (data1 & 0x7F);
+        dst[position++] = (byte) (data2 & 0x7F);
+        runningStatus = status;
+        return length;
+    }
+}
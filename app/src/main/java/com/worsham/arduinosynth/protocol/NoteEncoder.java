@@ -0,0 +1,194 @@
+package com.worsham.arduinosynth.protocol;
+
+/**
+ * Encodes note events for whichever protocol version was negotiated with the board. Events
+ * are appended to a batch which is sent as one write: extended boards get a single
+ * {@link FrameEncoder} frame with velocity, note offs and chords, legacy boards get the
+ * 4 byte packets {@link NoteMapper} maps the notes onto, with velocity and note offs dropped
+ * and a chord played as its first note. Never allocates. Not thread safe.
+ */
+public class NoteEncoder
+{
+    // velocity used where the input has none, such as the on screen keys
+    public static final int DEFAULT_VELOCITY = 100;
+
+    // the most bytes a single note batch takes in either protocol
+    public static final int MAX_NOTE_SIZE = Math.max(NoteMapper.MAX_ENCODED_SIZE,
+            FrameEncoder.OVERHEAD + 3);
+
+    private final NoteMapper mapper;
+    private final FrameEncoder frame;
+    private int version;
+
+    // the batch being built, and whether it is an extended frame
+    private boolean extended;
+    private byte[] dst;
+    private int start;
+    private int position;
+    private int limit;
+
+    // Create an encoder for a board speaking the legacy protocol.
+    public NoteEncoder()
+    {
+        this.mapper = new NoteMapper();
+        this.frame = new FrameEncoder();
+        this.version = PacketEncoder.VERSION_LEGACY;
+    }
+
+    // Set the protocol version negotiated with the board, takes effect from the next batch.
+    public void setVersion(int version)
+    {
+        this.version = version;
+    }
+
+    public int getVersion()
+    {
+        return version;
+    }
+
+    // Return true if note offs reach the board, otherwise notes play until the next one.
+    public boolean isExtended()
+    {
+        return version >= PacketEncoder.VERSION_EXTENDED;
+    }
+
+    // Tell the encoder which octave a legacy board is in, or -1 if unknown.
+    public void setOctave(int octave)
+    {
+        mapper.setOctave(octave);
+    }
+
+    public int getOctave()
+    {
+        return mapper.getOctave();
+    }
+
+    /**
+     * Start a new batch of events.
+     * @param dst the buffer to encode into
+     * @param offset the position of the batch in the buffer
+     * @param capacity the most bytes the batch may take, normally the link's write payload size
+     */
+    public void begin(byte[] dst, int offset, int capacity)
+    {
+        this.dst = dst;
+        this.start = offset;
+        this.position = offset;
+        this.limit = offset + capacity;
+        this.extended = isExtended();
+        if (extended)
+            frame.begin(dst, offset, capacity);
+    }
+
+    /**
+     * Append a note on.
+     * @param channel the MIDI channel, 0 to 15
+     * @param note the MIDI note number, 60 is middle C
+     * @param velocity the velocity, 1 to 127
+     * @return the number of bytes appended, 0 if the board cannot play the note or -1 if the
+     * batch is full
+     */
+    public int noteOn(int channel, int note, int velocity)
+    {
+        if (note < 0 || note > 127)
+            return 0;
+        if (extended)
+            return full(frame.noteOn(channel, note, velocity));
+        if (position + NoteMapper.MAX_ENCODED_SIZE > limit)
+            return -1;
+        int length = mapper.encode(note, dst, position);
+        position += length;
+        return length;
+    }
+
+    /**
+     * Append a note off, legacy boards have none.
+     * @param channel the MIDI channel, 0 to 15
+     * @param note the MIDI note number
+     * @return the number of bytes appended, 0 if the board cannot release notes or -1 if the
+     * batch is full
+     */
+    public int noteOff(int channel, int note)
+    {
+        if (!extended || note < 0 || note > 127)
+            return 0;
+        return full(frame.noteOff(channel, note, 0));
+    }
+
+    /**
+     * Append a chord, legacy boards only play its first note.
+     * @param channel the MIDI channel, 0 to 15
+     * @param velocity the velocity, 1 to 127
+     * @param notes the buffer holding the MIDI note numbers
+     * @param offset the position of the first note in the buffer
+     * @param count the number of notes
+     * @return the number of bytes appended, 0 if the board cannot play the chord or -1 if the
+     * batch is full
+     */
+    public int chord(int channel, int velocity, int[] notes, int offset, int count)
+    {
+        if (count < 1)
+            return 0;
+        if (!extended)
+            return noteOn(channel, notes[offset], velocity);
+        if (count > FrameEncoder.MAX_CHORD_NOTES)
+            return 0;
+        return full(frame.chord(channel, velocity, notes, offset, count));
+    }
+
+    // Return true if nothing has been appended since begin.
+    public boolean isEmpty()
+    {
+        return extended ? frame.isEmpty() : position == start;
+    }
+
+    /**
+     * Close the batch.
+     * @return the number of bytes to send, 0 if the batch is empty
+     */
+    public int finish()
+    {
+        if (extended)
+            return frame.finish();
+        int length = position - start;
+        position = start;
+        return length;
+    }
+
+    /**
+     * Encode a single note on as a batch of its own.
+     * @param channel the MIDI channel, 0 to 15
+     * @param note the MIDI note number
+     * @param velocity the velocity, 1 to 127
+     * @param dst the buffer to encode into, with room for MAX_NOTE_SIZE bytes
+     * @param offset the position of the batch in the buffer
+     * @return the number of bytes to send, 0 if the board cannot play the note
+     */
+    public int encodeNoteOn(int channel, int note, int velocity, byte[] dst, int offset)
+    {
+        begin(dst, offset, MAX_NOTE_SIZE);
+        noteOn(channel, note, velocity);
+        return finish();
+    }
+
+    /**
+     * Encode a single note off as a batch of its own.
+     * @param channel the MIDI channel, 0 to 15
+     * @param note the MIDI note number
+     * @param dst the buffer to encode into, with room for MAX_NOTE_SIZE bytes
+     * @param offset the position of the batch in the buffer
+     * @return the number of bytes to send, 0 if the board cannot release notes
+     */
+    public int encodeNoteOff(int channel, int note, byte[] dst, int offset)
+    {
+        begin(dst, offset, MAX_NOTE_SIZE);
+        noteOff(channel, note);
+        return finish();
+    }
+
+    // Map the frame encoder's full result onto -1.
+    private static int full(int length)
+    {
+        return length == 0 ? -1 : length;
+    }
+}
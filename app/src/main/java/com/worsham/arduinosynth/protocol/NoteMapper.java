@@ -0,0 +1,69 @@
+package com.worsham.arduinosynth.protocol;
+
+/**
+ * Maps MIDI note numbers onto the synth protocol: the eight notes C to high C that
+ * SynthActivity's keys send, in one of the octaves 0 to 8 the octave spinner offers. An octave
+ * packet is only sent when a note falls outside the board's current octave, and a C is played
+ * as high C of the octave below when that saves one. The board has no sharps, so sharps are
+ * played as the natural below them.
+ */
+public class NoteMapper
+{
+    public static final int MIN_OCTAVE = 0;
+    public static final int MAX_OCTAVE = 8;
+
+    // the most bytes one note can encode to, an octave packet and a note packet
+    public static final int MAX_ENCODED_SIZE = 2 * PacketEncoder.PACKET_SIZE;
+
+    // the note number of high C, the C of the next octave up
+    private static final byte HIGH_C = 8;
+
+    // synth note number for each pitch class, C to B
+    private static final byte[] NOTES = {1, 1, 2, 2, 3, 4, 4, 5, 5, 6, 6, 7};
+
+    private int octave;
+
+    // Create a mapper which does not yet know the board's octave.
+    public NoteMapper()
+    {
+        this.octave = -1;
+    }
+
+    // Tell the mapper which octave the board is in, or -1 if unknown.
+    public void setOctave(int octave)
+    {
+        this.octave = octave;
+    }
+
+    public int getOctave()
+    {
+        return octave;
+    }
+
+    /**
+     * Encode the packets which play a MIDI note, changing octave first if needed.
+     * @param midiNote the MIDI note number, 60 is middle C in octave 4
+     * @param dst the buffer to encode into, with room for MAX_ENCODED_SIZE bytes
+     * @param offset the position of the packets in the buffer
+     * @return the number of bytes written, 0 if the note is outside the synth's range
+     */
+    public int encode(int midiNote, byte[] dst, int offset)
+    {
+        int noteOctave = midiNote / 12 - 1;
+        int pitchClass = midiNote % 12;
+        byte note = NOTES[pitchClass];
+        if (pitchClass == 0 && noteOctave - 1 == octave) {
+            noteOctave--;
+            note = HIGH_C;
+        }
+        if (noteOctave < MIN_OCTAVE || noteOctave > MAX_OCTAVE)
+            return 0;
+
+        int length = 0;
+        if (noteOctave != octave) {
+            length = PacketEncoder.encodeOctave(dst, offset, (byte) noteOctave);
+            octave = noteOctave;
+        }
+        return length + PacketEncoder.encodeNote(dst, offset + length, note);
+    }
+}
@@ -0,0 +1,168 @@
+package com.worsham.arduinosynth.protocol;
+
+/**
+ * Streaming decoder for packets received from the synth board. Notification bytes are appended
+ * to a fixed size ring buffer, so packets split across notifications are reassembled. The
+ * decoder resyncs on the '!' start byte, drops packets which fail the inverted-sum checksum and
+ * delivers the rest as pooled {@link SynthMessage}s, decoding a notification never allocates.
+ * Not thread safe, feed it from the single thread which receives notifications.
+ */
+public final class PacketDecoder
+{
+    // Interface for a client to be handed decoded messages.
+    public interface Listener
+    {
+        // The message is recycled once the call returns and must not be kept.
+        public void onMessage(SynthMessage message);
+    }
+
+    // the default ring buffer size in bytes
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final byte[] ring;
+    private final int mask;
+    private int head;
+    private int count;
+
+    private Listener listener;
+
+    // free list of messages, a listener which feeds the decoder again gets a fresh one
+    private SynthMessage pool;
+
+    // statistics
+    private long messagesDecoded;
+    private long checksumErrors;
+    private long bytesDiscarded;
+
+    /**
+     * Create a decoder with the default ring buffer size.
+     * @param listener handed every decoded message, may be null
+     */
+    public PacketDecoder(Listener listener)
+    {
+        this(DEFAULT_CAPACITY, listener);
+    }
+
+    /**
+     * Create a decoder.
+     * @param capacity the ring buffer size, rounded up to a power of two
+     * @param listener handed every decoded message, may be null
+     */
+    public PacketDecoder(int capacity, Listener listener)
+    {
+        int size = Integer.highestOneBit(Math.max(capacity, PacketEncoder.PACKET_SIZE) - 1) << 1;
+        this.ring = new byte[size];
+        this.mask = size - 1;
+        this.listener = listener;
+        this.pool = new SynthMessage();
+    }
+
+    public void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Decode received bytes, delivering every complete packet to the listener.
+     * @param data the buffer holding the bytes, free to reuse once this returns
+     * @param offset the offset of the bytes in the buffer
+     * @param length the number of bytes received
+     */
+    public void decode(byte[] data, int offset, int length)
+    {
+        while (length > 0) {
+            int n = Math.min(length, ring.length - count);
+            int tail = (head + count) & mask;
+            int first = Math.min(n, ring.length - tail);
+            System.arraycopy(data, offset, ring, tail, first);
+            System.arraycopy(data, offset + first, ring, 0, n - first);
+            count += n;
+            offset += n;
+            length -= n;
+            drain();
+        }
+    }
+
+    // Discard everything buffered, e.g. after the link drops.
+    public void reset()
+    {
+        head = 0;
+        count = 0;
+    }
+
+    // Return the number of bytes buffered waiting for the rest of a packet.
+    public int getBuffered()
+    {
+        return count;
+    }
+
+    public long getMessagesDecoded()
+    {
+        return messagesDecoded;
+    }
+
+    // Return the number of packets dropped for a bad checksum.
+    public long getChecksumErrors()
+    {
+        return checksumErrors;
+    }
+
+    // Return the number of bytes skipped while resyncing to a start byte.
+    public long getBytesDiscarded()
+    {
+        return bytesDiscarded;
+    }
+
+    // Decode every complete packet in the ring buffer.
+    private void drain()
+    {
+        while (true) {
+            while (count > 0 && ring[head] != PacketEncoder.START) {
+                skip(1);
+                bytesDiscarded++;
+            }
+            if (count < PacketEncoder.PACKET_SIZE)
+                return;
+            byte command = ring[(head + 1) & mask];
+            byte value = ring[(head + 2) & mask];
+            byte checksum = ring[(head + 3) & mask];
+            if (checksum != (byte) ~(PacketEncoder.START + command + value)) {
+                // Not a packet after all, look for the next start byte.
+                checksumErrors++;
+                skip(1);
+                bytesDiscarded++;
+                continue;
+            }
+            skip(PacketEncoder.PACKET_SIZE);
+            messagesDecoded++;
+            dispatch(command, value);
+        }
+    }
+
+    private void skip(int n)
+    {
+        head = (head + n) & mask;
+        count -= n;
+    }
+
+    // Hand a message to the listener and return it to the pool.
+    private void dispatch(byte command, byte value)
+    {
+        Listener listener = this.listener;
+        if (listener == null)
+            return;
+        SynthMessage message = pool;
+        if (message != null)
+            pool = message.next;
+        else
+            message = new SynthMessage();
+        message.next = null;
+        message.set(command, value);
+        try {
+            listener.onMessage(message);
+        } finally {
+            message.next = pool;
+            pool = message;
+        }
+    }
+}
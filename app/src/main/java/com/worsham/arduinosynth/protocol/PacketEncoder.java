@@ -0,0 +1,134 @@
+package com.worsham.arduinosynth.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes synthesizer packets for the Arduino Synth UART protocol. Every packet is
+ * '!' command value checksum, where the checksum is the inverted sum of the first three bytes.
+ * Packets are written into caller supplied buffers so encoding a note never allocates.
+ */
+public final class PacketEncoder
+{
+    // the size of every synth packet in bytes
+    public static final int PACKET_SIZE = 4;
+
+    // the start byte of every packet
+    public static final byte START = '!';
+
+    // the packet commands
+    public static final byte CMD_NOTE = 'N';
+    public static final byte CMD_OCTAVE = 'O';
+    public static final byte CMD_VERSION = 'V';
+
+    // protocol versions, boards which never answer a version packet speak the legacy protocol
+    public static final int VERSION_LEGACY = 1;
+    public static final int VERSION_EXTENDED = 2;
+    public static final int VERSION_LATEST = VERSION_EXTENDED;
+
+    private PacketEncoder()
+    {
+    }
+
+    /**
+     * Encode a note packet into the buffer.
+     * @param dst the buffer to encode into
+     * @param offset the position of the packet in the buffer
+     * @param note the note number to play
+     * @return the number of bytes written
+     */
+    public static int encodeNote(byte[] dst, int offset, byte note)
+    {
+        return encode(dst, offset, CMD_NOTE, note);
+    }
+
+    /**
+     * Encode an octave packet into the buffer.
+     * @param dst the buffer to encode into
+     * @param offset the position of the packet in the buffer
+     * @param octave the new octave of the synth
+     * @return the number of bytes written
+     */
+    public static int encodeOctave(byte[] dst, int offset, byte octave)
+    {
+        return encode(dst, offset, CMD_OCTAVE, octave);
+    }
+
+    /**
+     * Encode a version packet into the buffer. Sent by the phone with the newest version it
+     * speaks, and answered by the board with the version both will use.
+     * @param dst the buffer to encode into
+     * @param offset the position of the packet in the buffer
+     * @param version the protocol version
+     * @return the number of bytes written
+     */
+    public static int encodeVersion(byte[] dst, int offset, int version)
+    {
+        return encode(dst, offset, CMD_VERSION, (byte) version);
+    }
+
+    /**
+     * Encode a note packet at the buffer's position and advance it.
+     * @param dst the buffer to encode into
+     * @param note the note number to play
+     */
+    public static void encodeNote(ByteBuffer dst, byte note)
+    {
+        encode(dst, CMD_NOTE, note);
+    }
+
+    /**
+     * Encode an octave packet at the buffer's position and advance it.
+     * @param dst the buffer to encode into
+     * @param octave the new octave of the synth
+     */
+    public static void encodeOctave(ByteBuffer dst, byte octave)
+    {
+        encode(dst, CMD_OCTAVE, octave);
+    }
+
+    /**
+     * Encode a packet with the given command and value into the buffer.
+     * @param dst the buffer to encode into
+     * @param offset the position of the packet in the buffer
+     * @param command the packet command
+     * @param value the command value
+     * @return the number of bytes written
+     */
+    public static int encode(byte[] dst, int offset, byte command, byte value)
+    {
+        dst[offset] = START;
+        dst[offset + 1] = command;
+        dst[offset + 2] = value;
+        dst[offset + 3] = (byte) ~(START + command + value);
+        return PACKET_SIZE;
+    }
+
+    /**
+     * Encode a packet with the given command and value at the buffer's position and advance it.
+     * @param dst the buffer to encode into
+     * @param command the packet command
+     * @param value the command value
+     */
+    public static void encode(ByteBuffer dst, byte command, byte value)
+    {
+        dst.put(START);
+        dst.put(command);
+        dst.put(value);
+        dst.put((byte) ~(START + command + value));
+    }
+
+    /**
+     * Compute the inverted-sum checksum of a range of the buffer.
+     * @param buffer the buffer to sum
+     * @param offset the first byte to sum
+     * @param length the number of bytes to sum
+     * @return the checksum byte
+     */
+    public static byte checksum(byte[] buffer, int offset, int length)
+    {
+        byte xsum = 0;
+        for (int i = offset; i < offset + length; i++)
+            xsum += buffer[i];
+        return (byte) ~xsum;
+    }
+}
@@ -0,0 +1,68 @@
+package com.worsham.arduinosynth.protocol;
+
+/**
+ * A validated packet received from the synth board. Messages are pooled by the
+ * {@link PacketDecoder} which produced them and are only valid while it is delivering them.
+ */
+public final class SynthMessage
+{
+    // the kinds of packet the board sends
+    public enum Type
+    {
+        NOTE,
+        OCTAVE,
+        VERSION,
+        UNKNOWN
+    }
+
+    private Type type;
+    private byte command;
+    private byte value;
+
+    // next free message in the decoder's pool
+    SynthMessage next;
+
+    SynthMessage()
+    {
+    }
+
+    /**
+     * Fill the message from a packet whose checksum has been validated.
+     * @param command the packet command
+     * @param value the command value
+     */
+    void set(byte command, byte value)
+    {
+        this.command = command;
+        this.value = value;
+        if (command == PacketEncoder.CMD_NOTE)
+            type = Type.NOTE;
+        else if (command == PacketEncoder.CMD_OCTAVE)
+            type = Type.OCTAVE;
+        else if (command == PacketEncoder.CMD_VERSION)
+            type = Type.VERSION;
+        else
+            type = Type.UNKNOWN;
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    public byte getCommand()
+    {
+        return command;
+    }
+
+    public byte getValue()
+    {
+        return value;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SynthMessage{" + (char) command + " " + value + "}";
+    }
+}
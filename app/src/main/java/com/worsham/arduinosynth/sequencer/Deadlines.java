@@ -0,0 +1,48 @@
+package com.worsham.arduinosynth.sequencer;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits for a System.nanoTime() deadline more precisely than a sleep can, for the threads
+ * which dispatch timed notes. The thread parks until shortly before the deadline, so it stays
+ * off the CPU for most of the wait, then spins up to it, so the few hundred microseconds a
+ * park can overshoot by never land on the note.
+ */
+public class Deadlines
+{
+    // how long before the deadline the wait stops parking and starts spinning
+    public static final long SPIN_NANOS = 500000L;
+
+    // Tells a waiting thread whether it should keep waiting.
+    public interface Running {
+        // Called on the waiting thread, return false once it has been stopped.
+        public boolean isRunning();
+    }
+
+    private Deadlines()
+    {
+    }
+
+    /**
+     * Wait until the deadline, checking after each park and spin whether the thread was stopped.
+     * Call unpark on the waiting thread to have a stop noticed straight away.
+     * @param deadline the System.nanoTime() to wait for
+     * @param running checked while waiting, also the object the thread is reported parked on
+     * @return true once the deadline has passed, false if stopped first
+     */
+    public static boolean waitUntil(long deadline, Running running)
+    {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > SPIN_NANOS) {
+            LockSupport.parkNanos(running, remaining - SPIN_NANOS);
+            if (!running.isRunning())
+                return false;
+        }
+        while (deadline - System.nanoTime() > 0) {
+            if (!running.isRunning())
+                return false;
+            Thread.yield();
+        }
+        return running.isRunning();
+    }
+}
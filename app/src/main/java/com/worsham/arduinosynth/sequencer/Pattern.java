@@ -0,0 +1,98 @@
+package com.worsham.arduinosynth.sequencer;
+
+import com.worsham.arduinosynth.protocol.PacketEncoder;
+
+/**
+ * A loop of sequencer steps. Each step is a rest, a note, or an octave change followed by a
+ * note. Steps are encoded into synth packets as they are set, so playing a pattern only copies
+ * bytes that are already in their final form.
+ *
+ * A pattern must not be changed while a {@link Sequencer} is playing it; build a new pattern
+ * and hand it to {@link Sequencer#setPattern(Pattern)} instead.
+ */
+public class Pattern
+{
+    // the most bytes one step can encode to, an octave packet and a note packet
+    static final int MAX_STEP_SIZE = 2 * PacketEncoder.PACKET_SIZE;
+
+    private final byte[] packets;
+    private final int[] lengths;
+
+    /**
+     * Create a pattern of rests.
+     * @param steps the number of steps in the loop
+     */
+    public Pattern(int steps)
+    {
+        if (steps <= 0)
+            throw new IllegalArgumentException("A pattern needs at least one step");
+        packets = new byte[steps * MAX_STEP_SIZE];
+        lengths = new int[steps];
+    }
+
+    /**
+     * Play a note at the given step.
+     * @param step the step, from 0
+     * @param note the note number to play
+     * @return this pattern
+     */
+    public Pattern setNote(int step, byte note)
+    {
+        lengths[step] = PacketEncoder.encodeNote(packets, step * MAX_STEP_SIZE, note);
+        return this;
+    }
+
+    /**
+     * Change octave and then play a note at the given step.
+     * @param step the step, from 0
+     * @param octave the new octave of the synth
+     * @param note the note number to play
+     * @return this pattern
+     */
+    public Pattern setNote(int step, byte octave, byte note)
+    {
+        int offset = step * MAX_STEP_SIZE;
+        int length = PacketEncoder.encodeOctave(packets, offset, octave);
+        length += PacketEncoder.encodeNote(packets, offset + length, note);
+        lengths[step] = length;
+        return this;
+    }
+
+    /**
+     * Make the given step a rest.
+     * @param step the step, from 0
+     * @return this pattern
+     */
+    public Pattern setRest(int step)
+    {
+        lengths[step] = 0;
+        return this;
+    }
+
+    public int getStepCount()
+    {
+        return lengths.length;
+    }
+
+    // Return true if nothing is sent at the given step.
+    public boolean isRest(int step)
+    {
+        return lengths[step] == 0;
+    }
+
+    // The encoded packets of every step, a step's bytes start at getOffset(step).
+    byte[] getPackets()
+    {
+        return packets;
+    }
+
+    int getOffset(int step)
+    {
+        return step * MAX_STEP_SIZE;
+    }
+
+    int getLength(int step)
+    {
+        return lengths[step];
+    }
+}
@@ -0,0 +1,243 @@
+package com.worsham.arduinosynth.sequencer;
+
+import com.worsham.arduinosynth.bluetooth.UartTransport;
+import com.worsham.arduinosynth.metrics.Histogram;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a {@link Pattern} over a UART transport at a given tempo. Steps are dispatched from a
+ * dedicated high priority thread against the monotonic System.nanoTime() clock: the time of
+ * every step is computed from the moment playback started, not from the previous step, so
+ * scheduling delays never accumulate into drift. The thread parks until shortly before each
+ * step and spins for the remainder to avoid oversleeping.
+ *
+ * If the thread falls more than a whole step behind, e.g. after a long pause of the process,
+ * the missed steps are skipped rather than played in a burst.
+ */
+public class Sequencer
+{
+    // the default tempo and step resolution, sixteenth notes at 120 BPM
+    public static final double DEFAULT_BPM = 120;
+    public static final int DEFAULT_STEPS_PER_BEAT = 4;
+
+    private final UartTransport transport;
+    private final Histogram jitter;
+
+    // playback settings, guarded by this
+    private Pattern pattern;
+    private double bpm;
+    private int stepsPerBeat;
+    private long stepNanos;
+
+    // the schedule, guarded by this: step n of playback is due at anchorNanos + (n - anchorStep) * stepNanos
+    private long anchorNanos;
+    private long anchorStep;
+
+    private volatile Thread scheduler;
+
+    // statistics, guarded by this
+    private long stepsPlayed;
+    private long stepsSkipped;
+    private long stepsDropped;
+
+    /**
+     * Create a stopped sequencer with an empty one step pattern.
+     * @param transport the link to the synth board
+     */
+    public Sequencer(UartTransport transport)
+    {
+        this.transport = transport;
+        this.jitter = new Histogram();
+        this.pattern = new Pattern(1);
+        this.bpm = DEFAULT_BPM;
+        this.stepsPerBeat = DEFAULT_STEPS_PER_BEAT;
+        this.stepNanos = stepNanos(bpm, stepsPerBeat);
+    }
+
+    // Set the pattern to play, takes effect from the next step.
+    public synchronized void setPattern(Pattern pattern)
+    {
+        this.pattern = pattern;
+    }
+
+    public synchronized Pattern getPattern()
+    {
+        return pattern;
+    }
+
+    /**
+     * Set the tempo, takes effect from the next step without disturbing its timing.
+     * @param bpm the tempo in beats per minute
+     */
+    public synchronized void setTempo(double bpm)
+    {
+        if (bpm <= 0)
+            throw new IllegalArgumentException("Tempo must be positive");
+        this.bpm = bpm;
+        reschedule();
+    }
+
+    public synchronized double getTempo()
+    {
+        return bpm;
+    }
+
+    /**
+     * Set how many steps make up one beat, 4 plays the pattern as sixteenth notes.
+     * @param stepsPerBeat the step resolution
+     */
+    public synchronized void setStepsPerBeat(int stepsPerBeat)
+    {
+        if (stepsPerBeat <= 0)
+            throw new IllegalArgumentException("Steps per beat must be positive");
+        this.stepsPerBeat = stepsPerBeat;
+        reschedule();
+    }
+
+    // Return the time between steps in nanoseconds.
+    public synchronized long getStepNanos()
+    {
+        return stepNanos;
+    }
+
+    // Start playing the pattern from its first step, immediately.
+    public synchronized void start()
+    {
+        if (scheduler != null)
+            return;
+        // Anchor now, the scheduler re-anchors once its thread is running so the first step is
+        // not late by the thread's start up time.
+        anchorNanos = System.nanoTime();
+        anchorStep = 0;
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                schedule(Thread.currentThread());
+            }
+        }, "sequencer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        scheduler = thread;
+        thread.start();
+    }
+
+    // Stop playing, returns without waiting for the scheduler thread to exit.
+    public synchronized void stop()
+    {
+        Thread thread = scheduler;
+        scheduler = null;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    public boolean isRunning()
+    {
+        return scheduler != null;
+    }
+
+    // Return how late steps were dispatched relative to their scheduled time, in nanoseconds.
+    public Histogram getJitterHistogram()
+    {
+        return jitter;
+    }
+
+    // Return the number of steps whose packets were queued, rests included.
+    public synchronized long getStepsPlayed()
+    {
+        return stepsPlayed;
+    }
+
+    // Return the number of steps skipped because the scheduler fell more than a step behind.
+    public synchronized long getStepsSkipped()
+    {
+        return stepsSkipped;
+    }
+
+    // Return the number of steps the transport refused, because it was down or backed up.
+    public synchronized long getStepsDropped()
+    {
+        return stepsDropped;
+    }
+
+    // Recompute the step length and re-anchor the schedule at the next step, must hold this.
+    private void reschedule()
+    {
+        long newStepNanos = stepNanos(bpm, stepsPerBeat);
+        if (scheduler != null) {
+            // Keep the next step where it is, space the following ones at the new tempo.
+            long next = Math.max(anchorStep, stepAt(System.nanoTime()) + 1);
+            anchorNanos = anchorNanos + (next - anchorStep) * stepNanos;
+            anchorStep = next;
+        }
+        stepNanos = newStepNanos;
+    }
+
+    // Return the last step due at or before the given time, must hold this.
+    private long stepAt(long nanos)
+    {
+        long elapsed = nanos - anchorNanos;
+        long steps = elapsed / stepNanos;
+        // Round towards the past when the anchor is still ahead.
+        if (elapsed < 0 && steps * stepNanos != elapsed)
+            steps--;
+        return anchorStep + steps;
+    }
+
+    // Scheduler thread: wait for each step and dispatch it, until stopped.
+    private void schedule(final Thread self)
+    {
+        Deadlines.Running running = new Deadlines.Running() {
+            @Override
+            public boolean isRunning() {
+                return scheduler == self;
+            }
+        };
+        synchronized (this) {
+            anchorNanos = System.nanoTime();
+            anchorStep = 0;
+        }
+        long step = 0;
+        while (scheduler == self) {
+            long due;
+            synchronized (this) {
+                due = anchorNanos + (step - anchorStep) * stepNanos;
+            }
+            if (!Deadlines.waitUntil(due, running))
+                break;
+
+            long now = System.nanoTime();
+            Pattern pattern;
+            synchronized (this) {
+                // Re-read the schedule, the tempo may have changed while waiting.
+                due = anchorNanos + (step - anchorStep) * stepNanos;
+                if (now - due >= stepNanos) {
+                    long late = stepAt(now);
+                    stepsSkipped += late - step;
+                    step = late;
+                    due = anchorNanos + (step - anchorStep) * stepNanos;
+                }
+                pattern = this.pattern;
+            }
+
+            jitter.record(now - due);
+            int index = (int) (step % pattern.getStepCount());
+            boolean sent = pattern.isRest(index) || transport.send(pattern.getPackets(),
+                    pattern.getOffset(index), pattern.getLength(index), due, null);
+            synchronized (this) {
+                if (sent)
+                    stepsPlayed++;
+                else
+                    stepsDropped++;
+            }
+            step++;
+        }
+    }
+
+    private static long stepNanos(double bpm, int stepsPerBeat)
+    {
+        return Math.round(60e9 / (bpm * stepsPerBeat));
+    }
+}
@@ -0,0 +1,182 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit and fuzz tests for the allocation free advertisement parser.
+ */
+public class AdvertisementParserTest {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Flags, the UART service in a complete list of 128-bit UUIDs, complete local name.
+    private static final byte[] UART = {
+            0x02, 0x01, 0x06,
+            0x11, 0x07,
+            (byte) 0x9E, (byte) 0xCA, (byte) 0xDC, 0x24, 0x0E, (byte) 0xE5, (byte) 0xA9, (byte) 0xE0,
+            (byte) 0x93, (byte) 0xF3, (byte) 0xA3, (byte) 0xB5, 0x01, 0x00, 0x40, 0x6E,
+            0x09, 0x09, 'A', 'r', 'd', 'S', 'y', 'n', 't', 'h'
+    };
+
+    // 16-bit heart rate, DIS and 0xFE9F, whose high byte is negative as a Java byte, then a
+    // 32-bit UUID and manufacturer data.
+    private static final byte[] SENSOR = {
+            0x07, 0x03, 0x0D, 0x18, 0x0A, 0x18, (byte) 0x9F, (byte) 0xFE,
+            0x05, 0x05, 0x78, 0x56, 0x34, (byte) 0x92,
+            0x05, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15
+    };
+
+    private static UUID base(long shortUuid) {
+        return new UUID((shortUuid << 32) | 0x1000L, AdvertisementParser.BASE_UUID_LSB);
+    }
+
+    // Straightforward parser to check against, built on ByteBuffer and lists.
+    private static List<UUID> reference(byte[] data) {
+        List<UUID> uuids = new ArrayList<>();
+        int offset = 0;
+        while (offset < data.length) {
+            int len = data[offset] & 0xFF;
+            if (len == 0 || offset + 1 + len > data.length)
+                break;
+            int type = data[offset + 1];
+            int size = type == 2 || type == 3 ? 2 : type == 4 || type == 5 ? 4 : type == 6 || type == 7 ? 16 : 0;
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset + 2, len - 1).order(ByteOrder.LITTLE_ENDIAN);
+            while (size > 0 && buffer.remaining() >= size) {
+                if (size == 2)
+                    uuids.add(base(buffer.getShort() & 0xFFFFL));
+                else if (size == 4)
+                    uuids.add(base(buffer.getInt() & 0xFFFFFFFFL));
+                else {
+                    long lsb = buffer.getLong();
+                    uuids.add(new UUID(buffer.getLong(), lsb));
+                }
+            }
+            offset += 1 + len;
+        }
+        return uuids;
+    }
+
+    private static List<UUID> parse(byte[] data) {
+        long[] bits = new long[64];
+        int count = AdvertisementParser.parseUuids(data, 0, data.length, bits);
+        List<UUID> uuids = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            uuids.add(AdvertisementParser.toUuid(bits[2 * i], bits[2 * i + 1]));
+        return uuids;
+    }
+
+    @Test
+    public void uartAdvertisement_isMatchedAndInterned() throws Exception {
+        List<UUID> uuids = parse(UART);
+        assertEquals(1, uuids.size());
+        assertSame(BluetoothUtil.UART_UUID, uuids.get(0));
+        assertTrue(AdvertisementParser.hasService(UART, BluetoothUtil.UART_UUID));
+        assertFalse(AdvertisementParser.hasService(UART, BluetoothUtil.DIS_UUID));
+        assertFalse(AdvertisementParser.hasService(null, BluetoothUtil.UART_UUID));
+    }
+
+    @Test
+    public void shortUuids_areReadUnsigned() throws Exception {
+        List<UUID> uuids = parse(SENSOR);
+        assertEquals(4, uuids.size());
+        assertEquals(base(0x180D), uuids.get(0));
+        assertSame(BluetoothUtil.DIS_UUID, uuids.get(1));
+        assertEquals(base(0xFE9F), uuids.get(2));
+        assertEquals(base(0x92345678L), uuids.get(3));
+        assertTrue(AdvertisementParser.hasService(SENSOR, base(0xFE9F)));
+        assertEquals(uuids, BluetoothUtil.parseUUIDs(SENSOR));
+    }
+
+    @Test
+    public void lengthsAboveOneTwentySeven_areNotNegative() throws Exception {
+        // A length of 0x85 reads as -123 signed, it must be taken as running past the end.
+        byte[] data = {0x03, 0x03, 0x0D, 0x18, (byte) 0x85, 0x07, 0x01, 0x02};
+        assertEquals(1, parse(data).size());
+    }
+
+    @Test
+    public void results_stopAtTheCallersCapacity() throws Exception {
+        long[] bits = new long[4];
+        assertEquals(2, AdvertisementParser.parseUuids(SENSOR, 0, SENSOR.length, bits));
+        assertEquals(base(0x180D).getMostSignificantBits(), bits[0]);
+        // A range inside a larger buffer.
+        byte[] framed = new byte[UART.length + 6];
+        System.arraycopy(UART, 0, framed, 3, UART.length);
+        framed[UART.length + 3] = 0x05;
+        assertEquals(1, AdvertisementParser.parseUuids(framed, 3, UART.length, bits));
+        assertEquals(BluetoothUtil.UART_UUID.getLeastSignificantBits(), bits[1]);
+    }
+
+    @Test
+    public void fuzz_matchesTheReferenceParserAndNeverThrows() throws Exception {
+        Random random = new Random(18);
+        byte[][] seeds = {UART, SENSOR};
+        for (int round = 0; round < 50000; round++) {
+            byte[] data;
+            if (round % 2 == 0) {
+                data = new byte[random.nextInt(40)];
+                random.nextBytes(data);
+                // Keep plenty of plausible lengths and UUID types.
+                for (int i = 0; i < data.length; i += 1 + random.nextInt(6)) {
+                    data[i] = (byte) random.nextInt(20);
+                    if (i + 1 < data.length)
+                        data[i + 1] = (byte) (2 + random.nextInt(6));
+                }
+            } else {
+                byte[] seed = seeds[random.nextInt(seeds.length)];
+                data = seed.clone();
+                for (int flips = random.nextInt(4); flips >= 0; flips--)
+                    data[random.nextInt(data.length)] = (byte) random.nextInt(256);
+                if (random.nextBoolean())
+                    data = java.util.Arrays.copyOf(data, random.nextInt(data.length + 1));
+            }
+            List<UUID> expected = reference(data);
+            assertEquals(expected, parse(data));
+            for (UUID uuid : expected)
+                assertTrue(AdvertisementParser.hasService(data, uuid));
+            assertEquals(expected.contains(BluetoothUtil.UART_UUID),
+                    AdvertisementParser.hasService(data, BluetoothUtil.UART_UUID));
+        }
+    }
+
+    @Test
+    public void matching_doesNotAllocate() throws Exception {
+        long[] bits = new long[16];
+        long msb = BluetoothUtil.UART_UUID.getMostSignificantBits();
+        long lsb = BluetoothUtil.UART_UUID.getLeastSignificantBits();
+        long thread = Thread.currentThread().getId();
+        THREADS.getThreadAllocatedBytes(thread);
+        int matches = 0;
+        for (int i = 0; i < 20000; i++) {
+            matches += AdvertisementParser.hasService(UART, msb, lsb) ? 1 : 0;
+            matches += AdvertisementParser.parseUuids(SENSOR, 0, SENSOR.length, bits);
+            AdvertisementParser.toUuid(bits[2], bits[3]);
+        }
+
+        // A background compilation landing mid-run can be charged to the thread, so take the
+        // best of a few runs.
+        long allocated = Long.MAX_VALUE;
+        for (int run = 0; run < 3 && allocated > 0; run++) {
+            long before = THREADS.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 100000; i++) {
+                matches += AdvertisementParser.hasService(UART, msb, lsb) ? 1 : 0;
+                matches += AdvertisementParser.parseUuids(SENSOR, 0, SENSOR.length, bits);
+                AdvertisementParser.toUuid(bits[2], bits[3]);
+            }
+            allocated = THREADS.getThreadAllocatedBytes(thread) - before;
+        }
+        assertEquals(0, allocated);
+        assertTrue(matches > 0);
+    }
+}
@@ -0,0 +1,48 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the reconnection backoff.
+ */
+public class BackoffTest {
+
+    @Test
+    public void delays_doubleUpToTheMaximum_withJitterInTheUpperHalf() throws Exception {
+        Backoff backoff = new Backoff(500, 16000, new Random(1));
+        long ceiling = 500;
+        for (int attempt = 0; attempt < 12; attempt++) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue("attempt " + attempt + " waited " + delay,
+                    delay >= ceiling / 2 && delay <= ceiling);
+            ceiling = Math.min(ceiling * 2, 16000);
+        }
+        assertEquals(12, backoff.getAttempts());
+    }
+
+    @Test
+    public void reset_startsAgainFromTheBase() throws Exception {
+        Backoff backoff = new Backoff(500, 16000, new Random(2));
+        for (int i = 0; i < 8; i++)
+            backoff.nextDelayMillis();
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertTrue(backoff.nextDelayMillis() <= 500);
+    }
+
+    @Test
+    public void jitter_spreadsRetriesApart() throws Exception {
+        Backoff first = new Backoff(500, 16000, new Random(3));
+        Backoff second = new Backoff(500, 16000, new Random(4));
+        int same = 0;
+        for (int i = 0; i < 10; i++) {
+            if (first.nextDelayMillis() == second.nextDelayMillis())
+                same++;
+        }
+        assertTrue(same < 3);
+    }
+}
@@ -0,0 +1,121 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of raising the connection priority while playing and dropping it once idle, with a
+ * requester which records the priorities asked for instead of touching a GATT connection.
+ */
+public class ConnectionProfileTest {
+
+    private static final long MILLIS = 1000000L;
+
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final List<Integer> requested = new ArrayList<>();
+    private boolean refuse;
+    private final ConnectionProfile profile = new ConnectionProfile(new ConnectionProfile.Requester() {
+        @Override
+        public boolean requestPriority(int priority) {
+            requested.add(priority);
+            return !refuse;
+        }
+    }, scheduler);
+
+    @Test
+    public void activity_requestsHighPriorityOnce() {
+        long now = System.nanoTime();
+        for (int i = 0; i < 10; i++)
+            profile.onActivity(now + i * MILLIS);
+        assertEquals(ConnectionProfile.PRIORITY_HIGH, profile.getPriority());
+        assertEquals(1, requested.size());
+        assertEquals(1, scheduler.pending());
+        assertEquals(ConnectionProfile.DEFAULT_IDLE_TIMEOUT_MILLIS, scheduler.delayMillis());
+    }
+
+    @Test
+    public void idleCheck_waitsOutTheTimeoutFromTheLastNote() {
+        profile.setIdle(100, ConnectionProfile.PRIORITY_LOW_POWER);
+        long start = System.nanoTime();
+        profile.onActivity(start);
+        profile.onActivity(start + 60 * MILLIS);
+
+        // Checked when the first note's timeout ran out, the later note keeps the link high.
+        profile.onIdleCheck(start + 100 * MILLIS);
+        assertEquals(ConnectionProfile.PRIORITY_HIGH, profile.getPriority());
+        assertEquals(1, scheduler.pending());
+        assertEquals(60, scheduler.delayMillis());
+
+        profile.onIdleCheck(start + 160 * MILLIS);
+        assertEquals(ConnectionProfile.PRIORITY_LOW_POWER, profile.getPriority());
+        assertEquals(0, scheduler.pending());
+        assertEquals(2, profile.getSwitches());
+    }
+
+    @Test
+    public void refusedRequest_isRetriedOnTheNextNote() {
+        refuse = true;
+        profile.onActivity(System.nanoTime());
+        assertEquals(ConnectionProfile.PRIORITY_BALANCED, profile.getPriority());
+        assertEquals(0, scheduler.pending());
+
+        refuse = false;
+        profile.onActivity(System.nanoTime());
+        assertEquals(ConnectionProfile.PRIORITY_HIGH, profile.getPriority());
+        assertEquals(2, requested.size());
+    }
+
+    @Test
+    public void failedRequest_keepsThePriorityTheLinkHad() {
+        profile.setIdle(100, ConnectionProfile.PRIORITY_LOW_POWER);
+        long start = System.nanoTime();
+        profile.onActivity(start);
+        assertEquals(ConnectionProfile.PRIORITY_HIGH, profile.getPriority());
+
+        // The request to go high fails once it is made, the idle check is no longer needed.
+        profile.onRequestFailed(ConnectionProfile.PRIORITY_HIGH);
+        assertEquals(ConnectionProfile.PRIORITY_BALANCED, profile.getPriority());
+        assertEquals(0, scheduler.pending());
+        assertEquals(0, profile.getSwitches());
+
+        // Dropping back fails, the link stays high and tries again after another timeout.
+        profile.onActivity(start);
+        profile.onIdleCheck(start + 100 * MILLIS);
+        assertEquals(ConnectionProfile.PRIORITY_LOW_POWER, profile.getPriority());
+        profile.onRequestFailed(ConnectionProfile.PRIORITY_LOW_POWER);
+        assertEquals(ConnectionProfile.PRIORITY_HIGH, profile.getPriority());
+        assertEquals(1, scheduler.pending());
+    }
+
+    @Test
+    public void disabled_staysAtTheIdlePriority() {
+        profile.onActivity(System.nanoTime());
+        profile.setEnabled(false);
+        assertEquals(ConnectionProfile.PRIORITY_BALANCED, profile.getPriority());
+        assertEquals(0, scheduler.pending());
+        profile.onActivity(System.nanoTime());
+        assertEquals(ConnectionProfile.PRIORITY_BALANCED, profile.getPriority());
+        assertEquals(2, requested.size());
+    }
+
+    @Test
+    public void acks_areRecordedAgainstTheirPriority() {
+        profile.onWriteAcknowledged(45 * MILLIS);
+        profile.onActivity(System.nanoTime());
+        profile.onWriteAcknowledged(8 * MILLIS);
+        profile.onWriteAcknowledged(7 * MILLIS);
+        assertEquals(1, profile.getAckTime(ConnectionProfile.PRIORITY_BALANCED).getCount());
+        assertEquals(2, profile.getAckTime(ConnectionProfile.PRIORITY_HIGH).getCount());
+        assertTrue(profile.getTimeAt(ConnectionProfile.PRIORITY_HIGH) > 0);
+
+        // A dropped link is back at balanced, the stack's default for a new connection.
+        profile.onDisconnected();
+        assertEquals(ConnectionProfile.PRIORITY_BALANCED, profile.getPriority());
+        assertEquals(0, scheduler.pending());
+        assertTrue(profile.getSummary().startsWith("priority balanced  switches 1"));
+    }
+}
@@ -0,0 +1,47 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of how a board's cached Device Information is persisted and compared.
+ */
+public class DeviceInfoTest {
+
+    @Test
+    public void entry_roundTrips() throws Exception {
+        DeviceInfo info = new DeviceInfo("Adafruit Industries", "BLEFRIEND32", "QFACA10", "0.8.1");
+        DeviceInfo read = DeviceInfo.decode(DeviceInfo.encode(info));
+        assertEquals("Adafruit Industries", read.getManufacturer());
+        assertEquals("BLEFRIEND32", read.getModel());
+        assertEquals("QFACA10", read.getHardwareRevision());
+        assertEquals("0.8.1", read.getSoftwareRevision());
+        assertEquals(info, read);
+        assertEquals(info.hashCode(), read.hashCode());
+    }
+
+    @Test
+    public void missingFields_readBackEmpty() throws Exception {
+        DeviceInfo read = DeviceInfo.decode(DeviceInfo.encode(new DeviceInfo(null, "", null, "0.8.1")));
+        assertEquals("", read.getManufacturer());
+        assertEquals("", read.getModel());
+        assertEquals("", read.getHardwareRevision());
+        assertEquals("0.8.1", read.getSoftwareRevision());
+    }
+
+    @Test
+    public void malformedEntry_isTreatedAsUncached() throws Exception {
+        assertNull(DeviceInfo.decode(null));
+        assertNull(DeviceInfo.decode(""));
+        assertNull(DeviceInfo.decode("Adafruit\u001fBLEFRIEND32"));
+        assertNull(DeviceInfo.decode("a\u001fb\u001fc\u001fd\u001fe"));
+    }
+
+    @Test
+    public void changedFirmware_isNotEqual() throws Exception {
+        DeviceInfo cached = new DeviceInfo("Adafruit Industries", "BLEFRIEND32", "QFACA10", "0.8.0");
+        assertNotEquals(cached, new DeviceInfo("Adafruit Industries", "BLEFRIEND32", "QFACA10", "0.8.1"));
+        assertNotEquals(cached, null);
+    }
+}
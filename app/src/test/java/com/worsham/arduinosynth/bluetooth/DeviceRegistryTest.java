@@ -0,0 +1,112 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the address keyed, signal ranked scan list registry.
+ */
+public class DeviceRegistryTest {
+
+    private static String address(int i) {
+        return String.format(Locale.US, "C4:7C:8D:%02X:%02X:%02X",
+                (i >> 16) & 0xFF, (i >> 8) & 0xFF, i & 0xFF);
+    }
+
+    private static long key(int i) {
+        return DeviceRegistry.parseAddress(address(i));
+    }
+
+    @Test
+    public void parseAddress_readsSixHexBytes() throws Exception {
+        assertEquals(0xC47C8D6A012FL, DeviceRegistry.parseAddress("C4:7C:8D:6A:01:2F"));
+        assertEquals(0xC47C8D6A012FL, DeviceRegistry.parseAddress("c4:7c:8d:6a:01:2f"));
+        assertEquals(0xFFFFFFFFFFFFL, DeviceRegistry.parseAddress("FF:FF:FF:FF:FF:FF"));
+        assertEquals(DeviceRegistry.NO_ADDRESS, DeviceRegistry.parseAddress(null));
+        assertEquals(DeviceRegistry.NO_ADDRESS, DeviceRegistry.parseAddress("C4:7C:8D:6A:01"));
+        assertEquals(DeviceRegistry.NO_ADDRESS, DeviceRegistry.parseAddress("C4-7C-8D-6A-01-2F"));
+        assertEquals(DeviceRegistry.NO_ADDRESS, DeviceRegistry.parseAddress("C4:7C:8D:6A:01:2G"));
+    }
+
+    @Test
+    public void update_ranksBySmoothedRssi() throws Exception {
+        DeviceRegistry<String> registry = new DeviceRegistry<>();
+        assertEquals(0, registry.update(key(1), "far", -90, 0));
+        assertEquals(0, registry.update(key(2), "near", -40, 0));
+        assertEquals(1, registry.update(key(3), "middle", -60, 0));
+        assertEquals("near", registry.get(0));
+        assertEquals("far", registry.get(2));
+
+        // One strong reading is smoothed and does not lift the far device past the middle one.
+        assertEquals(2, registry.update(key(1), "far", -30, 10));
+        assertEquals(-75f, registry.getRssi(2), 0.01f);
+        assertEquals(10, registry.getLastSeen(2));
+        for (int i = 0; i < 10; i++)
+            registry.update(key(1), "far", -30, 20);
+        assertEquals(0, registry.indexOf(key(1)));
+        assertEquals(key(1), registry.getAddress(0));
+        assertEquals(3, registry.size());
+    }
+
+    @Test
+    public void evict_dropsDevicesNotSeenWithinTheTtl() throws Exception {
+        DeviceRegistry<String> registry = new DeviceRegistry<>();
+        for (int i = 0; i < 10; i++)
+            registry.update(key(i), "d" + i, -50 - i, i * 100);
+        assertEquals(4, registry.evict(1000, 650));
+        assertEquals(6, registry.size());
+        for (int i = 0; i < 10; i++)
+            assertEquals(i < 4 ? -1 : i - 4, registry.indexOf(key(i)));
+        assertEquals("d4", registry.get(0));
+        // Evicted slots are reused.
+        assertEquals(0, registry.update(key(0), "back", -10, 1000));
+        assertEquals(7, registry.size());
+    }
+
+    @Test
+    public void randomTraffic_matchesAReferenceMap() throws Exception {
+        DeviceRegistry<String> registry = new DeviceRegistry<>();
+        Map<Long, Long> lastSeen = new HashMap<>();
+        Random random = new Random(7);
+        long now = 0;
+        for (int round = 0; round < 20000; round++) {
+            now += 1000;
+            int device = random.nextInt(600);
+            registry.update(key(device * 7919), address(device * 7919), -30 - random.nextInt(70), now);
+            lastSeen.put(key(device * 7919), now);
+            if (round % 500 == 499) {
+                registry.evict(now, 200000);
+                Long[] keys = lastSeen.keySet().toArray(new Long[0]);
+                for (Long k : keys) {
+                    if (now - lastSeen.get(k) > 200000)
+                        lastSeen.remove(k);
+                }
+                assertEquals(lastSeen.size(), registry.size());
+                for (int i = 0; i < 600; i++)
+                    assertEquals(lastSeen.containsKey(key(i * 7919)), registry.indexOf(key(i * 7919)) >= 0);
+                for (int p = 0; p < registry.size(); p++) {
+                    assertEquals(p, registry.indexOf(registry.getAddress(p)));
+                    if (p > 0)
+                        assertTrue(registry.getRssi(p - 1) >= registry.getRssi(p));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void clear_forgetsEveryDevice() throws Exception {
+        DeviceRegistry<String> registry = new DeviceRegistry<>();
+        registry.update(key(1), "a", -50, 0);
+        registry.clear();
+        assertEquals(0, registry.size());
+        assertEquals(-1, registry.indexOf(key(1)));
+        assertEquals(0, registry.update(key(1), "b", -50, 0));
+        assertEquals("b", registry.get(0));
+    }
+}
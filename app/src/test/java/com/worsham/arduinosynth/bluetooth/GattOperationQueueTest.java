@@ -0,0 +1,222 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the ordering, timeouts, retries and statistics of the GATT operation queue, with
+ * operations which record what the queue asks of them instead of touching a GATT connection.
+ */
+public class GattOperationQueueTest {
+
+    private static final int GATT_SUCCESS = 0;
+    private static final int GATT_FAILURE = 0x101;
+
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final GattOperationQueue queue = new GattOperationQueue(scheduler);
+    private final List<String> issued = new ArrayList<>();
+    private final List<String> completed = new ArrayList<>();
+
+    // Operation which logs each issue and completion, refusing the first few issues if told to.
+    private class FakeOp extends GattOperationQueue.Operation {
+        final String name;
+        int refusals;
+        int lastStatus = Integer.MIN_VALUE;
+
+        FakeOp(String name, int opClass, int callback) {
+            super(opClass, callback);
+            this.name = name;
+        }
+
+        @Override
+        protected boolean issue() {
+            issued.add(name);
+            if (refusals > 0) {
+                refusals--;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            lastStatus = status;
+            completed.add(name + ":" + status);
+        }
+    }
+
+    private FakeOp write(String name) {
+        return new FakeOp(name, GattOperationQueue.CLASS_WRITE,
+                GattOperationQueue.CALLBACK_CHARACTERISTIC_WRITE);
+    }
+
+    private FakeOp read(String name) {
+        return new FakeOp(name, GattOperationQueue.CLASS_READ,
+                GattOperationQueue.CALLBACK_CHARACTERISTIC_READ);
+    }
+
+    private FakeOp descriptor(String name) {
+        return new FakeOp(name, GattOperationQueue.CLASS_SETUP,
+                GattOperationQueue.CALLBACK_DESCRIPTOR_WRITE);
+    }
+
+    @Test
+    public void operations_areIssuedOneAtATime() {
+        queue.submit(read("r1"));
+        queue.submit(read("r2"));
+        assertEquals(1, issued.size());
+        assertTrue(queue.isBusy());
+        assertEquals(1, queue.size());
+
+        assertTrue(queue.complete(GattOperationQueue.CALLBACK_CHARACTERISTIC_READ, GATT_SUCCESS));
+        assertEquals(2, issued.size());
+        assertTrue(queue.complete(GattOperationQueue.CALLBACK_CHARACTERISTIC_READ, GATT_SUCCESS));
+        assertFalse(queue.isBusy());
+        assertEquals("[r1, r2]", issued.toString());
+        assertEquals("[r1:0, r2:0]", completed.toString());
+        assertEquals(0, scheduler.pending());
+    }
+
+    @Test
+    public void writes_jumpAheadOfQueuedSetupAndReads() {
+        queue.submit(read("r1"));
+        queue.submit(read("r2"));
+        queue.submit(descriptor("cccd"));
+        queue.submit(write("w1"));
+        queue.submit(write("w2"));
+
+        // The read in flight finishes, then everything queued goes by class.
+        queue.complete(GattOperationQueue.CALLBACK_CHARACTERISTIC_READ, GATT_SUCCESS);
+        queue.complete(GattOperationQueue.CALLBACK_CHARACTERISTIC_WRITE, GATT_SUCCESS);
+        queue.complete(GattOperationQueue.CALLBACK_CHARACTERISTIC_WRITE, GATT_SUCCESS);
+        queue.complete(GattOperationQueue.CALLBACK_DESCRIPTOR_WRITE, GATT_SUCCESS);
+        queue.complete(GattOperationQueue.CALLBACK_CHARACTERISTIC_READ, GATT_SUCCESS);
+        assertEquals("[r1, w1, w2, cccd, r2]", issued.toString());
+        assertEquals(2, queue.getWaitTime(GattOperationQueue.CLASS_WRITE).getCount());
+        assertEquals(1, queue.getWaitTime(GattOperationQueue.CLASS_SETUP).getCount());
+        assertEquals(2, queue.getWaitTime(GattOperationQueue.CLASS_READ).getCount());
+    }
+
+    @Test
+    public void callbacklessOperation_completesOnceAccepted() {
+        queue.submit(read("r1"));
+        FakeOp priority = new FakeOp("priority", GattOperationQueue.CLASS_SETUP,
+                GattOperationQueue.CALLBACK_NONE);
+        priority.refusals = 1;
+        queue.submit(priority);
+        queue.submit(read("r2"));
+
+        // Waits its turn, is offered again once refused, then frees the connection at once.
+        queue.complete(GattOperationQueue.CALLBACK_CHARACTERISTIC_READ, GATT_SUCCESS);
+        assertEquals("[r1, priority]", issued.toString());
+        scheduler.runPending();
+        assertEquals("[r1, priority, priority, r2]", issued.toString());
+        assertEquals(GattOperationQueue.STATUS_SUCCESS, priority.lastStatus);
+        assertEquals(1, queue.getRefusals());
+        assertTrue(queue.isBusy());
+    }
+
+    @Test
+    public void mismatchedCallback_isIgnored() {
+        FakeOp r1 = read("r1");
+        queue.submit(r1);
+        assertFalse(queue.complete(GattOperationQueue.CALLBACK_CHARACTERISTIC_WRITE, GATT_SUCCESS));
+        assertFalse(queue.complete(GattOperationQueue.CALLBACK_DESCRIPTOR_WRITE, GATT_SUCCESS));
+        assertTrue(queue.isBusy());
+        assertTrue(completed.isEmpty());
+
+        assertTrue(queue.complete(GattOperationQueue.CALLBACK_CHARACTERISTIC_READ, GATT_FAILURE));
+        assertEquals(GATT_FAILURE, r1.lastStatus);
+    }
+
+    @Test
+    public void timedOutOperation_isRetriedThenFailed() {
+        queue.setPolicy(GattOperationQueue.CLASS_READ, 2000, 1);
+        FakeOp r1 = read("r1");
+        queue.submit(r1);
+        queue.submit(read("r2"));
+        assertEquals(2000, scheduler.delayMillis());
+
+        scheduler.runPending();
+        assertEquals("[r1, r1]", issued.toString());
+        assertEquals(1, queue.getRetries());
+
+        scheduler.runPending();
+        assertEquals(GattOperationQueue.STATUS_TIMEOUT, r1.lastStatus);
+        assertEquals(2, queue.getTimeouts());
+        // The queue moves on, a retry is not counted as another wait.
+        assertEquals("[r1, r1, r2]", issued.toString());
+        assertEquals(2, queue.getWaitTime(GattOperationQueue.CLASS_READ).getCount());
+        assertTrue(queue.complete(GattOperationQueue.CALLBACK_CHARACTERISTIC_READ, GATT_SUCCESS));
+        assertEquals("[r1:-2, r2:0]", completed.toString());
+    }
+
+    @Test
+    public void timedOutWrite_isNotRetriedByDefault() {
+        FakeOp w1 = write("w1");
+        queue.submit(w1);
+        assertEquals(UartWriteQueue.DEFAULT_TIMEOUT_MILLIS, scheduler.delayMillis());
+        scheduler.runPending();
+        assertEquals(GattOperationQueue.STATUS_TIMEOUT, w1.lastStatus);
+        assertEquals(0, queue.getRetries());
+        assertFalse(queue.isBusy());
+    }
+
+    @Test
+    public void refusedOperation_isOfferedAgainShortly() {
+        FakeOp cccd = descriptor("cccd");
+        cccd.refusals = 2;
+        queue.submit(cccd);
+        assertEquals(GattOperationQueue.REFUSED_RETRY_MILLIS, scheduler.delayMillis());
+
+        // A callback can never belong to a refused operation.
+        assertFalse(queue.complete(GattOperationQueue.CALLBACK_DESCRIPTOR_WRITE, GATT_SUCCESS));
+        scheduler.runPending();
+        scheduler.runPending();
+        assertEquals(3, issued.size());
+        assertEquals(2, queue.getRefusals());
+        assertEquals(0, queue.getTimeouts());
+        assertTrue(queue.complete(GattOperationQueue.CALLBACK_DESCRIPTOR_WRITE, GATT_SUCCESS));
+        assertEquals(GATT_SUCCESS, cccd.lastStatus);
+    }
+
+    @Test
+    public void operationRefusedPastItsTimeout_fails() throws Exception {
+        queue.setPolicy(GattOperationQueue.CLASS_SETUP, 10, 2);
+        FakeOp cccd = descriptor("cccd");
+        cccd.refusals = Integer.MAX_VALUE;
+        queue.submit(cccd);
+        queue.submit(read("r1"));
+        Thread.sleep(20);
+        scheduler.runPending();
+        assertEquals(GattOperationQueue.STATUS_REFUSED, cccd.lastStatus);
+        assertEquals("[cccd, r1]", issued.toString());
+    }
+
+    @Test
+    public void clear_failsEveryOperation() {
+        FakeOp r1 = read("r1");
+        FakeOp w1 = write("w1");
+        FakeOp r2 = read("r2");
+        queue.submit(r1);
+        queue.submit(w1);
+        queue.submit(r2);
+        queue.clear();
+
+        assertEquals(GattOperationQueue.STATUS_DISCONNECTED, r1.lastStatus);
+        assertEquals(GattOperationQueue.STATUS_DISCONNECTED, w1.lastStatus);
+        assertEquals(GattOperationQueue.STATUS_DISCONNECTED, r2.lastStatus);
+        assertEquals(0, scheduler.pending());
+        assertFalse(queue.isBusy());
+        assertEquals(0, queue.size());
+
+        // Operations can be reused on the next connection.
+        queue.submit(w1);
+        assertEquals("[r1, w1]", issued.toString());
+        assertTrue(queue.getSummary().contains("gatt write"));
+    }
+}
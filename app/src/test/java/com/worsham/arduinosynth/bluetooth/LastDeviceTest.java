@@ -0,0 +1,31 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of how the last device's GATT handles are persisted and compared.
+ */
+public class LastDeviceTest {
+
+    @Test
+    public void handles_roundTrip() throws Exception {
+        int[] handles = {14, 17, 41, 43, -1, 47};
+        assertEquals("14,17,41,43,-1,47", LastDevice.formatHandles(handles));
+        assertArrayEquals(handles, LastDevice.parseHandles(LastDevice.formatHandles(handles)));
+        assertNull(LastDevice.formatHandles(null));
+        assertNull(LastDevice.parseHandles(null));
+        assertNull(LastDevice.parseHandles(""));
+        assertNull(LastDevice.parseHandles("14,x"));
+    }
+
+    @Test
+    public void hasHandles_matchesTheSameLayoutOnly() throws Exception {
+        LastDevice device = new LastDevice("C4:7C:8D:6A:01:2F", "ArdSynth", new int[] {14, 17});
+        assertTrue(device.hasHandles(new int[] {14, 17}));
+        assertFalse(device.hasHandles(new int[] {14, 18}));
+        assertFalse(device.hasHandles(null));
+        assertFalse(new LastDevice("C4:7C:8D:6A:01:2F", null, null).hasHandles(null));
+    }
+}
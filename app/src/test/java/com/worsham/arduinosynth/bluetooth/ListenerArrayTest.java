@@ -0,0 +1,110 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the copy-on-write listener array behind transport event delivery.
+ */
+public class ListenerArrayTest {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void addAndRemove_keepRegistrationOrder() throws Exception {
+        ListenerArray<String> array = new ListenerArray<>(new String[0]);
+        String a = "a", b = "b", c = "c";
+        assertTrue(array.add(a));
+        assertTrue(array.add(b));
+        assertFalse(array.add(a));
+        assertTrue(array.add(c));
+        assertArrayEquals(new String[]{a, b, c}, array.get());
+
+        String[] snapshot = array.get();
+        assertTrue(array.remove(b));
+        assertFalse(array.remove(b));
+        assertArrayEquals(new String[]{a, c}, array.get());
+        // A delivery already under way keeps iterating the old snapshot.
+        assertArrayEquals(new String[]{a, b, c}, snapshot);
+    }
+
+    @Test
+    public void registrationRacingDelivery_isSafe() throws Exception {
+        final ListenerArray<Object> array = new ListenerArray<>(new Object[0]);
+        final Object permanent = new Object();
+        array.add(permanent);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread registrar = new Thread() {
+            @Override
+            public void run() {
+                Object[] churn = new Object[8];
+                for (int i = 0; i < churn.length; i++)
+                    churn[i] = new Object();
+                while (running.get()) {
+                    for (Object o : churn)
+                        array.add(o);
+                    for (Object o : churn)
+                        array.remove(o);
+                }
+            }
+        };
+        registrar.start();
+
+        long deliveries = 0;
+        long deadline = System.nanoTime() + 200000000L;
+        while (System.nanoTime() < deadline) {
+            boolean found = false;
+            for (Object o : array.get()) {
+                assertNotNull(o);
+                found |= o == permanent;
+            }
+            assertTrue(found);
+            deliveries++;
+        }
+        running.set(false);
+        registrar.join();
+        assertTrue(deliveries > 0);
+        assertArrayEquals(new Object[]{permanent}, array.get());
+    }
+
+    @Test
+    public void delivery_doesNotAllocate() throws Exception {
+        ListenerArray<Runnable> array = new ListenerArray<>(new Runnable[0]);
+        final int[] calls = new int[1];
+        Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                calls[0]++;
+            }
+        };
+        array.add(listener);
+        array.add(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        long thread = Thread.currentThread().getId();
+        THREADS.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 20000; i++) {
+            for (Runnable r : array.get())
+                r.run();
+        }
+
+        // Best of a few runs, a background compilation can be charged to the thread.
+        long allocated = Long.MAX_VALUE;
+        for (int run = 0; run < 3 && allocated > 0; run++) {
+            long before = THREADS.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 100000; i++) {
+                for (Runnable r : array.get())
+                    r.run();
+            }
+            allocated = THREADS.getThreadAllocatedBytes(thread) - before;
+        }
+        assertEquals(0, allocated);
+    }
+}
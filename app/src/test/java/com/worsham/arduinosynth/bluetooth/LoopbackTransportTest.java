@@ -0,0 +1,212 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import com.worsham.arduinosynth.metrics.LatencyMonitor;
+import com.worsham.arduinosynth.protocol.PacketEncoder;
+import com.worsham.arduinosynth.protocol.SynthMessage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Load tests of the write queue and packet batching over the simulated loopback link.
+ */
+public class LoopbackTransportTest {
+
+    // Listener which collects everything the board sends back.
+    private static class Collector implements UartTransport.Listener {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final AtomicInteger notes = new AtomicInteger();
+        volatile int mtu;
+
+        @Override
+        public void onConnected(UartTransport transport) {
+            connected.countDown();
+        }
+
+        @Override
+        public void onDisconnected(UartTransport transport) {
+        }
+
+        @Override
+        public synchronized void onReceive(UartTransport transport, byte[] data, int offset, int length) {
+            received.write(data, offset, length);
+        }
+
+        @Override
+        public void onMessage(UartTransport transport, SynthMessage message) {
+            if (message.getType() == SynthMessage.Type.NOTE)
+                notes.incrementAndGet();
+        }
+
+        @Override
+        public void onMtuChanged(UartTransport transport, int mtu) {
+            this.mtu = mtu;
+        }
+
+        synchronized byte[] bytes() {
+            return received.toByteArray();
+        }
+    }
+
+    private static Collector connect(LoopbackTransport transport, int mtu) throws InterruptedException {
+        Collector collector = new Collector();
+        transport.registerListener(collector);
+        transport.connect(mtu);
+        assertTrue(collector.connected.await(1, TimeUnit.SECONDS));
+        return collector;
+    }
+
+    @Test
+    public void burstOfNotes_isBatchedAndDeliveredInOrder() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.setLatency(1000, 500);
+        transport.setBoard(LoopbackTransport.ECHO);
+        Collector collector = connect(transport, BluetoothLeUart.DEFAULT_MTU);
+
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(400);
+        UartWrite.Callback callback = new UartWrite.Callback() {
+            @Override
+            public void onWriteComplete(UartWrite write, int status) {
+                if (status != UartWrite.STATUS_SUCCESS)
+                    failures.incrementAndGet();
+                done.countDown();
+            }
+        };
+        byte[] packet = new byte[PacketEncoder.PACKET_SIZE];
+        for (int i = 0; i < 400; i++) {
+            PacketEncoder.encodeNote(packet, 0, (byte) (i % 8 + 1));
+            while (!transport.send(packet, 0, packet.length, callback))
+                Thread.sleep(1);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+
+        byte[] echoed = collector.bytes();
+        assertEquals(400 * PacketEncoder.PACKET_SIZE, echoed.length);
+        for (int i = 0; i < 400; i++)
+            assertEquals(i % 8 + 1, echoed[i * PacketEncoder.PACKET_SIZE + 2]);
+        // Echoed frames carry several packets each and are decoded back into every note.
+        assertEquals(400, collector.notes.get());
+        assertEquals(0, transport.getDecoder().getChecksumErrors());
+        // Notes sent faster than the link acknowledges them share frames.
+        assertTrue(transport.getFramesDelivered() * 3 < 400);
+        transport.disconnect();
+    }
+
+    @Test
+    public void notes_areTimedThroughEveryStage() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.setLatency(2000, 0);
+        transport.setBoard(LoopbackTransport.ECHO);
+        connect(transport, BluetoothLeUart.DEFAULT_MTU);
+        LatencyMonitor latency = transport.getLatencyMonitor();
+        latency.setEchoTracking(true);
+
+        byte[] packet = new byte[PacketEncoder.PACKET_SIZE];
+        for (int i = 0; i < 20; i++) {
+            long input = System.nanoTime();
+            PacketEncoder.encodeNote(packet, 0, (byte) 1);
+            assertTrue(transport.send(packet, 0, packet.length, input, null));
+            Thread.sleep(5);
+        }
+        long deadline = System.currentTimeMillis() + 2000;
+        while (latency.getHistogram(LatencyMonitor.STAGE_ECHO).getCount() < 20
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+
+        for (int stage : new int[]{LatencyMonitor.STAGE_DISPATCH, LatencyMonitor.STAGE_QUEUE,
+                LatencyMonitor.STAGE_ACK, LatencyMonitor.STAGE_ECHO, LatencyMonitor.STAGE_TOTAL})
+            assertEquals(20, latency.getHistogram(stage).getCount());
+        // Every note crosses the 2ms link once before it is acknowledged or echoed.
+        assertTrue(latency.getHistogram(LatencyMonitor.STAGE_ACK).getValueAtPercentile(50) >= 2000000);
+        assertTrue(latency.getHistogram(LatencyMonitor.STAGE_ECHO).getMin() >= 2000000);
+        assertTrue(latency.getHistogram(LatencyMonitor.STAGE_TOTAL).getMax()
+                >= latency.getHistogram(LatencyMonitor.STAGE_ACK).getMax());
+        assertEquals(20, latency.getQueueDepthHistogram().getCount());
+        assertTrue(latency.getSummary().contains("total"));
+        transport.disconnect();
+    }
+
+    @Test
+    public void negotiatedMtu_sizesFrames() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.setLatency(500, 0);
+        Collector collector = connect(transport, 247);
+        assertEquals(247, collector.mtu);
+        assertEquals(244, transport.getMaxPayloadSize());
+
+        UartWrite bulk = transport.send(new byte[1000], null);
+        assertEquals(UartWrite.STATUS_SUCCESS, (int) bulk.get(2, TimeUnit.SECONDS));
+        assertEquals(5, transport.getFramesDelivered());
+        transport.disconnect();
+    }
+
+    @Test
+    public void lostFrames_timeOutAndAreReported() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport(1, 20);
+        transport.setLatency(200, 0);
+        transport.setLossRate(0.25);
+        transport.setSeed(42);
+        connect(transport, BluetoothLeUart.DEFAULT_MTU);
+
+        int timedOut = 0;
+        for (int i = 0; i < 40; i++) {
+            UartWrite write = transport.send(new byte[]{'!', 'N', 1, 0}, null);
+            int status = write.get(1, TimeUnit.SECONDS);
+            if (status == UartWrite.STATUS_TIMEOUT)
+                timedOut++;
+            else
+                assertEquals(UartWrite.STATUS_SUCCESS, status);
+        }
+        assertEquals(transport.getFramesLost(), timedOut);
+        assertTrue(timedOut > 0);
+        transport.disconnect();
+    }
+
+    @Test
+    public void lostFrameInTheWindow_failsAloneOnceALaterFrameIsAcknowledged() throws Exception {
+        // Seeded so the third and sixth of eight frames are lost, with a deadline long enough
+        // that only the later acknowledgements can fail them within the test.
+        LoopbackTransport transport = new LoopbackTransport(4, 5000);
+        transport.setLatency(1000, 0);
+        transport.setLossRate(0.25);
+        transport.setSeed(1);
+        final ByteArrayOutputStream board = new ByteArrayOutputStream();
+        transport.setBoard(new LoopbackTransport.Board() {
+            @Override
+            public void onFrame(LoopbackTransport transport, byte[] frame) {
+                synchronized (board) {
+                    board.write(frame[0]);
+                }
+            }
+        });
+        connect(transport, BluetoothLeUart.DEFAULT_MTU);
+
+        // Each write fills a frame of its own, tagged with its index.
+        UartWrite[] writes = new UartWrite[8];
+        for (int i = 0; i < writes.length; i++) {
+            byte[] frame = new byte[transport.getMaxPayloadSize()];
+            frame[0] = (byte) i;
+            writes[i] = transport.send(frame, null);
+        }
+        StringBuilder statuses = new StringBuilder();
+        for (UartWrite write : writes)
+            statuses.append(write.get(1, TimeUnit.SECONDS) == UartWrite.STATUS_SUCCESS ? '.' : 'x');
+
+        assertEquals("..x..x..", statuses.toString());
+        assertEquals(2, transport.getFramesLost());
+        synchronized (board) {
+            assertArrayEquals(new byte[]{0, 1, 3, 4, 6, 7}, board.toByteArray());
+        }
+        assertEquals(UartWrite.STATUS_TIMEOUT, (int) writes[2].get(0, TimeUnit.SECONDS));
+        transport.disconnect();
+    }
+}
@@ -0,0 +1,43 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scheduler which runs pending tasks only when told to, like a handler in a test.
+ */
+class ManualScheduler implements Scheduler {
+
+    private final Map<Runnable, Long> tasks = new LinkedHashMap<>();
+
+    @Override
+    public synchronized void schedule(Runnable task, long delayMillis) {
+        tasks.put(task, delayMillis);
+    }
+
+    @Override
+    public synchronized void cancel(Runnable task) {
+        tasks.remove(task);
+    }
+
+    synchronized int pending() {
+        return tasks.size();
+    }
+
+    // Return the delay of the oldest pending task.
+    synchronized long delayMillis() {
+        return tasks.values().iterator().next();
+    }
+
+    void runPending() {
+        List<Runnable> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(tasks.keySet());
+            tasks.clear();
+        }
+        for (Runnable task : pending)
+            task.run();
+    }
+}
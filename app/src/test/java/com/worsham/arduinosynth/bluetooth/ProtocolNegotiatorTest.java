@@ -0,0 +1,107 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import com.worsham.arduinosynth.protocol.PacketEncoder;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of protocol version negotiation over the simulated loopback link.
+ */
+public class ProtocolNegotiatorTest {
+
+    // Board which answers version packets with the given version.
+    private static LoopbackTransport.Board answering(final int version) {
+        return new LoopbackTransport.Board() {
+            @Override
+            public void onFrame(LoopbackTransport transport, byte[] frame) {
+                for (int i = 0; i + PacketEncoder.PACKET_SIZE <= frame.length; i += PacketEncoder.PACKET_SIZE) {
+                    if (frame[i] == PacketEncoder.START && frame[i + 1] == PacketEncoder.CMD_VERSION) {
+                        byte[] answer = new byte[PacketEncoder.PACKET_SIZE];
+                        PacketEncoder.encodeVersion(answer, 0, version);
+                        transport.receive(answer, 0, answer.length);
+                    }
+                }
+            }
+        };
+    }
+
+    // Board which records what it was sent and never answers, like one predating the handshake.
+    private static class LegacyBoard implements LoopbackTransport.Board {
+        final CountDownLatch received = new CountDownLatch(1);
+        volatile byte[] first;
+
+        @Override
+        public void onFrame(LoopbackTransport transport, byte[] frame) {
+            if (first == null)
+                first = frame;
+            received.countDown();
+        }
+    }
+
+    // Callback which waits for the negotiated version.
+    private static class Negotiated implements ProtocolNegotiator.Callback {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile int version;
+
+        @Override
+        public void onProtocolNegotiated(UartTransport transport, int version) {
+            this.version = version;
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void extendedBoard_agreesOnExtendedProtocol() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.setLatency(500, 0);
+        transport.setBoard(answering(PacketEncoder.VERSION_EXTENDED));
+        Negotiated negotiated = new Negotiated();
+        ProtocolNegotiator negotiator = new ProtocolNegotiator(negotiated);
+        transport.registerListener(negotiator);
+        transport.connect(BluetoothLeUart.DEFAULT_MTU);
+
+        assertTrue(negotiated.done.await(1, TimeUnit.SECONDS));
+        assertEquals(PacketEncoder.VERSION_EXTENDED, negotiated.version);
+        assertEquals(PacketEncoder.VERSION_EXTENDED, negotiator.getVersion());
+        transport.disconnect();
+        assertEquals(PacketEncoder.VERSION_LEGACY, negotiator.getVersion());
+    }
+
+    @Test
+    public void newerBoard_isHeldToTheVersionOffered() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.setBoard(answering(9));
+        Negotiated negotiated = new Negotiated();
+        transport.registerListener(new ProtocolNegotiator(PacketEncoder.VERSION_EXTENDED, negotiated));
+        transport.connect(BluetoothLeUart.DEFAULT_MTU);
+
+        assertTrue(negotiated.done.await(1, TimeUnit.SECONDS));
+        assertEquals(PacketEncoder.VERSION_EXTENDED, negotiated.version);
+        transport.disconnect();
+    }
+
+    @Test
+    public void legacyBoard_staysOnLegacyPackets() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        LegacyBoard board = new LegacyBoard();
+        transport.setBoard(board);
+        Negotiated negotiated = new Negotiated();
+        ProtocolNegotiator negotiator = new ProtocolNegotiator(negotiated);
+        transport.registerListener(negotiator);
+        transport.connect(BluetoothLeUart.DEFAULT_MTU);
+
+        // The offer itself is a legacy packet an old board can skip.
+        assertTrue(board.received.await(1, TimeUnit.SECONDS));
+        assertEquals(PacketEncoder.PACKET_SIZE, board.first.length);
+        assertEquals(PacketEncoder.CMD_VERSION, board.first[1]);
+        assertEquals(PacketEncoder.VERSION_LATEST, board.first[2]);
+        assertFalse(negotiated.done.await(50, TimeUnit.MILLISECONDS));
+        assertEquals(PacketEncoder.VERSION_LEGACY, negotiator.getVersion());
+        transport.disconnect();
+    }
+}
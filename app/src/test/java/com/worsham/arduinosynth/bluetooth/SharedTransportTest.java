@@ -0,0 +1,237 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import com.worsham.arduinosynth.protocol.SynthMessage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of reference counting, the disconnect grace period and reconnection of a shared link,
+ * over the simulated loopback link.
+ */
+public class SharedTransportTest {
+
+    private static final long GRACE = 10000;
+
+    // Opens loopback links which come up straight away, remembering every link opened.
+    private static class Links implements SharedTransport.Factory<LoopbackTransport> {
+        final List<LoopbackTransport> opened = new ArrayList<>();
+        final List<String> addresses = new ArrayList<>();
+
+        @Override
+        public LoopbackTransport open(String address) {
+            LoopbackTransport transport = new LoopbackTransport();
+            transport.setLatency(0, 0);
+            opened.add(transport);
+            addresses.add(address);
+            return transport;
+        }
+    }
+
+    private final Links links = new Links();
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final SharedTransport<LoopbackTransport> shared =
+            new SharedTransport<>(links, scheduler, GRACE, new Backoff(100, 400, new Random(20)));
+
+    // Bring a link up and wait for it, as a board accepting the connection would.
+    private static void connect(LoopbackTransport transport) throws InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(1);
+        transport.registerListener(new UartTransport.Listener() {
+            @Override
+            public void onConnected(UartTransport transport) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onDisconnected(UartTransport transport) {
+            }
+
+            @Override
+            public void onReceive(UartTransport transport, byte[] data, int offset, int length) {
+            }
+
+            @Override
+            public void onMessage(UartTransport transport, SynthMessage message) {
+            }
+
+            @Override
+            public void onMtuChanged(UartTransport transport, int mtu) {
+            }
+        });
+        transport.connect(BluetoothLeUart.DEFAULT_MTU);
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void reacquireWithinGrace_reattachesToTheLiveLink() throws Exception {
+        LoopbackTransport first = shared.acquire("A", System.nanoTime());
+        connect(first);
+        assertEquals(1, shared.getColdAcquires());
+
+        shared.release(first, false);
+        assertEquals(1, scheduler.pending());
+        assertEquals(GRACE, scheduler.delayMillis());
+        assertTrue(first.isConnected());
+
+        // A rotation or app switch comes straight back.
+        LoopbackTransport second = shared.acquire("A", System.nanoTime());
+        assertSame(first, second);
+        assertEquals(0, scheduler.pending());
+        assertTrue(second.isConnected());
+        assertEquals(1, links.opened.size());
+        assertEquals(1, shared.getWarmAcquires());
+        assertEquals(2, shared.getReadyTime().getCount());
+    }
+
+    @Test
+    public void graceExpiry_closesTheLink() throws Exception {
+        final int[] closed = new int[1];
+        shared.setClosedListener(new SharedTransport.ClosedListener() {
+            @Override
+            public void onClosed() {
+                closed[0]++;
+            }
+        });
+        LoopbackTransport first = shared.acquire("A", System.nanoTime());
+        connect(first);
+        shared.release(first, false);
+        scheduler.runPending();
+
+        assertFalse(first.isConnected());
+        assertNull(shared.getTransport());
+        assertEquals(1, closed[0]);
+
+        LoopbackTransport second = shared.acquire("A", System.nanoTime());
+        assertNotSame(first, second);
+        assertEquals(2, links.opened.size());
+    }
+
+    @Test
+    public void linkIsKept_whileAnyHolderRemains() throws Exception {
+        LoopbackTransport first = shared.acquire("A", System.nanoTime());
+        connect(first);
+        shared.acquire("A", System.nanoTime());
+        assertEquals(2, shared.getHolders());
+
+        shared.release(first, true);
+        assertEquals(0, scheduler.pending());
+        assertTrue(first.isConnected());
+
+        // Releasing twice never drops a count held by someone else.
+        shared.release(first, false);
+        shared.release(first, false);
+        assertEquals(0, shared.getHolders());
+        assertEquals(1, scheduler.pending());
+    }
+
+    @Test
+    public void immediateRelease_closesWithoutWaiting() throws Exception {
+        LoopbackTransport first = shared.acquire("A", System.nanoTime());
+        connect(first);
+        shared.release(first, true);
+        assertEquals(0, scheduler.pending());
+        assertFalse(first.isConnected());
+        assertNull(shared.getTransport());
+    }
+
+    @Test
+    public void droppedLink_isReconnectedWhileHeld() throws Exception {
+        LoopbackTransport transport = shared.acquire("A", System.nanoTime());
+        connect(transport);
+
+        // The first attempt waits within the jittered base delay.
+        transport.drop();
+        assertEquals(1, scheduler.pending());
+        long delay = scheduler.delayMillis();
+        assertTrue(delay >= 50 && delay <= 100);
+        final CountDownLatch reconnected = new CountDownLatch(1);
+        transport.registerListener(new UartTransport.Listener() {
+            @Override
+            public void onConnected(UartTransport transport) {
+                reconnected.countDown();
+            }
+
+            @Override
+            public void onDisconnected(UartTransport transport) {
+            }
+
+            @Override
+            public void onReceive(UartTransport transport, byte[] data, int offset, int length) {
+            }
+
+            @Override
+            public void onMessage(UartTransport transport, SynthMessage message) {
+            }
+
+            @Override
+            public void onMtuChanged(UartTransport transport, int mtu) {
+            }
+        });
+        scheduler.runPending();
+        assertTrue(reconnected.await(5, TimeUnit.SECONDS));
+        assertEquals(1, shared.getReconnects());
+        assertTrue(transport.isConnected());
+        assertSame(transport, shared.getTransport());
+        assertEquals(1, links.opened.size());
+
+        // A success starts the backoff again from the base delay.
+        transport.drop();
+        assertTrue(scheduler.delayMillis() <= 100);
+    }
+
+    @Test
+    public void droppedLink_isNotReconnectedOnceReleased() throws Exception {
+        LoopbackTransport transport = shared.acquire("A", System.nanoTime());
+        connect(transport);
+        transport.drop();
+        shared.release(transport, false);
+        // Only the grace period close is left.
+        assertEquals(1, scheduler.pending());
+        assertEquals(GRACE, scheduler.delayMillis());
+
+        // A returning holder reconnects straight away without waiting out the backoff.
+        assertSame(transport, shared.acquire("A", System.nanoTime()));
+        assertEquals(0, scheduler.pending());
+        assertEquals(1, shared.getReconnects());
+    }
+
+    @Test
+    public void anotherBoard_orAClosedLink_opensANewLink() throws Exception {
+        LoopbackTransport first = shared.acquire("A", System.nanoTime());
+        connect(first);
+        shared.release(first, false);
+
+        LoopbackTransport second = shared.acquire("B", System.nanoTime());
+        assertNotSame(first, second);
+        assertFalse(first.isConnected());
+        assertEquals("B", links.addresses.get(1));
+        connect(second);
+        shared.release(second, false);
+
+        // The link was closed behind the shared link's back.
+        second.disconnect();
+        LoopbackTransport third = shared.acquire("B", System.nanoTime());
+        assertNotSame(second, third);
+        assertEquals(3, links.opened.size());
+    }
+
+    @Test
+    public void coldAcquire_recordsTheWaitForTheLink() throws Exception {
+        long requested = System.nanoTime();
+        LoopbackTransport transport = shared.acquire("A", requested);
+        assertEquals(0, shared.getReadyTime().getCount());
+        Thread.sleep(20);
+        connect(transport);
+        assertEquals(1, shared.getReadyTime().getCount());
+        assertTrue(shared.getReadyTime().getMax() >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(shared.getReadyTime().getMax() <= System.nanoTime() - requested);
+        assertTrue(shared.getSummary().contains("warm 0/1"));
+    }
+}
@@ -0,0 +1,343 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import com.worsham.arduinosynth.protocol.FrameEncoder;
+import com.worsham.arduinosynth.protocol.PacketEncoder;
+import com.worsham.arduinosynth.protocol.SynthMessage;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of routing notes to several boards, and of their links staying independent, over
+ * simulated loopback links to legacy boards.
+ */
+public class TransportGroupTest {
+
+    // Legacy board counting the note and octave packets it is sent, and the frames carrying them.
+    private static class CountingBoard implements LoopbackTransport.Board {
+        final AtomicInteger notes = new AtomicInteger();
+        final AtomicInteger octaves = new AtomicInteger();
+        final AtomicInteger frames = new AtomicInteger();
+        volatile int lastOctave = -1;
+
+        @Override
+        public void onFrame(LoopbackTransport transport, byte[] frame) {
+            boolean counted = false;
+            for (int i = 0; i + PacketEncoder.PACKET_SIZE <= frame.length; i += PacketEncoder.PACKET_SIZE) {
+                if (frame[i + 1] == PacketEncoder.CMD_NOTE) {
+                    notes.incrementAndGet();
+                } else if (frame[i + 1] == PacketEncoder.CMD_OCTAVE) {
+                    octaves.incrementAndGet();
+                    lastOctave = frame[i + 2];
+                } else {
+                    continue;
+                }
+                if (!counted) {
+                    frames.incrementAndGet();
+                    counted = true;
+                }
+            }
+        }
+    }
+
+    // Extended board which answers the version offer and checks that every write carries only
+    // whole packets and frames, counting the note ons and octaves in them.
+    private static class FramingBoard implements LoopbackTransport.Board {
+        final AtomicInteger notes = new AtomicInteger();
+        final AtomicInteger octaves = new AtomicInteger();
+        final AtomicInteger splitWrites = new AtomicInteger();
+        volatile int largestWrite;
+
+        @Override
+        public void onFrame(LoopbackTransport transport, byte[] frame) {
+            largestWrite = Math.max(largestWrite, frame.length);
+            int i = 0;
+            while (i < frame.length) {
+                if (frame[i] == PacketEncoder.START && i + PacketEncoder.PACKET_SIZE <= frame.length) {
+                    if (frame[i + 1] == PacketEncoder.CMD_VERSION) {
+                        byte[] answer = new byte[PacketEncoder.PACKET_SIZE];
+                        PacketEncoder.encodeVersion(answer, 0, PacketEncoder.VERSION_EXTENDED);
+                        transport.receive(answer, 0, answer.length);
+                    } else if (frame[i + 1] == PacketEncoder.CMD_OCTAVE) {
+                        octaves.incrementAndGet();
+                    }
+                    i += PacketEncoder.PACKET_SIZE;
+                } else if (frame[i] == FrameEncoder.START && i + 1 < frame.length
+                        && i + frame[i + 1] + FrameEncoder.OVERHEAD <= frame.length) {
+                    int end = i + FrameEncoder.HEADER_SIZE + frame[i + 1];
+                    int status = 0;
+                    for (int j = i + FrameEncoder.HEADER_SIZE; j < end; j += 2) {
+                        if ((frame[j] & 0x80) != 0) {
+                            status = frame[j++] & 0xF0;
+                        }
+                        if (status == FrameEncoder.STATUS_NOTE_ON) {
+                            notes.incrementAndGet();
+                        }
+                    }
+                    i = end + 1;
+                } else {
+                    splitWrites.incrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    private final TransportGroup group = new TransportGroup(null);
+    private final List<LoopbackTransport> transports = new ArrayList<>();
+    private final List<CountingBoard> boards = new ArrayList<>();
+    private final Map<UartTransport, CountDownLatch> links = new ConcurrentHashMap<>();
+
+    @After
+    public void tearDown() {
+        group.clear();
+        for (LoopbackTransport transport : transports)
+            transport.disconnect();
+    }
+
+    // Connect a board to the group over a link with the given one way delay.
+    private LoopbackTransport addBoard(long latencyMicros, int creditWindow) throws InterruptedException {
+        LoopbackTransport transport = addBoard(latencyMicros, creditWindow, new CountDownLatch(0));
+        connect(transport);
+        return transport;
+    }
+
+    // Add a board to the group whose link is not up yet.
+    private LoopbackTransport addBoard(long latencyMicros, int creditWindow, final CountDownLatch connected) {
+        LoopbackTransport transport = new LoopbackTransport(creditWindow);
+        transport.setLatency(latencyMicros, 0);
+        CountingBoard board = new CountingBoard();
+        transport.setBoard(board);
+        links.put(transport, connected);
+        transport.registerListener(new UartTransport.Listener() {
+            @Override
+            public void onConnected(UartTransport transport) {
+                links.get(transport).countDown();
+            }
+
+            @Override
+            public void onDisconnected(UartTransport transport) {
+            }
+
+            @Override
+            public void onReceive(UartTransport transport, byte[] data, int offset, int length) {
+            }
+
+            @Override
+            public void onMessage(UartTransport transport, SynthMessage message) {
+            }
+
+            @Override
+            public void onMtuChanged(UartTransport transport, int mtu) {
+            }
+        });
+        group.add(transport);
+        transports.add(transport);
+        boards.add(board);
+        return transport;
+    }
+
+    // Bring a board's link up and wait for it.
+    private void connect(LoopbackTransport transport) throws InterruptedException {
+        CountDownLatch connected = new CountDownLatch(1);
+        links.put(transport, connected);
+        transport.connect(BluetoothLeUart.DEFAULT_MTU);
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+    }
+
+    // Wait until a board has been sent the given number of octaves.
+    private static void awaitOctaves(CountingBoard board, int octaves) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (board.octaves.get() < octaves && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertEquals(octaves, board.octaves.get());
+    }
+
+    // Wait until a board has been sent the given number of notes.
+    private static void awaitNotes(CountingBoard board, int notes) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (board.notes.get() < notes && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertEquals(notes, board.notes.get());
+    }
+
+    @Test
+    public void layeredBoards_allPlayEveryNote() throws Exception {
+        addBoard(0, 1);
+        addBoard(0, 1);
+        addBoard(0, 1);
+        group.setOctave(4);
+        assertEquals(3, group.noteOn(60, 100, System.nanoTime()));
+        assertEquals(3, group.noteOn(64, 100, System.nanoTime()));
+        for (CountingBoard board : boards)
+            awaitNotes(board, 2);
+        assertEquals(1, boards.get(2).octaves.get());
+        assertEquals(3, group.getSent(0));
+        assertEquals(2, group.getFanOutTime().getCount());
+    }
+
+    @Test
+    public void untimedNotes_areLeftOutOfTheFanOutTime() throws Exception {
+        addBoard(0, 1);
+        group.noteOn(60, 100, System.nanoTime());
+        group.noteOn(62, 100, 0);
+        group.noteOff(62, 0);
+        awaitNotes(boards.get(0), 2);
+        assertEquals(1, group.getFanOutTime().getCount());
+        assertTrue(group.getFanOutTime().getMax() < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void split_sendsEachNoteToOneBoard() throws Exception {
+        addBoard(0, 1);
+        addBoard(0, 1);
+        group.split(60, 71);
+        assertEquals(TransportGroup.LOWEST_NOTE, group.getLowNote(0));
+        assertEquals(65, group.getHighNote(0));
+        assertEquals(66, group.getLowNote(1));
+        assertEquals(TransportGroup.HIGHEST_NOTE, group.getHighNote(1));
+
+        // Notes beyond the split range go to the nearest zone.
+        group.noteOn(48, 100, System.nanoTime());
+        group.noteOn(60, 100, System.nanoTime());
+        group.noteOn(67, 100, System.nanoTime());
+        group.noteOn(84, 100, System.nanoTime());
+        group.noteOn(85, 100, System.nanoTime());
+        awaitNotes(boards.get(0), 2);
+        awaitNotes(boards.get(1), 3);
+    }
+
+    @Test
+    public void noteOff_followsItsNoteOnAcrossARouteChange() throws Exception {
+        addBoard(0, 1);
+        addBoard(0, 1);
+        group.setRange(0, 60, 60);
+        group.setRange(1, 61, 60);
+        assertEquals(1, group.noteOn(60, 100, System.nanoTime()));
+
+        // Rerouted while held, legacy boards have no note off to send but the note is released.
+        group.layer();
+        assertEquals(0, group.noteOff(60, System.nanoTime()));
+        assertEquals(0, group.noteOff(60, System.nanoTime()));
+        assertEquals(2, group.noteOn(60, 100, System.nanoTime()));
+    }
+
+    @Test
+    public void slowBoard_neverStallsTheOthers() throws Exception {
+        LoopbackTransport slow = addBoard(200000, 1);
+        addBoard(0, 1);
+        for (int i = 0; i < 20; i++) {
+            group.noteOn(60 + (i % 12), 100, System.nanoTime());
+            Thread.sleep(1);
+        }
+        // The fast board has every note while the slow one still holds most of them queued.
+        awaitNotes(boards.get(1), 20);
+        assertTrue(slow.getPendingWrites() > 0);
+        assertTrue(boards.get(0).notes.get() < 20);
+        assertEquals(20, group.getSent(0));
+        assertEquals(0, group.getDropped(0));
+        assertTrue(group.getSummary().contains("boards 2"));
+    }
+
+    @Test
+    public void downBoard_countsDropsWithoutAffectingTheRest() throws Exception {
+        LoopbackTransport down = addBoard(0, 1);
+        addBoard(0, 1);
+        down.disconnect();
+        assertEquals(1, group.noteOn(60, 100, System.nanoTime()));
+        assertEquals(1, group.getDropped(0));
+        assertEquals(0, group.getDropped(1));
+        awaitNotes(boards.get(1), 1);
+    }
+
+    @Test
+    public void sameOctave_isNotSentAgain() throws Exception {
+        addBoard(0, 1);
+        assertEquals(1, group.setOctave(4));
+        assertEquals(0, group.setOctave(4));
+        assertEquals(1, group.getSuppressed());
+
+        // A legacy note in another octave moves the board, so going back is sent.
+        group.noteOn(74, 100, System.nanoTime());
+        assertEquals(0, group.setOctave(5));
+        assertEquals(1, group.setOctave(4));
+        awaitNotes(boards.get(0), 1);
+        awaitOctaves(boards.get(0), 3);
+        assertEquals(4, boards.get(0).lastOctave);
+    }
+
+    @Test
+    public void octaveWhileDown_isSentOnceTheLinkComesUp() throws Exception {
+        LoopbackTransport late = addBoard(0, 1, new CountDownLatch(1));
+        assertEquals(0, group.setOctave(6));
+        assertEquals(0, group.getDropped(0));
+        assertEquals(0, group.getSuppressed());
+        connect(late);
+        assertTrue(group.resync(late));
+        awaitOctaves(boards.get(0), 1);
+        assertEquals(6, boards.get(0).lastOctave);
+    }
+
+    @Test
+    public void resync_replaysTheWholeStateInOneWrite() throws Exception {
+        LoopbackTransport transport = addBoard(0, 1);
+        group.setOctave(4);
+        group.noteOn(60, 100, System.nanoTime());
+        group.noteOn(64, 100, System.nanoTime());
+        awaitNotes(boards.get(0), 2);
+        int frames = boards.get(0).frames.get();
+
+        // As after the board reset with its link: the octave and both held notes, one frame.
+        assertTrue(group.resync(transport));
+        awaitNotes(boards.get(0), 4);
+        awaitOctaves(boards.get(0), 2);
+        assertEquals(frames + 1, boards.get(0).frames.get());
+        assertEquals(1, group.getReplays());
+        assertEquals(0, group.setOctave(4));
+    }
+
+    @Test
+    public void resync_neverSplitsAFrameOverTheMinimumMtu() throws Exception {
+        LoopbackTransport transport = addBoard(0, 1, new CountDownLatch(1));
+        FramingBoard board = new FramingBoard();
+        transport.setBoard(board);
+        connect(transport);
+        assertEquals(20, transport.getMaxPayloadSize());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (group.getVersion(0) != PacketEncoder.VERSION_EXTENDED && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertEquals(PacketEncoder.VERSION_EXTENDED, group.getVersion(0));
+
+        group.setOctave(4);
+        for (int note = 60; note < 72; note++)
+            group.noteOn(note, 100, System.nanoTime());
+        awaitCount(board.notes, 12);
+
+        // The octave packet and twelve held notes overflow one 20 byte payload, each write
+        // still carries whole frames.
+        assertTrue(group.resync(transport));
+        awaitCount(board.notes, 24);
+        awaitCount(board.octaves, 2);
+        assertEquals(0, board.splitWrites.get());
+        assertTrue(board.largestWrite <= transport.getMaxPayloadSize());
+        assertEquals(1, group.getReplays());
+    }
+
+    // Wait until a counter reaches the given value.
+    private static void awaitCount(AtomicInteger counter, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (counter.get() < count && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertEquals(count, counter.get());
+    }
+}
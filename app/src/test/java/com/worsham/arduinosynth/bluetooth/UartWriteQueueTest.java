@@ -0,0 +1,348 @@
+package com.worsham.arduinosynth.bluetooth;
+
+import com.worsham.arduinosynth.protocol.PacketEncoder;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the asynchronous UART write queue.
+ */
+public class UartWriteQueueTest {
+
+    // Sink which records writes and leaves them unacknowledged.
+    private static class RecordingSink implements UartWriteQueue.Sink {
+        final List<byte[]> writes = new ArrayList<>();
+
+        @Override
+        public synchronized boolean write(byte[] data, long sequence) {
+            writes.add(data.clone());
+            notifyAll();
+            return true;
+        }
+
+        synchronized void awaitWrites(int n) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (writes.size() < n && System.currentTimeMillis() < deadline)
+                wait(50);
+        }
+    }
+
+    @Test
+    public void enqueue_doesNotBlockAndIssuesNextWriteOnAck() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        UartWriteQueue queue = new UartWriteQueue(sink, 8, 5000);
+
+        UartWrite first = queue.enqueue(new byte[]{1}, null);
+        sink.awaitWrites(1);
+        UartWrite second = queue.enqueue(new byte[]{2}, null);
+        assertFalse(first.isDone());
+        assertEquals(1, sink.writes.size());
+
+        queue.onWriteComplete(UartWrite.STATUS_SUCCESS);
+        assertEquals(UartWrite.STATUS_SUCCESS, (int) first.get(1, TimeUnit.SECONDS));
+        sink.awaitWrites(2);
+        assertEquals(2, sink.writes.get(1)[0]);
+        assertFalse(second.isDone());
+        queue.shutdown();
+    }
+
+    @Test
+    public void enqueue_rejectsWhenFull() throws Exception {
+        UartWriteQueue queue = new UartWriteQueue(new RecordingSink(), 1, 5000);
+
+        queue.enqueue(new byte[]{1}, null);
+        queue.enqueue(new byte[]{2}, null);
+        UartWrite rejected = null;
+        for (int i = 0; i < 3 && rejected == null; i++) {
+            UartWrite write = queue.enqueue(new byte[]{3}, null);
+            if (write.isDone())
+                rejected = write;
+        }
+        assertNotNull(rejected);
+        assertEquals(UartWrite.STATUS_QUEUE_FULL, rejected.getStatus());
+        queue.shutdown();
+    }
+
+    @Test
+    public void unacknowledgedWrite_timesOut() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        UartWriteQueue queue = new UartWriteQueue(sink, 8, 50);
+
+        UartWrite first = queue.enqueue(new byte[]{1}, null);
+        sink.awaitWrites(1);
+        queue.enqueue(new byte[]{2}, null);
+        assertEquals(UartWrite.STATUS_TIMEOUT, (int) first.get(1, TimeUnit.SECONDS));
+        sink.awaitWrites(2);
+        assertEquals(2, sink.writes.size());
+        queue.shutdown();
+    }
+
+    @Test
+    public void shutdown_failsPendingWrites() throws Exception {
+        UartWriteQueue queue = new UartWriteQueue(new RecordingSink(), 8, 5000);
+
+        UartWrite first = queue.enqueue(new byte[]{1}, null);
+        UartWrite second = queue.enqueue(new byte[]{2}, null);
+        queue.shutdown();
+        assertEquals(UartWrite.STATUS_DISCONNECTED, (int) first.get(1, TimeUnit.SECONDS));
+        assertEquals(UartWrite.STATUS_DISCONNECTED, (int) second.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void packetsQueuedBehindInFlightWrite_arePackedIntoOneFrame() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        UartWriteQueue queue = new UartWriteQueue(sink, 16, 5000);
+
+        queue.enqueue(new byte[]{'!', 'N', 1, 0}, null);
+        sink.awaitWrites(1);
+        UartWrite[] packed = new UartWrite[6];
+        for (int i = 0; i < packed.length; i++)
+            packed[i] = queue.enqueue(new byte[]{'!', 'N', (byte) (i + 2), 0}, null);
+
+        queue.onWriteComplete(UartWrite.STATUS_SUCCESS);
+        sink.awaitWrites(2);
+        assertEquals(PacketBatcher.DEFAULT_FRAME_SIZE, sink.writes.get(1).length);
+        assertEquals(2, sink.writes.get(1)[2]);
+        assertEquals(6, sink.writes.get(1)[18]);
+
+        queue.onWriteComplete(UartWrite.STATUS_SUCCESS);
+        assertEquals(UartWrite.STATUS_SUCCESS, (int) packed[4].get(1, TimeUnit.SECONDS));
+        sink.awaitWrites(3);
+        assertEquals(4, sink.writes.get(2).length);
+        queue.shutdown();
+    }
+
+    @Test
+    public void flushDelay_holdsPartialFrameUntilDeadline() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        UartWriteQueue queue = new UartWriteQueue(sink, 16, 5000);
+        queue.setFlushDelay(200000);
+
+        queue.enqueue(new byte[]{'!', 'N', 1, 0}, null);
+        queue.enqueue(new byte[]{'!', 'N', 2, 0}, null);
+        sink.awaitWrites(1);
+        assertEquals(1, sink.writes.size());
+        assertEquals(8, sink.writes.get(0).length);
+        queue.shutdown();
+    }
+
+    @Test
+    public void bulkWrite_isSlicedToMaxFrameSize() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        UartWriteQueue queue = new UartWriteQueue(sink, 16, 5000);
+        queue.setMaxFrameSize(8);
+
+        byte[] bulk = new byte[20];
+        for (int i = 0; i < bulk.length; i++)
+            bulk[i] = (byte) i;
+        UartWrite write = queue.enqueue(bulk, null);
+
+        for (int frame = 1; frame <= 3; frame++) {
+            sink.awaitWrites(frame);
+            assertFalse(write.isDone());
+            queue.onWriteComplete(UartWrite.STATUS_SUCCESS);
+        }
+        assertEquals(UartWrite.STATUS_SUCCESS, (int) write.get(1, TimeUnit.SECONDS));
+        assertEquals(8, sink.writes.get(0).length);
+        assertEquals(0, sink.writes.get(0)[0]);
+        assertEquals(8, sink.writes.get(1)[0]);
+        assertEquals(4, sink.writes.get(2).length);
+        assertEquals(19, sink.writes.get(2)[3]);
+        queue.shutdown();
+    }
+
+    // Sink which acknowledges every frame after a fixed link delay.
+    private static class DelayedAckSink implements UartWriteQueue.Sink {
+        final ScheduledExecutorService link = Executors.newSingleThreadScheduledExecutor();
+        final long delayMicros;
+        UartWriteQueue queue;
+
+        DelayedAckSink(long delayMicros) {
+            this.delayMicros = delayMicros;
+        }
+
+        @Override
+        public boolean write(byte[] data, long sequence) {
+            link.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    queue.onWriteComplete(UartWrite.STATUS_SUCCESS);
+                }
+            }, delayMicros, TimeUnit.MICROSECONDS);
+            return true;
+        }
+    }
+
+    // Time how long it takes to push the given number of 4 byte packets through the queue.
+    private static long timeTransfer(int creditWindow, int packets) throws Exception {
+        DelayedAckSink sink = new DelayedAckSink(2000);
+        UartWriteQueue queue = new UartWriteQueue(sink, packets, 5000);
+        sink.queue = queue;
+        queue.setCreditWindow(creditWindow);
+
+        long start = System.nanoTime();
+        UartWrite last = null;
+        for (int i = 0; i < packets; i++)
+            last = queue.enqueue(new byte[]{'!', 'N', 1, 0}, null);
+        assertEquals(UartWrite.STATUS_SUCCESS, (int) last.get(10, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+        queue.shutdown();
+        sink.link.shutdown();
+        return elapsed;
+    }
+
+    @Test
+    public void creditWindow_outpacesAcknowledgedWrites() throws Exception {
+        // Same packets over the same simulated link, acknowledged one frame per round trip
+        // versus write without response with four frames buffered in the stack.
+        long reliable = timeTransfer(1, 400);
+        long fast = timeTransfer(BluetoothLeUart.FAST_CREDIT_WINDOW, 400);
+        assertTrue("reliable " + reliable / 1000000 + " ms, fast " + fast / 1000000 + " ms",
+                fast * 2 < reliable);
+    }
+
+    @Test
+    public void busyTransport_isRetriedAndBackpressureSignalled() throws Exception {
+        final AtomicBoolean busy = new AtomicBoolean(true);
+        final RecordingSink recorder = new RecordingSink();
+        UartWriteQueue.Sink sink = new UartWriteQueue.Sink() {
+            @Override
+            public boolean write(byte[] data, long sequence) {
+                return !busy.get() && recorder.write(data, sequence);
+            }
+        };
+        final List<Boolean> signals = new ArrayList<>();
+        UartWriteQueue queue = new UartWriteQueue(sink, 8, 5000);
+        queue.setBackpressureListener(new UartWriteQueue.BackpressureListener() {
+            @Override
+            public void onBackpressure(UartWriteQueue queue, boolean stalled) {
+                synchronized (signals) {
+                    signals.add(stalled);
+                }
+            }
+        });
+        queue.setMaxFrameSize(4);
+
+        UartWrite last = null;
+        for (int i = 0; i < 8; i++)
+            last = queue.enqueue(new byte[]{'!', 'N', (byte) i, 0}, null);
+        Thread.sleep(20);
+        assertTrue(queue.isStalled());
+        assertTrue(queue.getBusyRetries() > 0);
+
+        busy.set(false);
+        for (int i = 1; i <= 8; i++) {
+            recorder.awaitWrites(i);
+            queue.onWriteComplete(UartWrite.STATUS_SUCCESS);
+        }
+        assertEquals(UartWrite.STATUS_SUCCESS, (int) last.get(1, TimeUnit.SECONDS));
+        assertFalse(queue.isStalled());
+        synchronized (signals) {
+            assertEquals(2, signals.size());
+            assertTrue(signals.get(0));
+            assertFalse(signals.get(1));
+        }
+        queue.shutdown();
+    }
+
+    // GATT operation which succeeds at once, standing in for a note write or a setup step.
+    private static class AcceptedOp extends GattOperationQueue.Operation {
+        private final UartWriteQueue queue;
+        private final long sequence;
+
+        AcceptedOp(int opClass, int callback, UartWriteQueue queue, long sequence) {
+            super(opClass, callback);
+            this.queue = queue;
+            this.sequence = sequence;
+        }
+
+        @Override
+        protected boolean issue() {
+            return true;
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            if (queue != null)
+                queue.onWriteComplete(sequence, status);
+        }
+    }
+
+    @Test
+    public void lateAck_ofATimedOutFrameIsNotCreditedToTheNext() throws Exception {
+        final GattOperationQueue gatt = new GattOperationQueue(new ManualScheduler());
+        final UartWriteQueue[] holder = new UartWriteQueue[1];
+        final RecordingSink submitted = new RecordingSink();
+        UartWriteQueue queue = new UartWriteQueue(new UartWriteQueue.Sink() {
+            @Override
+            public boolean write(byte[] data, long sequence) {
+                gatt.submit(new AcceptedOp(GattOperationQueue.CLASS_WRITE,
+                        GattOperationQueue.CALLBACK_CHARACTERISTIC_WRITE, holder[0], sequence));
+                return submitted.write(data, sequence);
+            }
+        }, 8, 200);
+        holder[0] = queue;
+
+        // A slow setup step holds the GATT queue past the first note's write queue timeout.
+        gatt.submit(new AcceptedOp(GattOperationQueue.CLASS_SETUP,
+                GattOperationQueue.CALLBACK_DESCRIPTOR_WRITE, null, 0));
+        UartWrite first = queue.enqueue(new byte[]{1}, null);
+        assertEquals(UartWrite.STATUS_TIMEOUT, (int) first.get(2, TimeUnit.SECONDS));
+        UartWrite second = queue.enqueue(new byte[]{2}, null);
+        submitted.awaitWrites(2);
+
+        // The first note goes out and is acknowledged late, the second is still unanswered.
+        assertTrue(gatt.complete(GattOperationQueue.CALLBACK_DESCRIPTOR_WRITE, UartWrite.STATUS_SUCCESS));
+        assertTrue(gatt.complete(GattOperationQueue.CALLBACK_CHARACTERISTIC_WRITE, UartWrite.STATUS_SUCCESS));
+        Thread.sleep(20);
+        assertFalse(second.isDone());
+
+        assertTrue(gatt.complete(GattOperationQueue.CALLBACK_CHARACTERISTIC_WRITE, UartWrite.STATUS_SUCCESS));
+        assertEquals(UartWrite.STATUS_SUCCESS, (int) second.get(1, TimeUnit.SECONDS));
+        queue.shutdown();
+    }
+
+    @Test
+    public void pooledEnqueue_doesNotAllocatePerPacket() throws Exception {
+        final UartWriteQueue[] holder = new UartWriteQueue[1];
+        UartWriteQueue queue = new UartWriteQueue(new UartWriteQueue.Sink() {
+            @Override
+            public boolean write(byte[] data, long sequence) {
+                holder[0].onWriteComplete(UartWrite.STATUS_SUCCESS);
+                return true;
+            }
+        }, 64, 5000);
+        holder[0] = queue;
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        byte[] packet = new byte[PacketEncoder.PACKET_SIZE];
+
+        long allocated = 0;
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up, only the second is measured.
+            long before = bean.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 20000; i++) {
+                // Stay well inside the pool, a burst beyond it falls back to allocating.
+                while (queue.size() > 16)
+                    Thread.yield();
+                PacketEncoder.encodeNote(packet, 0, (byte) (i & 7));
+                assertTrue(queue.enqueue(packet, 0, packet.length, null));
+            }
+            allocated = bean.getThreadAllocatedBytes(thread) - before;
+        }
+        assertEquals(0, allocated);
+        queue.shutdown();
+    }
+}
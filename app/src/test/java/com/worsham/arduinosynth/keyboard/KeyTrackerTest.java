@@ -0,0 +1,90 @@
+package com.worsham.arduinosynth.keyboard;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for turning touch pointers into key presses.
+ */
+public class KeyTrackerTest {
+
+    // Listener which records presses as "+3@10" and releases as "-3@20".
+    private static class Recorder implements KeyTracker.Listener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onKeyDown(int key, long eventNanos) {
+            events.add("+" + key + "@" + eventNanos);
+        }
+
+        @Override
+        public void onKeyUp(int key, long eventNanos) {
+            events.add("-" + key + "@" + eventNanos);
+        }
+
+        String take() {
+            String text = events.toString();
+            events.clear();
+            return text;
+        }
+    }
+
+    @Test
+    public void key_soundsFromTouchDownToLift() throws Exception {
+        Recorder recorder = new Recorder();
+        KeyTracker tracker = new KeyTracker(8, recorder);
+        tracker.down(0, 2, 10);
+        assertTrue(tracker.isPressed(2));
+        tracker.move(0, 2, 15);
+        assertEquals("[+2@10]", recorder.take());
+        tracker.up(0, 20);
+        assertFalse(tracker.isPressed(2));
+        assertEquals("[-2@20]", recorder.take());
+    }
+
+    @Test
+    public void chord_pressesEveryKeyAsFingersLand() throws Exception {
+        Recorder recorder = new Recorder();
+        KeyTracker tracker = new KeyTracker(8, recorder);
+        tracker.down(0, 0, 10);
+        tracker.down(1, 2, 11);
+        tracker.down(2, 4, 11);
+        assertEquals("[+0@10, +2@11, +4@11]", recorder.take());
+        tracker.up(1, 30);
+        tracker.cancel(40);
+        assertEquals("[-2@30, -0@40, -4@40]", recorder.take());
+    }
+
+    @Test
+    public void sharedKey_releasesWithTheLastFinger() throws Exception {
+        Recorder recorder = new Recorder();
+        KeyTracker tracker = new KeyTracker(8, recorder);
+        tracker.down(0, 5, 10);
+        tracker.down(1, 5, 12);
+        tracker.up(0, 20);
+        assertTrue(tracker.isPressed(5));
+        tracker.up(1, 25);
+        assertEquals("[+5@10, -5@25]", recorder.take());
+    }
+
+    @Test
+    public void slide_movesTheNoteBetweenKeys() throws Exception {
+        Recorder recorder = new Recorder();
+        KeyTracker tracker = new KeyTracker(8, recorder);
+        tracker.down(3, 1, 10);
+        tracker.move(3, 2, 20);
+        tracker.move(3, KeyTracker.NO_KEY, 30);
+        tracker.move(3, 9, 35);
+        tracker.move(3, 7, 40);
+        tracker.up(3, 50);
+        assertEquals("[+1@10, -1@20, +2@20, -2@30, +7@40, -7@50]", recorder.take());
+        // Pointers off the keyboard or beyond the tracked ids are ignored.
+        tracker.down(0, KeyTracker.NO_KEY, 60);
+        tracker.down(KeyTracker.MAX_POINTERS, 1, 60);
+        assertEquals("[]", recorder.take());
+    }
+}
@@ -0,0 +1,81 @@
+package com.worsham.arduinosynth.metrics;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the log-linear histogram behind the latency monitor.
+ */
+public class HistogramTest {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void smallValues_areExact() throws Exception {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 60; i++)
+            histogram.record(i);
+        assertEquals(60, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(60, histogram.getMax());
+        assertEquals(30, histogram.getValueAtPercentile(50));
+        assertEquals(60, histogram.getValueAtPercentile(100));
+        assertEquals(30.5, histogram.getMean(), 1e-9);
+    }
+
+    @Test
+    public void percentiles_areWithinBucketPrecision() throws Exception {
+        Histogram histogram = new Histogram();
+        Random random = new Random(7);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            // Log-uniform between 100us and 100ms, like link latencies.
+            values[i] = (long) (100000 * Math.pow(1000, random.nextDouble()));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double p : new double[]{50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(p / 100 * values.length) - 1];
+            long reported = histogram.getValueAtPercentile(p);
+            assertTrue(p + ": " + reported + " vs " + exact,
+                    reported >= exact && reported <= exact + exact / 32 + 1);
+        }
+        assertEquals(values[values.length - 1], histogram.getMax());
+    }
+
+    @Test
+    public void bucketBounds_coverEveryValue() throws Exception {
+        for (long v = 0; v < 1 << 20; v += 7) {
+            int index = Histogram.indexOf(v);
+            assertTrue(Histogram.highestEquivalentValue(index) >= v);
+            assertTrue(index == 0 || Histogram.highestEquivalentValue(index - 1) < v);
+        }
+        // Values beyond the tracked range share the last bucket.
+        assertEquals(Histogram.indexOf(1L << 40), Histogram.indexOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void record_doesNotAllocate() throws Exception {
+        Histogram histogram = new Histogram();
+        long thread = Thread.currentThread().getId();
+        THREADS.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 20000; i++)
+            histogram.record(i * 977L);
+
+        // Best of a few runs, as in PacketEncoderTest.
+        long allocated = Long.MAX_VALUE;
+        for (int run = 0; run < 3 && allocated > 0; run++) {
+            long before = THREADS.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 100000; i++)
+                histogram.record(i * 977L);
+            allocated = THREADS.getThreadAllocatedBytes(thread) - before;
+        }
+        assertEquals(0, allocated);
+    }
+}
@@ -0,0 +1,102 @@
+package com.worsham.arduinosynth.midi;
+
+import org.junit.Test;
+
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the streaming MIDI file reader.
+ */
+public class MidiFileReaderTest {
+
+    // Read every event of a file as "<tick>:<type>:<note or tempo>".
+    private static List<String> readAll(byte[] data) throws Exception {
+        RandomAccessFile file = new RandomAccessFile(MidiFiles.write(data), "r");
+        try {
+            MidiFileReader reader = new MidiFileReader(file.getChannel());
+            List<String> events = new ArrayList<>();
+            while (reader.next()) {
+                int value = reader.getType() == MidiFileReader.EVENT_TEMPO
+                        ? reader.getTempo() : reader.getNote();
+                events.add(reader.getTick() + ":" + reader.getType() + ":" + value);
+            }
+            return events;
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void tracks_areMergedByTick() throws Exception {
+        byte[] data = new MidiFiles()
+                .beginTrack()
+                .tempo(0, 400000)
+                .event(0, 0xFF, 0x03, 4, 'S', 'y', 'n', 'h')   // track name, skipped
+                .tempo(96, 600000)
+                .endTrack()
+                .beginTrack()
+                .event(0, 0x90, 60, 100)
+                .event(48, 0x80, 60, 0)
+                .event(0, 0xF0, 2, 0x01, 0xF7)                 // sysex, skipped
+                .event(48, 0x90, 62, 100)
+                .event(48, 62, 0)                              // running status note off
+                .endTrack()
+                .build(96);
+        List<String> events = readAll(data);
+        String on = ":" + MidiFileReader.EVENT_NOTE_ON + ":";
+        String off = ":" + MidiFileReader.EVENT_NOTE_OFF + ":";
+        String tempo = ":" + MidiFileReader.EVENT_TEMPO + ":";
+        assertEquals(6, events.size());
+        assertEquals("0" + tempo + "400000", events.get(0));
+        assertEquals("0" + on + "60", events.get(1));
+        assertEquals("48" + off + "60", events.get(2));
+        // Simultaneous events come in track order.
+        assertEquals("96" + tempo + "600000", events.get(3));
+        assertEquals("96" + on + "62", events.get(4));
+        assertEquals("144" + off + "62", events.get(5));
+    }
+
+    @Test
+    public void largeTrack_isReadThroughItsBuffer() throws Exception {
+        MidiFiles builder = new MidiFiles().beginTrack();
+        for (int i = 0; i < 5000; i++)
+            builder.event(1, 0x90, 60 + i % 12, 64).event(200, 0x90, 60 + i % 12, 0);
+        byte[] data = builder.endTrack().build(480);
+        assertTrue(data.length > 4 * 4096);
+
+        RandomAccessFile file = new RandomAccessFile(MidiFiles.write(data), "r");
+        try {
+            MidiFileReader reader = new MidiFileReader(file.getChannel());
+            assertEquals(1, reader.getTrackCount());
+            assertEquals(480, reader.getDivision());
+            int notes = 0;
+            long lastTick = -1;
+            while (reader.next()) {
+                assertTrue(reader.getTick() > lastTick);
+                lastTick = reader.getTick();
+                if (reader.getType() == MidiFileReader.EVENT_NOTE_ON) {
+                    assertEquals(60 + notes % 12, reader.getNote());
+                    notes++;
+                }
+            }
+            assertEquals(5000, notes);
+            assertEquals(5000 * 201, lastTick);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void notMidi_isRejected() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(MidiFiles.write(new byte[32]), "r");
+        try {
+            new MidiFileReader(file.getChannel());
+        } finally {
+            file.close();
+        }
+    }
+}
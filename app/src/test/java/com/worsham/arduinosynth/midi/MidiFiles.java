@@ -0,0 +1,92 @@
+package com.worsham.arduinosynth.midi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Builds small Standard MIDI Files for the tests.
+ */
+class MidiFiles {
+
+    private final ByteArrayOutputStream tracks = new ByteArrayOutputStream();
+    private ByteArrayOutputStream track;
+    private int trackCount;
+
+    MidiFiles beginTrack() {
+        track = new ByteArrayOutputStream();
+        return this;
+    }
+
+    // Append raw event bytes after a delta time.
+    MidiFiles event(int delta, int... bytes) {
+        writeVariableLength(track, delta);
+        for (int b : bytes)
+            track.write(b);
+        return this;
+    }
+
+    MidiFiles tempo(int delta, int microsPerQuarter) {
+        return event(delta, 0xFF, 0x51, 3, microsPerQuarter >> 16,
+                (microsPerQuarter >> 8) & 0xFF, microsPerQuarter & 0xFF);
+    }
+
+    MidiFiles endTrack() {
+        event(0, 0xFF, 0x2F, 0);
+        byte[] data = track.toByteArray();
+        writeInt(tracks, 0x4D54726B);
+        writeInt(tracks, data.length);
+        tracks.write(data, 0, data.length);
+        trackCount++;
+        return this;
+    }
+
+    byte[] build(int division) {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        writeInt(file, 0x4D546864);
+        writeInt(file, 6);
+        file.write(0);
+        file.write(trackCount > 1 ? 1 : 0);
+        file.write(trackCount >> 8);
+        file.write(trackCount);
+        file.write(division >> 8);
+        file.write(division);
+        byte[] data = tracks.toByteArray();
+        file.write(data, 0, data.length);
+        return file.toByteArray();
+    }
+
+    static File write(byte[] data) throws IOException {
+        File file = File.createTempFile("synth", ".mid");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeVariableLength(ByteArrayOutputStream out, int value) {
+        int buffer = value & 0x7F;
+        while ((value >>>= 7) > 0) {
+            buffer <<= 8;
+            buffer |= 0x80 | (value & 0x7F);
+        }
+        while (true) {
+            out.write(buffer);
+            if ((buffer & 0x80) == 0)
+                break;
+            buffer >>>= 8;
+        }
+    }
+}
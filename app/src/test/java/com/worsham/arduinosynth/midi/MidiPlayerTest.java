@@ -0,0 +1,224 @@
+package com.worsham.arduinosynth.midi;
+
+import com.worsham.arduinosynth.bluetooth.BluetoothLeUart;
+import com.worsham.arduinosynth.bluetooth.LoopbackTransport;
+import com.worsham.arduinosynth.protocol.FrameEncoder;
+import com.worsham.arduinosynth.protocol.NoteMapper;
+import com.worsham.arduinosynth.protocol.PacketEncoder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of MIDI note mapping and of playing a file over the simulated loopback link.
+ */
+public class MidiPlayerTest {
+
+    // Board which records every packet it receives.
+    private static class RecordingBoard implements LoopbackTransport.Board {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        @Override
+        public synchronized void onFrame(LoopbackTransport transport, byte[] frame) {
+            received.write(frame, 0, frame.length);
+        }
+
+        synchronized byte[] bytes() {
+            return received.toByteArray();
+        }
+    }
+
+    // Encode a note and return its packets as "O4 N1" style text.
+    private static String map(NoteMapper mapper, int midiNote) {
+        byte[] packets = new byte[NoteMapper.MAX_ENCODED_SIZE];
+        int length = mapper.encode(midiNote, packets, 0);
+        return describe(packets, length);
+    }
+
+    private static String describe(byte[] packets, int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i += PacketEncoder.PACKET_SIZE) {
+            assertEquals(PacketEncoder.START, packets[i]);
+            assertEquals(packets[i + 3], PacketEncoder.checksum(packets, i, 3));
+            if (text.length() > 0)
+                text.append(' ');
+            text.append((char) packets[i + 1]).append(packets[i + 2]);
+        }
+        return text.toString();
+    }
+
+    // Play a file to the end over an ideal link and return what the board received.
+    private static byte[] play(byte[] data, int version, int expectedNotes) throws IOException, InterruptedException {
+        RecordingBoard board = new RecordingBoard();
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.setBoard(board);
+        transport.connect(BluetoothLeUart.DEFAULT_MTU);
+        RandomAccessFile file = new RandomAccessFile(MidiFiles.write(data), "r");
+        try {
+            MidiPlayer player = new MidiPlayer(transport, new MidiFileReader(file.getChannel()));
+            player.setProtocolVersion(version);
+            Thread.sleep(20);
+            player.start();
+            long deadline = System.currentTimeMillis() + 3000;
+            while (player.isPlaying() && System.currentTimeMillis() < deadline)
+                Thread.sleep(5);
+            assertFalse(player.isPlaying());
+            Thread.sleep(20);
+            assertEquals(expectedNotes, player.getNotesSent());
+            return board.bytes();
+        } finally {
+            file.close();
+            transport.disconnect();
+        }
+    }
+
+    // Split extended frames into "90 3C 64" style event text, one string per frame.
+    private static String describeFrames(byte[] frames) {
+        StringBuilder text = new StringBuilder();
+        int i = 0;
+        while (i < frames.length) {
+            assertEquals(FrameEncoder.START, frames[i]);
+            int length = frames[i + 1] + FrameEncoder.OVERHEAD;
+            assertEquals(frames[i + length - 1], PacketEncoder.checksum(frames, i, length - 1));
+            if (text.length() > 0)
+                text.append(" | ");
+            for (int j = i + FrameEncoder.HEADER_SIZE; j < i + length - 1; j++) {
+                if (j > i + FrameEncoder.HEADER_SIZE)
+                    text.append(' ');
+                text.append(String.format("%02X", frames[j] & 0xFF));
+            }
+            i += length;
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void notes_mapOntoTheSynthKeys() throws Exception {
+        NoteMapper mapper = new NoteMapper();
+        mapper.setOctave(4);
+        assertEquals("N1", map(mapper, 60));      // middle C
+        assertEquals("N6", map(mapper, 69));      // A4
+        assertEquals("N8", map(mapper, 72));      // C5 is high C, no octave change
+        assertEquals("N4", map(mapper, 66));      // F#4 plays as F
+        assertEquals("O5 N2", map(mapper, 74));   // D5
+        assertEquals("N3", map(mapper, 76));
+        assertEquals("", map(mapper, 10));        // below octave 0
+        assertEquals(5, mapper.getOctave());
+    }
+
+    @Test
+    public void file_isStreamedToTheBoardInOrder() throws Exception {
+        // A scale of eighth notes at 240 BPM, one note every 125ms, with a drum hit which
+        // the synth should skip.
+        MidiFiles builder = new MidiFiles().beginTrack().tempo(0, 250000);
+        int[] scale = {60, 62, 64, 65, 67, 69, 71, 72};
+        for (int note : scale)
+            builder.event(0, 0x90, note, 100).event(0, 0x99, 36, 100).event(48, 0x80, note, 0);
+        byte[] data = builder.endTrack().build(96);
+
+        RecordingBoard board = new RecordingBoard();
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.setLatency(300, 100);
+        transport.setBoard(board);
+        transport.connect(BluetoothLeUart.DEFAULT_MTU);
+        RandomAccessFile file = new RandomAccessFile(MidiFiles.write(data), "r");
+        try {
+            MidiPlayer player = new MidiPlayer(transport, new MidiFileReader(file.getChannel()));
+            player.setOctave(4);
+            Thread.sleep(20);
+            long start = System.nanoTime();
+            player.start();
+            long deadline = System.currentTimeMillis() + 3000;
+            while (player.isPlaying() && System.currentTimeMillis() < deadline)
+                Thread.sleep(5);
+            long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+            assertFalse(player.isPlaying());
+            Thread.sleep(20);
+
+            assertEquals(8, player.getNotesSent());
+            assertEquals(0, player.getNotesDropped());
+            byte[] received = board.bytes();
+            assertEquals("N1 N2 N3 N4 N5 N6 N7 N8", describe(received, received.length));
+            // The last note is due 875ms after the first.
+            assertTrue("played in " + elapsedMillis + "ms", elapsedMillis >= 870 && elapsedMillis < 1500);
+        } finally {
+            file.close();
+            transport.disconnect();
+        }
+    }
+
+    @Test
+    public void extendedBoard_getsChordsWithVelocityAndNoteOffs() throws Exception {
+        // A C major chord held for a quarter note, then a single E.
+        byte[] data = new MidiFiles().beginTrack().tempo(0, 250000)
+                .event(0, 0x90, 60, 100).event(0, 0x90, 64, 90).event(0, 0x90, 67, 80)
+                .event(96, 0x80, 60, 0).event(0, 0x80, 64, 0).event(0, 0x80, 67, 0)
+                .event(0, 0x91, 64, 50).event(48, 0x81, 64, 0)
+                .endTrack().build(96);
+
+        byte[] received = play(data, PacketEncoder.VERSION_EXTENDED, 8);
+        // Notes starting together share a frame, under running status.
+        assertEquals("90 3C 64 40 5A 43 50 | 80 3C 00 40 00 43 00 91 40 32 | 81 40 00",
+                describeFrames(received));
+    }
+
+    @Test
+    public void notesHeldAtTheEndOfTheFile_areReleased() throws Exception {
+        // The E is released by the file, the C and G are left sounding.
+        byte[] data = new MidiFiles().beginTrack().tempo(0, 250000)
+                .event(0, 0x90, 60, 100).event(0, 0x90, 64, 90).event(0, 0x92, 67, 80)
+                .event(48, 0x80, 64, 0)
+                .endTrack().build(96);
+
+        byte[] received = play(data, PacketEncoder.VERSION_EXTENDED, 6);
+        assertEquals("90 3C 64 40 5A 92 43 50 | 80 40 00 | 80 3C 00 82 43 00",
+                describeFrames(received));
+    }
+
+    @Test
+    public void stop_releasesTheNotesSounding() throws Exception {
+        // A note held for ten seconds, stopped long before its note off is due.
+        byte[] data = new MidiFiles().beginTrack().tempo(0, 250000)
+                .event(0, 0x90, 60, 100).event(3840, 0x80, 60, 0)
+                .endTrack().build(96);
+
+        RecordingBoard board = new RecordingBoard();
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.setBoard(board);
+        transport.connect(BluetoothLeUart.DEFAULT_MTU);
+        RandomAccessFile file = new RandomAccessFile(MidiFiles.write(data), "r");
+        try {
+            MidiPlayer player = new MidiPlayer(transport, new MidiFileReader(file.getChannel()));
+            player.setProtocolVersion(PacketEncoder.VERSION_EXTENDED);
+            Thread.sleep(20);
+            player.start();
+            long deadline = System.currentTimeMillis() + 3000;
+            while (board.bytes().length == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(5);
+            player.stop();
+            Thread.sleep(50);
+
+            assertEquals("90 3C 64 | 80 3C 00", describeFrames(board.bytes()));
+            assertEquals(2, player.getNotesSent());
+        } finally {
+            file.close();
+            transport.disconnect();
+        }
+    }
+
+    @Test
+    public void legacyBoard_getsNotesStartingTogetherInOneWrite() throws Exception {
+        byte[] data = new MidiFiles().beginTrack().tempo(0, 250000)
+                .event(0, 0x90, 60, 100).event(0, 0x90, 64, 90)
+                .event(96, 0x80, 60, 0).event(0, 0x80, 64, 0).event(0, 0x90, 67, 80)
+                .endTrack().build(96);
+
+        byte[] received = play(data, PacketEncoder.VERSION_LEGACY, 3);
+        assertEquals("O4 N1 N3 N5", describe(received, received.length));
+    }
+}
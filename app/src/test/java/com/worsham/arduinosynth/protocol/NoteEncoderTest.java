@@ -0,0 +1,121 @@
+package com.worsham.arduinosynth.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the extended frame encoder and the version aware note encoder.
+ */
+public class NoteEncoderTest {
+
+    private static byte[] copy(byte[] buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, offset, bytes, 0, length);
+        return bytes;
+    }
+
+    // Check the frame header and checksum and return the event bytes.
+    private static byte[] events(byte[] frame, int offset, int length) {
+        assertEquals(FrameEncoder.START, frame[offset]);
+        assertEquals(length - FrameEncoder.OVERHEAD, frame[offset + 1]);
+        assertEquals(frame[offset + length - 1], PacketEncoder.checksum(frame, offset, length - 1));
+        return copy(frame, offset + FrameEncoder.HEADER_SIZE, length - FrameEncoder.OVERHEAD);
+    }
+
+    @Test
+    public void frame_usesRunningStatus() throws Exception {
+        FrameEncoder encoder = new FrameEncoder();
+        byte[] frame = new byte[32];
+        encoder.begin(frame, 1, 31);
+        assertTrue(encoder.isEmpty());
+        assertEquals(3, encoder.noteOn(0, 60, 100));
+        assertEquals(2, encoder.noteOn(0, 64, 90));
+        assertEquals(3, encoder.noteOff(0, 60, 0));
+        assertEquals(3, encoder.noteOn(2, 67, 127));
+        int length = encoder.finish();
+        assertEquals(11 + FrameEncoder.OVERHEAD, length);
+        assertArrayEquals(new byte[]{(byte) 0x90, 60, 100, 64, 90, (byte) 0x80, 60, 0,
+                (byte) 0x92, 67, 127}, events(frame, 1, length));
+    }
+
+    @Test
+    public void frame_carriesChords() throws Exception {
+        FrameEncoder encoder = new FrameEncoder();
+        byte[] frame = new byte[20];
+        int[] notes = {0, 60, 64, 67, 72};
+        encoder.begin(frame, 0, frame.length);
+        assertEquals(6, encoder.chord(1, 80, notes, 1, 3));
+        assertEquals(4, encoder.chord(1, 70, notes, 2, 2));
+        int length = encoder.finish();
+        assertArrayEquals(new byte[]{(byte) 0xA1, 3, 80, 60, 64, 67, 2, 70, 64, 67},
+                events(frame, 0, length));
+    }
+
+    @Test
+    public void frame_refusesEventsWhichDoNotFit() throws Exception {
+        FrameEncoder encoder = new FrameEncoder();
+        byte[] frame = new byte[20];
+        encoder.begin(frame, 0, frame.length);
+        // 20 bytes leaves 17 for events: one with status and seven under running status.
+        int appended = 0;
+        while (encoder.noteOn(0, 60 + appended, 100) > 0)
+            appended++;
+        assertEquals(8, appended);
+        assertEquals(0, encoder.noteOff(0, 60, 0));
+        assertEquals(20, encoder.finish());
+        assertEquals(0, encoder.finish());
+    }
+
+    @Test
+    public void legacyBoard_getsMappedPackets() throws Exception {
+        NoteEncoder encoder = new NoteEncoder();
+        encoder.setOctave(4);
+        byte[] packets = new byte[NoteEncoder.MAX_NOTE_SIZE];
+        assertEquals(4, encoder.encodeNoteOn(0, 64, 30, packets, 0));
+        assertEquals('N', packets[1]);
+        assertEquals(3, packets[2]);
+        assertEquals(0, encoder.encodeNoteOff(0, 64, packets, 0));
+
+        // Room for one note and its octave change is kept, so 16 bytes take two notes here.
+        byte[] batch = new byte[16];
+        encoder.begin(batch, 0, batch.length);
+        assertEquals(8, encoder.chord(0, 100, new int[]{74, 77}, 0, 2));
+        assertEquals(4, encoder.noteOn(0, 76, 100));
+        assertEquals(-1, encoder.noteOn(0, 77, 100));
+        assertEquals(12, encoder.finish());
+        assertArrayEquals(new byte[]{'!', 'O', 5}, copy(batch, 0, 3));
+        assertEquals(2, batch[6]);
+        assertEquals(3, batch[10]);
+    }
+
+    @Test
+    public void extendedBoard_getsVelocityAndNoteOffs() throws Exception {
+        NoteEncoder encoder = new NoteEncoder();
+        encoder.setVersion(PacketEncoder.VERSION_EXTENDED);
+        assertTrue(encoder.isExtended());
+        byte[] frame = new byte[NoteEncoder.MAX_NOTE_SIZE];
+        int length = encoder.encodeNoteOn(3, 61, 30, frame, 0);
+        assertArrayEquals(new byte[]{(byte) 0x93, 61, 30}, events(frame, 0, length));
+        length = encoder.encodeNoteOff(3, 61, frame, 0);
+        assertArrayEquals(new byte[]{(byte) 0x83, 61, 0}, events(frame, 0, length));
+        assertEquals(0, encoder.encodeNoteOn(0, 128, 100, frame, 0));
+    }
+
+    @Test
+    public void versionChange_waitsForTheNextBatch() throws Exception {
+        NoteEncoder encoder = new NoteEncoder();
+        encoder.setOctave(4);
+        byte[] batch = new byte[20];
+        encoder.begin(batch, 0, batch.length);
+        encoder.noteOn(0, 60, 100);
+        encoder.setVersion(PacketEncoder.VERSION_EXTENDED);
+        encoder.noteOn(0, 62, 100);
+        assertEquals(8, encoder.finish());
+        assertEquals('!', batch[4]);
+        encoder.begin(batch, 0, batch.length);
+        encoder.noteOn(0, 62, 100);
+        assertEquals(FrameEncoder.OVERHEAD + 3, encoder.finish());
+        assertEquals(FrameEncoder.START, batch[0]);
+    }
+}
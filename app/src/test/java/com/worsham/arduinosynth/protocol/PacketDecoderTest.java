@@ -0,0 +1,121 @@
+package com.worsham.arduinosynth.protocol;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the streaming packet decoder.
+ */
+public class PacketDecoderTest {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Listener which records every message as "<command><value>".
+    private static class Recorder implements PacketDecoder.Listener {
+        final List<String> messages = new ArrayList<>();
+
+        @Override
+        public void onMessage(SynthMessage message) {
+            messages.add("" + (char) message.getCommand() + message.getValue());
+        }
+    }
+
+    private static byte[] packets(int count) {
+        byte[] data = new byte[count * PacketEncoder.PACKET_SIZE];
+        for (int i = 0; i < count; i++)
+            PacketEncoder.encodeNote(data, i * PacketEncoder.PACKET_SIZE, (byte) (i % 8 + 1));
+        return data;
+    }
+
+    @Test
+    public void packetSplitAcrossNotifications_isReassembled() throws Exception {
+        Recorder recorder = new Recorder();
+        PacketDecoder decoder = new PacketDecoder(recorder);
+        byte[] data = new byte[8];
+        PacketEncoder.encodeNote(data, 0, (byte) 3);
+        PacketEncoder.encodeOctave(data, 4, (byte) 5);
+
+        decoder.decode(data, 0, 3);
+        assertTrue(recorder.messages.isEmpty());
+        assertEquals(3, decoder.getBuffered());
+        decoder.decode(data, 3, 2);
+        decoder.decode(data, 5, 3);
+        assertEquals(2, recorder.messages.size());
+        assertEquals("N3", recorder.messages.get(0));
+        assertEquals("O5", recorder.messages.get(1));
+        assertEquals(0, decoder.getBuffered());
+    }
+
+    @Test
+    public void garbageAndBadChecksums_resyncOnStartByte() throws Exception {
+        Recorder recorder = new Recorder();
+        PacketDecoder decoder = new PacketDecoder(recorder);
+        byte[] data = new byte[]{
+                'x', 'y',                           // noise before the first packet
+                '!', 'N', 2, 0,                     // corrupt checksum
+                '!', 'N', 4, (byte) ~('!' + 'N' + 4),
+                '!', '!', 'O', 6, (byte) ~('!' + 'O' + 6)  // stray start byte
+        };
+        decoder.decode(data, 0, data.length);
+
+        assertEquals(2, recorder.messages.size());
+        assertEquals("N4", recorder.messages.get(0));
+        assertEquals("O6", recorder.messages.get(1));
+        assertEquals(2, decoder.getChecksumErrors());
+        // noise, the corrupt packet and the stray start byte
+        assertEquals(2 + 4 + 1, decoder.getBytesDiscarded());
+    }
+
+    @Test
+    public void largeNotification_wrapsRingBuffer() throws Exception {
+        final int[] sum = new int[1];
+        PacketDecoder decoder = new PacketDecoder(16, new PacketDecoder.Listener() {
+            @Override
+            public void onMessage(SynthMessage message) {
+                assertEquals(SynthMessage.Type.NOTE, message.getType());
+                sum[0] += message.getValue();
+            }
+        });
+        byte[] data = packets(100);
+        // Odd sized notifications keep packets straddling the end of the ring.
+        for (int offset = 0; offset < data.length; offset += 7)
+            decoder.decode(data, offset, Math.min(7, data.length - offset));
+
+        assertEquals(100, decoder.getMessagesDecoded());
+        assertEquals(12 * 36 + 1 + 2 + 3 + 4, sum[0]);
+        assertEquals(0, decoder.getBytesDiscarded());
+    }
+
+    @Test
+    public void decode_doesNotAllocate() throws Exception {
+        final int[] count = new int[1];
+        PacketDecoder decoder = new PacketDecoder(new PacketDecoder.Listener() {
+            @Override
+            public void onMessage(SynthMessage message) {
+                count[0]++;
+            }
+        });
+        byte[] data = packets(5);
+        long thread = Thread.currentThread().getId();
+        THREADS.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 20000; i++)
+            decoder.decode(data, 0, data.length);
+
+        // Best of a few runs, as in PacketEncoderTest.
+        long allocated = Long.MAX_VALUE;
+        for (int run = 0; run < 3 && allocated > 0; run++) {
+            long before = THREADS.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 100000; i++)
+                decoder.decode(data, i % 3, data.length - i % 3);
+            allocated = THREADS.getThreadAllocatedBytes(thread) - before;
+        }
+        assertEquals(0, allocated);
+        assertTrue(count[0] > 500000);
+    }
+}
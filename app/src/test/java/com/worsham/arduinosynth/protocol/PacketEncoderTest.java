@@ -0,0 +1,71 @@
+package com.worsham.arduinosynth.protocol;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the synth packet encoder.
+ */
+public class PacketEncoderTest {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Bytes allocated so far by the given thread, from the HotSpot thread MX bean.
+    private static long allocatedBytes(long threadId) {
+        return THREADS.getThreadAllocatedBytes(threadId);
+    }
+
+    @Test
+    public void encodeNote_matchesProtocol() throws Exception {
+        byte[] packet = new byte[PacketEncoder.PACKET_SIZE];
+        assertEquals(4, PacketEncoder.encodeNote(packet, 0, (byte) 5));
+        assertArrayEquals(new byte[]{'!', 'N', 5, (byte) ~('!' + 'N' + 5)}, packet);
+        assertEquals(packet[3], PacketEncoder.checksum(packet, 0, 3));
+    }
+
+    @Test
+    public void encodeOctave_atOffsetAndIntoByteBuffer() throws Exception {
+        byte[] packets = new byte[8];
+        PacketEncoder.encodeOctave(packets, 4, (byte) 7);
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.position(4);
+        PacketEncoder.encodeOctave(buffer, (byte) 7);
+        assertEquals(8, buffer.position());
+        assertArrayEquals(packets, buffer.array());
+        assertEquals('O', packets[5]);
+        assertEquals(packets[7], PacketEncoder.checksum(packets, 4, 3));
+    }
+
+    @Test
+    public void encode_doesNotAllocate() throws Exception {
+        byte[] packet = new byte[PacketEncoder.PACKET_SIZE];
+        ByteBuffer buffer = ByteBuffer.allocate(PacketEncoder.PACKET_SIZE);
+        long thread = Thread.currentThread().getId();
+        // warm up the encoder and the allocation counter itself
+        allocatedBytes(thread);
+        for (int i = 0; i < 20000; i++) {
+            PacketEncoder.encodeNote(packet, 0, (byte) (i & 7));
+            buffer.clear();
+            PacketEncoder.encodeOctave(buffer, (byte) (i % 9));
+        }
+
+        // A background compilation landing mid-run can be charged to the thread, so take the
+        // best of a few runs.
+        long allocated = Long.MAX_VALUE;
+        for (int run = 0; run < 3 && allocated > 0; run++) {
+            long before = allocatedBytes(thread);
+            for (int i = 0; i < 100000; i++) {
+                PacketEncoder.encodeNote(packet, 0, (byte) (i & 7));
+                buffer.clear();
+                PacketEncoder.encodeOctave(buffer, (byte) (i % 9));
+            }
+            allocated = allocatedBytes(thread) - before;
+        }
+        assertEquals(0, allocated);
+    }
+}
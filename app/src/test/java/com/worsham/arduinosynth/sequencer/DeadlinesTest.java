@@ -0,0 +1,58 @@
+package com.worsham.arduinosynth.sequencer;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the park then spin wait shared by the sequencer and the MIDI player.
+ */
+public class DeadlinesTest {
+
+    private static final Deadlines.Running ALWAYS = new Deadlines.Running() {
+        @Override
+        public boolean isRunning() {
+            return true;
+        }
+    };
+
+    @Test
+    public void waitUntil_neverReturnsBeforeTheDeadline() {
+        for (long wait : new long[] {0, 100000L, 2000000L}) {
+            long deadline = System.nanoTime() + wait;
+            assertTrue(Deadlines.waitUntil(deadline, ALWAYS));
+            assertTrue(System.nanoTime() - deadline >= 0);
+        }
+    }
+
+    @Test
+    public void waitUntil_returnsEarlyOnceStopped() throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] result = new boolean[1];
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = Deadlines.waitUntil(System.nanoTime() + TimeUnit.SECONDS.toNanos(30),
+                        new Deadlines.Running() {
+                            @Override
+                            public boolean isRunning() {
+                                return running.get();
+                            }
+                        });
+                done.countDown();
+            }
+        });
+        waiter.start();
+        Thread.sleep(10);
+        running.set(false);
+        LockSupport.unpark(waiter);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(result[0]);
+    }
+}
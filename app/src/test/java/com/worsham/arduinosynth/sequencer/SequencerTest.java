@@ -0,0 +1,163 @@
+package com.worsham.arduinosynth.sequencer;
+
+import com.worsham.arduinosynth.bluetooth.BluetoothLeUart;
+import com.worsham.arduinosynth.bluetooth.LoopbackTransport;
+import com.worsham.arduinosynth.protocol.PacketEncoder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Timing tests of the step sequencer against the simulated loopback link.
+ */
+public class SequencerTest {
+
+    // Shortest BLE connection interval, the bound on acceptable step jitter.
+    private static final long CONNECTION_INTERVAL_NANOS = 7500000L;
+
+    // Board which records when every note packet arrives.
+    private static class TimingBoard implements LoopbackTransport.Board {
+        final List<Long> arrivals = new ArrayList<>();
+        final List<Byte> notes = new ArrayList<>();
+
+        synchronized void clear() {
+            arrivals.clear();
+            notes.clear();
+        }
+
+        @Override
+        public synchronized void onFrame(LoopbackTransport transport, byte[] frame) {
+            long now = System.nanoTime();
+            for (int i = 0; i + PacketEncoder.PACKET_SIZE <= frame.length; i += PacketEncoder.PACKET_SIZE) {
+                if (frame[i + 1] == PacketEncoder.CMD_NOTE) {
+                    arrivals.add(now);
+                    notes.add(frame[i + 2]);
+                }
+            }
+        }
+
+        synchronized int size() {
+            return arrivals.size();
+        }
+    }
+
+    private static LoopbackTransport connectedTransport(TimingBoard board) throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        // A link delay of a few hundred microseconds each way, so each note is acknowledged
+        // well before the next step.
+        transport.setLatency(400, 200);
+        transport.setBoard(board);
+        transport.connect(BluetoothLeUart.DEFAULT_MTU);
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!transport.isConnected() && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertTrue(transport.isConnected());
+        return transport;
+    }
+
+    private static long median(long[] values, int from, int to) {
+        long[] sorted = Arrays.copyOfRange(values, from, to);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    // Play from the first step until the board has seen the given number of notes.
+    private static void play(Sequencer sequencer, TimingBoard board, int notes) throws Exception {
+        sequencer.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (board.size() < notes && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        sequencer.stop();
+        assertTrue(board.size() >= notes);
+    }
+
+    @Test
+    public void pattern_encodesStepsUpFront() throws Exception {
+        Pattern pattern = new Pattern(4).setNote(0, (byte) 1).setNote(2, (byte) 5, (byte) 3);
+        assertTrue(pattern.isRest(1));
+        assertEquals(PacketEncoder.PACKET_SIZE, pattern.getLength(0));
+        assertEquals(2 * PacketEncoder.PACKET_SIZE, pattern.getLength(2));
+        byte[] packets = pattern.getPackets();
+        int offset = pattern.getOffset(2);
+        assertEquals(PacketEncoder.CMD_OCTAVE, packets[offset + 1]);
+        assertEquals(5, packets[offset + 2]);
+        assertEquals(PacketEncoder.CMD_NOTE, packets[offset + 5]);
+        assertEquals(3, packets[offset + 6]);
+    }
+
+    @Test
+    public void sixteenthsAt200Bpm_stayWithinOneConnectionInterval() throws Exception {
+        TimingBoard board = new TimingBoard();
+        LoopbackTransport transport = connectedTransport(board);
+        Pattern pattern = new Pattern(8);
+        for (int i = 0; i < 8; i++)
+            pattern.setNote(i, (byte) (i + 1));
+        Sequencer sequencer = new Sequencer(transport);
+        sequencer.setPattern(pattern);
+        sequencer.setTempo(200);
+        assertEquals(75000000L, sequencer.getStepNanos());
+
+        // Warm up the send path before measuring, a cold JVM compiles it during the first notes.
+        play(sequencer, board, 8);
+        board.clear();
+        sequencer.getJitterHistogram().reset();
+        play(sequencer, board, 24);
+        transport.disconnect();
+
+        // Measure every note against one ideal grid, so drift shows up as a growing error
+        // rather than hiding in the step to step differences. The grid is placed at the
+        // median offset so one late note cannot skew it.
+        long step = sequencer.getStepNanos();
+        long[] offsets = new long[24];
+        for (int i = 0; i < 24; i++) {
+            offsets[i] = board.arrivals.get(i) - i * step;
+            assertEquals(i % 8 + 1, (int) board.notes.get(i));
+        }
+        long phase = median(offsets, 0, 24);
+        int onTime = 0;
+        for (long offset : offsets) {
+            if (Math.abs(offset - phase) < CONNECTION_INTERVAL_NANOS)
+                onTime++;
+        }
+        // A busy test machine can deschedule any thread for a few milliseconds, so allow the
+        // odd outlier but no trend.
+        assertTrue(onTime + " of 24 notes on time", onTime >= 20);
+        long drift = median(offsets, 12, 24) - median(offsets, 0, 12);
+        assertTrue("drifted " + drift + "ns", Math.abs(drift) < 1000000L);
+        assertTrue(sequencer.getJitterHistogram().getValueAtPercentile(50) < 1000000L);
+        assertEquals(0, sequencer.getStepsSkipped());
+        assertEquals(0, sequencer.getStepsDropped());
+    }
+
+    @Test
+    public void tempoChange_keepsNextStepAndRespacesTheRest() throws Exception {
+        TimingBoard board = new TimingBoard();
+        LoopbackTransport transport = connectedTransport(board);
+        Sequencer sequencer = new Sequencer(transport);
+        sequencer.setPattern(new Pattern(1).setNote(0, (byte) 1));
+        sequencer.setTempo(300); // 50ms steps
+
+        sequencer.start();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (board.size() < 4 && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        sequencer.setTempo(600); // 25ms steps
+        while (board.size() < 12 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        sequencer.stop();
+        transport.disconnect();
+
+        assertTrue(board.size() >= 12);
+        // The last notes are spaced at the new tempo, judged by the median gap.
+        long[] gaps = new long[7];
+        for (int i = 0; i < gaps.length; i++)
+            gaps[i] = board.arrivals.get(i + 5) - board.arrivals.get(i + 4);
+        long gap = median(gaps, 0, gaps.length);
+        assertTrue("gap " + gap, Math.abs(gap - 25000000L) < CONNECTION_INTERVAL_NANOS);
+    }
+}
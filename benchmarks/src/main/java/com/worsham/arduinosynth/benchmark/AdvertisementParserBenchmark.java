@@ -0,0 +1,76 @@
+package com.worsham.arduinosynth.benchmark;
+
+import com.worsham.arduinosynth.bluetooth.AdvertisementParser;
+import com.worsham.arduinosynth.bluetooth.BluetoothUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manual parsing of advertisement data, used where hardware UUID filters are broken.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdvertisementParserBenchmark
+{
+    private final byte[] uartAdvertisement = Advertisements.uart();
+    private final byte[] sensorAdvertisement = Advertisements.sensor();
+    private final long[] uuids = new long[32];
+    private final long uartMsb = BluetoothUtil.UART_UUID.getMostSignificantBits();
+    private final long uartLsb = BluetoothUtil.UART_UUID.getLeastSignificantBits();
+
+    @Benchmark
+    public List<UUID> parseUart()
+    {
+        return BluetoothUtil.parseUUIDs(uartAdvertisement);
+    }
+
+    @Benchmark
+    public List<UUID> parseSixteenBit()
+    {
+        return BluetoothUtil.parseUUIDs(sensorAdvertisement);
+    }
+
+    // Parse and check for the UART service, what a scan filter does for every result.
+    @Benchmark
+    public boolean matchUart()
+    {
+        return BluetoothUtil.parseUUIDs(sensorAdvertisement).contains(BluetoothUtil.UART_UUID)
+                | BluetoothUtil.parseUUIDs(uartAdvertisement).contains(BluetoothUtil.UART_UUID);
+    }
+
+    // The allocation free equivalents, the scan filter uses matchUartInPlace.
+    @Benchmark
+    public int parseUartInPlace()
+    {
+        return AdvertisementParser.parseUuids(uartAdvertisement, 0, uartAdvertisement.length, uuids);
+    }
+
+    @Benchmark
+    public int parseSixteenBitInPlace()
+    {
+        return AdvertisementParser.parseUuids(sensorAdvertisement, 0, sensorAdvertisement.length, uuids);
+    }
+
+    @Benchmark
+    public boolean matchUartInPlace()
+    {
+        return AdvertisementParser.hasService(sensorAdvertisement, uartMsb, uartLsb)
+                | AdvertisementParser.hasService(uartAdvertisement, uartMsb, uartLsb);
+    }
+}
@@ -0,0 +1,33 @@
+package com.worsham.arduinosynth.benchmark;
+
+/**
+ * Sample advertisement payloads for the parser benchmarks.
+ */
+final class Advertisements
+{
+    private Advertisements()
+    {
+    }
+
+    // Flags, complete list of 128-bit UUIDs holding the UART service, complete local name.
+    static byte[] uart()
+    {
+        return new byte[] {
+                0x02, 0x01, 0x06,
+                0x11, 0x07,
+                (byte) 0x9E, (byte) 0xCA, (byte) 0xDC, 0x24, 0x0E, (byte) 0xE5, (byte) 0xA9, (byte) 0xE0,
+                (byte) 0x93, (byte) 0xF3, (byte) 0xA3, (byte) 0xB5, 0x01, 0x00, 0x40, 0x6E,
+                0x09, 0x09, 'A', 'r', 'd', 'S', 'y', 'n', 't', 'h'
+        };
+    }
+
+    // Flags, complete list of 16-bit UUIDs (heart rate, battery, DIS), manufacturer data.
+    static byte[] sensor()
+    {
+        return new byte[] {
+                0x02, 0x01, 0x06,
+                0x07, 0x03, 0x0D, 0x18, 0x0F, 0x18, 0x0A, 0x18,
+                0x07, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15, 0x01, 0x02
+        };
+    }
+}
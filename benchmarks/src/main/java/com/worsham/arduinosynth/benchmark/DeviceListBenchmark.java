@@ -0,0 +1,96 @@
+package com.worsham.arduinosynth.benchmark;
+
+import com.worsham.arduinosynth.bluetooth.DeviceRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scan list lookups for every scan result: the linear hasDevice then getDeviceHolder scans
+ * comparing address strings which DeviceScanActivity's list adapter used to do, against
+ * parsing the address and updating its rank in a {@link DeviceRegistry}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceListBenchmark
+{
+    // Number of advertisers already in the list.
+    @Param({"10", "100", "500"})
+    public int devices;
+
+    private List<String> addresses;
+    private DeviceRegistry<String> registry;
+    private String[] results;
+    private int next;
+
+    @Setup
+    public void setup()
+    {
+        addresses = new ArrayList<>();
+        registry = new DeviceRegistry<>();
+        results = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            String address = String.format(Locale.US, "C4:7C:8D:%02X:%02X:%02X",
+                    (i >> 16) & 0xFF, (i >> 8) & 0xFF, i & 0xFF);
+            addresses.add(address);
+            registry.update(DeviceRegistry.parseAddress(address), address, -40 - i % 60, 0);
+            // Scan results carry a new String instance for the same address.
+            results[i] = new String(address);
+        }
+    }
+
+    private boolean hasDevice(String address)
+    {
+        for (String a : addresses) {
+            if (address.equals(a))
+                return true;
+        }
+        return false;
+    }
+
+    private String getDeviceHolder(String address)
+    {
+        for (String a : addresses) {
+            if (address.equals(a))
+                return a;
+        }
+        return null;
+    }
+
+    // One scan result for a device already in the list, by linear scans.
+    @Benchmark
+    public String registerFoundDevice()
+    {
+        String address = results[next];
+        next = (next + 1) % results.length;
+        return hasDevice(address) ? getDeviceHolder(address) : null;
+    }
+
+    // One scan result for a device already in the list, by hash lookup and re-ranking.
+    @Benchmark
+    public String registryUpdate()
+    {
+        String address = results[next];
+        next = (next + 1) % results.length;
+        long key = DeviceRegistry.parseAddress(address);
+        return registry.get(registry.update(key, address, -40 - next % 60, next));
+    }
+}
@@ -0,0 +1,114 @@
+package com.worsham.arduinosynth.benchmark;
+
+import com.worsham.arduinosynth.bluetooth.UartWrite;
+import com.worsham.arduinosynth.bluetooth.UartWriteQueue;
+import com.worsham.arduinosynth.keyboard.KeyTracker;
+import com.worsham.arduinosynth.protocol.NoteEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The app side of input-to-send latency: a touch landing on a key, through the key tracker
+ * and note encoder, until the note is queued on the UART. Time a finger spends on the key is
+ * not part of it now notes are sent on touch down; with the old click handling the note only
+ * went out as the finger lifted, which the debug overlay's total latency shows on a device.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyboardInputBenchmark
+{
+    @Param({"1", "2"})
+    public int protocolVersion;
+
+    private UartWriteQueue queue;
+    private KeyTracker tracker;
+    private NoteEncoder encoder;
+    private byte[] packet;
+    private long time;
+
+    @Setup
+    public void setup()
+    {
+        final UartWriteQueue[] holder = new UartWriteQueue[1];
+        queue = new UartWriteQueue(new UartWriteQueue.Sink() {
+            @Override
+            public boolean write(byte[] data, long sequence) {
+                holder[0].onWriteComplete(sequence, UartWrite.STATUS_SUCCESS);
+                return true;
+            }
+        }, UartWriteQueue.DEFAULT_CAPACITY, UartWriteQueue.DEFAULT_TIMEOUT_MILLIS);
+        holder[0] = queue;
+        encoder = new NoteEncoder();
+        encoder.setVersion(protocolVersion);
+        encoder.setOctave(4);
+        packet = new byte[NoteEncoder.MAX_NOTE_SIZE];
+        // Same work as SynthActivity does for each key event.
+        tracker = new KeyTracker(8, new KeyTracker.Listener()
+        {
+            @Override
+            public void onKeyDown(int key, long eventNanos)
+            {
+                send(encoder.encodeNoteOn(0, 60 + key, NoteEncoder.DEFAULT_VELOCITY, packet, 0), eventNanos);
+            }
+
+            @Override
+            public void onKeyUp(int key, long eventNanos)
+            {
+                send(encoder.encodeNoteOff(0, 60 + key, packet, 0), eventNanos);
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        queue.shutdown();
+    }
+
+    private void send(int length, long eventNanos)
+    {
+        if (length == 0)
+            return;
+        while (!queue.enqueue(packet, 0, length, eventNanos, null))
+            Thread.yield();
+    }
+
+    // One finger pressing and lifting a key.
+    @Benchmark
+    public int keyPress()
+    {
+        time++;
+        tracker.down(0, 2, time);
+        tracker.up(0, time);
+        return queue.size();
+    }
+
+    // Three fingers landing together, as a chord does.
+    @Benchmark
+    public int chord()
+    {
+        time++;
+        tracker.down(0, 0, time);
+        tracker.down(1, 2, time);
+        tracker.down(2, 4, time);
+        tracker.cancel(time);
+        return queue.size();
+    }
+}
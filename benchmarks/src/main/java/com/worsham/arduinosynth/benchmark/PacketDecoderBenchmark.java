@@ -0,0 +1,63 @@
+package com.worsham.arduinosynth.benchmark;
+
+import com.worsham.arduinosynth.protocol.PacketDecoder;
+import com.worsham.arduinosynth.protocol.PacketEncoder;
+import com.worsham.arduinosynth.protocol.SynthMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of received notifications, one 20 byte notification of five packets per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketDecoderBenchmark
+{
+    private PacketDecoder decoder;
+    private byte[] notification;
+
+    @Setup
+    public void setup(final Blackhole blackhole)
+    {
+        decoder = new PacketDecoder(new PacketDecoder.Listener() {
+            @Override
+            public void onMessage(SynthMessage message)
+            {
+                blackhole.consume(message.getValue());
+            }
+        });
+        notification = new byte[20];
+        for (int i = 0; i < notification.length; i += PacketEncoder.PACKET_SIZE)
+            PacketEncoder.encodeNote(notification, i, (byte) (i / 4 + 1));
+    }
+
+    @Benchmark
+    public void decodeNotification()
+    {
+        decoder.decode(notification, 0, notification.length);
+    }
+
+    // Packets straddling notifications, as when the board's writes are split by the stack.
+    @Benchmark
+    public void decodeSplitNotification()
+    {
+        decoder.decode(notification, 0, 7);
+        decoder.decode(notification, 7, notification.length - 7);
+    }
+}
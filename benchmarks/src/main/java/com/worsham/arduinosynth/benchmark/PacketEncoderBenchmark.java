@@ -0,0 +1,88 @@
+package com.worsham.arduinosynth.benchmark;
+
+import com.worsham.arduinosynth.protocol.PacketEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packet encoding and checksum computation, against the allocating encoder the activity
+ * used to have inline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketEncoderBenchmark
+{
+    private byte[] packet;
+    private ByteBuffer buffer;
+    private byte[] frame;
+    private byte note;
+
+    @Setup
+    public void setup()
+    {
+        packet = new byte[PacketEncoder.PACKET_SIZE];
+        buffer = ByteBuffer.allocateDirect(PacketEncoder.PACKET_SIZE);
+        frame = new byte[20];
+        for (int i = 0; i < frame.length; i += PacketEncoder.PACKET_SIZE)
+            PacketEncoder.encodeNote(frame, i, (byte) (i / 4 + 1));
+        note = 5;
+    }
+
+    @Benchmark
+    public byte[] encodeNoteArray()
+    {
+        PacketEncoder.encodeNote(packet, 0, note);
+        return packet;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeNoteByteBuffer()
+    {
+        buffer.clear();
+        PacketEncoder.encodeNote(buffer, note);
+        return buffer;
+    }
+
+    // The encoder SynthActivity used before the protocol package, a new packet per note.
+    @Benchmark
+    public byte[] encodeNoteAllocating()
+    {
+        byte[] buffer = new byte[4];
+        buffer[0] = '!';
+        buffer[1] = 'N';
+        buffer[2] = note;
+        byte xsum = 0;
+        for (int i = 0; i < 3; i++)
+            xsum += buffer[i];
+        buffer[3] = (byte) ~xsum;
+        return buffer;
+    }
+
+    @Benchmark
+    public byte checksumPacket()
+    {
+        return PacketEncoder.checksum(packet, 0, 3);
+    }
+
+    @Benchmark
+    public byte checksumFrame()
+    {
+        return PacketEncoder.checksum(frame, 0, frame.length);
+    }
+}
@@ -0,0 +1,73 @@
+package com.worsham.arduinosynth.benchmark;
+
+import com.worsham.arduinosynth.bluetooth.UartWrite;
+import com.worsham.arduinosynth.bluetooth.UartWriteQueue;
+import com.worsham.arduinosynth.protocol.PacketEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduling overhead of the write queue: handing a note to the writer thread and getting the
+ * completion back, over a transport which acknowledges every frame immediately.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UartWriteQueueBenchmark
+{
+    private UartWriteQueue queue;
+    private byte[] packet;
+
+    @Setup
+    public void setup()
+    {
+        final UartWriteQueue[] holder = new UartWriteQueue[1];
+        queue = new UartWriteQueue(new UartWriteQueue.Sink() {
+            @Override
+            public boolean write(byte[] data, long sequence) {
+                holder[0].onWriteComplete(sequence, UartWrite.STATUS_SUCCESS);
+                return true;
+            }
+        }, UartWriteQueue.DEFAULT_CAPACITY, UartWriteQueue.DEFAULT_TIMEOUT_MILLIS);
+        holder[0] = queue;
+        packet = new byte[PacketEncoder.PACKET_SIZE];
+        PacketEncoder.encodeNote(packet, 0, (byte) 1);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        queue.shutdown();
+    }
+
+    // Round trip of one note through the writer thread.
+    @Benchmark
+    public Integer sendAndComplete() throws Exception
+    {
+        return queue.enqueue(packet, null).get();
+    }
+
+    // Pooled enqueue as the activity uses it, waiting for the queue to drain when it fills.
+    @Benchmark
+    public boolean enqueuePooled()
+    {
+        while (!queue.enqueue(packet, 0, packet.length, null))
+            Thread.yield();
+        return true;
+    }
+}